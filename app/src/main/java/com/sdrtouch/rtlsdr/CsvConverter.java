@@ -3,25 +3,39 @@ package com.sdrtouch.rtlsdr;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import com.sdrtouch.rtlsdr.spectrum.BatchInfo;
+import com.sdrtouch.rtlsdr.spectrum.CsvJsonConverter;
+import com.sdrtouch.rtlsdr.spectrum.RtlpFormat;
+import com.sdrtouch.rtlsdr.spectrum.RtlpReader;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumCsvReader;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumJsonWriter;
+import com.sdrtouch.rtlsdr.spectrum.SweepIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * Created by Jackie on 28/11/2016.
  * This class is responsible for converting an RTL_POWER .csv output file into a .json file
- * which is more suitable for ingest into MongoDB.
+ * which is more suitable for ingest into MongoDB. When rtl_power also wrote the binary .rtlp
+ * copy of the recording, that is read instead of the .csv.
+ * The parsed batch is handed on to the upload so the file does not have to be read again.
+ * The .idx summary of the recording is brought up to date on the way.
  */
 
 class CsvConverter extends AsyncTask<String, Void, Void> {
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // larger recordings are streamed to disk without keeping the batch in memory
+    private static final long IN_MEMORY_LIMIT = 16 * 1024 * 1024;
+
     private String dirName;
     private String batchID;
     private float altitude;
@@ -30,6 +44,7 @@ class CsvConverter extends AsyncTask<String, Void, Void> {
     private String integrationInterval;
     private StreamActivity activityContext;
     private Boolean backgroundProcessingFailed=false;
+    private SpectrumBatch batch;
 
     CsvConverter(StreamActivity streamActivity, String dirName, String batchID, float altitude, double latitude, double longitude, String integrationInterval) {
         this.activityContext = streamActivity;
@@ -60,112 +75,95 @@ class CsvConverter extends AsyncTask<String, Void, Void> {
         else {
             //Trigger HTTP Async thread after this thread is complete
             Log.d("RTL_LOG", "Starting HTTP Async thread...");
-            activityContext.beginUploadtoMongoDB();
+            activityContext.beginUploadtoMongoDB(batch);
         }
     }
 
     private void convert(String dirName, String batchID, float altitude, double latitude, double longitude, String integrationInterval) throws IOException, ParseException {
+        String jsonFile = dirName + "/" + batchID + ".json";
+
+        // rtl_power stops updating the index when a write fails, catch up with the data file first
+        SweepIndex index = refreshIndex(dirName, batchID);
+        if (index != null) {
+            Log.d("RTL_LOG", "Indexed " + index.getIntegrationCount() + " integrations of " + batchID);
+        }
+
+        // Prefer the binary copy rtl_power writes next to the csv, it needs no text parsing
+        File rtlpFile = new File(dirName, batchID + RtlpFormat.EXTENSION);
+        if (rtlpFile.canRead()) {
+            Log.d("RTL_LOG", "Found .rtlp file, starting conversion...");
+            try {
+                batch = new RtlpReader().read(rtlpFile);
+            } catch (IOException e) {
+                Log.d("RTL_LOG", "Unable to read " + rtlpFile + ", falling back to the .csv file");
+            }
+            if (batch != null && batch.getRowCount() > 0) {
+                writeJson(batch, jsonFile);
+                return;
+            }
+            batch = null;
+        }
+
         // Get CSV file location
         String csvFile = findFile(dirName, batchID);
 
         // Only proceed when there is a valid csv file
         if (!csvFile.equals("NOTFOUND")) {
             Log.d("RTL_LOG", "Found .csv file, starting conversion...");
-            BufferedReader br = new BufferedReader(new FileReader(csvFile));
-            // One entry in the HashMap for each spectrum sweep
-            Map<String, String> integrationsList = new HashMap<>();
-            String line;
-            String csvSplitBy = ", ";
-            boolean integrationExists;
-
-            // Iterate through CSV one row at a time
-            while ((line = br.readLine()) != null) {
-                // Populate string array entry, based on the value of each column in the row
-                String[] entry = line.split(csvSplitBy);
-                integrationExists = false;
-
-                //Convert first 2 columns into a to unix timestamp, to be used as a key
-				String datetime = entry[0] + entry[1];
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss");
-                long unixTime =  sdf.parse(datetime).getTime() / 1000;
-                String unix = String.valueOf(unixTime);
-
-                // Iterate though integration HashMap and
-                // set boolean if a key (unix) already exists in the HashMap
-                for (String key : integrationsList.keySet()) {
-                    if (key.equals(unix)) {
-                        integrationExists = true;
-                        break;
+            BatchInfo info = new BatchInfo(batchID, altitude, latitude, longitude, integrationInterval);
+            long csvSize = new File(csvFile).length();
+            InputStream in = new FileInputStream(csvFile);
+            OutputStream out = null;
+            try {
+                if (csvSize <= IN_MEMORY_LIMIT) {
+                    // Parse once, the same batch is written to disk here and posted by PostSpectrum
+                    batch = new SpectrumCsvReader().read(new BufferedInputStream(in, IO_BUFFER_SIZE), info, csvSize);
+                    writeJson(batch, jsonFile);
+                } else {
+                    // Stream the JSON straight to disk, only a handful of integrations are ever held in memory
+                    out = new BufferedOutputStream(new FileOutputStream(jsonFile), IO_BUFFER_SIZE);
+                    CsvJsonConverter converter = new CsvJsonConverter();
+                    int integrations = converter.convert(in, out, info);
+                    if (converter.getLateRows() > 0) {
+                        Log.d("RTL_LOG", converter.getLateRows() + " rows arrived after their integration was written");
                     }
+                    Log.d("RTL_LOG", "Exported " + integrations + " integrations to " + jsonFile);
                 }
-
-                //If a key already exists in the HashMap
-                if (integrationExists) {
-                    String json;
-                    // Retrieve existing JSON for the same integration
-                    json = integrationsList.get(unix);
-                    // Parse values from CSV
-                    int frequencyLow = Integer.parseInt(entry[2]);
-                    int frequencyStep = (int)Double.parseDouble(entry[4]);
-                    // Translate values into JSON format
-                    String valuesHeader = "{\"frequencyLow\":\"" + frequencyLow + "\",\"frequencyHigh\":\"" + entry[3] + "\",\"frequencyStep\":\"" + frequencyStep + "\",\"metricValues\":[";
-                    String valuesBody = "{\"" + Integer.toString(frequencyLow) + "\":" + entry[6] + "}]}";
-                    // Append new JSON value to existing JSON
-                    json = json + "," + valuesHeader + valuesBody;
-                    // Save appended JSON to HashMap
-                    integrationsList.put(unix, json);
-                }
-                // Else loop for when an integration does not exist in the HashMap
-                // Create a new HashMap entry for this key
-                // Populate HashMap with JSON containing integration header
-                else {
-                    // Parse values from CSV
-                    int frequencyLow = Integer.parseInt(entry[2]);
-                    int frequencyStep = (int)Double.parseDouble(entry[4]);
-                    // Translate values into JSON format
-                    String integrationHeader = "{\"unixTimestamp\":\"" + unixTime + "\",\"date\":\"" + entry[0] + "\",\"time\":\"" + entry[1] + "\",\"totalSamples\":\"" + entry[5] + "\",\"metricSeries\":[";
-                    String valuesHeader = "{\"frequencyLow\":\"" + frequencyLow + "\",\"frequencyHigh\":\"" + entry[3] + "\",\"frequencyStep\":\"" + frequencyStep + "\",\"metricValues\":[";
-                    String valuesBody = "{\"" + Integer.toString(frequencyLow) + "\":" + entry[6] + "}]}";
-                    // Build JSON string
-                    String integrationJSON = integrationHeader + valuesHeader + valuesBody;
-                    // Save JSON to HashMap
-                    integrationsList.put(unix, integrationJSON);
-                }
+            } finally {
+                if (out != null) out.close();
+                in.close();
             }
-
-            // CSV has finished iterating, begin building JSON output file...
-            StringBuilder sb = new StringBuilder();
-            //Sort HashMap by key (unix timestamp), earliest to latest
-            SortedSet<String> keys = new TreeSet<>(integrationsList.keySet());
-
-            //Iterate through HashMap to build JSON
-            for (String key : keys) {
-                //Build JSON Body
-                sb.append(integrationsList.get(key));
-                //Split or close each integration using below seperator
-                sb.append("]},");
-            }
-
-            //Build JSON header
-            String jsonHeader = "{\"BATCH_ID\":\"" + batchID + "\",\"altitude\":\"" + altitude + "\",\"latitude\":\"" + latitude +
-                    "\",\"longitude\":\"" + longitude + "\",\"integrationInterval\":\"" + integrationInterval + "\",\"integrations\":[";
-            //Remove final comma as there are no more JSON objects to be added
-            sb.setLength(sb.length() -1);
-            //Close off JSON Array and JSON Object
-            sb.append("]}");
-
-            //Export JSON to the .json file
-            FileWriter fr = new FileWriter(dirName + "/" + batchID + ".json");
-            fr.write(jsonHeader + sb.toString());
-            Log.d("RTL_LOG", "File exported to" + dirName + "/" + batchID + ".json");
-
-            fr.close();
-            br.close();
         } else {
             backgroundProcessingFailed=true;
         }
     }
 
+    private static void writeJson(SpectrumBatch batch, String jsonFile) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(jsonFile), IO_BUFFER_SIZE);
+        try {
+            new SpectrumJsonWriter().write(batch, out);
+        } finally {
+            out.close();
+        }
+        Log.d("RTL_LOG", "Exported " + batch.getIntegrationCount() + " integrations to " + jsonFile);
+    }
+
+    /**
+     * Brings batchID.idx up to date with the recording, rebuilding only what is missing.
+     * Returns null when there is no data file or it could not be indexed.
+     */
+    static SweepIndex refreshIndex(String dirName, String batchID) {
+        File rtlpFile = new File(dirName, batchID + RtlpFormat.EXTENSION);
+        File csvFile = new File(dirName, batchID + ".csv");
+        if (!rtlpFile.canRead() && !csvFile.canRead()) return null;
+        try {
+            return SweepIndex.update(new File(dirName, batchID + SweepIndex.EXTENSION), rtlpFile, csvFile);
+        } catch (Exception e) {
+            Log.d("RTL_LOG", "Unable to index " + batchID + ": " + e);
+            return null;
+        }
+    }
+
     private String findFile(String dirName, String batchID) {
         File dir = new File(dirName);
         File[] files = dir.listFiles();
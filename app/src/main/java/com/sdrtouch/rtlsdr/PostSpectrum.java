@@ -3,12 +3,21 @@ package com.sdrtouch.rtlsdr;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.sdrtouch.rtlsdr.spectrum.OutboxWorker;
+import com.sdrtouch.rtlsdr.spectrum.PayloadCompression;
+import com.sdrtouch.rtlsdr.spectrum.RtlpFormat;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumUploader;
+import com.sdrtouch.rtlsdr.spectrum.SweepFileReader;
+import com.sdrtouch.rtlsdr.spectrum.SweepIndex;
+import com.sdrtouch.rtlsdr.spectrum.UploadOutbox;
+
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -16,58 +25,150 @@ import java.net.URL;
  * Created by Jackie on 28/11/2016.
  * This class is responsible for locating the .json file after conversion and POSTing
  * the contents to MongoDB via a URI endpoint.
+ * When the converter passes on the parsed batch, the JSON is serialized from it instead.
+ * The batch and the binary .rtlp copy are posted in parts by {@link SpectrumUploader}, which
+ * keeps a journal of acknowledged parts so an interrupted upload resumes where it left off.
  */
 
 class PostSpectrum extends AsyncTask<String, Void, Object> {
+    private static final String ENDPOINT = "http://spectrumdatabase.org/addrecord/spectrum";
+    // numbered parts go to their own endpoint, the one above keeps taking whole documents only
+    private static final String PARTS_ENDPOINT = "http://spectrumdatabase.org/addrecord/spectrum/v2";
+    private static final String[] REQUEST_HEADERS = {
+            "User-Agent", "Mozilla/5.0 (Linux; Android 6.0.1; HTC 10 Build/MMB29M) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/54.0.2840.85 Mobile Safari/537.36",
+            "Accept-Language", "en-AU,en;q=0.8",
+            "Content-Type", "text/plain; charset=utf-8",
+            "Accept", "*/*"};
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    // Opt-in: switch to e.g. PayloadCompression.gzip(6) once the server accepts Content-Encoding,
+    // the JSON shrinks several times over (see PayloadBenchmark in :benchmarks)
+    private static final PayloadCompression UPLOAD_COMPRESSION = PayloadCompression.NONE;
+
     private String dirName;
     private String batchID;
+    private SpectrumBatch batch;
     private StreamActivity activityContext;
     private boolean backgroundProcessingFailed=false;
 
-    PostSpectrum(StreamActivity streamActivity, String dirName, String batchID) {
+    PostSpectrum(StreamActivity streamActivity, String dirName, String batchID, SpectrumBatch batch) {
         this.activityContext = streamActivity;
         this.dirName = dirName;
         this.batchID = batchID;
+        this.batch = batch;
     }
 
     @Override
     protected Void doInBackground(String[] params) {
         try {
+            SpectrumUploader uploader = newUploader();
+            File journal = new File(dirName, batchID + SpectrumUploader.JOURNAL_EXTENSION);
+            if (batch != null) {
+                Log.d("RTL_LOG", "Serializing batch, initiating HTTP POST request...");
+                int parts = uploader.upload(batch, journal);
+                Log.d("RTL_LOG", "Posted " + parts + " parts, " + uploader.getBytesSent() + " bytes, server response: " + uploader.getLastResponse());
+                discardJournal(journal);
+                return null;
+            }
+
+            // the index tells whether the recording holds anything worth posting without reading it
+            SweepIndex index = CsvConverter.refreshIndex(dirName, batchID);
+            if (index != null && index.getIntegrationCount() == 0) {
+                Log.d("RTL_LOG", "No integrations recorded for " + batchID + ", nothing to post");
+                backgroundProcessingFailed=true;
+                return null;
+            }
+            if (index != null) {
+                Log.d("RTL_LOG", "Posting integrations " + index.getTimestamp(0) + " to "
+                        + index.getTimestamp(index.getIntegrationCount() - 1));
+            }
+
+            // the binary copy carries the batch header, so it can be uploaded in resumable parts
+            File rtlpFile = new File(dirName, batchID + RtlpFormat.EXTENSION);
+            if (rtlpFile.canRead()) {
+                Log.d("RTL_LOG", "Found .rtlp file, initiating HTTP POST request...");
+                SweepFileReader recording = new SweepFileReader(rtlpFile);
+                try {
+                    int parts = uploader.upload(recording, recording.getInfo(), journal, true);
+                    Log.d("RTL_LOG", "Posted " + parts + " parts, " + uploader.getBytesSent() + " bytes, server response: " + uploader.getLastResponse());
+                } finally {
+                    recording.close();
+                }
+                discardJournal(journal);
+                return null;
+            }
+
             File jsonFile = findFile(dirName, batchID);
 
-            if (jsonFile.canRead()) { // only proceed when there is a valid json file
+            if (jsonFile != null && jsonFile.canRead()) { // only proceed when there is a valid json file
                 Log.d("RTL_LOG", "Found .json file, initiating HTTP POST request...");
-                FileInputStream fis = new FileInputStream(jsonFile);
-                String jsonData = convertStreamToString(fis);
-                fis.close();
-                executeRequest(jsonData);
+                executeRequest(jsonFile);
             } else {
                 backgroundProcessingFailed=true;
             }
         } catch (Exception e) {
             e.printStackTrace();
+            backgroundProcessingFailed=true;
         }
         return null;
     }
 
-    private void executeRequest(String jsonData) throws Exception {
+    /** A worker for the outbox under dirName, posting to the same server the same way */
+    static OutboxWorker newOutboxWorker(File dirName) throws Exception {
+        UploadOutbox outbox = new UploadOutbox(new File(dirName, UploadOutbox.DIRECTORY_NAME));
+        OutboxWorker worker = new OutboxWorker(outbox, new URL(PARTS_ENDPOINT));
+        worker.setCompression(UPLOAD_COMPRESSION);
+        for (int i = 0; i < REQUEST_HEADERS.length; i += 2) {
+            worker.setRequestProperty(REQUEST_HEADERS[i], REQUEST_HEADERS[i + 1]);
+        }
+        return worker;
+    }
+
+    /** The recording is finished and uploaded, the journal is of no more use */
+    private static void discardJournal(File journal) {
+        if (!SpectrumUploader.discardJournal(journal))
+            Log.d("RTL_LOG", "Unable to delete " + journal);
+    }
+
+    private static SpectrumUploader newUploader() throws Exception {
+        SpectrumUploader uploader = new SpectrumUploader(new URL(PARTS_ENDPOINT));
+        uploader.setCompression(UPLOAD_COMPRESSION);
+        for (int i = 0; i < REQUEST_HEADERS.length; i += 2) {
+            uploader.setRequestProperty(REQUEST_HEADERS[i], REQUEST_HEADERS[i + 1]);
+        }
+        return uploader;
+    }
+
+    /** Posts the .json file as a single document, streamed and compressed on the fly rather than read into memory */
+    private void executeRequest(File jsonFile) throws Exception {
         String responseData;
-        String url = "http://spectrumdatabase.org/addrecord/spectrum";
 
-        URL obj = new URL(url);
+        URL obj = new URL(ENDPOINT);
         HttpURLConnection con = (HttpURLConnection) obj.openConnection();
         con.setRequestMethod("POST");
 
         //Request Headers
-        con.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; Android 6.0.1; HTC 10 Build/MMB29M) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/54.0.2840.85 Mobile Safari/537.36");
-        con.setRequestProperty("Accept-Language", "en-AU,en;q=0.8");
-        con.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
-        con.setRequestProperty("Accept", "*/*");
+        for (int i = 0; i < REQUEST_HEADERS.length; i += 2) {
+            con.setRequestProperty(REQUEST_HEADERS[i], REQUEST_HEADERS[i + 1]);
+        }
+
+        if (UPLOAD_COMPRESSION.getContentEncoding() != null) {
+            con.setRequestProperty("Content-Encoding", UPLOAD_COMPRESSION.getContentEncoding());
+        }
 
         //Request Body
         con.setDoOutput(true);
-        DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-        wr.writeBytes(jsonData);
+        con.setChunkedStreamingMode(STREAM_CHUNK_SIZE);
+        OutputStream wr = UPLOAD_COMPRESSION.wrap(con.getOutputStream());
+        InputStream file = new FileInputStream(jsonFile);
+        try {
+            byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+            int read;
+            while ((read = file.read(buffer)) >= 0) {
+                wr.write(buffer, 0, read);
+            }
+        } finally {
+            file.close();
+        }
         wr.flush();
         wr.close();
 
@@ -98,17 +199,6 @@ class PostSpectrum extends AsyncTask<String, Void, Object> {
         return jsonFile;
     }
 
-    private static String convertStreamToString(InputStream is) throws Exception {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            sb.append(line);
-        }
-        reader.close();
-        return sb.toString();
-    }
-
     @Override
     protected void onPostExecute(Object result) {
         if (backgroundProcessingFailed)
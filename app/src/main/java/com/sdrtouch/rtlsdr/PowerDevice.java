@@ -0,0 +1,24 @@
+package com.sdrtouch.rtlsdr;
+
+/**
+ * What the native engine records from: the dongle over USB, or a simulated one for recording without
+ * hardware, see power_device.h.
+ *
+ * A device only tells the engine which one to open, the native code opens it on the next sweep and keeps
+ * it until the engine is closed.
+ */
+interface PowerDevice {
+    /** The native calls of the engine a device picks from */
+    interface Natives {
+        void openUsb(int fd, String path);
+
+        /** @param spec the signals of the simulated dongle, see synth_device.h */
+        void openSynthetic(String spec);
+    }
+
+    /** Tells the engine what to open, called by {@link PowerEngine#open(PowerDevice)} */
+    void attach(Natives natives);
+
+    /** Releases what the device holds, once the engine let go of it */
+    void close();
+}
@@ -0,0 +1,152 @@
+package com.sdrtouch.rtlsdr;
+
+import android.util.Log;
+
+import com.sdrtouch.rtlsdr.spectrum.FrequencyPlan;
+import com.sdrtouch.rtlsdr.spectrum.IqCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The native rtl_power scanner kept alive between recordings, one per dongle.
+ *
+ * The dongle, or the simulated one of {@link SyntheticPowerDevice}, stays open and the FFT tables
+ * and sample buffers stay allocated, {@link #configure(String[])} only builds a frequency plan the
+ * first time it is asked for and the last few plans stay cached. The scanner state in C is global,
+ * so there is only ever one engine at a time.
+ *
+ * Closing waits for a running sweep to stop after its hop, which can take as long as a USB read, so
+ * it happens on a thread of its own. The next engine to open waits for it.
+ */
+class PowerEngine {
+    static {
+        System.loadLibrary("rtlSdrAndroid");
+    }
+
+    // the native engine is global, closes run one after the other and an open waits for them
+    private static final ExecutorService CLOSER = Executors.newSingleThreadExecutor();
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private PowerDevice device;
+    private final PowerDevice.Natives natives = new PowerDevice.Natives() {
+        @Override
+        public void openUsb(int fd, String path) {
+            nativeOpen(fd, path);
+        }
+
+        @Override
+        public void openSynthetic(String spec) {
+            nativeOpenSynthetic(spec);
+        }
+    };
+
+    private native void nativeOpen(int fd, String path);
+    private native void nativeOpenSynthetic(String spec);
+    private native boolean nativeConfigure(String[] argv);
+    private native boolean nativeSweep(Object callbacks);
+    private native void nativeClose();
+    private native byte[] nativePlan();
+    private native boolean nativeCapture(String path, int frequency, int sampleRate, int gain, int ppm, long samples);
+
+    /** Takes over the device, it is closed with the engine */
+    synchronized void open(PowerDevice device) {
+        close();
+        awaitClosed();
+        this.device = device;
+        device.attach(natives);
+    }
+
+    synchronized boolean isOpen() {
+        return device != null;
+    }
+
+    /** Parses rtl_power arguments, e.g. {"-f", "1000M:1700M:1M", "-1", "out.csv"} */
+    boolean configure(String[] argv) {
+        return nativeConfigure(argv);
+    }
+
+    /** The hops the last successful {@link #configure(String[])} planned, null before */
+    FrequencyPlan getPlan() {
+        byte[] record = nativePlan();
+        return record == null ? null : new FrequencyPlan(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * Records as configured until done or stopped, on the calling thread.
+     *
+     * @param callbacks receives onStreamBuffers, onIntegration and onBatchFinished, see {@link RTLPower}
+     * @return false if the recording failed, the dongle is opened again on the next sweep
+     */
+    boolean sweep(RTLPower callbacks) {
+        return nativeSweep(callbacks);
+    }
+
+    /**
+     * Writes the raw samples of the dongle to a file until sampleCount IQ pairs are captured or the
+     * engine is closed, on the calling thread. Configured sweeps are not touched, the next one puts its
+     * own tuner settings back.
+     *
+     * @param gain tenths of a dB, or {@link IqCapture#AUTO_GAIN}
+     * @return the header of the capture with the samples storage could not keep up with, null if it failed
+     */
+    IqCapture capture(File file, int frequency, int sampleRate, int gain, int ppm, long sampleCount) {
+        if (!nativeCapture(file.getPath(), frequency, sampleRate, gain, ppm, sampleCount)) return null;
+        try {
+            IqCapture capture = IqCapture.read(file);
+            Log.d("RTL_LOG", "Captured " + capture);
+            return capture;
+        } catch (IOException e) {
+            Log.e("RTL_LOG", "Unable to read back " + file, e);
+            return null;
+        }
+    }
+
+    /** Aborts a running sweep or capture, releases the dongle and the buffers, without waiting for either */
+    void close() {
+        close(null);
+    }
+
+    /**
+     * Aborts a running sweep or capture and releases the dongle and the buffers on the closing thread.
+     *
+     * @param onClosed run on the closing thread once the engine is closed, may be null
+     */
+    void close(final Runnable onClosed) {
+        final PowerDevice closing;
+        synchronized (this) {
+            closing = device;
+            device = null;
+        }
+        CLOSER.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closing != null) {
+                    nativeClose();
+                    closing.close();
+                    Log.d("RTL_LOG", "Closed the rtl_power engine");
+                }
+                if (onClosed != null) onClosed.run();
+            }
+        });
+    }
+
+    /** Blocks until every close asked for so far has finished, not on the UI thread */
+    private static void awaitClosed() {
+        try {
+            CLOSER.submit(NOTHING).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // NOTHING does not throw
+        }
+    }
+}
@@ -5,9 +5,16 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.sdrtouch.rtlsdr.spectrum.BatchInfo;
+import com.sdrtouch.rtlsdr.spectrum.HopTimings;
+import com.sdrtouch.rtlsdr.spectrum.IntegrationFrame;
+import com.sdrtouch.rtlsdr.spectrum.IntegrationListener;
 import com.sdrtouch.tools.UsbPermissionHelper;
 import com.sdrtouch.tools.UsbPermissionObtainer;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
@@ -16,7 +23,16 @@ import uts.SpectrumRecorder.R;
 class RTLPower extends AsyncTask<Object, Object, Object> {
     private StreamActivity activityContext;
     private Boolean backgroundProcessingFailed=false;
-    private String batchID;
+    private BatchInfo batchInfo;
+    //run until stopped, rolling into a new batch every rollIntegrations sweeps or rollMinutes
+    private boolean continuous;
+    private int rollIntegrations;
+    private int rollMinutes;
+    //every integration streamed from C, no csv is written when set
+    private IntegrationListener integrationListener;
+    private IntegrationFrame frame;
+    //where the last recording spent its time, per hop
+    private HopTimings hopTimings;
 
     //Loads the C library
     static {
@@ -24,13 +40,57 @@ class RTLPower extends AsyncTask<Object, Object, Object> {
     }
 
     //C methods
-    public native void beginRTLPower(String[] argv);
-    public native void passFDandDeviceName(int fd_, String path_);
+    public native void passBatchInfo(String batchID, double latitude, double longitude, float altitude, String integrationInterval);
     public native int checkForFailure();
 
-    RTLPower(StreamActivity activityContext, String BatchID) {
+    RTLPower(StreamActivity activityContext, BatchInfo batchInfo) {
         this.activityContext = activityContext;
-        this.batchID = BatchID;
+        this.batchInfo = batchInfo;
+    }
+
+    /**
+     * Records until stopped. Every finished batch is handed to {@link StreamActivity#batchFinished(String)}
+     * while the next one is recorded.
+     *
+     * @param rollIntegrations sweeps per batch, or 0 for no limit
+     * @param rollMinutes duration of a batch in minutes, or 0 for no limit
+     */
+    RTLPower(StreamActivity activityContext, BatchInfo batchInfo, int rollIntegrations, int rollMinutes) {
+        this(activityContext, batchInfo);
+        this.continuous = true;
+        this.rollIntegrations = rollIntegrations;
+        this.rollMinutes = rollMinutes;
+    }
+
+    void setIntegrationListener(IntegrationListener integrationListener) {
+        this.integrationListener = integrationListener;
+    }
+
+    //Called from C on the recording thread when the memory the integrations are streamed into changes
+    public void onStreamBuffers(ByteBuffer hops, ByteBuffer dbm) {
+        frame = new IntegrationFrame(hops, dbm);
+    }
+
+    //Called from C on the recording thread after every integration
+    public void onIntegration(long timestamp, int hopCount, int binCount) {
+        frame.set(timestamp, hopCount, binCount);
+        integrationListener.onIntegration(frame);
+    }
+
+    //Called from C on the recording thread each time a rolling batch is closed
+    public void onBatchFinished(String batchID) {
+        publishProgress(batchID);
+    }
+
+    //Called from C on the recording thread when the recording ends
+    public void onHopStats(ByteBuffer stats, int hopCount) {
+        hopTimings = new HopTimings(stats, hopCount);
+        Log.d("RTL_LOG", "Sweep timings: " + hopTimings);
+    }
+
+    /** Timings of the last recording, null until one finished */
+    HopTimings getHopTimings() {
+        return hopTimings;
     }
 
     @Override
@@ -40,6 +100,19 @@ class RTLPower extends AsyncTask<Object, Object, Object> {
         //enumerate through devices from android i.e. availableUSBDevices does the two lines below
         //UsbManager manager = (UsbManager) getSystemService(Context.USB_SERVICE);
         //HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
+        PowerEngine engine = activityContext.powerEngine;
+        //the dongle is still open from the last recording, go straight to it
+        if (engine.isOpen()) {
+            record(engine);
+            return null;
+        }
+        //no dongle needed when the activity was started with a simulated one
+        if (activityContext.simulatedDevice != null) {
+            Log.d("RTL_LOG", "Recording from a " + activityContext.simulatedDevice);
+            engine.open(activityContext.simulatedDevice);
+            record(engine);
+            return null;
+        }
         Set<UsbDevice> availableUsbDevices = UsbPermissionHelper.getAvailableUsbDevices(activityContext, R.xml.device_filter);
 
         switch (availableUsbDevices.size()) {
@@ -62,16 +135,9 @@ class RTLPower extends AsyncTask<Object, Object, Object> {
                     Log.d("RTL_LOG","Opening fd: "+fd);
                     String path = usbDevice.getDeviceName();//to be passed to c
                     Log.d("RTL_LOG","USB path: "+path);
-                    passFDandDeviceName(fd,path); //method to pass to c
-                    //By Now, RTL SDR is connected, Call C method with hard coded arguments to start recording
-                    //when the time comes, replace hardcoded arguments with proper ones
-                    // RTL SDR can tune from 24MHz to 1700MHz
-                    // From http://www.acma.gov.au/sitecore/content/Home/Industry/Spectrum/Spectrum-projects/700-MHz-band/700-mhz-auction-commences it looks like we should have intervals of 5MHz
-                    //String[] argv = new String[]{"-f", "88M:108M:125k", "-1", activityContext.dirName + "/" + batchID + ".csv"};
-                    String[] argv = new String[]{"-f", "1000M:1700M:1M", "-1", activityContext.dirName + "/" + batchID + ".csv"};
-                    //Log.d("RTL_LOG", "Passing arguments: " + Arrays.toString(argv));
-                    beginRTLPower(argv);
-                    deviceConnection.close();
+                    //the engine keeps the connection open for the next recordings
+                    engine.open(new UsbPowerDevice(deviceConnection, path)); //method to pass to c
+                    record(engine);
                 } catch (ExecutionException ee) {
                     Log.d("RTL_LOG", "Unable to enumerate the available USB devices. Execution Exception.");
                     backgroundProcessingFailed=true;
@@ -88,6 +154,73 @@ class RTLPower extends AsyncTask<Object, Object, Object> {
         return null;
     }
 
+    private void record(PowerEngine engine) {
+        //header of the binary .rtlp copy of the recording
+        passBatchInfo(batchInfo.batchID, batchInfo.latitude, batchInfo.longitude, batchInfo.altitude, batchInfo.integrationInterval);
+        //By Now, RTL SDR is connected, Call C method with hard coded arguments to start recording
+        //when the time comes, replace hardcoded arguments with proper ones
+        // RTL SDR can tune from 24MHz to 1700MHz
+        // From http://www.acma.gov.au/sitecore/content/Home/Industry/Spectrum/Spectrum-projects/700-MHz-band/700-mhz-auction-commences it looks like we should have intervals of 5MHz
+        //String[] argv = new String[]{"-f", "88M:108M:125k", "-1", activityContext.dirName + "/" + batchID + ".csv"};
+        String batchPath = activityContext.dirName + "/" + batchInfo.batchID;
+        String[] argv = new String[]{"-f", "1000M:1700M:1M", "-1", "-b", batchPath + ".rtlp", "-x", batchPath + ".idx", batchPath + ".csv"};
+        if (continuous)
+            argv = continuousArguments();
+        else if (integrationListener != null)
+            argv = new String[]{"-f", "1000M:1700M:1M", "-1", "-S", "-b", batchPath + ".rtlp", "-x", batchPath + ".idx"};
+        argv = withScanThreads(argv);
+        //Log.d("RTL_LOG", "Passing arguments: " + Arrays.toString(argv));
+        //the plan and its buffers are only rebuilt when the arguments change it
+        boolean configured = engine.configure(argv);
+        if (configured)
+            Log.d("RTL_LOG", "Frequency plan: " + engine.getPlan());
+        if (!configured || !engine.sweep(this)) {
+            Log.d("RTL_LOG", "rtl_power failed, the dongle is opened again next time");
+            engine.close();
+            backgroundProcessingFailed=true;
+        }
+    }
+
+    //the fft of each hop runs on its own core while the next hop is read from the dongle
+    private static String[] withScanThreads(String[] argv) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (cores < 2)
+            return argv;
+        String[] threaded = new String[argv.length + 2];
+        threaded[0] = "-t";
+        threaded[1] = String.valueOf(cores);
+        System.arraycopy(argv, 0, threaded, 2, argv.length);
+        return threaded;
+    }
+
+    private String[] continuousArguments() {
+        //{batch} is replaced by the id of each batch, the first one keeps batchInfo.batchID
+        String batchPath = activityContext.dirName + "/{batch}";
+        List<String> argv = new ArrayList<>();
+        argv.add("-f");
+        argv.add("1000M:1700M:1M");
+        //without either the whole session is one batch, finished when stopped
+        if (rollIntegrations > 0) {
+            argv.add("-n");
+            argv.add(String.valueOf(rollIntegrations));
+        }
+        if (rollMinutes > 0) {
+            argv.add("-R");
+            argv.add(rollMinutes + "m");
+        }
+        argv.add("-b");
+        argv.add(batchPath + ".rtlp");
+        argv.add("-x");
+        argv.add(batchPath + ".idx");
+        argv.add(batchPath + ".csv");
+        return argv.toArray(new String[argv.size()]);
+    }
+
+    @Override
+    protected void onProgressUpdate(Object... values) {
+        activityContext.batchFinished((String) values[0]);
+    }
+
     @Override
     protected void onPostExecute(Object result) {
         //check if the c methods passed
@@ -96,6 +229,8 @@ class RTLPower extends AsyncTask<Object, Object, Object> {
 
         if (backgroundProcessingFailed)
             activityContext.recordSpectrumFailed();
+        else if (continuous)
+            activityContext.continuousRecordingFinished();
         else
             activityContext.beginCSVConversion();
     }
@@ -21,8 +21,11 @@
 package com.sdrtouch.rtlsdr;
 
 import android.Manifest;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -46,6 +49,7 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -59,10 +63,18 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.sdrtouch.rtlsdr.spectrum.BatchCollector;
+import com.sdrtouch.rtlsdr.spectrum.BatchInfo;
+import com.sdrtouch.rtlsdr.spectrum.OutboxWorker;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.UploadOutbox;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 import uts.SpectrumRecorder.R;
 
@@ -90,14 +102,47 @@ public class StreamActivity
     private CheckBox CheckboxAltitude;
     private CheckBox CheckboxRecord;
     private CheckBox CheckboxUpload;
+    private CheckBox CheckboxContinuous;
+    private EditText EditRollIntegrations;
+    private EditText EditRollMinutes;
 
     //Run button status variable(s)
     public boolean isRunning = false;
 
     //Variables required for recording the spectrum
     private String batchID = null;
+    private static final String INTEGRATION_INTERVAL = "10s";
+    //Unattended stations record without stopping, a batch is closed and uploaded every
+    //rollIntegrations sweeps or rollMinutes, whichever comes first (0 for no limit).
+    //Set from the checkbox next to RUN NOW and remembered, or for a station started with
+    //adb shell am start --ez continuous true --ei rollIntegrations 60 --ei rollMinutes 10
+    static final String EXTRA_CONTINUOUS = "continuous";
+    static final String EXTRA_ROLL_INTEGRATIONS = "rollIntegrations";
+    static final String EXTRA_ROLL_MINUTES = "rollMinutes";
+    private static final int DEFAULT_ROLL_INTEGRATIONS = 60;
+    private static final int DEFAULT_ROLL_MINUTES = 10;
+    //Single-shot recordings are streamed straight into a batch instead of being read back from a file
+    private static final boolean STREAM_INTEGRATIONS = true;
+    private BatchCollector streamedBatch;
+    //The dongle and the rtl_power buffers are kept between recordings
+    final PowerEngine powerEngine = new PowerEngine();
+    //Started with e.g. adb shell am start -e synthetic "tone=100.3M:-20,realtime" the recordings come from a
+    //simulated dongle instead of the USB one, see SyntheticPowerDevice
+    static final String EXTRA_SYNTHETIC = "synthetic";
+    PowerDevice simulatedDevice;
     public File dirName = new File(Environment.getExternalStorageDirectory() + File.separator + "RTL_POWER");
     private LogCatTask logCat;
+    //Batches that failed to upload wait under RTL_POWER/outbox/ and are retried in the background
+    private OutboxWorker outboxWorker;
+    //The csv copies of rolled batches are only kept until the .rtlp is uploaded
+    private final Set<String> rolledBatches = Collections.synchronizedSet(new HashSet<String>());
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (outboxWorker != null && internetIsEnabled())
+                outboxWorker.wake();
+        }
+    };
 
     //Google Play Services GPS variable(s)
     private GoogleApiClient GoogleApiClient;
@@ -160,6 +205,10 @@ public class StreamActivity
         CheckboxAltitude = (CheckBox) findViewById(R.id.checkBoxAltitude);
         CheckboxRecord = (CheckBox) findViewById(R.id.checkBoxRecord);
         CheckboxUpload = (CheckBox) findViewById(R.id.checkBoxUpload);
+        CheckboxContinuous = (CheckBox) findViewById(R.id.checkBoxContinuous);
+        EditRollIntegrations = (EditText) findViewById(R.id.editTextRollIntegrations);
+        EditRollMinutes = (EditText) findViewById(R.id.editTextRollMinutes);
+        loadRecordingOptions();
         GoogleApiClient = new GoogleApiClient.Builder(this)
                 .addConnectionCallbacks(this)
                 .addOnConnectionFailedListener(this)
@@ -174,6 +223,14 @@ public class StreamActivity
         // use this to start and trigger the location service
         Intent locationServiceIntent= new Intent(this, LocationService.class);
         startService(locationServiceIntent);
+
+        String synthetic = getIntent().getStringExtra(EXTRA_SYNTHETIC);
+        if (synthetic != null)
+            simulatedDevice = new SyntheticPowerDevice(synthetic);
+
+        //Resume uploading whatever was queued before the app was closed
+        startOutbox();
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
     /*===================================================
      * Main Entry Point to App END
@@ -204,6 +261,11 @@ public class StreamActivity
         Intent locationServiceIntent = new Intent(this, LocationService.class);
         logCat.cancel(true);
         stopService(locationServiceIntent);
+        unregisterReceiver(connectivityReceiver);
+        if (outboxWorker != null)
+            outboxWorker.stop();
+        //closes in the background, a sweep only stops after its hop
+        powerEngine.close();
         super.onDestroy();
     }
 
@@ -538,7 +600,19 @@ public class StreamActivity
             StatusTextRecord.setText("RUNNING");
             //start calling rtl power in another thread
             batchID = getBatchID(); //Set batch ID to current datetime
-            AsyncTaskTools.execute(new RTLPower(StreamActivity.this, batchID));
+            saveRecordingOptions();
+            if (CheckboxContinuous.isChecked())
+                AsyncTaskTools.execute(new RTLPower(StreamActivity.this, getBatchInfo(),
+                        getRollSetting(EditRollIntegrations), getRollSetting(EditRollMinutes)));
+            else {
+                RTLPower recorder = new RTLPower(StreamActivity.this, getBatchInfo());
+                streamedBatch = null;
+                if (STREAM_INTEGRATIONS) {
+                    streamedBatch = new BatchCollector(getBatchInfo());
+                    recorder.setIntegrationListener(streamedBatch);
+                }
+                AsyncTaskTools.execute(recorder);
+            }
         }
         else {
             stopSpectrumRecording();
@@ -552,6 +626,39 @@ public class StreamActivity
         isRunning = false;
     }
 
+    //Intent extras win over what was used last time
+    private void loadRecordingOptions() {
+        SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        Intent intent = getIntent();
+        CheckboxContinuous.setChecked(intent.getBooleanExtra(EXTRA_CONTINUOUS,
+                preferences.getBoolean(EXTRA_CONTINUOUS, false)));
+        EditRollIntegrations.setText(String.valueOf(intent.getIntExtra(EXTRA_ROLL_INTEGRATIONS,
+                preferences.getInt(EXTRA_ROLL_INTEGRATIONS, DEFAULT_ROLL_INTEGRATIONS))));
+        EditRollMinutes.setText(String.valueOf(intent.getIntExtra(EXTRA_ROLL_MINUTES,
+                preferences.getInt(EXTRA_ROLL_MINUTES, DEFAULT_ROLL_MINUTES))));
+    }
+
+    private void saveRecordingOptions() {
+        getPreferences(MODE_PRIVATE).edit()
+                .putBoolean(EXTRA_CONTINUOUS, CheckboxContinuous.isChecked())
+                .putInt(EXTRA_ROLL_INTEGRATIONS, getRollSetting(EditRollIntegrations))
+                .putInt(EXTRA_ROLL_MINUTES, getRollSetting(EditRollMinutes))
+                .apply();
+    }
+
+    //an empty field means no limit
+    private static int getRollSetting(EditText field) {
+        try {
+            return Math.max(0, Integer.parseInt(field.getText().toString().trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private BatchInfo getBatchInfo() {
+        return new BatchInfo(batchID, altitude, latitude, longitude, INTEGRATION_INTERVAL);
+    }
+
     private static String getBatchID() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss");
         Date date = new Date();
@@ -562,20 +669,51 @@ public class StreamActivity
      *===================================================*/
 
     /*===================================================
-     * Continue Execution here after calling AsyncTaskTools.execute(new RTLPower(StreamActivity.this, batchID)); START
+     * Continue Execution here after calling AsyncTaskTools.execute(new RTLPower(StreamActivity.this, getBatchInfo())); START
      *===================================================*/
     public void beginCSVConversion() {
         if (isRunning) {
             StatusTextRecord.setText("DONE");
             CheckboxRecord.setChecked(true);
             StatusTextUpload.setText("RUNNING");
-            AsyncTaskTools.execute(new CsvConverter(StreamActivity.this, dirName.toString(), batchID, altitude, latitude, longitude, "10s"));
+            SpectrumBatch batch = streamedBatch != null ? streamedBatch.getBatch() : null;
+            streamedBatch = null;
+            if (batch != null && batch.getRowCount() > 0) {
+                //Already in memory, nothing to read back
+                Log.d("RTL_LOG", "Streamed " + batch.getIntegrationCount() + " integrations of " + batchID);
+                beginUploadtoMongoDB(batch);
+            }
+            else
+                AsyncTaskTools.execute(new CsvConverter(StreamActivity.this, dirName.toString(), batchID, altitude, latitude, longitude, INTEGRATION_INTERVAL));
         }
         else {
             stopSpectrumRecording();
         }
     }
 
+    //Continuous recording: a batch is complete, upload it while the next one is recorded
+    public void batchFinished(String finishedBatchID) {
+        Log.d("RTL_LOG", "Batch " + finishedBatchID + " recorded");
+        StatusTextUpload.setText("RUNNING");
+        if (outboxWorker == null) {
+            Log.d("RTL_LOG", "No upload queue, " + finishedBatchID + " stays on the device");
+            StatusTextUpload.setText("FAILED");
+            return;
+        }
+        //the .rtlp copy is uploaded directly, no conversion needed
+        rolledBatches.add(finishedBatchID);
+        outboxWorker.submit(new BatchInfo(finishedBatchID, altitude, latitude, longitude, INTEGRATION_INTERVAL), dirName);
+        Log.d("RTL_LOG", "Queued " + finishedBatchID + " for upload");
+    }
+
+    //Continuous recording was stopped, the last batch has already gone to batchFinished
+    public void continuousRecordingFinished() {
+        Log.d("RTL_LOG", "Continuous recording stopped");
+        StatusTextRecord.setText("DONE");
+        isRunning = false;
+        RunNowButton.setText("RUN NOW");
+    }
+
     public void recordSpectrumFailed() {
         Log.d("RTL_LOG", "Spectrum Recording Failed");
         StatusTextRecord.setText("FAILED");
@@ -590,15 +728,15 @@ public class StreamActivity
         isRunning = false;
     }
     /*===================================================
-     * Continue Execution here after calling AsyncTaskTools.execute(new RTLPower(StreamActivity.this, batchID)); END
+     * Continue Execution here after calling AsyncTaskTools.execute(new RTLPower(StreamActivity.this, getBatchInfo())); END
      *===================================================*/
 
     /*===================================================
      * Continue Execution here after calling AsyncTaskTools.execute(new CsvConverter START
      *===================================================*/
-    public void beginUploadtoMongoDB() {
+    public void beginUploadtoMongoDB(SpectrumBatch batch) {
         if (isRunning)
-            AsyncTaskTools.execute(new PostSpectrum(StreamActivity.this, dirName.toString(), batchID));
+            AsyncTaskTools.execute(new PostSpectrum(StreamActivity.this, dirName.toString(), batchID, batch));
         else
             stopSpectrumUpload();
     }
@@ -630,10 +768,45 @@ public class StreamActivity
 
     public void uploadFailed() {
         Log.d("RTL_LOG", "HTTP Post Failed");
-        StatusTextUpload.setText("FAILED");
+        if (outboxWorker != null) {
+            //Keep the batch and retry it in the background
+            outboxWorker.submit(getBatchInfo(), dirName);
+            Log.d("RTL_LOG", "Queued " + batchID + " for upload");
+            StatusTextUpload.setText("QUEUED");
+        } else {
+            StatusTextUpload.setText("FAILED");
+        }
         isRunning = false;
         RunNowButton.setText("RUN NOW");
     }
+
+    private void startOutbox() {
+        try {
+            outboxWorker = PostSpectrum.newOutboxWorker(dirName);
+        } catch (Exception e) {
+            Log.d("RTL_LOG", "Unable to start the upload queue: " + e);
+            return;
+        }
+        outboxWorker.setListener(new OutboxWorker.Listener() {
+            @Override
+            public void onUploaded(UploadOutbox.Entry entry, int parts, long bytesSent) {
+                String uploadedBatchID = entry.getInfo().batchID;
+                Log.d("RTL_LOG", "Uploaded queued batch " + uploadedBatchID + " in " + parts + " parts, " + bytesSent + " bytes");
+                //a long continuous session would otherwise fill the storage with csv files
+                if (rolledBatches.remove(uploadedBatchID)) {
+                    File csv = new File(entry.getRecordingDirectory(), uploadedBatchID + ".csv");
+                    if (csv.exists() && !csv.delete())
+                        Log.d("RTL_LOG", "Unable to delete " + csv);
+                }
+            }
+
+            @Override
+            public void onFailed(UploadOutbox.Entry entry, Exception error) {
+                Log.d("RTL_LOG", "Upload of queued batch " + entry.getInfo().batchID + " failed: " + error);
+            }
+        });
+        outboxWorker.start();
+    }
     /*===================================================
      * Continue Execution here after calling AsyncTaskTools.execute(new PostSpectrum END
      *===================================================*/
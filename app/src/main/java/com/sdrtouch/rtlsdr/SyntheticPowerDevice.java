@@ -0,0 +1,99 @@
+package com.sdrtouch.rtlsdr;
+
+import java.util.Locale;
+
+/**
+ * A simulated dongle, so the recording pipeline runs without USB, e.g. on an emulator or in a benchmark.
+ *
+ * The native side makes a noise floor with tones and bursts at fixed frequencies and follows the engine's
+ * retunes, gain and ppm like a dongle would, see synth_device.h. Levels are in dB of full scale at 0 dB
+ * gain. Without {@link #realtime()} the samples come as fast as they are made.
+ *
+ * <pre>
+ * engine.open(new SyntheticPowerDevice().noise(-50).tone(100300000, -20).burst(101000000, -10, 100, 25));
+ * </pre>
+ */
+class SyntheticPowerDevice implements PowerDevice {
+    /** The most tones and bursts the native side takes */
+    static final int MAX_SIGNALS = 16;
+
+    private final StringBuilder spec = new StringBuilder();
+    private int signals;
+
+    /** Noise at -60 dBFS and nothing else */
+    SyntheticPowerDevice() {
+    }
+
+    /** Starts from the items of a spec as rtl_power's -z takes it, e.g. "tone=100.3M:-20,realtime" */
+    SyntheticPowerDevice(String spec) {
+        for (String item : spec.split(",")) {
+            if (item.isEmpty()) continue;
+            if (item.startsWith("tone=") || item.startsWith("burst=")) signals++;
+            add(item);
+        }
+        if (signals > MAX_SIGNALS) throw new IllegalArgumentException(signals + " signals, at most " + MAX_SIGNALS);
+    }
+
+    /** The noise floor, -60 dBFS without */
+    SyntheticPowerDevice noise(double dbfs) {
+        return add(String.format(Locale.US, "noise=%.1f", dbfs));
+    }
+
+    /** A carrier, heard whenever a hop is tuned within half the sample rate of it */
+    SyntheticPowerDevice tone(long hz, double dbfs) {
+        return signal(String.format(Locale.US, "tone=%d:%.1f", hz, dbfs));
+    }
+
+    /** A carrier that is on for dutyPercent of every periodMillis */
+    SyntheticPowerDevice burst(long hz, double dbfs, int periodMillis, double dutyPercent) {
+        if (periodMillis < 1) throw new IllegalArgumentException("A burst needs a period, not " + periodMillis + " ms");
+        return signal(String.format(Locale.US, "burst=%d:%.1f:%d:%.1f", hz, dbfs, periodMillis, dutyPercent));
+    }
+
+    /** How long the tuner is given after a retune, none without */
+    SyntheticPowerDevice settle(int micros) {
+        return add("settle=" + micros);
+    }
+
+    /** Another noise, the same seed makes the same samples */
+    SyntheticPowerDevice seed(int seed) {
+        return add("seed=" + (seed & 0xffffffffL));
+    }
+
+    /** Hands the samples out no faster than the sample rate, like USB does */
+    SyntheticPowerDevice realtime() {
+        return add("realtime");
+    }
+
+    /** The spec for the native side, see synth_device.h */
+    String getSpec() {
+        return spec.toString();
+    }
+
+    @Override
+    public void attach(Natives natives) {
+        natives.openSynthetic(getSpec());
+    }
+
+    @Override
+    public void close() {
+        // the native side frees it with the engine
+    }
+
+    @Override
+    public String toString() {
+        return "synthetic " + spec;
+    }
+
+    private SyntheticPowerDevice signal(String item) {
+        if (signals == MAX_SIGNALS) throw new IllegalStateException("At most " + MAX_SIGNALS + " tones and bursts");
+        signals++;
+        return add(item);
+    }
+
+    private SyntheticPowerDevice add(String item) {
+        if (spec.length() > 0) spec.append(',');
+        spec.append(item);
+        return this;
+    }
+}
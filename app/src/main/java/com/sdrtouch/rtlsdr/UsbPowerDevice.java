@@ -0,0 +1,29 @@
+package com.sdrtouch.rtlsdr;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+/** A dongle the app was given permission for, the connection is closed with the engine */
+class UsbPowerDevice implements PowerDevice {
+    private final UsbDeviceConnection connection;
+    private final String path;
+
+    UsbPowerDevice(UsbDeviceConnection connection, String path) {
+        this.connection = connection;
+        this.path = path;
+    }
+
+    @Override
+    public void attach(Natives natives) {
+        natives.openUsb(connection.getFileDescriptor(), path);
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+
+    @Override
+    public String toString() {
+        return "USB " + path;
+    }
+}
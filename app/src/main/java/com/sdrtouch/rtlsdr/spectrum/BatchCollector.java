@@ -0,0 +1,39 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Builds a {@link SpectrumBatch} from the integrations rtl_power streams, the same batch
+ * {@link RtlpReader} or {@link SpectrumCsvReader} would read back from the recording.
+ */
+public class BatchCollector implements IntegrationListener {
+    private final SpectrumBatch batch;
+    private final Calendar calendar;
+    private float[] scratch = new float[1024];
+
+    public BatchCollector(BatchInfo info) {
+        this(info, TimeZone.getDefault());
+    }
+
+    /** @param timeZone the zone the wall clock date and time of every row are given in */
+    public BatchCollector(BatchInfo info, TimeZone timeZone) {
+        this.batch = new SpectrumBatch(info);
+        this.calendar = new GregorianCalendar(timeZone);
+    }
+
+    @Override
+    public synchronized void onIntegration(IntegrationFrame frame) {
+        for (int hop = 0; hop < frame.getHopCount(); hop++) {
+            if (frame.getBinCount(hop) > scratch.length) scratch = new float[frame.getBinCount(hop) * 2];
+        }
+        frame.appendTo(batch, calendar, scratch);
+    }
+
+    /** The integrations so far, sealed */
+    public synchronized SpectrumBatch getBatch() {
+        batch.seal();
+        return batch;
+    }
+}
@@ -0,0 +1,21 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+/**
+ * Describes where and how a spectrum batch was recorded. This is the information
+ * that ends up in the header of every exported batch, independent of its format.
+ */
+public class BatchInfo {
+    public final String batchID;
+    public final float altitude;
+    public final double latitude;
+    public final double longitude;
+    public final String integrationInterval;
+
+    public BatchInfo(String batchID, float altitude, double latitude, double longitude, String integrationInterval) {
+        this.batchID = batchID;
+        this.altitude = altitude;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.integrationInterval = integrationInterval;
+    }
+}
@@ -0,0 +1,109 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A growable, reusable byte array for building ASCII output without creating Strings.
+ * Once the backing array is large enough, appending never allocates.
+ */
+public class ByteBuilder {
+    private static final byte[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+    private static final byte[] MIN_LONG = "-9223372036854775808".getBytes();
+
+    private byte[] data;
+    private int length;
+
+    public ByteBuilder() {
+        this(256);
+    }
+
+    public ByteBuilder(int capacity) {
+        data = new byte[Math.max(capacity, 16)];
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    public ByteBuilder append(byte b) {
+        ensureCapacity(length + 1);
+        data[length++] = b;
+        return this;
+    }
+
+    public ByteBuilder append(char c) {
+        return append((byte) c);
+    }
+
+    public ByteBuilder append(byte[] src) {
+        return append(src, 0, src.length);
+    }
+
+    public ByteBuilder append(byte[] src, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(src, offset, data, length, count);
+        length += count;
+        return this;
+    }
+
+    public ByteBuilder append(ByteBuilder other) {
+        return append(other.data, 0, other.length);
+    }
+
+    /** Appends the characters of an ASCII string, anything outside ASCII is truncated to a byte */
+    public ByteBuilder appendAscii(String s) {
+        int count = s.length();
+        ensureCapacity(length + count);
+        for (int i = 0; i < count; i++) {
+            data[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    public ByteBuilder append(long value) {
+        if (value == Long.MIN_VALUE) return append(MIN_LONG);
+        ensureCapacity(length + 20);
+        if (value < 0) {
+            data[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            data[length++] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        } while (value != 0);
+        // digits were written least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte tmp = data[i];
+            data[i] = data[j];
+            data[j] = tmp;
+        }
+        return this;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= data.length) return;
+        byte[] grown = new byte[Math.max(capacity, data.length * 2)];
+        System.arraycopy(data, 0, grown, 0, length);
+        data = grown;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(data, 0, length, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
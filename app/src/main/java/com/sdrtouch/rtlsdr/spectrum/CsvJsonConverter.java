@@ -0,0 +1,132 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts an RTL_POWER .csv output into the .json document expected by MongoDB in a single pass.
+ *
+ * Rows are grouped into integrations by their timestamp. Only the last few integrations are kept
+ * in memory (the reorder window), so rows that arrive slightly out of order are still merged
+ * into the right integration while peak memory stays flat no matter how long the recording is.
+ * As soon as the window overflows, the earliest integration is written out and forgotten.
+ *
+ * Use {@link SpectrumCsvReader} and {@link SpectrumJsonWriter} instead when the whole batch
+ * fits in memory and is needed for more than the .json file.
+ */
+public class CsvJsonConverter {
+    public static final int DEFAULT_REORDER_WINDOW = 4;
+
+    private final int reorderWindow;
+    // every pending integration is a batch holding the rows of that one integration
+    private final TreeMap<Long, SpectrumBatch> pending = new TreeMap<>();
+    private final ArrayDeque<SpectrumBatch> recycled = new ArrayDeque<>();
+    private final TimestampDecoder timestamps = new TimestampDecoder();
+    private final SpectrumJsonWriter writer = new SpectrumJsonWriter();
+    private BatchInfo info;
+    private long lastFlushed = Long.MIN_VALUE;
+    private int integrationsWritten;
+    private int lateRows;
+
+    // the integration that received the previous row
+    private long currentTime;
+    private SpectrumBatch current;
+
+    public CsvJsonConverter() {
+        this(DEFAULT_REORDER_WINDOW);
+    }
+
+    public CsvJsonConverter(int reorderWindow) {
+        if (reorderWindow < 1) throw new IllegalArgumentException("Reorder window must hold at least one integration");
+        this.reorderWindow = reorderWindow;
+    }
+
+    /**
+     * Streams the rows of csv into out as a single JSON document.
+     * Neither stream is closed by this method, out is flushed.
+     *
+     * @return the number of integrations written
+     */
+    public int convert(InputStream csv, OutputStream out, BatchInfo info) throws IOException, ParseException {
+        CsvRowTokenizer row = new CsvRowTokenizer(csv);
+        this.info = info;
+        pending.clear();
+        current = null;
+        lastFlushed = Long.MIN_VALUE;
+        integrationsWritten = 0;
+        lateRows = 0;
+
+        if (!row.next()) throw new IOException("No rows found in the csv file");
+
+        writer.writeHeader(info, out);
+        do {
+            addRow(row, out);
+        } while (row.next());
+        while (!pending.isEmpty()) {
+            flushEarliest(out);
+        }
+        writer.writeFooter(out);
+        out.flush();
+        return integrationsWritten;
+    }
+
+    /** Rows whose integration had already been written when they arrived */
+    public int getLateRows() {
+        return lateRows;
+    }
+
+    private void addRow(CsvRowTokenizer row, OutputStream out) throws IOException {
+        //Convert first 2 columns into a to unix timestamp, to be used as a key
+        long unixTime = timestamps.decode(row);
+
+        // rows of one integration are adjacent, so try the previous integration before the window
+        SpectrumBatch integration = (current != null && currentTime == unixTime) ? current : pending.get(unixTime);
+        if (integration == null) {
+            integration = obtainBatch();
+            if (unixTime <= lastFlushed) {
+                // The integration has already left the window, emit the row on its own
+                // rather than dropping it
+                lateRows++;
+                integration.addRow(row, unixTime);
+                writeIntegration(out, integration);
+                return;
+            }
+            pending.put(unixTime, integration);
+        }
+        integration.addRow(row, unixTime);
+        current = integration;
+        currentTime = unixTime;
+
+        if (pending.size() > reorderWindow) {
+            flushEarliest(out);
+        }
+    }
+
+    private void flushEarliest(OutputStream out) throws IOException {
+        Map.Entry<Long, SpectrumBatch> earliest = pending.pollFirstEntry();
+        lastFlushed = earliest.getKey();
+        if (earliest.getValue() == current) current = null;
+        writeIntegration(out, earliest.getValue());
+    }
+
+    private void writeIntegration(OutputStream out, SpectrumBatch integration) throws IOException {
+        integration.seal();
+        //Split each integration from the previous one
+        writer.writeIntegration(integration, 0, integrationsWritten > 0, out);
+        integrationsWritten++;
+        integration.clear();
+        recycled.push(integration);
+    }
+
+    private SpectrumBatch obtainBatch() {
+        SpectrumBatch batch = recycled.poll();
+        if (batch == null) return new SpectrumBatch(info);
+        batch.setInfo(info);
+        return batch;
+    }
+}
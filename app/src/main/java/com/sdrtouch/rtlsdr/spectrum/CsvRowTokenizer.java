@@ -0,0 +1,292 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+
+/**
+ * Reads rtl_power CSV output one row at a time straight from the raw bytes.
+ *
+ * Each row has the columns {@code date, time, Hz low, Hz high, Hz step, samples, dbm, dbm, ...}.
+ * The columns are decoded into primitive fields and a reusable float array of dBm values,
+ * so after the internal buffers have grown to fit the widest row no allocation happens per row.
+ * The values returned by the getters are only valid until the next call to {@link #next()}.
+ */
+public class CsvRowTokenizer {
+    public static final int COLUMN_DATE = 0;
+    public static final int COLUMN_TIME = 1;
+    public static final int COLUMN_FREQUENCY_LOW = 2;
+    public static final int COLUMN_FREQUENCY_HIGH = 3;
+    public static final int COLUMN_FREQUENCY_STEP = 4;
+    public static final int COLUMN_SAMPLES = 5;
+    /** The first dBm value, further values follow in consecutive columns */
+    public static final int COLUMN_DBM = 6;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // up to 15 digits the mantissa and these powers of ten are exact doubles
+    private static final int EXACT_DIGITS = 15;
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private long lineNumber;
+
+    // raw position of the header columns and the first dBm value within buf
+    private final int[] fieldStart = new int[COLUMN_DBM + 1];
+    private final int[] fieldEnd = new int[COLUMN_DBM + 1];
+
+    private int year, month, day, hour, minute, second;
+    private int frequencyLow, frequencyHigh, samples;
+    private double frequencyStep;
+    private float[] dbm = new float[64];
+    private int dbmCount;
+
+    public CsvRowTokenizer(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CsvRowTokenizer(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[Math.max(bufferSize, 128)];
+    }
+
+    /**
+     * Advances to the next non empty row.
+     *
+     * @return false when the end of the stream has been reached
+     * @throws ParseException if the row is not a valid rtl_power row, the error offset is the line number
+     */
+    public boolean next() throws IOException, ParseException {
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) return false;
+
+            int lineStart = pos;
+            pos = lineEnd < limit ? lineEnd + 1 : lineEnd;
+            lineNumber++;
+
+            int end = lineEnd;
+            while (end > lineStart && (buf[end - 1] == '\r' || buf[end - 1] == ' ')) end--;
+            if (end == lineStart) continue;
+
+            parseRow(lineStart, end);
+            return true;
+        }
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public int getYear() { return year; }
+    public int getMonth() { return month; }
+    public int getDay() { return day; }
+    public int getHour() { return hour; }
+    public int getMinute() { return minute; }
+    public int getSecond() { return second; }
+
+    public int getFrequencyLow() { return frequencyLow; }
+    public int getFrequencyHigh() { return frequencyHigh; }
+    public double getFrequencyStep() { return frequencyStep; }
+    public int getSamples() { return samples; }
+
+    /** The backing array is reused and may hold stale values past {@link #getDbmCount()} */
+    public float[] getDbm() { return dbm; }
+    public int getDbmCount() { return dbmCount; }
+
+    /** Appends the raw text of one of the columns up to and including {@link #COLUMN_DBM} */
+    public void appendRaw(int column, ByteBuilder out) {
+        out.append(buf, fieldStart[column], fieldEnd[column] - fieldStart[column]);
+    }
+
+    /** Returns the index of the end of the next line in buf, reading more data as needed */
+    private int findLineEnd() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buf[scan] == '\n') return scan;
+            }
+            if (eof) return pos < limit ? limit : -1;
+
+            // keep the partial line and make room for more data
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                scan -= pos;
+                limit -= pos;
+                pos = 0;
+            }
+            if (limit == buf.length) {
+                byte[] grown = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, grown, 0, limit);
+                buf = grown;
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+    }
+
+    private void parseRow(int start, int end) throws ParseException {
+        int column = 0;
+        dbmCount = 0;
+        int fs = start;
+        while (fs <= end) {
+            int fe = fs;
+            while (fe < end && buf[fe] != ',') fe++;
+            int next = fe + 1;
+            // trim the space that rtl_power puts after every separator
+            while (fs < fe && buf[fs] == ' ') fs++;
+            int te = fe;
+            while (te > fs && buf[te - 1] == ' ') te--;
+
+            if (te > fs) {
+                parseColumn(column, fs, te);
+                column++;
+            } else if (fe < end) {
+                throw error("empty column " + column);
+            }
+            fs = next;
+        }
+        if (column <= COLUMN_DBM) throw error("expected at least " + (COLUMN_DBM + 1) + " columns but found " + column);
+    }
+
+    private void parseColumn(int column, int start, int end) throws ParseException {
+        if (column <= COLUMN_DBM) {
+            fieldStart[column] = start;
+            fieldEnd[column] = end;
+        }
+        switch (column) {
+            case COLUMN_DATE:
+                // yyyy-MM-dd
+                if (end - start != 10 || buf[start + 4] != '-' || buf[start + 7] != '-') throw error("bad date");
+                year = parseInt(start, start + 4);
+                month = parseInt(start + 5, start + 7);
+                day = parseInt(start + 8, start + 10);
+                break;
+            case COLUMN_TIME:
+                // HH:mm:ss
+                if (end - start != 8 || buf[start + 2] != ':' || buf[start + 5] != ':') throw error("bad time");
+                hour = parseInt(start, start + 2);
+                minute = parseInt(start + 3, start + 5);
+                second = parseInt(start + 6, start + 8);
+                break;
+            case COLUMN_FREQUENCY_LOW:
+                frequencyLow = parseInt(start, end);
+                break;
+            case COLUMN_FREQUENCY_HIGH:
+                frequencyHigh = parseInt(start, end);
+                break;
+            case COLUMN_FREQUENCY_STEP:
+                frequencyStep = parseDouble(start, end);
+                break;
+            case COLUMN_SAMPLES:
+                samples = parseInt(start, end);
+                break;
+            default:
+                if (dbmCount == dbm.length) {
+                    float[] grown = new float[dbm.length * 2];
+                    System.arraycopy(dbm, 0, grown, 0, dbmCount);
+                    dbm = grown;
+                }
+                dbm[dbmCount++] = (float) parseDouble(start, end);
+                break;
+        }
+    }
+
+    private int parseInt(int start, int end) throws ParseException {
+        boolean negative = false;
+        int i = start;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end) throw error("missing number");
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) throw error("bad integer");
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) throw error("integer out of range");
+        }
+        if (negative) value = -value;
+        if (value > Integer.MAX_VALUE) throw error("integer out of range");
+        return (int) value;
+    }
+
+    /** Decodes the output of printf("%f") including the inf and nan spellings */
+    private double parseDouble(int start, int end) throws ParseException {
+        boolean negative = false;
+        int i = start;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end) throw error("missing number");
+
+        byte first = buf[i];
+        if (first == 'i' || first == 'I') {
+            if (!matchesIgnoreCase(i, end, "inf") && !matchesIgnoreCase(i, end, "infinity")) throw error("bad number");
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        if (first == 'n' || first == 'N') {
+            if (!matchesIgnoreCase(i, end, "nan")) throw error("bad number");
+            return Double.NaN;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte c = buf[i];
+            if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if (c >= '0' && c <= '9') {
+                if (digits == EXACT_DIGITS) return slowParseDouble(start, end);
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+                if (seenPoint) fraction++;
+            } else if (c == 'e' || c == 'E') {
+                return slowParseDouble(start, end);
+            } else {
+                throw error("bad number");
+            }
+        }
+        if (fraction >= POW10.length) return slowParseDouble(start, end);
+        // both operands are exact, so the division rounds correctly, longer numbers were handed
+        // to Double.parseDouble above
+        double value = mantissa / POW10[fraction];
+        return negative ? -value : value;
+    }
+
+    private double slowParseDouble(int start, int end) throws ParseException {
+        try {
+            return Double.parseDouble(new String(buf, start, end - start, "US-ASCII"));
+        } catch (NumberFormatException e) {
+            throw error("bad number");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean matchesIgnoreCase(int start, int end, String word) {
+        if (end - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toLowerCase((char) buf[start + i]) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private ParseException error(String reason) {
+        int offset = lineNumber > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) lineNumber;
+        return new ParseException("Malformed rtl_power row at line " + lineNumber + ": " + reason, offset);
+    }
+}
@@ -0,0 +1,95 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * The hops rtl_power scans a frequency range in, as planned by jni/freq_plan.c.
+ * A copy of the freq_plan_record_t there, which is in the byte order of the device:
+ *
+ * <pre>
+ *   int32    hops
+ *   int32    Hz the dongle samples at
+ *   int32    log2 of the FFT bins per hop
+ *   int32    downsampling
+ *   int32    passes of the recursive downsampling filter, 0 with the boxcar
+ *   int32    bytes read per hop
+ *   float64  crop, 0 to 1
+ *   int32    Hz center of every hop
+ * </pre>
+ */
+public class FrequencyPlan {
+    public static final int HEADER_SIZE = 32;
+
+    private final int sampleRate;
+    private final int binExponent;
+    private final int downsample;
+    private final int downsamplePasses;
+    private final int bufferLength;
+    private final double crop;
+    private final int[] centers;
+
+    /** Copies the record, the buffer may be reused once this returns */
+    public FrequencyPlan(ByteBuffer record) {
+        ByteBuffer in = record.duplicate().order(ByteOrder.nativeOrder());
+        if (in.capacity() < HEADER_SIZE) {
+            throw new IllegalArgumentException("A plan needs " + HEADER_SIZE + " bytes, not " + in.capacity());
+        }
+        int hopCount = in.getInt(0);
+        if (hopCount < 0 || HEADER_SIZE + 4L * hopCount > in.capacity()) {
+            throw new IllegalArgumentException(hopCount + " hops do not fit " + in.capacity() + " bytes");
+        }
+        sampleRate = in.getInt(4);
+        binExponent = in.getInt(8);
+        downsample = in.getInt(12);
+        downsamplePasses = in.getInt(16);
+        bufferLength = in.getInt(20);
+        crop = in.getDouble(24);
+        centers = new int[hopCount];
+        for (int hop = 0; hop < hopCount; hop++) {
+            centers[hop] = in.getInt(HEADER_SIZE + 4 * hop);
+        }
+    }
+
+    public int getHopCount() { return centers.length; }
+    public int getSampleRate() { return sampleRate; }
+    public int getBinsPerHop() { return 1 << binExponent; }
+    public int getDownsample() { return downsample; }
+    public int getDownsamplePasses() { return downsamplePasses; }
+    public int getBufferLength() { return bufferLength; }
+    public double getCrop() { return crop; }
+    public int getCenterFrequency(int hop) { return centers[hop]; }
+
+    /** Hz per FFT bin, the step of the rows of the hop */
+    public double getBinWidth() {
+        return (double) sampleRate / (getBinsPerHop() * downsample);
+    }
+
+    /** The bins logged per hop, those left after cropping */
+    public int getLoggedBinsPerHop() {
+        return (int) (getBinsPerHop() * (1.0 - crop));
+    }
+
+    /** Hz low of the rows of the hop, as emit_dbm works it out */
+    public int getFrequencyLow(int hop) {
+        return centers[hop] - getHalfBandwidth();
+    }
+
+    /** Hz high of the rows of the hop, as emit_dbm works it out */
+    public int getFrequencyHigh(int hop) {
+        return centers[hop] + getHalfBandwidth();
+    }
+
+    private int getHalfBandwidth() {
+        return (int) (((double) sampleRate * getLoggedBinsPerHop()) / (getBinsPerHop() * 2 * downsample));
+    }
+
+    @Override
+    public String toString() {
+        if (centers.length == 0) return "no hops";
+        return String.format(Locale.US, "%d hops of %d bins from %.3f to %.3f MHz, %.1f Hz bins at %.3f MHz sampling",
+                centers.length, getLoggedBinsPerHop(), getFrequencyLow(0) / 1e6,
+                getFrequencyHigh(centers.length - 1) / 1e6, getBinWidth(), sampleRate / 1e6);
+    }
+}
@@ -0,0 +1,127 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Where rtl_power spent the time of a recording, hop by hop, to tune sweep plans for throughput.
+ * A copy of the hop_stats_t records in jni/rtlsdrdevice.c, which are in the byte order of the device:
+ *
+ * <pre>
+ *   int32  Hz center
+ *   int32  reads
+ *   int32  retunes
+ *   int32  retries until the PLL locked
+ *   int32  retunes that failed on the way to the tuner, not retried
+ *   int32  unused
+ *   int64  us tuning
+ *   int64  us settling
+ *   int64  us reading, with the samples dropped while settling when streaming
+ * </pre>
+ */
+public class HopTimings {
+    public static final int RECORD_SIZE = 48;
+
+    private final int[] frequency;
+    private final int[] reads;
+    private final int[] retunes;
+    private final int[] lockFailures;
+    private final int[] ioErrors;
+    private final long[] tuneMicros;
+    private final long[] settleMicros;
+    private final long[] readMicros;
+
+    /** Copies the records, the buffer may be reused once this returns */
+    public HopTimings(ByteBuffer records, int hopCount) {
+        if (hopCount * RECORD_SIZE > records.capacity()) {
+            throw new IllegalArgumentException(hopCount + " hops do not fit " + records.capacity() + " bytes");
+        }
+        ByteBuffer in = records.duplicate().order(ByteOrder.nativeOrder());
+        frequency = new int[hopCount];
+        reads = new int[hopCount];
+        retunes = new int[hopCount];
+        lockFailures = new int[hopCount];
+        ioErrors = new int[hopCount];
+        tuneMicros = new long[hopCount];
+        settleMicros = new long[hopCount];
+        readMicros = new long[hopCount];
+        for (int hop = 0; hop < hopCount; hop++) {
+            int at = hop * RECORD_SIZE;
+            frequency[hop] = in.getInt(at);
+            reads[hop] = in.getInt(at + 4);
+            retunes[hop] = in.getInt(at + 8);
+            lockFailures[hop] = in.getInt(at + 12);
+            ioErrors[hop] = in.getInt(at + 16);
+            tuneMicros[hop] = in.getLong(at + 24);
+            settleMicros[hop] = in.getLong(at + 32);
+            readMicros[hop] = in.getLong(at + 40);
+        }
+    }
+
+    public int getHopCount() { return frequency.length; }
+    public int getFrequency(int hop) { return frequency[hop]; }
+    public int getReads(int hop) { return reads[hop]; }
+    public int getRetunes(int hop) { return retunes[hop]; }
+    public int getLockFailures(int hop) { return lockFailures[hop]; }
+    public int getIoErrors(int hop) { return ioErrors[hop]; }
+    public long getTuneMicros(int hop) { return tuneMicros[hop]; }
+    public long getSettleMicros(int hop) { return settleMicros[hop]; }
+    public long getReadMicros(int hop) { return readMicros[hop]; }
+
+    public long getMicros(int hop) {
+        return tuneMicros[hop] + settleMicros[hop] + readMicros[hop];
+    }
+
+    public long getTotalMicros() {
+        long total = 0;
+        for (int hop = 0; hop < getHopCount(); hop++) total += getMicros(hop);
+        return total;
+    }
+
+    /** The part of the recording spent tuning and settling, 0 to 1 */
+    public double getRetuneShare() {
+        long retuning = 0;
+        for (int hop = 0; hop < getHopCount(); hop++) retuning += tuneMicros[hop] + settleMicros[hop];
+        long total = getTotalMicros();
+        return total == 0 ? 0 : (double) retuning / total;
+    }
+
+    public int getTotalLockFailures() {
+        int failures = 0;
+        for (int hop = 0; hop < getHopCount(); hop++) failures += lockFailures[hop];
+        return failures;
+    }
+
+    public int getTotalIoErrors() {
+        int errors = 0;
+        for (int hop = 0; hop < getHopCount(); hop++) errors += ioErrors[hop];
+        return errors;
+    }
+
+    /** The hop taking the longest per read, or -1 without reads */
+    public int getSlowestHop() {
+        int slowest = -1;
+        double slowestMicros = 0;
+        for (int hop = 0; hop < getHopCount(); hop++) {
+            if (reads[hop] == 0) continue;
+            double perRead = (double) getMicros(hop) / reads[hop];
+            if (slowest < 0 || perRead > slowestMicros) {
+                slowest = hop;
+                slowestMicros = perRead;
+            }
+        }
+        return slowest;
+    }
+
+    @Override
+    public String toString() {
+        int slowest = getSlowestHop();
+        int ioErrors = getTotalIoErrors();
+        return String.format(Locale.US, "%d hops in %.1f s, %.1f%% retuning, %d PLL retries%s%s", getHopCount(),
+                getTotalMicros() / 1e6, getRetuneShare() * 100, getTotalLockFailures(),
+                ioErrors == 0 ? "" : ", " + ioErrors + " failed retunes",
+                slowest < 0 ? "" : String.format(Locale.US, ", slowest %.3f MHz at %.1f ms per read",
+                        frequency[slowest] / 1e6, getMicros(slowest) / 1e3 / reads[slowest]));
+    }
+}
@@ -0,0 +1,108 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Calendar;
+
+/**
+ * One integration as rtl_power streams it with -S, read in place from memory the native scanner
+ * writes into. The dBm of every bin of every hop lie one after the other in a float buffer, a
+ * record per hop says where its bins start. The layout of a hop record is stream_hop_t in
+ * jni/rtlsdrdevice.c, in the byte order of the device:
+ *
+ * <pre>
+ *   int32    Hz low
+ *   int32    Hz high
+ *   float32  Hz step
+ *   int32    samples
+ *   int32    offset of the first bin
+ *   int32    number of bins
+ *   int32    series, see {@link #getSeries(int)}
+ * </pre>
+ *
+ * The mean of a hop comes first. With -A the extra series of the hop follow it, e.g. the minimum
+ * and the 90th percentile of every bin over the integration, as power_stats.h in jni works them out.
+ *
+ * A frame is only valid during {@link IntegrationListener#onIntegration(IntegrationFrame)}, the
+ * memory is overwritten by the next integration and freed when the recording ends.
+ */
+public class IntegrationFrame {
+    public static final int HOP_RECORD_SIZE = 28;
+
+    public static final int SERIES_MEAN = 0;
+    public static final int SERIES_MIN = 1;
+    public static final int SERIES_MAX = 2;
+    /** Plus the percentile, 1 to 99 */
+    public static final int SERIES_PERCENTILE = 100;
+
+    private final ByteBuffer hops;
+    private final FloatBuffer dbm;
+    private long timestamp;
+    private int hopCount;
+    private int binCount;
+
+    /** Views of buffers holding hop records and bins, in native byte order */
+    public IntegrationFrame(ByteBuffer hops, ByteBuffer dbm) {
+        this.hops = hops.duplicate().order(ByteOrder.nativeOrder());
+        this.dbm = dbm.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /** Called once the scanner has filled the buffers with an integration */
+    public void set(long timestamp, int hopCount, int binCount) {
+        if (hopCount * HOP_RECORD_SIZE > hops.capacity() || binCount > dbm.capacity()) {
+            throw new IllegalArgumentException(hopCount + " hops and " + binCount + " bins do not fit the buffers");
+        }
+        this.timestamp = timestamp;
+        this.hopCount = hopCount;
+        this.binCount = binCount;
+    }
+
+    /** Unix time in seconds */
+    public long getTimestamp() { return timestamp; }
+    public int getHopCount() { return hopCount; }
+    public int getBinCount() { return binCount; }
+    public int getFrequencyLow(int hop) { return hops.getInt(hop * HOP_RECORD_SIZE); }
+    public int getFrequencyHigh(int hop) { return hops.getInt(hop * HOP_RECORD_SIZE + 4); }
+    public float getStepHz(int hop) { return hops.getFloat(hop * HOP_RECORD_SIZE + 8); }
+    public int getSamples(int hop) { return hops.getInt(hop * HOP_RECORD_SIZE + 12); }
+    public int getBinOffset(int hop) { return hops.getInt(hop * HOP_RECORD_SIZE + 16); }
+    public int getBinCount(int hop) { return hops.getInt(hop * HOP_RECORD_SIZE + 20); }
+    public int getSeries(int hop) { return hops.getInt(hop * HOP_RECORD_SIZE + 24); }
+    public float getDbm(int bin) { return dbm.get(bin); }
+
+    /** Copies the bins of a hop into dst, which has to hold {@link #getBinCount(int)} values */
+    public void getDbm(int hop, float[] dst, int offset) {
+        FloatBuffer bins = dbm.duplicate();
+        bins.position(getBinOffset(hop));
+        bins.get(dst, offset, getBinCount(hop));
+    }
+
+    /** "mean", "min", "max" or e.g. "p90", as the csv of the series is named */
+    public static String getSeriesName(int series) {
+        if (series == SERIES_MIN) return "min";
+        if (series == SERIES_MAX) return "max";
+        if (series > SERIES_PERCENTILE) return "p" + (series - SERIES_PERCENTILE);
+        return "mean";
+    }
+
+    /**
+     * Appends the mean of the integration to a batch, a row per hop
+     *
+     * @param calendar in the zone the wall clock date and time of the rows are given in
+     */
+    public void appendTo(SpectrumBatch batch, Calendar calendar, float[] scratch) {
+        calendar.setTimeInMillis(timestamp * 1000);
+        int localDate = (calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+        int localTime = (calendar.get(Calendar.HOUR_OF_DAY) * 100 + calendar.get(Calendar.MINUTE)) * 100
+                + calendar.get(Calendar.SECOND);
+        for (int hop = 0; hop < hopCount; hop++) {
+            if (getSeries(hop) != SERIES_MEAN) continue;
+            int count = getBinCount(hop);
+            getDbm(hop, scratch, 0);
+            batch.addRow(timestamp, localDate, localTime, getFrequencyLow(hop), getFrequencyHigh(hop), getStepHz(hop),
+                    getSamples(hop), scratch, 0, count);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+/** Receives every integration rtl_power streams, called on the recording thread */
+public interface IntegrationListener {
+    /** The frame is only valid until this returns, copy what has to be kept */
+    void onIntegration(IntegrationFrame frame);
+}
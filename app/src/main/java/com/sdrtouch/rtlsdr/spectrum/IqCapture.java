@@ -0,0 +1,128 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The header of a .rtliq raw sample capture, the layout is described in jni/iq_capture.h. The
+ * samples follow the header as unsigned 8 bit I and Q pairs.
+ *
+ * A capture that was cut short never got its final header, its sample count is taken from the size
+ * of the file and its dropped counts are unknown.
+ */
+public class IqCapture {
+    public static final String EXTENSION = ".rtliq";
+    public static final byte[] MAGIC = {'R', 'T', 'I', 'Q'};
+    public static final int VERSION = 1;
+    /** The gain of a capture with the tuner's automatic gain control */
+    public static final int AUTO_GAIN = Integer.MIN_VALUE;
+    static final int HEADER_FIELDS_SIZE = 56;
+    private static final int COMPLETE = 1;
+
+    private final int headerSize;
+    private final int sampleRate;
+    private final long frequency;
+    private final int gain;
+    private final int ppm;
+    private final long startMicros;
+    private final long sampleCount;
+    private final long droppedSamples;
+    private final long droppedBuffers;
+    private final boolean complete;
+
+    private IqCapture(ByteBuffer header, long fileLength) throws IOException {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a raw sample capture");
+        int version = header.getShort() & 0xffff;
+        if (version != VERSION) throw new IOException("Unsupported capture version " + version);
+        headerSize = header.getShort() & 0xffff;
+        sampleRate = header.getInt();
+        frequency = header.getInt() & 0xffffffffL;
+        gain = header.getInt();
+        ppm = header.getInt();
+        startMicros = header.getLong();
+        long samples = header.getLong();
+        droppedSamples = header.getLong();
+        droppedBuffers = header.getInt() & 0xffffffffL;
+        complete = (header.getInt() & COMPLETE) != 0;
+        if (fileLength < headerSize) throw new IOException("Capture header cut short");
+        sampleCount = complete ? samples : (fileLength - headerSize) / 2;
+    }
+
+    public static IqCapture read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[HEADER_FIELDS_SIZE];
+            if (in.length() < header.length) throw new IOException("Capture header cut short");
+            in.readFully(header);
+            return new IqCapture(ByteBuffer.wrap(header), in.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Where the samples start in the file */
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getFrequency() {
+        return frequency;
+    }
+
+    /** Tenths of a dB, or {@link #AUTO_GAIN} */
+    public int getGain() {
+        return gain;
+    }
+
+    public int getPpm() {
+        return ppm;
+    }
+
+    /** Unix time of the first sample */
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    /** IQ pairs in the file */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /** IQ pairs storage could not keep up with, 0 for a capture that was cut short */
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public long getDroppedBuffers() {
+        return droppedBuffers;
+    }
+
+    /** False if the capture was cut short before it wrote its final counts */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public double getDurationSeconds() {
+        return sampleRate == 0 ? 0 : (double) sampleCount / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d samples at %.3f MHz, %.3f MS/s, %s gain, %d ppm, %d dropped from %d buffers%s",
+                sampleCount, frequency / 1e6, sampleRate / 1e6,
+                gain == AUTO_GAIN ? "auto" : String.format(Locale.US, "%.1f dB", gain / 10.0),
+                ppm, droppedSamples, droppedBuffers, complete ? "" : ", cut short");
+    }
+}
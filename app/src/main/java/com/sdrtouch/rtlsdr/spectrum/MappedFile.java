@@ -0,0 +1,125 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read only file mapped in fixed size chunks, so files of any size can be accessed
+ * without a single mapping (limited to 2 GB) or reading them into memory.
+ *
+ * Consecutive chunks overlap by {@link #OVERLAP} bytes, so any small read at a position
+ * is served by the chunk the position falls in. Only the most recently used chunks stay mapped.
+ */
+class MappedFile implements Closeable {
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    static final int OVERLAP = 64 * 1024;
+    private static final int CACHED_CHUNKS = 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+
+    private final long[] cachedIndex = new long[CACHED_CHUNKS];
+    private final ByteBuffer[] cachedChunk = new ByteBuffer[CACHED_CHUNKS];
+    private int nextVictim;
+
+    MappedFile(File path) throws IOException {
+        this(path, DEFAULT_CHUNK_SIZE);
+    }
+
+    MappedFile(File path, int chunkSize) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+        for (int i = 0; i < CACHED_CHUNKS; i++) cachedIndex[i] = -1;
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte get(long position) throws IOException {
+        ByteBuffer chunk = chunkFor(position);
+        return chunk.get((int) (position % chunkSize));
+    }
+
+    short getShort(long position) throws IOException {
+        ByteBuffer chunk = chunkFor(position);
+        return chunk.getShort((int) (position % chunkSize));
+    }
+
+    int getInt(long position) throws IOException {
+        ByteBuffer chunk = chunkFor(position);
+        return chunk.getInt((int) (position % chunkSize));
+    }
+
+    long getLong(long position) throws IOException {
+        ByteBuffer chunk = chunkFor(position);
+        return chunk.getLong((int) (position % chunkSize));
+    }
+
+    /** Position of the first occurrence of value in [from, to), or -1 */
+    long indexOf(byte value, long from, long to) throws IOException {
+        to = Math.min(to, size);
+        while (from < to) {
+            ByteBuffer chunk = chunkFor(from);
+            int start = (int) (from % chunkSize);
+            int end = (int) Math.min(chunk.limit(), start + (to - from));
+            for (int i = start; i < end; i++) {
+                if (chunk.get(i) == value) return from + (i - start);
+            }
+            from += end - start;
+        }
+        return -1;
+    }
+
+    /**
+     * A little endian read only view of the given range, backed by the mapping.
+     * Ranges that cross a chunk boundary get a mapping of their own.
+     */
+    ByteBuffer slice(long offset, int length) throws IOException {
+        int inChunk = (int) (offset % chunkSize);
+        ByteBuffer source;
+        if (inChunk + length <= chunkSize + OVERLAP) {
+            source = chunkFor(offset).duplicate();
+            source.limit(inChunk + length);
+            source.position(inChunk);
+        } else {
+            source = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        return source.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer chunkFor(long position) throws IOException {
+        long index = position / chunkSize;
+        for (int i = 0; i < CACHED_CHUNKS; i++) {
+            if (cachedIndex[i] == index) return cachedChunk[i];
+        }
+        long start = index * chunkSize;
+        long length = Math.min(size - start, (long) chunkSize + OVERLAP);
+        if (start >= size || length < 0) throw new IOException("Position " + position + " is past the end of the file");
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        cachedIndex[nextVictim] = index;
+        cachedChunk[nextVictim] = chunk;
+        nextVictim = (nextVictim + 1) % CACHED_CHUNKS;
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < CACHED_CHUNKS; i++) {
+            cachedIndex[i] = -1;
+            cachedChunk[i] = null;
+        }
+        file.close();
+    }
+}
@@ -0,0 +1,394 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains an {@link UploadOutbox} in the background.
+ *
+ * A drain uploads every due batch, at most {@link #getMaxConcurrent()} at a time, each one through
+ * a {@link SpectrumUploader} and its journal so a batch interrupted halfway resumes where it stopped.
+ * A failed batch is backed off in the outbox, and the next drain is scheduled for the moment the
+ * earliest batch that is not being uploaded is due again, never sooner than
+ * {@link #MIN_RESCHEDULE_MILLIS}. {@link #wake()} drains right away, e.g. when connectivity returns.
+ * An uploaded batch leaves the outbox together with its journal.
+ *
+ * Coalescing is off by default. When enabled, due batches whose recording is smaller than the
+ * limit and that have not been partly uploaded are posted together in one request, as a JSON array
+ * of their documents, which the server has to accept.
+ */
+public class OutboxWorker {
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    /** Keeps a batch that stays due, e.g. because its backoff could not be written, from spinning the scheduler */
+    public static final long MIN_RESCHEDULE_MILLIS = 1000L;
+
+    /** Told about the outcome of every attempt, called on a worker thread */
+    public interface Listener {
+        /** @param bytesSent the request bodies, a request shared by coalesced batches is split evenly */
+        void onUploaded(UploadOutbox.Entry entry, int parts, long bytesSent);
+
+        void onFailed(UploadOutbox.Entry entry, Exception error);
+    }
+
+    private final UploadOutbox outbox;
+    private final URL endpoint;
+    private final int maxConcurrent;
+    private final Map<String, String> requestProperties = new LinkedHashMap<>();
+    private PayloadCompression compression = PayloadCompression.NONE;
+    private int partSize = SpectrumUploader.DEFAULT_PART_SIZE;
+    private long coalesceLimit;
+    private Listener listener;
+
+    // drains run one after the other on the scheduler, uploads on the pool
+    private ScheduledExecutorService scheduler;
+    private ExecutorService uploads;
+    private ScheduledFuture<?> nextDrain;
+    private final Set<String> inFlight = new HashSet<>();
+
+    public OutboxWorker(UploadOutbox outbox, URL endpoint) {
+        this(outbox, endpoint, DEFAULT_MAX_CONCURRENT);
+    }
+
+    public OutboxWorker(UploadOutbox outbox, URL endpoint, int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("At least one upload has to run at a time");
+        this.outbox = outbox;
+        this.endpoint = endpoint;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public UploadOutbox getOutbox() {
+        return outbox;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setRequestProperty(String key, String value) {
+        requestProperties.put(key, value);
+    }
+
+    public void setCompression(PayloadCompression compression) {
+        this.compression = compression;
+    }
+
+    public void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    /** @param limit recordings up to this many bytes are posted together, 0 turns coalescing off */
+    public void setCoalesceLimit(long limit) {
+        this.coalesceLimit = limit;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Starts draining in the background, beginning with whatever was queued before the process died */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        uploads = Executors.newFixedThreadPool(maxConcurrent);
+        wake();
+    }
+
+    /** Stops after the uploads in progress, the queue stays on disk */
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        uploads.shutdown();
+        scheduler = null;
+        uploads = null;
+        nextDrain = null;
+    }
+
+    /** Drains right away instead of waiting for the next batch to come due */
+    public synchronized void wake() {
+        if (scheduler == null) return;
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                drainAndReschedule();
+            }
+        });
+    }
+
+    /** Queues a batch on the worker thread and drains */
+    public synchronized void submit(final BatchInfo info, final File recordingDirectory) {
+        if (scheduler == null) return;
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outbox.enqueue(info, recordingDirectory);
+                } catch (IOException e) {
+                    notifyFailed(new UploadOutbox.Entry(info, recordingDirectory, 0, 0, null), e);
+                }
+                drainAndReschedule();
+            }
+        });
+    }
+
+    private void drainAndReschedule() {
+        ExecutorService pool;
+        synchronized (this) {
+            pool = uploads;
+        }
+        if (pool == null) return;
+        drain(pool);
+
+        List<UploadOutbox.Entry> waiting = outbox.list();
+        synchronized (this) {
+            if (scheduler == null || waiting.isEmpty()) return;
+            long delay = nextDelay(waiting, System.currentTimeMillis());
+            // a wake() drained early, the drain it replaces is not needed any more
+            if (nextDrain != null) nextDrain.cancel(false);
+            nextDrain = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drainAndReschedule();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * How long to wait for the next drain. Batches still being uploaded are skipped, they are due
+     * but the drain would pass over them; when there are only such batches, the next drain looks
+     * again after the first backoff, the earliest a failed one would be due.
+     */
+    long nextDelay(List<UploadOutbox.Entry> waiting, long now) {
+        long next = -1;
+        synchronized (inFlight) {
+            for (UploadOutbox.Entry entry : waiting) {
+                if (inFlight.contains(entry.getInfo().batchID)) continue;
+                next = entry.getNextAttempt();
+                break;
+            }
+        }
+        if (next < 0) return UploadOutbox.FIRST_BACKOFF_MILLIS;
+        return Math.max(MIN_RESCHEDULE_MILLIS, next - now);
+    }
+
+    /**
+     * Uploads every batch due now and waits for the uploads, without a background thread.
+     *
+     * @return the number of batches uploaded
+     */
+    public int drain() {
+        ExecutorService pool = Executors.newFixedThreadPool(maxConcurrent);
+        try {
+            return drain(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private int drain(ExecutorService pool) {
+        long now = System.currentTimeMillis();
+        List<List<UploadOutbox.Entry>> groups = group(outbox.due(now));
+        List<Future<Integer>> results = new ArrayList<>();
+        for (final List<UploadOutbox.Entry> group : groups) {
+            try {
+                results.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return upload(group);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // stopped meanwhile
+                release(group);
+            }
+        }
+        int uploaded = 0;
+        for (Future<Integer> result : results) {
+            try {
+                uploaded += result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // upload() reports its own failures
+            }
+        }
+        return uploaded;
+    }
+
+    /** Splits the due batches into requests, most batches get one of their own */
+    private List<List<UploadOutbox.Entry>> group(List<UploadOutbox.Entry> due) {
+        List<List<UploadOutbox.Entry>> groups = new ArrayList<>();
+        List<UploadOutbox.Entry> coalesced = new ArrayList<>();
+        long coalescedSize = 0;
+        for (UploadOutbox.Entry entry : due) {
+            synchronized (inFlight) {
+                if (!inFlight.add(entry.getInfo().batchID)) continue;
+            }
+            File recording = recordingOf(entry);
+            long size = recording == null ? 0 : recording.length();
+            boolean small = recording != null && size <= coalesceLimit && !journalOf(entry).exists();
+            if (!small) {
+                List<UploadOutbox.Entry> single = new ArrayList<>();
+                single.add(entry);
+                groups.add(single);
+                continue;
+            }
+            if (!coalesced.isEmpty() && coalescedSize + size > coalesceLimit) {
+                groups.add(coalesced);
+                coalesced = new ArrayList<>();
+                coalescedSize = 0;
+            }
+            coalesced.add(entry);
+            coalescedSize += size;
+        }
+        if (!coalesced.isEmpty()) groups.add(coalesced);
+        return groups;
+    }
+
+    private int upload(List<UploadOutbox.Entry> group) {
+        try {
+            if (group.size() == 1) return uploadAlone(group.get(0)) ? 1 : 0;
+            return uploadTogether(group);
+        } finally {
+            release(group);
+        }
+    }
+
+    private void release(List<UploadOutbox.Entry> group) {
+        synchronized (inFlight) {
+            for (UploadOutbox.Entry entry : group) inFlight.remove(entry.getInfo().batchID);
+        }
+    }
+
+    private boolean uploadAlone(UploadOutbox.Entry entry) {
+        File recording = recordingOf(entry);
+        if (recording == null) {
+            // deleted meanwhile, retrying will not bring it back
+            try {
+                remove(entry);
+            } catch (IOException e) {
+                // tried again on the next drain
+            }
+            notifyFailed(entry, new IOException("No recording of " + entry.getInfo().batchID + " left to upload"));
+            return false;
+        }
+        try {
+            SpectrumUploader uploader = newUploader();
+            SweepFileReader reader = new SweepFileReader(recording);
+            int parts;
+            try {
+                BatchInfo info = reader.getInfo() != null ? reader.getInfo() : entry.getInfo();
+                parts = uploader.upload(reader, info, journalOf(entry), true);
+            } finally {
+                reader.close();
+            }
+            remove(entry);
+            if (listener != null) listener.onUploaded(entry, parts, uploader.getBytesSent());
+            return true;
+        } catch (Exception e) {
+            backOff(entry, e);
+            return false;
+        }
+    }
+
+    private int uploadTogether(List<UploadOutbox.Entry> group) {
+        List<SpectrumBatch> batches = new ArrayList<>();
+        List<File> journals = new ArrayList<>();
+        SpectrumUploader uploader = newUploader();
+        try {
+            for (UploadOutbox.Entry entry : group) {
+                batches.add(read(entry));
+                journals.add(journalOf(entry));
+            }
+            uploader.uploadTogether(batches, journals);
+        } catch (Exception e) {
+            for (UploadOutbox.Entry entry : group) backOff(entry, e);
+            return 0;
+        }
+        for (UploadOutbox.Entry entry : group) {
+            try {
+                remove(entry);
+            } catch (IOException e) {
+                // the journal already lists the batch, the next attempt posts nothing
+                notifyFailed(entry, e);
+                continue;
+            }
+            if (listener != null) listener.onUploaded(entry, 1, uploader.getBytesSent() / group.size());
+        }
+        return group.size();
+    }
+
+    /** Takes an uploaded batch off the queue, the journal only after the entry so a failure leaves both */
+    private void remove(UploadOutbox.Entry entry) throws IOException {
+        outbox.remove(entry);
+        // one left behind only takes up space, uploading the batch again would post nothing
+        SpectrumUploader.discardJournal(journalOf(entry));
+    }
+
+    private void backOff(UploadOutbox.Entry entry, Exception error) {
+        try {
+            outbox.failed(entry, System.currentTimeMillis(), String.valueOf(error));
+        } catch (IOException e) {
+            // the entry stays due and is tried again on the next drain
+        }
+        notifyFailed(entry, error);
+    }
+
+    private void notifyFailed(UploadOutbox.Entry entry, Exception error) {
+        if (listener != null) listener.onFailed(entry, error);
+    }
+
+    private SpectrumUploader newUploader() {
+        SpectrumUploader uploader = new SpectrumUploader(endpoint, partSize);
+        uploader.setCompression(compression);
+        for (Map.Entry<String, String> property : requestProperties.entrySet()) {
+            uploader.setRequestProperty(property.getKey(), property.getValue());
+        }
+        return uploader;
+    }
+
+    /** Reads a whole small recording, the binary copy when there is one */
+    private static SpectrumBatch read(UploadOutbox.Entry entry) throws Exception {
+        File recording = recordingOf(entry);
+        if (recording == null) throw new IOException("No recording of " + entry.getInfo().batchID + " left to upload");
+        if (recording.getName().endsWith(RtlpFormat.EXTENSION)) return new RtlpReader().read(recording);
+        InputStream in = new FileInputStream(recording);
+        try {
+            return new SpectrumCsvReader().read(in, entry.getInfo(), recording.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /** The .rtlp file of the batch, else its .csv file, null when neither is left */
+    private static File recordingOf(UploadOutbox.Entry entry) {
+        String batchID = entry.getInfo().batchID;
+        File rtlp = new File(entry.getRecordingDirectory(), batchID + RtlpFormat.EXTENSION);
+        if (rtlp.canRead()) return rtlp;
+        File csv = new File(entry.getRecordingDirectory(), batchID + ".csv");
+        return csv.canRead() ? csv : null;
+    }
+
+    private static File journalOf(UploadOutbox.Entry entry) {
+        return new File(entry.getRecordingDirectory(), entry.getInfo().batchID + SpectrumUploader.JOURNAL_EXTENSION);
+    }
+}
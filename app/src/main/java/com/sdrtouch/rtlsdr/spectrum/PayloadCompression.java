@@ -0,0 +1,86 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Content-Encoding of an upload and how hard to compress it.
+ *
+ * The spectrum JSON repeats the same keys in every series, so it shrinks several times over
+ * even at the fastest level. Compression happens while the body is written, nothing extra is
+ * buffered besides the deflater's own window.
+ */
+public class PayloadCompression {
+    public static final PayloadCompression NONE = new PayloadCompression(null, Deflater.NO_COMPRESSION);
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String contentEncoding;
+    private final int level;
+
+    private PayloadCompression(String contentEncoding, int level) {
+        this.contentEncoding = contentEncoding;
+        this.level = level;
+    }
+
+    /** @param level 1 (fastest) to 9 (smallest), or {@link Deflater#DEFAULT_COMPRESSION} */
+    public static PayloadCompression gzip(int level) {
+        return new PayloadCompression("gzip", checkLevel(level));
+    }
+
+    /** The zlib format HTTP calls deflate */
+    public static PayloadCompression deflate(int level) {
+        return new PayloadCompression("deflate", checkLevel(level));
+    }
+
+    private static int checkLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        return level;
+    }
+
+    /** The value of the Content-Encoding header, null when the payload is sent as is */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Wraps the request body. Closing the returned stream finishes the compressed data,
+     * frees the deflater and closes out.
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        if (contentEncoding == null) return out;
+        if (contentEncoding.equals("gzip")) return new LeveledGzipOutputStream(out, level);
+        return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // a deflater passed in is not ended by the stream
+                    def.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return contentEncoding == null ? "identity" : contentEncoding + " level " + level;
+    }
+
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+        LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+/**
+ * Constants of the .rtlp binary batch format, the layout is described in jni/rtlp.h.
+ * dBm values are stored as hundredths of a dB in a short, with two sentinels
+ * for the values log10 produces when a bin is empty.
+ */
+public final class RtlpFormat {
+    public static final String EXTENSION = ".rtlp";
+    public static final byte[] MAGIC = {'R', 'T', 'L', 'P'};
+    public static final int VERSION = 1;
+
+    public static final short DBM_NEGATIVE_INFINITY = Short.MIN_VALUE;
+    public static final short DBM_NAN = Short.MAX_VALUE;
+
+    /** int64 timestamp, uint16 hop count */
+    static final int INTEGRATION_HEADER_SIZE = 10;
+    /** int32 low, int32 high, float32 step, int32 samples, uint16 bin count */
+    static final int HOP_HEADER_SIZE = 18;
+
+    private RtlpFormat() {}
+
+    public static short toCentiDb(float dbm) {
+        if (dbm != dbm) return DBM_NAN;
+        if (dbm == Float.NEGATIVE_INFINITY) return DBM_NEGATIVE_INFINITY;
+        if (dbm == Float.POSITIVE_INFINITY) return DBM_NAN - 1;
+        double centi = Math.floor(dbm * 100.0 + 0.5);
+        // keep both sentinels free
+        if (centi <= DBM_NEGATIVE_INFINITY) return DBM_NEGATIVE_INFINITY + 1;
+        if (centi >= DBM_NAN) return DBM_NAN - 1;
+        return (short) centi;
+    }
+
+    public static float fromCentiDb(short centi) {
+        if (centi == DBM_NEGATIVE_INFINITY) return Float.NEGATIVE_INFINITY;
+        if (centi == DBM_NAN) return Float.NaN;
+        return centi / 100f;
+    }
+}
@@ -0,0 +1,121 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Reads a .rtlp file written by rtl_power (or {@link RtlpWriter}) into a {@link SpectrumBatch}.
+ *
+ * The file is memory mapped, nothing is copied besides the values that end up in the batch.
+ * A record cut short by the end of the file, as left behind by an interrupted recording, is dropped.
+ */
+public class RtlpReader {
+    private final float[] bins = new float[1 << 16];
+    private final Calendar calendar;
+
+    public RtlpReader() {
+        this(TimeZone.getDefault());
+    }
+
+    /** @param timeZone the zone the wall clock date and time of every row are given in */
+    public RtlpReader(TimeZone timeZone) {
+        this.calendar = new GregorianCalendar(timeZone);
+    }
+
+    public SpectrumBatch read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(mapped);
+        } finally {
+            in.close();
+        }
+    }
+
+    public SpectrumBatch read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        BatchInfo info = readHeader(buffer);
+        // the bins take up most of a record, two bytes each
+        int expectedValues = buffer.remaining() / 2;
+        SpectrumBatch batch = new SpectrumBatch(info, expectedValues / 16, expectedValues);
+
+        while (buffer.remaining() >= RtlpFormat.INTEGRATION_HEADER_SIZE) {
+            int recordStart = buffer.position();
+            int rowsBefore = batch.getRowCount();
+            try {
+                readIntegration(buffer, batch);
+            } catch (BufferUnderflowException e) {
+                // truncated tail, keep everything up to the last whole integration
+                batch.truncate(rowsBefore);
+                buffer.position(recordStart);
+                break;
+            }
+        }
+        batch.seal();
+        return batch;
+    }
+
+    /** Reads the header and leaves the buffer at the first integration */
+    public static BatchInfo readHeader(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+        try {
+            for (byte b : RtlpFormat.MAGIC) {
+                if (buffer.get() != b) throw new IOException("Not an .rtlp file");
+            }
+            int version = buffer.getShort() & 0xffff;
+            if (version != RtlpFormat.VERSION) throw new IOException("Unsupported .rtlp version " + version);
+            int headerSize = buffer.getShort() & 0xffff;
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            float altitude = buffer.getFloat();
+            String batchID = readString(buffer);
+            String integrationInterval = readString(buffer);
+            buffer.position(start + headerSize);
+            return new BatchInfo(batchID, altitude, latitude, longitude, integrationInterval);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated .rtlp header");
+        }
+    }
+
+    void readIntegration(ByteBuffer buffer, SpectrumBatch batch) {
+        long timestamp = buffer.getLong();
+        int hops = buffer.getShort() & 0xffff;
+
+        calendar.setTimeInMillis(timestamp * 1000);
+        int localDate = (calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+        int localTime = (calendar.get(Calendar.HOUR_OF_DAY) * 100 + calendar.get(Calendar.MINUTE)) * 100
+                + calendar.get(Calendar.SECOND);
+
+        for (int hop = 0; hop < hops; hop++) {
+            int frequencyLow = buffer.getInt();
+            int frequencyHigh = buffer.getInt();
+            float step = buffer.getFloat();
+            int samples = buffer.getInt();
+            int count = buffer.getShort() & 0xffff;
+            if (buffer.remaining() < count * 2) throw new BufferUnderflowException();
+            for (int i = 0; i < count; i++) {
+                bins[i] = RtlpFormat.fromCentiDb(buffer.getShort());
+            }
+            batch.addRow(timestamp, localDate, localTime, frequencyLow, frequencyHigh, step, samples, bins, 0, count);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,73 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a {@link SpectrumBatch} as a .rtlp file in the same layout as the native writer.
+ * Used to convert recordings that only exist as .csv.
+ */
+public class RtlpWriter {
+    private final ByteBuilder buffer = new ByteBuilder(16 * 1024);
+
+    /** out is flushed but not closed */
+    public void write(SpectrumBatch batch, OutputStream out) throws IOException {
+        writeHeader(batch.getInfo(), out);
+        for (int integration = 0; integration < batch.getIntegrationCount(); integration++) {
+            writeIntegration(batch, integration, out);
+        }
+        out.flush();
+    }
+
+    public void writeHeader(BatchInfo info, OutputStream out) throws IOException {
+        byte[] batchID = info.batchID.getBytes("UTF-8");
+        byte[] interval = info.integrationInterval.getBytes("UTF-8");
+        buffer.reset();
+        buffer.append(RtlpFormat.MAGIC);
+        putShort(RtlpFormat.VERSION);
+        putShort(4 + 2 + 2 + 8 + 8 + 4 + 2 + batchID.length + 2 + interval.length);
+        putLong(Double.doubleToRawLongBits(info.latitude));
+        putLong(Double.doubleToRawLongBits(info.longitude));
+        putInt(Float.floatToRawIntBits(info.altitude));
+        putShort(batchID.length);
+        buffer.append(batchID);
+        putShort(interval.length);
+        buffer.append(interval);
+        buffer.writeTo(out);
+    }
+
+    public void writeIntegration(SpectrumBatch batch, int integration, OutputStream out) throws IOException {
+        int start = batch.getIntegrationStart(integration);
+        int end = batch.getIntegrationEnd(integration);
+        buffer.reset();
+        putLong(batch.getTimestamp(start));
+        putShort(end - start);
+        for (int row = start; row < end; row++) {
+            putInt(batch.getFrequencyLow(row));
+            putInt(batch.getFrequencyHigh(row));
+            putInt(Float.floatToRawIntBits(batch.getStepHz(row)));
+            putInt(batch.getSamples(row));
+            int offset = batch.getValueOffset(row);
+            int count = batch.getValueCount(row);
+            putShort(count);
+            for (int i = 0; i < count; i++) {
+                putShort(RtlpFormat.toCentiDb(batch.getValue(offset + i)));
+            }
+        }
+        buffer.writeTo(out);
+    }
+
+    private void putShort(int value) {
+        buffer.append((byte) value).append((byte) (value >> 8));
+    }
+
+    private void putInt(int value) {
+        putShort(value);
+        putShort(value >> 16);
+    }
+
+    private void putLong(long value) {
+        putInt((int) value);
+        putInt((int) (value >> 32));
+    }
+}
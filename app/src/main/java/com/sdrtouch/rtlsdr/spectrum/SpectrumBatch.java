@@ -0,0 +1,261 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+/**
+ * Columnar in-memory form of a recorded batch.
+ *
+ * Every row is one tuning hop as written by rtl_power: a timestamp, the frequency range it covers,
+ * the bin width, the number of samples averaged and its dBm values. The dBm values of all rows share
+ * one contiguous array, row r owns the values from {@link #getValueOffset(int) getValueOffset(r)} up to
+ * {@code getValueOffset(r + 1)}. Rows with the same timestamp form an integration (a full sweep).
+ *
+ * Rows are added in any order. Before reading integrations, {@link #seal()} sorts the rows by time
+ * (keeping the recorded order of hops within a sweep) and works out where each integration starts.
+ */
+public class SpectrumBatch {
+    private BatchInfo info;
+
+    private int rowCount;
+    private long[] timestamps;
+    private int[] localDates;
+    private int[] localTimes;
+    private int[] frequencyLow;
+    private int[] frequencyHigh;
+    private float[] stepHz;
+    private int[] samples;
+    private int[] valueOffsets;
+    private float[] values;
+
+    private int integrationCount;
+    private int[] integrationStarts;
+    private boolean sealed = true;
+
+    public SpectrumBatch(BatchInfo info) {
+        this(info, 64, 64);
+    }
+
+    public SpectrumBatch(BatchInfo info, int expectedRows, int expectedValues) {
+        this.info = info;
+        expectedRows = Math.max(expectedRows, 1);
+        timestamps = new long[expectedRows];
+        localDates = new int[expectedRows];
+        localTimes = new int[expectedRows];
+        frequencyLow = new int[expectedRows];
+        frequencyHigh = new int[expectedRows];
+        stepHz = new float[expectedRows];
+        samples = new int[expectedRows];
+        valueOffsets = new int[expectedRows + 1];
+        values = new float[Math.max(expectedValues, 1)];
+        integrationStarts = new int[2];
+    }
+
+    public BatchInfo getInfo() {
+        return info;
+    }
+
+    public void setInfo(BatchInfo info) {
+        this.info = info;
+    }
+
+    /** Forgets all rows but keeps the allocated arrays */
+    public void clear() {
+        rowCount = 0;
+        integrationCount = 0;
+        sealed = true;
+    }
+
+    /** Drops every row from the given one on */
+    public void truncate(int rows) {
+        if (rows < rowCount) {
+            rowCount = rows;
+            sealed = false;
+        }
+    }
+
+    /**
+     * Appends a row
+     *
+     * @param timestamp unix time in seconds
+     * @param localDate the wall clock date the row was recorded at, as yyyyMMdd
+     * @param localTime the wall clock time the row was recorded at, as HHmmss
+     */
+    public void addRow(long timestamp, int localDate, int localTime, int frequencyLow, int frequencyHigh, float stepHz,
+                       int samples, float[] dbm, int dbmOffset, int dbmCount) {
+        ensureRowCapacity(rowCount + 1);
+        int valueStart = valueOffsets[rowCount];
+        ensureValueCapacity(valueStart + dbmCount);
+
+        this.timestamps[rowCount] = timestamp;
+        this.localDates[rowCount] = localDate;
+        this.localTimes[rowCount] = localTime;
+        this.frequencyLow[rowCount] = frequencyLow;
+        this.frequencyHigh[rowCount] = frequencyHigh;
+        this.stepHz[rowCount] = stepHz;
+        this.samples[rowCount] = samples;
+        System.arraycopy(dbm, dbmOffset, values, valueStart, dbmCount);
+        valueOffsets[rowCount + 1] = valueStart + dbmCount;
+        rowCount++;
+        sealed = false;
+    }
+
+    /**
+     * Appends the current row of a tokenizer. rtl_power prints the last bin of every row twice,
+     * the repeat is dropped so rows read from .csv and .rtlp hold the same bins.
+     */
+    public void addRow(CsvRowTokenizer row, long timestamp) {
+        int bins = row.getDbmCount() > 1 ? row.getDbmCount() - 1 : row.getDbmCount();
+        addRow(timestamp,
+                (row.getYear() * 100 + row.getMonth()) * 100 + row.getDay(),
+                (row.getHour() * 100 + row.getMinute()) * 100 + row.getSecond(),
+                row.getFrequencyLow(), row.getFrequencyHigh(), (float) row.getFrequencyStep(), row.getSamples(),
+                row.getDbm(), 0, bins);
+    }
+
+    /** Sorts the rows by time and indexes the integrations. Cheap if the rows were added in order. */
+    public void seal() {
+        if (sealed) return;
+        boolean ordered = true;
+        for (int r = 1; r < rowCount && ordered; r++) {
+            ordered = timestamps[r - 1] <= timestamps[r];
+        }
+        if (!ordered) sortRows();
+
+        integrationCount = 0;
+        for (int r = 0; r < rowCount; r++) {
+            if (r == 0 || timestamps[r] != timestamps[r - 1]) {
+                if (integrationCount + 1 >= integrationStarts.length) {
+                    integrationStarts = grow(integrationStarts, integrationStarts.length * 2);
+                }
+                integrationStarts[integrationCount++] = r;
+            }
+        }
+        integrationStarts[integrationCount] = rowCount;
+        sealed = true;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getValueCount() {
+        return valueOffsets[rowCount];
+    }
+
+    public int getIntegrationCount() {
+        checkSealed();
+        return integrationCount;
+    }
+
+    /** The first row of the integration, passing {@link #getIntegrationCount()} gives the row count */
+    public int getIntegrationStart(int integration) {
+        checkSealed();
+        return integrationStarts[integration];
+    }
+
+    public int getIntegrationEnd(int integration) {
+        return getIntegrationStart(integration + 1);
+    }
+
+    public long getTimestamp(int row) { return timestamps[row]; }
+    public int getLocalDate(int row) { return localDates[row]; }
+    public int getLocalTime(int row) { return localTimes[row]; }
+    public int getFrequencyLow(int row) { return frequencyLow[row]; }
+    public int getFrequencyHigh(int row) { return frequencyHigh[row]; }
+    public float getStepHz(int row) { return stepHz[row]; }
+    public int getSamples(int row) { return samples[row]; }
+    public int getValueOffset(int row) { return valueOffsets[row]; }
+    public int getValueCount(int row) { return valueOffsets[row + 1] - valueOffsets[row]; }
+    public float getValue(int index) { return values[index]; }
+
+    /** The shared dBm array, only valid until the next row is added */
+    public float[] getValues() {
+        return values;
+    }
+
+    private void checkSealed() {
+        if (!sealed) throw new IllegalStateException("Rows were added since the batch was sealed");
+    }
+
+    private void sortRows() {
+        // stable merge sort of the row indices, hops of one sweep keep their recorded order
+        int[] order = new int[rowCount];
+        int[] scratch = new int[rowCount];
+        for (int r = 0; r < rowCount; r++) order[r] = r;
+        for (int width = 1; width < rowCount; width *= 2) {
+            for (int lo = 0; lo < rowCount; lo += 2 * width) {
+                int mid = Math.min(lo + width, rowCount);
+                int hi = Math.min(lo + 2 * width, rowCount);
+                int a = lo, b = mid, out = lo;
+                while (a < mid && b < hi) {
+                    scratch[out++] = timestamps[order[b]] < timestamps[order[a]] ? order[b++] : order[a++];
+                }
+                while (a < mid) scratch[out++] = order[a++];
+                while (b < hi) scratch[out++] = order[b++];
+            }
+            int[] swap = order;
+            order = scratch;
+            scratch = swap;
+        }
+
+        long[] sortedTimestamps = new long[timestamps.length];
+        int[] sortedDates = new int[localDates.length];
+        int[] sortedTimes = new int[localTimes.length];
+        int[] sortedLow = new int[frequencyLow.length];
+        int[] sortedHigh = new int[frequencyHigh.length];
+        float[] sortedStep = new float[stepHz.length];
+        int[] sortedSamples = new int[samples.length];
+        int[] sortedOffsets = new int[valueOffsets.length];
+        float[] sortedValues = new float[values.length];
+        for (int r = 0; r < rowCount; r++) {
+            int from = order[r];
+            sortedTimestamps[r] = timestamps[from];
+            sortedDates[r] = localDates[from];
+            sortedTimes[r] = localTimes[from];
+            sortedLow[r] = frequencyLow[from];
+            sortedHigh[r] = frequencyHigh[from];
+            sortedStep[r] = stepHz[from];
+            sortedSamples[r] = samples[from];
+            int count = valueOffsets[from + 1] - valueOffsets[from];
+            System.arraycopy(values, valueOffsets[from], sortedValues, sortedOffsets[r], count);
+            sortedOffsets[r + 1] = sortedOffsets[r] + count;
+        }
+        timestamps = sortedTimestamps;
+        localDates = sortedDates;
+        localTimes = sortedTimes;
+        frequencyLow = sortedLow;
+        frequencyHigh = sortedHigh;
+        stepHz = sortedStep;
+        samples = sortedSamples;
+        valueOffsets = sortedOffsets;
+        values = sortedValues;
+    }
+
+    private void ensureRowCapacity(int rows) {
+        if (rows <= timestamps.length) return;
+        int capacity = Math.max(rows, timestamps.length * 2);
+        long[] grownTimestamps = new long[capacity];
+        System.arraycopy(timestamps, 0, grownTimestamps, 0, rowCount);
+        timestamps = grownTimestamps;
+        localDates = grow(localDates, capacity);
+        localTimes = grow(localTimes, capacity);
+        frequencyLow = grow(frequencyLow, capacity);
+        frequencyHigh = grow(frequencyHigh, capacity);
+        float[] grownStep = new float[capacity];
+        System.arraycopy(stepHz, 0, grownStep, 0, rowCount);
+        stepHz = grownStep;
+        samples = grow(samples, capacity);
+        valueOffsets = grow(valueOffsets, capacity + 1);
+    }
+
+    private void ensureValueCapacity(int count) {
+        if (count <= values.length) return;
+        float[] grown = new float[Math.max(count, values.length * 2)];
+        System.arraycopy(values, 0, grown, 0, valueOffsets[rowCount]);
+        values = grown;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
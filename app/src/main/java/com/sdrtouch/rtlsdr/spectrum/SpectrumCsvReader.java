@@ -0,0 +1,41 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+
+/**
+ * Reads a whole RTL_POWER .csv output into a {@link SpectrumBatch}.
+ */
+public class SpectrumCsvReader {
+    // rtl_power prints one row of roughly 60 bytes plus 8 bytes per dBm value
+    private static final int BYTES_PER_ROW_GUESS = 80;
+
+    private final TimestampDecoder timestamps;
+
+    public SpectrumCsvReader() {
+        this(new TimestampDecoder());
+    }
+
+    public SpectrumCsvReader(TimestampDecoder timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Parses every row of csv, the stream is not closed.
+     *
+     * @param sizeHint the size of the file if known, 0 otherwise, used to size the batch up front
+     * @return the sealed batch
+     */
+    public SpectrumBatch read(InputStream csv, BatchInfo info, long sizeHint) throws IOException, ParseException {
+        int expectedRows = (int) Math.min(sizeHint / BYTES_PER_ROW_GUESS, 1 << 20);
+        SpectrumBatch batch = new SpectrumBatch(info, expectedRows, expectedRows * 2);
+        CsvRowTokenizer row = new CsvRowTokenizer(csv);
+        while (row.next()) {
+            batch.addRow(row, timestamps.decode(row));
+        }
+        if (batch.getRowCount() == 0) throw new IOException("No rows found in the csv file");
+        batch.seal();
+        return batch;
+    }
+}
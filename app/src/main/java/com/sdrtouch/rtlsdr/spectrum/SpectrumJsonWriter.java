@@ -0,0 +1,106 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serializes a {@link SpectrumBatch} into the .json document expected by MongoDB.
+ *
+ * Each integration becomes one element of "integrations" with a series per tuning hop.
+ * Like the original converter only the first dBm value of a hop is exported. Values are
+ * printed the way rtl_power prints them, with two decimals, "-inf" and "nan".
+ */
+public class SpectrumJsonWriter {
+    private final ByteBuilder buffer = new ByteBuilder(16 * 1024);
+
+    /** Writes the whole batch as a single document, out is flushed but not closed */
+    public void write(SpectrumBatch batch, OutputStream out) throws IOException {
+        write(batch, 0, batch.getIntegrationCount(), out);
+    }
+
+    /** Writes a document holding the integrations from first up to but excluding end */
+    public void write(SpectrumBatch batch, int first, int end, OutputStream out) throws IOException {
+        writeHeader(batch.getInfo(), out);
+        for (int integration = first; integration < end; integration++) {
+            writeIntegration(batch, integration, integration > first, out);
+        }
+        writeFooter(out);
+        out.flush();
+    }
+
+    public void writeHeader(BatchInfo info, OutputStream out) throws IOException {
+        String header = "{\"BATCH_ID\":\"" + info.batchID + "\",\"altitude\":\"" + info.altitude + "\",\"latitude\":\"" + info.latitude +
+                "\",\"longitude\":\"" + info.longitude + "\",\"integrationInterval\":\"" + info.integrationInterval + "\",\"integrations\":[";
+        out.write(header.getBytes("UTF-8"));
+    }
+
+    /** @param separate whether an integration was written before this one */
+    public void writeIntegration(SpectrumBatch batch, int integration, boolean separate, OutputStream out) throws IOException {
+        buffer.reset();
+        if (separate) buffer.append(',');
+        appendIntegration(buffer, batch, integration);
+        buffer.writeTo(out);
+    }
+
+    public void writeFooter(OutputStream out) throws IOException {
+        //Close off JSON Array and JSON Object
+        out.write(']');
+        out.write('}');
+    }
+
+    static void appendIntegration(ByteBuilder sb, SpectrumBatch batch, int integration) {
+        int start = batch.getIntegrationStart(integration);
+        int end = batch.getIntegrationEnd(integration);
+        int date = batch.getLocalDate(start);
+        int time = batch.getLocalTime(start);
+
+        sb.appendAscii("{\"unixTimestamp\":\"").append(batch.getTimestamp(start));
+        sb.appendAscii("\",\"date\":\"");
+        appendPadded(sb, date / 10000, 4).append('-');
+        appendPadded(sb, date / 100 % 100, 2).append('-');
+        appendPadded(sb, date % 100, 2);
+        sb.appendAscii("\",\"time\":\"");
+        appendPadded(sb, time / 10000, 2).append(':');
+        appendPadded(sb, time / 100 % 100, 2).append(':');
+        appendPadded(sb, time % 100, 2);
+        sb.appendAscii("\",\"totalSamples\":\"").append(batch.getSamples(start));
+        sb.appendAscii("\",\"metricSeries\":[");
+        for (int row = start; row < end; row++) {
+            if (row > start) sb.append(',');
+            appendSeries(sb, batch, row);
+        }
+        sb.append(']').append('}');
+    }
+
+    private static void appendSeries(ByteBuilder sb, SpectrumBatch batch, int row) {
+        int frequencyLow = batch.getFrequencyLow(row);
+        // Translate values into JSON format
+        sb.appendAscii("{\"frequencyLow\":\"").append(frequencyLow);
+        sb.appendAscii("\",\"frequencyHigh\":\"").append(batch.getFrequencyHigh(row));
+        sb.appendAscii("\",\"frequencyStep\":\"").append((int) batch.getStepHz(row));
+        sb.appendAscii("\",\"metricValues\":[{\"").append(frequencyLow).appendAscii("\":");
+        if (batch.getValueCount(row) > 0) {
+            appendDbm(sb, batch.getValue(batch.getValueOffset(row)));
+        }
+        sb.appendAscii("}]}");
+    }
+
+    /** Appends the value like printf("%.2f") in C */
+    static ByteBuilder appendDbm(ByteBuilder sb, float value) {
+        if (value != value) return sb.appendAscii("nan");
+        if (value == Float.NEGATIVE_INFINITY) return sb.appendAscii("-inf");
+        if (value == Float.POSITIVE_INFINITY) return sb.appendAscii("inf");
+        // floats carry enough digits that the nearest hundredth is the value rtl_power printed
+        long hundredths = Math.round(Math.abs((double) value) * 100);
+        if (value < 0 || (value == 0 && 1 / value < 0)) sb.append('-');
+        sb.append(hundredths / 100).append('.');
+        return appendPadded(sb, (int) (hundredths % 100), 2);
+    }
+
+    private static ByteBuilder appendPadded(ByteBuilder sb, int value, int width) {
+        for (int limit = 10; --width > 0; limit *= 10) {
+            if (value < limit) sb.append('0');
+        }
+        return sb.append(value);
+    }
+}
@@ -0,0 +1,389 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * POSTs a batch to the spectrum database in parts that can be resumed after a failure.
+ *
+ * Every part is a complete .json document with the batch header and a run of whole integrations,
+ * kept under the part size unless a single integration is larger. Parts are streamed with a fixed
+ * length, so at most one part is held in memory. Once the server acknowledges a part with a 2xx
+ * response, the last integration it held is appended to a journal file next to the recording.
+ * Uploading the same recording again skips everything the journal lists and carries on with the
+ * next integration, which also picks up integrations recorded since the last upload.
+ *
+ * Every part also carries "part", its number within the batch counting the parts of earlier
+ * attempts, and "lastPart", "true" on the part that ends the batch. A part whose response got
+ * lost is sent again under the same number, so the server can tell it from the next part. The
+ * total is not known while a recording is streamed, the last part closes the count instead, so
+ * it is only sent once the batch is finished. While a recording is still growing only full parts
+ * are posted and the integrations after them wait for the next upload.
+ * Once a batch is finished and uploaded, {@link #discardJournal(File)} removes its journal.
+ *
+ * The part fields are not understood by the endpoint that takes whole documents, the endpoint
+ * has to be the one for numbered parts.
+ *
+ * With {@link #setCompression} every part is compressed before it is sent and carries the
+ * matching Content-Encoding header.
+ */
+public class SpectrumUploader {
+    public static final String JOURNAL_EXTENSION = ".upload";
+    public static final int DEFAULT_PART_SIZE = 256 * 1024;
+
+    private final URL endpoint;
+    private final int partSize;
+    private final Map<String, String> requestProperties = new LinkedHashMap<>();
+    private int connectTimeout = 15000;
+    private int readTimeout = 30000;
+    private PayloadCompression compression = PayloadCompression.NONE;
+
+    private final SpectrumJsonWriter writer = new SpectrumJsonWriter();
+    private final ByteBuilder part = new ByteBuilder(16 * 1024);
+    private final ByteBuilder integrationJson = new ByteBuilder(16 * 1024);
+    private final ByteBuilder header = new ByteBuilder(256);
+    private final ByteBuilder compressed = new ByteBuilder(16 * 1024);
+    private final ByteBuilder footer = new ByteBuilder(64);
+    private int partIntegrations;
+    private int partsPosted;
+    // parts acknowledged by earlier attempts, the journal entries
+    private int partsBefore;
+    private long bytesSent;
+    private String lastResponse;
+
+    // the journal entry of the last acknowledged integration
+    private File journal;
+    private int acknowledged;
+    private long acknowledgedTimestamp;
+    private long acknowledgedOffset;
+    // the last integration added to the current part
+    private long partTimestamp;
+    private long partOffset;
+
+    public SpectrumUploader(URL endpoint) {
+        this(endpoint, DEFAULT_PART_SIZE);
+    }
+
+    /** @param partSize the size in bytes a part should stay under */
+    public SpectrumUploader(URL endpoint, int partSize) {
+        if (partSize < 1) throw new IllegalArgumentException("Part size must be positive");
+        this.endpoint = endpoint;
+        this.partSize = partSize;
+    }
+
+    /** Adds a header to every request */
+    public void setRequestProperty(String key, String value) {
+        requestProperties.put(key, value);
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeout = connectTimeoutMillis;
+        this.readTimeout = readTimeoutMillis;
+    }
+
+    /** Opt-in, the server has to understand the Content-Encoding. The part size still counts the plain JSON. */
+    public void setCompression(PayloadCompression compression) {
+        this.compression = compression;
+    }
+
+    /** The request body bytes of all acknowledged parts, after compression */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** The body of the response to the last acknowledged part */
+    public String getLastResponse() {
+        return lastResponse;
+    }
+
+    /**
+     * Deletes the journal of a batch that is finished and completely uploaded. Uploading the
+     * recording again after that sends all of it again.
+     *
+     * @return false when the journal is still there
+     */
+    public static boolean discardJournal(File journal) {
+        return !journal.exists() || journal.delete();
+    }
+
+    /**
+     * Uploads the integrations of a finished batch that the journal does not list yet.
+     *
+     * @return the number of parts posted
+     * @throws IOException when a part could not be posted, the journal holds the parts before it
+     */
+    public int upload(SpectrumBatch batch, File journal) throws IOException {
+        batch.seal();
+        begin(batch.getInfo(), journal);
+        int first = acknowledged;
+        if (first > batch.getIntegrationCount()
+                || (first > 0 && batch.getTimestamp(batch.getIntegrationStart(first - 1)) != acknowledgedTimestamp)) {
+            // the journal was written for another batch
+            restart();
+            first = 0;
+        }
+        for (int integration = first; integration < batch.getIntegrationCount(); integration++) {
+            add(batch, integration, batch.getTimestamp(batch.getIntegrationStart(integration)), -1);
+        }
+        return finish();
+    }
+
+    /**
+     * Uploads the integrations of a recording that the journal does not list yet,
+     * reading one integration at a time from the file.
+     *
+     * @param info the batch header, for .rtlp files {@link SweepFileReader#getInfo()}
+     * @param finished true once nothing more is recorded into the batch, e.g. it was closed or
+     *                 rolled, else only full parts are posted and none of them is the last
+     * @return the number of parts posted
+     * @throws IOException when a part could not be posted, the journal holds the parts before it
+     */
+    public int upload(SweepFileReader recording, BatchInfo info, File journal, boolean finished)
+            throws IOException, ParseException {
+        begin(info, journal);
+        SweepFileReader.Integration next;
+        if (acknowledged == 0) {
+            next = recording.getIntegration(0);
+        } else {
+            // entries written while uploading a parsed batch carry no offset
+            SweepFileReader.Integration last = acknowledgedOffset < 0
+                    ? recording.getIntegration(acknowledged - 1) : recording.integrationAt(acknowledgedOffset);
+            if (last != null && last.getTimestamp() == acknowledgedTimestamp) {
+                next = recording.next(last);
+            } else {
+                restart();
+                next = recording.getIntegration(0);
+            }
+        }
+
+        SpectrumBatch batch = new SpectrumBatch(info);
+        for (; next != null; next = recording.next(next)) {
+            batch.clear();
+            next.appendTo(batch);
+            batch.seal();
+            add(batch, 0, next.getTimestamp(), next.getOffset());
+        }
+        // the end of the file is only the end of the batch once it is finished
+        return finished ? finish() : partsPosted;
+    }
+
+    /**
+     * Posts several small batches in one request, as a JSON array of their documents. Only for servers
+     * that accept an array, the legacy endpoint takes a single document per request.
+     * Once acknowledged, every journal lists its whole batch as uploaded.
+     *
+     * @param journals the journal of each batch, in the same order
+     */
+    public void uploadTogether(List<SpectrumBatch> batches, List<File> journals) throws IOException {
+        partsPosted = 0;
+        bytesSent = 0;
+        part.reset();
+        part.append('[');
+        ByteBuilderStream out = new ByteBuilderStream(part);
+        for (int i = 0; i < batches.size(); i++) {
+            batches.get(i).seal();
+            if (i > 0) part.append(',');
+            writer.write(batches.get(i), out);
+        }
+        part.append(']');
+        send(batches.size() + " coalesced batches");
+        partsPosted = 1;
+
+        for (int i = 0; i < batches.size(); i++) {
+            SpectrumBatch batch = batches.get(i);
+            if (batch.getIntegrationCount() == 0) continue;
+            journal = journals.get(i);
+            acknowledged = batch.getIntegrationCount();
+            acknowledgedTimestamp = batch.getTimestamp(batch.getIntegrationStart(acknowledged - 1));
+            acknowledgedOffset = -1;
+            appendJournal();
+        }
+    }
+
+    private void begin(BatchInfo info, File journal) throws IOException {
+        this.journal = journal;
+        partsPosted = 0;
+        bytesSent = 0;
+        partIntegrations = 0;
+        partsBefore = 0;
+        acknowledged = 0;
+        acknowledgedTimestamp = 0;
+        acknowledgedOffset = -1;
+        if (journal.canRead()) readJournal();
+
+        header.reset();
+        ByteBuilderStream headerOut = new ByteBuilderStream(header);
+        writer.writeHeader(info, headerOut);
+    }
+
+    private void restart() throws IOException {
+        acknowledged = 0;
+        partsBefore = 0;
+        if (journal.exists() && !journal.delete()) throw new IOException("Unable to reset " + journal);
+    }
+
+    private void add(SpectrumBatch batch, int integration, long timestamp, long offset) throws IOException {
+        integrationJson.reset();
+        SpectrumJsonWriter.appendIntegration(integrationJson, batch, integration);
+        // header, the integrations so far, a separator and the longest footer
+        int length = part.length() + 1 + integrationJson.length() + footer.length();
+        if (partIntegrations > 0 && length > partSize) post(false);
+        if (partIntegrations == 0) {
+            part.reset();
+            part.append(header);
+            appendFooter(footer, false);
+        } else {
+            part.append(',');
+        }
+        part.append(integrationJson);
+        partIntegrations++;
+        partTimestamp = timestamp;
+        partOffset = offset;
+    }
+
+    private int finish() throws IOException {
+        if (partIntegrations > 0) post(true);
+        return partsPosted;
+    }
+
+    /** Closes the integrations and the document, with the number of the part */
+    private void appendFooter(ByteBuilder target, boolean last) {
+        target.reset();
+        target.appendAscii("],\"part\":\"").append(partsBefore + partsPosted + 1);
+        target.appendAscii("\",\"lastPart\":\"").appendAscii(last ? "true" : "false").appendAscii("\"}");
+    }
+
+    private void post(boolean last) throws IOException {
+        appendFooter(footer, last);
+        part.append(footer);
+        send("part " + (partsBefore + partsPosted + 1));
+
+        acknowledged += partIntegrations;
+        acknowledgedTimestamp = partTimestamp;
+        acknowledgedOffset = partOffset;
+        appendJournal();
+        partsPosted++;
+        partIntegrations = 0;
+    }
+
+    /** POSTs the content of part, what names it in errors */
+    private void send(String what) throws IOException {
+        ByteBuilder body = part;
+        if (compression.getContentEncoding() != null) {
+            compressed.reset();
+            OutputStream zip = compression.wrap(new ByteBuilderStream(compressed));
+            part.writeTo(zip);
+            zip.close();
+            body = compressed;
+        }
+
+        HttpURLConnection con = (HttpURLConnection) endpoint.openConnection();
+        try {
+            con.setRequestMethod("POST");
+            con.setConnectTimeout(connectTimeout);
+            con.setReadTimeout(readTimeout);
+            for (Map.Entry<String, String> property : requestProperties.entrySet()) {
+                con.setRequestProperty(property.getKey(), property.getValue());
+            }
+            if (body != part) con.setRequestProperty("Content-Encoding", compression.getContentEncoding());
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(body.length());
+            OutputStream out = con.getOutputStream();
+            body.writeTo(out);
+            out.close();
+
+            int status = con.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException("Server rejected " + what + " with HTTP " + status);
+            }
+            lastResponse = readResponse(con.getInputStream());
+        } finally {
+            con.disconnect();
+        }
+        bytesSent += body.length();
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                response.append(line);
+            }
+            return response.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // one line per acknowledged part: integrations acknowledged so far, timestamp and file offset of the last one
+    private void readJournal() throws IOException {
+        byte[] data = new byte[(int) journal.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(journal));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        String[] lines = new String(data, "US-ASCII").split("\n", -1);
+        // the text after the last newline is a line cut short by a crash, the entry before it still holds
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] entry = lines[i].split(" ");
+            if (entry.length != 3) continue;
+            try {
+                int count = Integer.parseInt(entry[0]);
+                long timestamp = Long.parseLong(entry[1]);
+                long offset = Long.parseLong(entry[2]);
+                acknowledged = count;
+                acknowledgedTimestamp = timestamp;
+                acknowledgedOffset = offset;
+                partsBefore++;
+            } catch (NumberFormatException e) {
+                // not an entry
+            }
+        }
+    }
+
+    private void appendJournal() throws IOException {
+        FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write((acknowledged + " " + acknowledgedTimestamp + " " + acknowledgedOffset + "\n").getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Lets documents and compressed parts be written straight into a ByteBuilder */
+    private static final class ByteBuilderStream extends OutputStream {
+        private final ByteBuilder target;
+
+        ByteBuilderStream(ByteBuilder target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) {
+            target.append((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target.append(b, off, len);
+        }
+    }
+}
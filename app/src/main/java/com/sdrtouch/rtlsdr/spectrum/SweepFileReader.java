@@ -0,0 +1,434 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Random access to the integrations of a recording under RTL_POWER/, either a .csv or a .rtlp file.
+ *
+ * The file is memory mapped in chunks and never read as a whole. Integration boundaries are found
+ * lazily: the file is scanned only as far as a lookup needs, and every {@link #INDEX_SPACING}th
+ * integration is remembered in a sparse index, so once scanned, finding integration N costs a
+ * binary search plus at most {@link #INDEX_SPACING} hops. Timestamp lookups past the scanned part
+ * bisect the file directly, by line for .csv and by record for .rtlp files whose sweeps all have
+ * the same layout, which keeps them O(log n) on files larger than memory.
+ *
+ * An integration is a run of consecutive rows sharing a timestamp, lookups by time expect
+ * the integrations in time order, as rtl_power writes them. An incomplete integration at the
+ * end of the file, as left by a recording still in progress, is ignored.
+ */
+public class SweepFileReader implements Closeable {
+    public static final int INDEX_SPACING = 64;
+
+    private final MappedFile file;
+    private final Layout layout;
+    private final BatchInfo info;
+
+    // sparse index over the scanned part of the file
+    private long[] indexOffsets = new long[64];
+    private long[] indexTimestamps = new long[64];
+    private int scannedCount;
+    private long scanOffset;
+    private long lastScannedTimestamp = Long.MIN_VALUE;
+    private boolean scanComplete;
+
+    public SweepFileReader(File recording) throws IOException {
+        this(recording, TimeZone.getDefault());
+    }
+
+    /** @param timeZone the zone of the wall clock times in the file */
+    public SweepFileReader(File recording, TimeZone timeZone) throws IOException {
+        this(new MappedFile(recording), timeZone);
+    }
+
+    SweepFileReader(MappedFile file, TimeZone timeZone) throws IOException {
+        this.file = file;
+        try {
+            if (isRtlp(file)) {
+                info = RtlpReader.readHeader(file.slice(0, (int) Math.min(file.size(), MappedFile.OVERLAP)));
+                layout = new RtlpLayout(timeZone);
+            } else {
+                info = null;
+                layout = new CsvLayout(timeZone);
+            }
+            scanOffset = layout.firstIntegration();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** The header of a .rtlp file, null for a .csv file */
+    public BatchInfo getInfo() {
+        return info;
+    }
+
+    /** @return the integration or null if the file holds fewer than n + 1 */
+    public Integration getIntegration(int n) throws IOException {
+        while (scannedCount <= n && scanNext()) {
+            // scan up to n
+        }
+        if (n < 0 || n >= scannedCount) return null;
+
+        int entry = n / INDEX_SPACING;
+        long offset = indexOffsets[entry];
+        for (int i = entry * INDEX_SPACING; i < n; i++) {
+            offset = layout.integrationEnd(offset);
+        }
+        return view(n, offset);
+    }
+
+    /**
+     * Counts the integrations, scanning the rest of the file the first time.
+     */
+    public int getIntegrationCount() throws IOException {
+        while (scanNext()) {
+            // scan to the end
+        }
+        return scannedCount;
+    }
+
+    /** @return the first integration recorded at or after the given unix time, or null */
+    public Integration findAtOrAfter(long timestamp) throws IOException {
+        if (scannedCount > 0 && lastScannedTimestamp >= timestamp) {
+            return findInIndex(timestamp);
+        }
+        long offset = layout.search(timestamp);
+        if (offset == Layout.NOT_FOUND) return null;
+        if (offset != Layout.UNSUPPORTED) return view(-1, offset);
+
+        // no way to bisect this file, fall back to extending the index
+        while (!scanComplete && lastScannedTimestamp < timestamp) {
+            scanNext();
+        }
+        return scannedCount > 0 && lastScannedTimestamp >= timestamp ? findInIndex(timestamp) : null;
+    }
+
+    /** @return the integrations recorded between from and to, both inclusive */
+    public List<Integration> findBetween(long from, long to) throws IOException {
+        List<Integration> found = new ArrayList<>();
+        Integration integration = findAtOrAfter(from);
+        while (integration != null && integration.timestamp <= to) {
+            found.add(integration);
+            integration = next(integration);
+        }
+        return found;
+    }
+
+    /** @return the integration starting at a byte offset known from elsewhere, such as a {@link SweepIndex}, or null */
+    public Integration integrationAt(long offset) throws IOException {
+        if (offset < layout.firstIntegration() || offset >= file.size()) return null;
+        return view(-1, offset);
+    }
+
+    /** @return the integration following the given one, or null at the end of the file */
+    public Integration next(Integration integration) throws IOException {
+        long end = integration.offset + integration.data.capacity();
+        if (layout.integrationEnd(end) < 0) return null;
+        return view(integration.index < 0 ? -1 : integration.index + 1, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private Integration findInIndex(long timestamp) throws IOException {
+        // last index entry recorded before the timestamp
+        int lo = 0;
+        int hi = (scannedCount - 1) / INDEX_SPACING;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (indexTimestamps[mid] < timestamp) lo = mid;
+            else hi = mid - 1;
+        }
+        int n = lo * INDEX_SPACING;
+        long offset = indexOffsets[lo];
+        while (layout.timestampAt(offset) < timestamp) {
+            offset = layout.integrationEnd(offset);
+            n++;
+        }
+        return view(n, offset);
+    }
+
+    private boolean scanNext() throws IOException {
+        if (scanComplete) return false;
+        long end = layout.integrationEnd(scanOffset);
+        if (end < 0) {
+            scanComplete = true;
+            return false;
+        }
+        if (scannedCount % INDEX_SPACING == 0) {
+            int entry = scannedCount / INDEX_SPACING;
+            if (entry == indexOffsets.length) {
+                long[] offsets = new long[entry * 2];
+                long[] timestamps = new long[entry * 2];
+                System.arraycopy(indexOffsets, 0, offsets, 0, entry);
+                System.arraycopy(indexTimestamps, 0, timestamps, 0, entry);
+                indexOffsets = offsets;
+                indexTimestamps = timestamps;
+            }
+            indexOffsets[entry] = scanOffset;
+            indexTimestamps[entry] = layout.timestampAt(scanOffset);
+        }
+        lastScannedTimestamp = layout.timestampAt(scanOffset);
+        scannedCount++;
+        scanOffset = end;
+        return true;
+    }
+
+    private Integration view(int index, long offset) throws IOException {
+        long end = layout.integrationEnd(offset);
+        if (end < 0) return null;
+        return new Integration(index, layout.timestampAt(offset), offset, file.slice(offset, (int) (end - offset)), layout);
+    }
+
+    private static boolean isRtlp(MappedFile file) throws IOException {
+        if (file.size() < RtlpFormat.MAGIC.length) return false;
+        for (int i = 0; i < RtlpFormat.MAGIC.length; i++) {
+            if (file.get(i) != RtlpFormat.MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * One integration of the recording, a view on the mapped file
+     */
+    public static final class Integration {
+        private final int index;
+        private final long timestamp;
+        private final long offset;
+        private final ByteBuffer data;
+        private final Layout layout;
+
+        private Integration(int index, long timestamp, long offset, ByteBuffer data, Layout layout) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.data = data;
+            this.layout = layout;
+        }
+
+        /** The position of the integration in the file, -1 if it was found by bisection before the index reached it */
+        public int getIndex() {
+            return index;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** The byte offset of the integration in the file */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** The raw bytes of the integration, csv text or a .rtlp record */
+        public ByteBuffer getData() {
+            return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /** Decodes the rows of the integration into the batch */
+        public void appendTo(SpectrumBatch batch) throws IOException, ParseException {
+            layout.decode(getData(), batch);
+        }
+    }
+
+    private abstract class Layout {
+        static final long NOT_FOUND = -1;
+        static final long UNSUPPORTED = -2;
+
+        abstract long firstIntegration() throws IOException;
+
+        abstract long timestampAt(long offset) throws IOException;
+
+        /** @return the offset after the integration starting at offset, -1 if the file ends inside it */
+        abstract long integrationEnd(long offset) throws IOException;
+
+        /** @return the first integration at or after the timestamp, {@link #NOT_FOUND} or {@link #UNSUPPORTED} */
+        abstract long search(long timestamp) throws IOException;
+
+        abstract void decode(ByteBuffer data, SpectrumBatch batch) throws IOException, ParseException;
+    }
+
+    private class CsvLayout extends Layout {
+        // "2016-11-28, 14:02:00"
+        private static final int TIMESTAMP_LENGTH = 20;
+        private final TimestampDecoder timestamps;
+
+        CsvLayout(TimeZone timeZone) {
+            timestamps = new TimestampDecoder(timeZone);
+        }
+
+        @Override
+        long firstIntegration() {
+            return 0;
+        }
+
+        @Override
+        long timestampAt(long line) throws IOException {
+            if (line + TIMESTAMP_LENGTH > file.size()) return Long.MAX_VALUE;
+            return timestamps.toUnixTime(number(line, 4), number(line + 5, 2), number(line + 8, 2),
+                    number(line + 12, 2), number(line + 15, 2), number(line + 18, 2));
+        }
+
+        @Override
+        long integrationEnd(long offset) throws IOException {
+            long timestamp = timestampAt(offset);
+            long line = offset;
+            while (true) {
+                long newline = file.indexOf((byte) '\n', line, file.size());
+                if (newline < 0) return -1;
+                line = newline + 1;
+                if (line >= file.size() || !isBlank(line) && timestampAt(line) != timestamp) return line;
+            }
+        }
+
+        @Override
+        long search(long timestamp) throws IOException {
+            // smallest position whose following line is at or after the timestamp
+            long lo = 0;
+            long hi = file.size();
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (timestampAt(lineStart(mid)) >= timestamp) hi = mid;
+                else lo = mid + 1;
+            }
+            long line = lineStart(lo);
+            return line < file.size() && integrationEnd(line) >= 0 ? line : NOT_FOUND;
+        }
+
+        @Override
+        void decode(ByteBuffer data, SpectrumBatch batch) throws IOException, ParseException {
+            CsvRowTokenizer row = new CsvRowTokenizer(new ByteBufferInputStream(data), 4096);
+            while (row.next()) {
+                batch.addRow(row, timestamps.decode(row));
+            }
+        }
+
+        /** The first non blank line starting at or after the position */
+        private long lineStart(long position) throws IOException {
+            long line = position;
+            if (position > 0 && file.get(position - 1) != '\n') {
+                long newline = file.indexOf((byte) '\n', position, file.size());
+                line = newline < 0 ? file.size() : newline + 1;
+            }
+            while (line < file.size() && isBlank(line)) line++;
+            return line;
+        }
+
+        private boolean isBlank(long line) throws IOException {
+            byte b = file.get(line);
+            return b == '\n' || b == '\r';
+        }
+
+        private int number(long position, int digits) throws IOException {
+            int value = 0;
+            for (int i = 0; i < digits; i++) {
+                value = value * 10 + (file.get(position + i) - '0');
+            }
+            return value;
+        }
+    }
+
+    private class RtlpLayout extends Layout {
+        private final RtlpReader reader;
+        private long first;
+        // the size and hop count shared by all records, -1 until known, 0 if records differ
+        private long stride = -1;
+        private int strideHops;
+
+        RtlpLayout(TimeZone timeZone) {
+            reader = new RtlpReader(timeZone);
+        }
+
+        @Override
+        long firstIntegration() throws IOException {
+            first = file.getShort(6) & 0xffff;
+            return first;
+        }
+
+        @Override
+        long timestampAt(long offset) throws IOException {
+            return file.getLong(offset);
+        }
+
+        @Override
+        long integrationEnd(long offset) throws IOException {
+            long size = file.size();
+            if (offset + RtlpFormat.INTEGRATION_HEADER_SIZE > size) return -1;
+            int hops = file.getShort(offset + 8) & 0xffff;
+            long position = offset + RtlpFormat.INTEGRATION_HEADER_SIZE;
+            for (int hop = 0; hop < hops; hop++) {
+                if (position + RtlpFormat.HOP_HEADER_SIZE > size) return -1;
+                int bins = file.getShort(position + RtlpFormat.HOP_HEADER_SIZE - 2) & 0xffff;
+                position += RtlpFormat.HOP_HEADER_SIZE + 2L * bins;
+            }
+            return position <= size ? position : -1;
+        }
+
+        @Override
+        long search(long timestamp) throws IOException {
+            if (stride < 0) {
+                long end = integrationEnd(first);
+                if (end < 0) return NOT_FOUND;
+                stride = end - first;
+                strideHops = file.getShort(first + 8) & 0xffff;
+            }
+            if (stride == 0) return UNSUPPORTED;
+
+            long lo = 0;
+            long hi = (file.size() - first) / stride;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                long offset = first + mid * stride;
+                if (!isRegular(offset)) {
+                    stride = 0;
+                    return UNSUPPORTED;
+                }
+                if (timestampAt(offset) >= timestamp) hi = mid;
+                else lo = mid + 1;
+            }
+            long offset = first + lo * stride;
+            return integrationEnd(offset) >= 0 ? offset : NOT_FOUND;
+        }
+
+        @Override
+        void decode(ByteBuffer data, SpectrumBatch batch) {
+            reader.readIntegration(data, batch);
+        }
+
+        private boolean isRegular(long offset) throws IOException {
+            return (file.getShort(offset + 8) & 0xffff) == strideHops && integrationEnd(offset) == offset + stride;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+}
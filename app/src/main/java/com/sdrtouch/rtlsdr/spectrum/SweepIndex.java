@@ -0,0 +1,346 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The .idx sidecar of a recording, a summary of every integration: where it starts in the .csv
+ * and .rtlp files, the frequency range of every hop, the highest dBm of every hop and the
+ * lowest, highest and mean dBm of the whole integration. The layout is described in jni/sweepidx.h.
+ *
+ * rtl_power writes the index while recording. {@link #update(File, File, File)} brings an index
+ * up to date with its data file, appending only the integrations it is missing, so recordings made
+ * without one or cut short get an index the first time they are looked at.
+ */
+public class SweepIndex {
+    public static final String EXTENSION = ".idx";
+    public static final byte[] MAGIC = {'R', 'I', 'D', 'X'};
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte LAYOUT = 'L';
+    private static final byte INTEGRATION = 'I';
+
+    private int count;
+    private long[] timestamps = new long[16];
+    private long[] csvOffsets = new long[16];
+    private long[] rtlpOffsets = new long[16];
+    private short[] minDbm = new short[16];
+    private short[] maxDbm = new short[16];
+    private short[] meanDbm = new short[16];
+    private int[] layoutOf = new int[16];
+    private int[] hopMaxStart = new int[17];
+    private short[] hopMax = new short[256];
+
+    private final List<int[]> layoutLow = new ArrayList<>();
+    private final List<int[]> layoutHigh = new ArrayList<>();
+
+    // bytes of whole records, a partial record after this is dropped
+    private long validLength;
+
+    /** Reads an index, ignoring a partial record at the end */
+    public static SweepIndex read(File idx) throws IOException {
+        FileInputStream in = new FileInputStream(idx);
+        try {
+            FileChannel channel = in.getChannel();
+            SweepIndex index = new SweepIndex();
+            index.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Brings the index of a recording up to date, reading the data file only past the last indexed
+     * integration. The .rtlp file is used when there is one, otherwise the .csv.
+     *
+     * @param rtlp the .rtlp file of the recording, may not exist
+     * @param csv  the .csv file of the recording, may not exist
+     */
+    public static SweepIndex update(File idx, File rtlp, File csv) throws IOException, ParseException {
+        return update(idx, rtlp, csv, TimeZone.getDefault());
+    }
+
+    public static SweepIndex update(File idx, File rtlp, File csv, TimeZone timeZone) throws IOException, ParseException {
+        boolean useRtlp = rtlp != null && rtlp.canRead();
+        File data = useRtlp ? rtlp : csv;
+        if (data == null || !data.canRead()) throw new IOException("No data file to index");
+
+        SweepIndex index = new SweepIndex();
+        if (idx.canRead()) {
+            try {
+                index = read(idx);
+            } catch (IOException e) {
+                index = new SweepIndex();
+            }
+        }
+
+        SweepFileReader reader = new SweepFileReader(data, timeZone);
+        OutputStream out = null;
+        try {
+            SweepFileReader.Integration next;
+            if (index.count == 0) {
+                next = reader.getIntegration(0);
+            } else {
+                long lastOffset = useRtlp ? index.rtlpOffsets[index.count - 1] : index.csvOffsets[index.count - 1];
+                SweepFileReader.Integration last = lastOffset < 0 ? null : reader.integrationAt(lastOffset);
+                if (last != null && last.getTimestamp() == index.timestamps[index.count - 1]) {
+                    next = reader.next(last);
+                } else {
+                    // the index does not belong to this data file, start over
+                    index = new SweepIndex();
+                    next = reader.getIntegration(0);
+                }
+            }
+            if (next == null && index.validLength > 0) return index;
+
+            // drop a partial record left at the end, then append
+            RandomAccessFile truncate = new RandomAccessFile(idx, "rw");
+            try {
+                truncate.setLength(index.validLength);
+            } finally {
+                truncate.close();
+            }
+            out = new FileOutputStream(idx, true);
+
+            ByteBuilder record = new ByteBuilder(64 * 1024);
+            if (index.validLength == 0) {
+                record.append(MAGIC);
+                putShort(record, VERSION);
+                putShort(record, HEADER_SIZE);
+            }
+            SpectrumBatch batch = new SpectrumBatch(reader.getInfo());
+            for (; next != null; next = reader.next(next)) {
+                batch.clear();
+                next.appendTo(batch);
+                batch.seal();
+                long csvOffset = useRtlp ? -1 : next.getOffset();
+                long rtlpOffset = useRtlp ? next.getOffset() : -1;
+                index.add(batch, next.getTimestamp(), csvOffset, rtlpOffset, record);
+                if (record.length() >= 60 * 1024) {
+                    index.validLength += record.length();
+                    record.writeTo(out);
+                    record.reset();
+                }
+            }
+            index.validLength += record.length();
+            record.writeTo(out);
+            return index;
+        } finally {
+            if (out != null) out.close();
+            reader.close();
+        }
+    }
+
+    public int getIntegrationCount() {
+        return count;
+    }
+
+    public long getTimestamp(int integration) { return timestamps[integration]; }
+
+    /** Offset of the integration in the .csv, -1 if it was not recorded */
+    public long getCsvOffset(int integration) { return csvOffsets[integration]; }
+
+    /** Offset of the integration in the .rtlp, -1 if it was not recorded */
+    public long getRtlpOffset(int integration) { return rtlpOffsets[integration]; }
+
+    public float getMinDbm(int integration) { return RtlpFormat.fromCentiDb(minDbm[integration]); }
+    public float getMaxDbm(int integration) { return RtlpFormat.fromCentiDb(maxDbm[integration]); }
+    public float getMeanDbm(int integration) { return RtlpFormat.fromCentiDb(meanDbm[integration]); }
+
+    public int getHopCount(int integration) { return hopMaxStart[integration + 1] - hopMaxStart[integration]; }
+    public int getHopLow(int integration, int hop) { return layoutLow.get(layoutOf[integration])[hop]; }
+    public int getHopHigh(int integration, int hop) { return layoutHigh.get(layoutOf[integration])[hop]; }
+    public float getHopMaxDbm(int integration, int hop) { return RtlpFormat.fromCentiDb(hopMax[hopMaxStart[integration] + hop]); }
+
+    /**
+     * @return the integrations where a hop overlapping the frequency range reached the given level
+     */
+    public int[] findCrossing(float dbm, int frequencyLow, int frequencyHigh) {
+        short threshold = RtlpFormat.toCentiDb(dbm);
+        int[] found = new int[16];
+        int foundCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (maxDbm[i] < threshold) continue;
+            int[] low = layoutLow.get(layoutOf[i]);
+            int[] high = layoutHigh.get(layoutOf[i]);
+            int hops = getHopCount(i);
+            for (int hop = 0; hop < hops; hop++) {
+                if (high[hop] >= frequencyLow && low[hop] <= frequencyHigh && hopMax[hopMaxStart[i] + hop] >= threshold) {
+                    if (foundCount == found.length) found = Arrays.copyOf(found, foundCount * 2);
+                    found[foundCount++] = i;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    private void parse(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (byte b : MAGIC) {
+                if (buffer.get() != b) throw new IOException("Not an .idx file");
+            }
+            int version = buffer.getShort() & 0xffff;
+            if (version != VERSION) throw new IOException("Unsupported .idx version " + version);
+            buffer.position(buffer.getShort() & 0xffff);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated .idx header");
+        }
+        validLength = buffer.position();
+
+        try {
+            while (buffer.hasRemaining()) {
+                byte tag = buffer.get();
+                if (tag == LAYOUT) {
+                    int hops = buffer.getShort() & 0xffff;
+                    int[] low = new int[hops];
+                    int[] high = new int[hops];
+                    for (int hop = 0; hop < hops; hop++) {
+                        low[hop] = buffer.getInt();
+                        high[hop] = buffer.getInt();
+                    }
+                    layoutLow.add(low);
+                    layoutHigh.add(high);
+                } else if (tag == INTEGRATION) {
+                    long timestamp = buffer.getLong();
+                    long csvOffset = buffer.getLong();
+                    long rtlpOffset = buffer.getLong();
+                    short min = buffer.getShort();
+                    short max = buffer.getShort();
+                    short mean = buffer.getShort();
+                    int hops = buffer.getShort() & 0xffff;
+                    if (layoutLow.isEmpty() || layoutLow.get(layoutLow.size() - 1).length != hops) {
+                        throw new IOException("Integration without a matching hop layout");
+                    }
+                    ensureCapacity(count + 1, hopMaxStart[count] + hops);
+                    for (int hop = 0; hop < hops; hop++) {
+                        hopMax[hopMaxStart[count] + hop] = buffer.getShort();
+                    }
+                    append(timestamp, csvOffset, rtlpOffset, min, max, mean, hops);
+                } else {
+                    throw new IOException("Unknown .idx record " + tag);
+                }
+                validLength = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // partial record at the end, everything up to validLength is kept
+        }
+    }
+
+    private void add(SpectrumBatch batch, long timestamp, long csvOffset, long rtlpOffset, ByteBuilder record) {
+        int hops = batch.getRowCount();
+        int[] low = new int[hops];
+        int[] high = new int[hops];
+        for (int row = 0; row < hops; row++) {
+            low[row] = batch.getFrequencyLow(row);
+            high[row] = batch.getFrequencyHigh(row);
+        }
+        if (layoutLow.isEmpty() || !Arrays.equals(low, layoutLow.get(layoutLow.size() - 1))
+                || !Arrays.equals(high, layoutHigh.get(layoutHigh.size() - 1))) {
+            layoutLow.add(low);
+            layoutHigh.add(high);
+            record.append(LAYOUT);
+            putShort(record, hops);
+            for (int row = 0; row < hops; row++) {
+                putInt(record, low[row]);
+                putInt(record, high[row]);
+            }
+        }
+
+        ensureCapacity(count + 1, hopMaxStart[count] + hops);
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        long finite = 0;
+        for (int row = 0; row < hops; row++) {
+            short rowMax = RtlpFormat.DBM_NEGATIVE_INFINITY;
+            int end = batch.getValueOffset(row) + batch.getValueCount(row);
+            for (int i = batch.getValueOffset(row); i < end; i++) {
+                float value = batch.getValue(i);
+                if (value != value) continue;
+                rowMax = (short) Math.max(rowMax, RtlpFormat.toCentiDb(value));
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                if (!Float.isInfinite(value)) {
+                    sum += value;
+                    finite++;
+                }
+            }
+            hopMax[hopMaxStart[count] + row] = rowMax;
+        }
+        short minCenti = hops > 0 ? RtlpFormat.toCentiDb((float) min) : RtlpFormat.DBM_NEGATIVE_INFINITY;
+        short maxCenti = hops > 0 ? RtlpFormat.toCentiDb((float) max) : RtlpFormat.DBM_NEGATIVE_INFINITY;
+        short meanCenti = finite > 0 ? RtlpFormat.toCentiDb((float) (sum / finite)) : RtlpFormat.DBM_NEGATIVE_INFINITY;
+
+        record.append(INTEGRATION);
+        putLong(record, timestamp);
+        putLong(record, csvOffset);
+        putLong(record, rtlpOffset);
+        putShort(record, minCenti);
+        putShort(record, maxCenti);
+        putShort(record, meanCenti);
+        putShort(record, hops);
+        for (int row = 0; row < hops; row++) {
+            putShort(record, hopMax[hopMaxStart[count] + row]);
+        }
+        append(timestamp, csvOffset, rtlpOffset, minCenti, maxCenti, meanCenti, hops);
+    }
+
+    private void append(long timestamp, long csvOffset, long rtlpOffset, short min, short max, short mean, int hops) {
+        timestamps[count] = timestamp;
+        csvOffsets[count] = csvOffset;
+        rtlpOffsets[count] = rtlpOffset;
+        minDbm[count] = min;
+        maxDbm[count] = max;
+        meanDbm[count] = mean;
+        layoutOf[count] = layoutLow.size() - 1;
+        hopMaxStart[count + 1] = hopMaxStart[count] + hops;
+        count++;
+    }
+
+    private void ensureCapacity(int integrations, int hops) {
+        if (integrations > timestamps.length) {
+            int capacity = Math.max(integrations, timestamps.length * 2);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            csvOffsets = Arrays.copyOf(csvOffsets, capacity);
+            rtlpOffsets = Arrays.copyOf(rtlpOffsets, capacity);
+            minDbm = Arrays.copyOf(minDbm, capacity);
+            maxDbm = Arrays.copyOf(maxDbm, capacity);
+            meanDbm = Arrays.copyOf(meanDbm, capacity);
+            layoutOf = Arrays.copyOf(layoutOf, capacity);
+            hopMaxStart = Arrays.copyOf(hopMaxStart, capacity + 1);
+        }
+        if (hops > hopMax.length) {
+            hopMax = Arrays.copyOf(hopMax, Math.max(hops, hopMax.length * 2));
+        }
+    }
+
+    private static void putShort(ByteBuilder out, int value) {
+        out.append((byte) value).append((byte) (value >> 8));
+    }
+
+    private static void putInt(ByteBuilder out, int value) {
+        putShort(out, value);
+        putShort(out, value >> 16);
+    }
+
+    private static void putLong(ByteBuilder out, long value) {
+        putInt(out, (int) value);
+        putInt(out, (int) (value >> 32));
+    }
+}
@@ -0,0 +1,100 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.util.TimeZone;
+
+/**
+ * Turns the local date and time columns written by rtl_power into unix timestamps.
+ *
+ * Every tuning hop of a sweep shares the same timestamp, so the last few results are cached
+ * and a repeated timestamp costs a couple of comparisons. A miss is computed arithmetically
+ * with a single time zone lookup, which gives the same answer as parsing the columns with
+ * {@code SimpleDateFormat("yyyy-MM-ddHH:mm:ss")} in the same time zone.
+ */
+public class TimestampDecoder {
+    private static final int CACHE_SIZE = 8;
+
+    private final TimeZone timeZone;
+    private final long[] keys = new long[CACHE_SIZE];
+    private final long[] values = new long[CACHE_SIZE];
+    private int last;
+    private int nextVictim;
+    private int hits;
+    private int misses;
+
+    public TimestampDecoder() {
+        this(TimeZone.getDefault());
+    }
+
+    public TimestampDecoder(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        for (int i = 0; i < CACHE_SIZE; i++) keys[i] = -1;
+    }
+
+    /** Decodes the date and time columns of the current row of the tokenizer */
+    public long decode(CsvRowTokenizer row) {
+        return toUnixTime(row.getYear(), row.getMonth(), row.getDay(), row.getHour(), row.getMinute(), row.getSecond());
+    }
+
+    /**
+     * @param month 1 to 12
+     * @return seconds since the epoch of the given local time
+     */
+    public long toUnixTime(int year, int month, int day, int hour, int minute, int second) {
+        long key = ((((year * 100L + month) * 100L + day) * 100L + hour) * 100L + minute) * 100L + second;
+        if (keys[last] == key) {
+            hits++;
+            return values[last];
+        }
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (keys[i] == key) {
+                hits++;
+                last = i;
+                return values[i];
+            }
+        }
+        misses++;
+        long value = compute(year, month, day, hour, minute, second);
+        // replace the oldest entry
+        last = nextVictim;
+        nextVictim = (nextVictim + 1) % CACHE_SIZE;
+        keys[last] = key;
+        values[last] = value;
+        return value;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    private long compute(int year, int month, int day, int hour, int minute, int second) {
+        long localMillis = (daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second) * 1000L;
+        // resolve like GregorianCalendar does: wall times repeated when daylight saving ends
+        // and wall times skipped when it starts are both read as standard time
+        int rawOffset = timeZone.getRawOffset();
+        int offset = timeZone.getOffset(localMillis - rawOffset);
+        if (offset != rawOffset && timeZone.getOffset(localMillis - offset) != offset) {
+            offset = rawOffset;
+        }
+        return floorDiv(localMillis - offset, 1000L);
+    }
+
+    /** Days since 1970-01-01 in the proleptic Gregorian calendar */
+    static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) q--;
+        return q;
+    }
+}
@@ -0,0 +1,198 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The batches waiting to be uploaded, kept as one small file per batch under RTL_POWER/outbox/.
+ *
+ * An entry only points at the recording, the data stays where rtl_power wrote it and the upload
+ * journal next to it remembers how far a previous attempt got. Entries are replaced atomically
+ * (written to a temporary file, then renamed), so the queue survives the process being killed at
+ * any point. After a failed attempt an entry waits with exponential backoff before it is due again.
+ */
+public class UploadOutbox {
+    public static final String DIRECTORY_NAME = "outbox";
+    public static final String ENTRY_EXTENSION = ".batch";
+    public static final long FIRST_BACKOFF_MILLIS = 30 * 1000L;
+    public static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000L;
+
+    private final File directory;
+
+    /** A queued batch */
+    public static final class Entry {
+        private final BatchInfo info;
+        private final File recordingDirectory;
+        private final int attempts;
+        private final long nextAttempt;
+        private final String lastError;
+
+        Entry(BatchInfo info, File recordingDirectory, int attempts, long nextAttempt, String lastError) {
+            this.info = info;
+            this.recordingDirectory = recordingDirectory;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+            this.lastError = lastError;
+        }
+
+        public BatchInfo getInfo() {
+            return info;
+        }
+
+        /** The directory holding batchID.rtlp or batchID.csv */
+        public File getRecordingDirectory() {
+            return recordingDirectory;
+        }
+
+        /** Failed attempts so far */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /** When the entry is due, in milliseconds since the epoch */
+        public long getNextAttempt() {
+            return nextAttempt;
+        }
+
+        /** Why the last attempt failed, null before the first failure */
+        public String getLastError() {
+            return lastError;
+        }
+    }
+
+    /** @param directory created on demand, usually RTL_POWER/outbox */
+    public UploadOutbox(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Queues a batch to be uploaded right away. Queueing a batch that is already waiting makes it due
+     * now but keeps its attempt count.
+     */
+    public synchronized Entry enqueue(BatchInfo info, File recordingDirectory) throws IOException {
+        Entry queued = read(entryFile(info.batchID));
+        Entry entry = new Entry(info, recordingDirectory, queued == null ? 0 : queued.attempts, 0, queued == null ? null : queued.lastError);
+        write(entry);
+        return entry;
+    }
+
+    /** All queued batches, the earliest due first */
+    public synchronized List<Entry> list() {
+        List<Entry> entries = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) return entries;
+        for (File file : files) {
+            if (!file.getName().endsWith(ENTRY_EXTENSION)) continue;
+            Entry entry = read(file);
+            if (entry != null) entries.add(entry);
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.nextAttempt != b.nextAttempt) return a.nextAttempt < b.nextAttempt ? -1 : 1;
+                return a.info.batchID.compareTo(b.info.batchID);
+            }
+        });
+        return entries;
+    }
+
+    /** The queued batches due at the given time, the earliest due first */
+    public List<Entry> due(long now) {
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : list()) {
+            if (entry.nextAttempt <= now) due.add(entry);
+        }
+        return due;
+    }
+
+    /** Removes a batch once it is uploaded */
+    public synchronized void remove(Entry entry) throws IOException {
+        File file = entryFile(entry.info.batchID);
+        if (file.exists() && !file.delete()) throw new IOException("Unable to remove " + file);
+    }
+
+    /** Records a failed attempt and backs the batch off */
+    public synchronized Entry failed(Entry entry, long now, String error) throws IOException {
+        int attempts = entry.attempts + 1;
+        Entry backedOff = new Entry(entry.info, entry.recordingDirectory, attempts, now + backoffMillis(attempts), error);
+        write(backedOff);
+        return backedOff;
+    }
+
+    /** The wait after the given number of failed attempts: 30 s, doubling up to an hour */
+    public static long backoffMillis(int attempts) {
+        if (attempts <= 0) return 0;
+        int doublings = Math.min(attempts - 1, 20);
+        return Math.min(MAX_BACKOFF_MILLIS, FIRST_BACKOFF_MILLIS << doublings);
+    }
+
+    private File entryFile(String batchID) {
+        return new File(directory, batchID + ENTRY_EXTENSION);
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create " + directory);
+        Properties properties = new Properties();
+        properties.setProperty("batchID", entry.info.batchID);
+        properties.setProperty("altitude", Float.toString(entry.info.altitude));
+        properties.setProperty("latitude", Double.toString(entry.info.latitude));
+        properties.setProperty("longitude", Double.toString(entry.info.longitude));
+        properties.setProperty("integrationInterval", entry.info.integrationInterval);
+        properties.setProperty("recordingDirectory", entry.recordingDirectory.getPath());
+        properties.setProperty("attempts", Integer.toString(entry.attempts));
+        properties.setProperty("nextAttempt", Long.toString(entry.nextAttempt));
+        if (entry.lastError != null) properties.setProperty("lastError", entry.lastError);
+
+        File file = entryFile(entry.info.batchID);
+        File temporary = new File(directory, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /** @return the entry or null when there is none or it cannot be read */
+    private static Entry read(File file) {
+        if (!file.canRead()) return null;
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            BatchInfo info = new BatchInfo(properties.getProperty("batchID"),
+                    Float.parseFloat(properties.getProperty("altitude")),
+                    Double.parseDouble(properties.getProperty("latitude")),
+                    Double.parseDouble(properties.getProperty("longitude")),
+                    properties.getProperty("integrationInterval"));
+            return new Entry(info, new File(properties.getProperty("recordingDirectory")),
+                    Integer.parseInt(properties.getProperty("attempts")),
+                    Long.parseLong(properties.getProperty("nextAttempt")),
+                    properties.getProperty("lastError"));
+        } catch (IOException | RuntimeException e) {
+            // never written completely, the rename makes that unlikely
+            return null;
+        }
+    }
+}
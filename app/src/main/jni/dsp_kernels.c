@@ -0,0 +1,130 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <string.h>
+#include "dsp_kernels.h"
+
+/* bytes summed in 32 bits before they are added to the 64 bit sums */
+#define SUM_BLOCK (1 << 20)
+
+static void u8_sums(const uint8_t * __restrict buf8, int len, dsp_dc_t * dc) {
+	int start, end, j;
+	dc->sum_i = 0;
+	dc->sum_q = 0;
+	for (start = 0; start < len; start = end) {
+		uint32_t even = 0, odd = 0;
+		end = len - start > SUM_BLOCK ? start + SUM_BLOCK : len;
+		for (j = start; j + 1 < end; j += 2) {
+			even += buf8[j];
+			odd += buf8[j+1];
+		}
+		if (j < end)
+			even += buf8[j];
+		dc->sum_i += (int64_t)even - 127 * (int64_t)((end - start + 1) / 2);
+		dc->sum_q += (int64_t)odd - 127 * (int64_t)((end - start) / 2);
+	}
+}
+
+void dsp_u8_to_iq(const uint8_t * __restrict buf8, int16_t * __restrict iq, int len, dsp_dc_t * dc) {
+	int j;
+	for (j = 0; j < len; j++)
+		iq[j] = (int16_t)((int)buf8[j] - 127);
+	u8_sums(buf8, len, dc);
+}
+
+void dsp_u8_boxcar(const uint8_t * __restrict buf8, int16_t * __restrict iq, int len, int ds) {
+	const int pairs = len / 2;
+	int p, r, end, out = 0;
+	for (p = 0; p < pairs; p += ds, out++) {
+		int32_t si = 0, sq = 0;
+		end = pairs - p > ds ? p + ds : pairs;
+		for (r = p; r < end; r++) {
+			si += buf8[2*r];
+			sq += buf8[2*r+1];
+		}
+		/* 16 bit wrap-around, as when the pairs were added up in place */
+		iq[2*out] = (int16_t)(si - 127 * (end - p));
+		iq[2*out+1] = (int16_t)(sq - 127 * (end - p));
+	}
+	memset(iq + 2*out, 0, (len - 2*out) * sizeof(int16_t));
+}
+
+void dsp_dc_sums(const int16_t * __restrict iq, int len, dsp_dc_t * dc) {
+	int j;
+	int64_t even = 0, odd = 0;
+	for (j = 0; j + 1 < len; j += 2) {
+		even += iq[j];
+		odd += iq[j+1];
+	}
+	if (j < len)
+		even += iq[j];
+	dc->sum_i = even;
+	dc->sum_q = odd;
+}
+
+void dsp_remove_dc(int16_t * __restrict iq, int len, const dsp_dc_t * dc) {
+	int j;
+	int16_t ave_i, ave_q;
+	if (len < 2)
+		return;
+	ave_i = (int16_t)(dc->sum_i / len);
+	ave_q = (int16_t)(dc->sum_q / (len - 1));
+	for (j = 0; j + 1 < len; j += 2) {
+		iq[j] = (int16_t)(iq[j] - ave_i);
+		iq[j+1] = (int16_t)(iq[j+1] - ave_q);
+	}
+	if (j < len)
+		iq[j] = (int16_t)(iq[j] - ave_i);
+}
+
+void dsp_window_i16(int16_t * __restrict iq, const int * __restrict window, int n) {
+	int j;
+	for (j = 0; j < n; j++) {
+		iq[2*j] = (int16_t)((int32_t)iq[2*j] * (int32_t)window[j]);
+		iq[2*j+1] = (int16_t)((int32_t)iq[2*j+1] * (int32_t)window[j]);
+	}
+}
+
+void dsp_power_i16(const int16_t * __restrict iq, double * __restrict power, int n, int mode) {
+	int k;
+	if (mode == DSP_POWER_ADD) {
+		for (k = 0; k < n; k++)
+			power[k] += (double)((int32_t)iq[2*k] * iq[2*k]) + (double)((int32_t)iq[2*k+1] * iq[2*k+1]);
+	} else if (mode == DSP_POWER_MAX) {
+		for (k = 0; k < n; k++) {
+			double p = (double)((int32_t)iq[2*k] * iq[2*k]) + (double)((int32_t)iq[2*k+1] * iq[2*k+1]);
+			power[k] = p > power[k] ? p : power[k];
+		}
+	} else {
+		for (k = 0; k < n; k++)
+			power[k] = (double)((int32_t)iq[2*k] * iq[2*k]) + (double)((int32_t)iq[2*k+1] * iq[2*k+1]);
+	}
+}
+
+void dsp_power_f32(const float * __restrict re, const float * __restrict im, double scale, double * __restrict power, int n, int mode) {
+	int k;
+	if (mode == DSP_POWER_ADD) {
+		for (k = 0; k < n; k++)
+			power[k] += ((double)re[k]*re[k] + (double)im[k]*im[k]) * scale;
+	} else if (mode == DSP_POWER_MAX) {
+		for (k = 0; k < n; k++) {
+			double p = ((double)re[k]*re[k] + (double)im[k]*im[k]) * scale;
+			power[k] = p > power[k] ? p : power[k];
+		}
+	} else {
+		for (k = 0; k < n; k++)
+			power[k] = ((double)re[k]*re[k] + (double)im[k]*im[k]) * scale;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef DSP_KERNELS_H_
+#define DSP_KERNELS_H_
+
+/*
+ * The per-sample loops of a hop around the FFT: conversion of the dongle's
+ * unsigned bytes, boxcar downsampling, dc removal, the fixed point window and
+ * the power of the bins.
+ *
+ * Each is a plain loop over restrict pointers with 32 bit or float lanes and
+ * no branches in the body, so -O3 vectorises it for NEON or SSE. Built with
+ * -fno-tree-vectorize the same code is the scalar fallback. The results are
+ * bit-identical to the loops rtl_power had inline, including the 16 bit
+ * wrap-around, see app/src/test/jni/dsp_kernels_test.c.
+ */
+
+#include <stdint.h>
+
+/* sums of the i and q samples of a hop, for dsp_remove_dc */
+typedef struct dsp_dc {
+	int64_t sum_i;
+	int64_t sum_q;
+} dsp_dc_t;
+
+/* iq[j] = buf8[j] - 127, and the sums of the even and odd samples */
+void dsp_u8_to_iq(const uint8_t * buf8, int16_t * iq, int len, dsp_dc_t * dc);
+
+/*
+ * the same conversion fused with a boxcar of ds points: pair k of iq is the
+ * sum of pairs k*ds .. k*ds+ds-1 of buf8, the pairs after the last sum are 0
+ */
+void dsp_u8_boxcar(const uint8_t * buf8, int16_t * iq, int len, int ds);
+
+/* the sums of the even and odd samples among the first len */
+void dsp_dc_sums(const int16_t * iq, int len, dsp_dc_t * dc);
+
+/*
+ * subtracts the dc of the first len samples the way remove_dc always did:
+ * i by sum_i / len, q by sum_q / (len-1), which is half the mean of each
+ */
+void dsp_remove_dc(int16_t * iq, int len, const dsp_dc_t * dc);
+
+/* iq *= window, truncated back to 16 bits, window is 256 times the window function */
+void dsp_window_i16(int16_t * iq, const int * window, int n);
+
+/* how the power of a block goes into power[] */
+#define DSP_POWER_ADD 0		/* the sum for the mean */
+#define DSP_POWER_MAX 1		/* peak hold, keeps the larger */
+#define DSP_POWER_SET 2		/* the block alone, for power_stats_add */
+
+/* power[k] += i^2 + q^2 of point k, or as mode says */
+void dsp_power_i16(const int16_t * iq, double * power, int n, int mode);
+
+/* the same for separate real and imaginary floats, times scale */
+void dsp_power_f32(const float * re, const float * im, double scale, double * power, int n, int mode);
+
+#endif /* DSP_KERNELS_H_ */
@@ -0,0 +1,163 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+#include "freq_plan.h"
+
+#define DEFAULT_BUF_LENGTH		(1 * 16384)
+#define MAXIMUM_RATE			2800000
+#define MINIMUM_RATE			1000000
+
+static void plan_free(freq_plan_t * plan) {
+	if (plan == NULL) return;
+	power_fft_free(&plan->fft);
+	free(plan->record);
+	free(plan);
+}
+
+/* the tunes of rtl_power's frequency_range(): do we want the fewest ranges (easy) or the fewest bins (harder)? */
+static int plan_build(const freq_plan_key_t * key, int max_hops, freq_plan_t ** out) {
+	int i, tune_count, bw_seen, bw_used, bin_e, buf_len;
+	int downsample, downsample_passes;
+	double crop, bin_size;
+	freq_plan_t * plan;
+	int32_t * freq;
+
+	*out = NULL;
+	if (key->upper <= key->lower || key->max_bin <= 0)
+		return FREQ_PLAN_BAD_RANGE;
+	crop = key->crop;
+	downsample = 1;
+	downsample_passes = 0;
+	tune_count = 0;
+	bw_seen = bw_used = 0;
+	/* evenly sized ranges, as close to MAXIMUM_RATE as possible */
+	for (i = 1; i < 1500; i++) {
+		bw_seen = (key->upper - key->lower) / i;
+		bw_used = (int)((double)(bw_seen) / (1.0 - crop));
+		if (bw_used > MAXIMUM_RATE)
+			continue;
+		tune_count = i;
+		break;
+	}
+	if (tune_count == 0)
+		return FREQ_PLAN_TOO_WIDE;
+	/* unless small bandwidth */
+	if (bw_used < MINIMUM_RATE) {
+		tune_count = 1;
+		downsample = MAXIMUM_RATE / bw_used;
+		bw_used = bw_used * downsample;
+	}
+	if (!key->boxcar && downsample > 1) {
+		downsample_passes = (int)log2(downsample);
+		downsample = 1 << downsample_passes;
+		bw_used = (int)((double)(bw_seen * downsample) / (1.0 - crop));
+	}
+	/* number of bins is power-of-two, bin size is under limit */
+	bin_e = 21;
+	bin_size = 0;
+	for (i = 1; i <= 21; i++) {
+		bin_e = i;
+		bin_size = (double)bw_used / (double)((1<<i) * downsample);
+		if (bin_size <= (double)key->max_bin)
+			break;
+	}
+	/* unless giant bins */
+	if (key->max_bin >= MINIMUM_RATE) {
+		bw_seen = key->max_bin;
+		bw_used = key->max_bin;
+		tune_count = (key->upper - key->lower) / bw_seen;
+		bin_e = 0;
+		bin_size = bw_used;
+		crop = 0;
+	}
+	if (tune_count <= 0)
+		return FREQ_PLAN_BAD_RANGE;
+	if (tune_count > max_hops)
+		return FREQ_PLAN_TOO_WIDE;
+	buf_len = 2 * (1<<bin_e) * downsample;
+	if (buf_len < DEFAULT_BUF_LENGTH)
+		buf_len = DEFAULT_BUF_LENGTH;
+
+	plan = (freq_plan_t *) calloc(1, sizeof(freq_plan_t));
+	if (plan == NULL)
+		return FREQ_PLAN_NO_MEMORY;
+	plan->key = *key;
+	plan->record_size = sizeof(freq_plan_record_t) + tune_count * sizeof(int32_t);
+	plan->record = (freq_plan_record_t *) malloc(plan->record_size);
+	if (plan->record == NULL
+			|| power_fft_init(&plan->fft, key->fft_backend, bin_e, key->window_fn) != 0) {
+		plan_free(plan);
+		return FREQ_PLAN_NO_MEMORY;
+	}
+	plan->record->hop_count = tune_count;
+	plan->record->rate = bw_used;
+	plan->record->bin_e = bin_e;
+	plan->record->downsample = downsample;
+	plan->record->downsample_passes = downsample_passes;
+	plan->record->buf_len = buf_len;
+	plan->record->crop = crop;
+	freq = (int32_t *) (plan->record + 1);
+	for (i = 0; i < tune_count; i++)
+		freq[i] = key->lower + i*bw_seen + bw_seen/2;
+	plan->freq = freq;
+	plan->bin_size = bin_size;
+	*out = plan;
+	return FREQ_PLAN_OK;
+}
+
+static int same_key(const freq_plan_key_t * a, const freq_plan_key_t * b) {
+	return a->lower == b->lower && a->upper == b->upper && a->max_bin == b->max_bin
+			&& a->crop == b->crop && a->boxcar == b->boxcar
+			&& a->window_fn == b->window_fn && a->fft_backend == b->fft_backend;
+}
+
+const freq_plan_t * freq_plan_get(freq_plan_cache_t * cache, const freq_plan_key_t * key, int max_hops, int * error) {
+	freq_plan_t * plan;
+	int i, r;
+	for (i = 0; i < cache->count; i++) {
+		if (!same_key(&cache->plans[i]->key, key))
+			continue;
+		plan = cache->plans[i];
+		memmove(cache->plans + 1, cache->plans, i * sizeof(freq_plan_t *));
+		cache->plans[0] = plan;
+		cache->hits++;
+		*error = FREQ_PLAN_OK;
+		return plan;
+	}
+	r = plan_build(key, max_hops, &plan);
+	*error = r;
+	if (r != FREQ_PLAN_OK)
+		return NULL;
+	/* the least recently used goes, never the one just handed out */
+	if (cache->count == FREQ_PLAN_CACHE_SIZE) {
+		plan_free(cache->plans[FREQ_PLAN_CACHE_SIZE - 1]);
+		cache->count--;
+	}
+	memmove(cache->plans + 1, cache->plans, cache->count * sizeof(freq_plan_t *));
+	cache->plans[0] = plan;
+	cache->count++;
+	cache->misses++;
+	return plan;
+}
+
+void freq_plan_cache_clear(freq_plan_cache_t * cache) {
+	int i;
+	for (i = 0; i < cache->count; i++)
+		plan_free(cache->plans[i]);
+	memset(cache, 0, sizeof(freq_plan_cache_t));
+}
@@ -0,0 +1,80 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef FREQ_PLAN_H_
+#define FREQ_PLAN_H_
+
+#include <stddef.h>
+#include <stdint.h>
+#include "power_fft.h"
+
+/*
+ * The hops of a -f lower:upper:bin_size scan and the fft they need, worked out
+ * once and never changed afterwards. A small cache keeps the last few plans,
+ * so a recording cycling through several ranges builds each of them once.
+ */
+
+#define FREQ_PLAN_CACHE_SIZE 4
+
+#define FREQ_PLAN_OK 0
+#define FREQ_PLAN_NO_MEMORY -1
+#define FREQ_PLAN_BAD_RANGE -2
+#define FREQ_PLAN_TOO_WIDE -3
+
+/* everything a plan is built from */
+typedef struct freq_plan_key {
+	int lower;		/* Hz */
+	int upper;		/* Hz */
+	int max_bin;		/* Hz, the widest fft bin wanted */
+	double crop;
+	int boxcar;		/* 0 downsamples with the recursive filter */
+	double (*window_fn)(int, int);
+	const power_fft_backend_t * fft_backend;
+} freq_plan_key_t;
+
+/* the layout of FrequencyPlan in Java, followed by int32_t freq[hop_count], keep 8 byte aligned */
+typedef struct freq_plan_record {
+	int32_t hop_count;
+	int32_t rate;		/* Hz the dongle samples at */
+	int32_t bin_e;		/* 2^bin_e fft bins per hop */
+	int32_t downsample;
+	int32_t downsample_passes;	/* for the recursive filter */
+	int32_t buf_len;	/* bytes read per hop */
+	double crop;
+} freq_plan_record_t;
+
+typedef struct freq_plan {
+	freq_plan_key_t key;
+	freq_plan_record_t * record;	/* the header, then the hop centers */
+	const int32_t * freq;		/* Hz center of every hop, in record */
+	size_t record_size;
+	double bin_size;		/* Hz */
+	power_fft_t fft;
+} freq_plan_t;
+
+typedef struct freq_plan_cache {
+	freq_plan_t * plans[FREQ_PLAN_CACHE_SIZE];	/* most recently used first */
+	int count;
+	int hits;
+	int misses;
+} freq_plan_cache_t;
+
+/* the plan for key, built and cached unless it is already; NULL and a FREQ_PLAN_ error otherwise.
+ * The plan stays valid until FREQ_PLAN_CACHE_SIZE other plans have been asked for since. */
+const freq_plan_t * freq_plan_get(freq_plan_cache_t * cache, const freq_plan_key_t * key, int max_hops, int * error);
+
+void freq_plan_cache_clear(freq_plan_cache_t * cache);
+
+#endif
@@ -0,0 +1,286 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/* O_DIRECT */
+#define _GNU_SOURCE
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "iq_capture.h"
+
+static void put_u16_at(uint8_t * p, uint16_t v) {
+	p[0] = (uint8_t) v;
+	p[1] = (uint8_t) (v >> 8);
+}
+
+static void put_u32_at(uint8_t * p, uint32_t v) {
+	put_u16_at(p, (uint16_t) v);
+	put_u16_at(p + 2, (uint16_t) (v >> 16));
+}
+
+static void put_u64_at(uint8_t * p, uint64_t v) {
+	put_u32_at(p, (uint32_t) v);
+	put_u32_at(p + 4, (uint32_t) (v >> 32));
+}
+
+static uint32_t get_u32_at(const uint8_t * p) {
+	return (uint32_t) p[0] | (uint32_t) p[1] << 8 | (uint32_t) p[2] << 16 | (uint32_t) p[3] << 24;
+}
+
+static uint64_t get_u64_at(const uint8_t * p) {
+	return (uint64_t) get_u32_at(p) | (uint64_t) get_u32_at(p + 4) << 32;
+}
+
+void iq_capture_header_pack(const iq_capture_header_t * header, uint8_t * block) {
+	memset(block, 0, IQ_CAPTURE_HEADER_SIZE);
+	memcpy(block, IQ_CAPTURE_MAGIC, 4);
+	put_u16_at(block + 4, IQ_CAPTURE_VERSION);
+	put_u16_at(block + 6, IQ_CAPTURE_HEADER_SIZE);
+	put_u32_at(block + 8, header->sample_rate);
+	put_u32_at(block + 12, header->frequency);
+	put_u32_at(block + 16, (uint32_t) header->gain);
+	put_u32_at(block + 20, (uint32_t) header->ppm);
+	put_u64_at(block + 24, (uint64_t) header->start_us);
+	put_u64_at(block + 32, header->samples);
+	put_u64_at(block + 40, header->dropped_samples);
+	put_u32_at(block + 48, header->dropped_buffers);
+	put_u32_at(block + 52, header->flags);
+}
+
+int iq_capture_header_unpack(const uint8_t * block, size_t len, iq_capture_header_t * header) {
+	if (len < 56 || memcmp(block, IQ_CAPTURE_MAGIC, 4) != 0)
+		return -1;
+	if ((block[4] | block[5] << 8) != IQ_CAPTURE_VERSION)
+		return -1;
+	header->sample_rate = get_u32_at(block + 8);
+	header->frequency = get_u32_at(block + 12);
+	header->gain = (int32_t) get_u32_at(block + 16);
+	header->ppm = (int32_t) get_u32_at(block + 20);
+	header->start_us = (int64_t) get_u64_at(block + 24);
+	header->samples = get_u64_at(block + 32);
+	header->dropped_samples = get_u64_at(block + 40);
+	header->dropped_buffers = get_u32_at(block + 48);
+	header->flags = get_u32_at(block + 52);
+	return 0;
+}
+
+static void direct_off(iq_capture_t * capture) {
+#ifdef O_DIRECT
+	int flags = fcntl(capture->fd, F_GETFL);
+	if (flags != -1)
+		fcntl(capture->fd, F_SETFL, flags & ~O_DIRECT);
+#endif
+	capture->direct = 0;
+}
+
+static int write_at(iq_capture_t * capture, const uint8_t * buf, size_t len, off_t offset) {
+	ssize_t n;
+	while (len > 0) {
+		n = pwrite(capture->fd, buf, len, offset);
+		if (n < 0 && errno == EINTR)
+			continue;
+		if (n < 0 && errno == EINVAL && capture->direct) {
+			/* some file systems take O_DIRECT on open but not on write */
+			direct_off(capture);
+			continue;
+		}
+		if (n <= 0)
+			return -1;
+		buf += n;
+		len -= (size_t) n;
+		offset += n;
+	}
+	return 0;
+}
+
+/* reserves the blocks up front, so the writes do not wait for allocation or run out of room half way */
+static int preallocate(int fd, off_t size) {
+#if !defined(__ANDROID__) || __ANDROID_API__ >= 21
+	if (posix_fallocate(fd, 0, size) == 0)
+		return 0;
+#endif
+	/* without fallocate the blocks are taken as the writes reach them */
+	return ftruncate(fd, size);
+}
+
+static void * writer_thread(void * arg) {
+	iq_capture_t * capture = (iq_capture_t *) arg;
+	uint8_t * slot;
+	int r;
+	pthread_mutex_lock(&capture->lock);
+	for (;;) {
+		while (capture->ready == 0 && !capture->stop)
+			pthread_cond_wait(&capture->wake, &capture->lock);
+		if (capture->ready == 0)
+			break;
+		/* the slot stays counted as ready until written, so the callback does not copy into it */
+		slot = capture->ring + (size_t) capture->head * capture->slot_size;
+		pthread_mutex_unlock(&capture->lock);
+		r = capture->failed ? -1 : write_at(capture, slot, capture->slot_size, capture->offset);
+		pthread_mutex_lock(&capture->lock);
+		if (r == 0) {
+			capture->offset += (off_t) capture->slot_size;
+			capture->written += capture->slot_size;
+		} else {
+			capture->failed = 1;
+			capture->dropped += capture->slot_size;
+		}
+		capture->head = (capture->head + 1) % capture->slot_count;
+		capture->ready--;
+	}
+	pthread_mutex_unlock(&capture->lock);
+	return NULL;
+}
+
+static void free_capture(iq_capture_t * capture) {
+	if (capture->fd >= 0)
+		close(capture->fd);
+	free(capture->ring);
+	free(capture->header_block);
+	capture->fd = -1;
+	capture->ring = NULL;
+	capture->header_block = NULL;
+}
+
+int iq_capture_open(iq_capture_t * capture, const char * path, const iq_capture_header_t * header,
+		size_t slot_size, int slot_count, uint64_t size) {
+	void * p;
+	uint64_t file_size;
+	memset(capture, 0, sizeof(iq_capture_t));
+	capture->fd = -1;
+	if (slot_count < 2 || slot_size == 0)
+		return -1;
+	capture->slot_size = (slot_size + IQ_CAPTURE_ALIGN - 1) / IQ_CAPTURE_ALIGN * IQ_CAPTURE_ALIGN;
+	capture->slot_count = slot_count;
+	file_size = IQ_CAPTURE_HEADER_SIZE + (size + capture->slot_size - 1) / capture->slot_size * capture->slot_size;
+	/* a 32 bit off_t stops at 2 GB */
+	if (sizeof(off_t) < 8 && file_size > INT32_MAX)
+		return -1;
+
+	if (posix_memalign(&p, IQ_CAPTURE_ALIGN, IQ_CAPTURE_HEADER_SIZE) != 0)
+		return -1;
+	capture->header_block = (uint8_t *) p;
+	if (posix_memalign(&p, IQ_CAPTURE_ALIGN, capture->slot_size * slot_count) != 0) {
+		free_capture(capture);
+		return -1;
+	}
+	capture->ring = (uint8_t *) p;
+
+#ifdef O_DIRECT
+	capture->fd = open(path, O_WRONLY | O_CREAT | O_TRUNC | O_DIRECT, 0644);
+	capture->direct = capture->fd >= 0;
+#endif
+	if (capture->fd < 0)
+		capture->fd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+	if (capture->fd < 0 || preallocate(capture->fd, (off_t) file_size) != 0) {
+		free_capture(capture);
+		return -1;
+	}
+
+	capture->header = *header;
+	capture->header.samples = 0;
+	capture->header.dropped_samples = 0;
+	capture->header.dropped_buffers = 0;
+	capture->header.flags = 0;
+	iq_capture_header_pack(&capture->header, capture->header_block);
+	if (write_at(capture, capture->header_block, IQ_CAPTURE_HEADER_SIZE, 0) != 0) {
+		free_capture(capture);
+		return -1;
+	}
+	capture->offset = IQ_CAPTURE_HEADER_SIZE;
+
+	pthread_mutex_init(&capture->lock, NULL);
+	pthread_cond_init(&capture->wake, NULL);
+	if (pthread_create(&capture->writer, NULL, writer_thread, capture) != 0) {
+		pthread_mutex_destroy(&capture->lock);
+		pthread_cond_destroy(&capture->wake);
+		free_capture(capture);
+		return -1;
+	}
+	return 0;
+}
+
+void iq_capture_push(iq_capture_t * capture, const uint8_t * buf, size_t len) {
+	uint8_t * slot;
+	size_t n;
+	int head, ready;
+	while (len > 0) {
+		pthread_mutex_lock(&capture->lock);
+		head = capture->head;
+		ready = capture->ready;
+		if (ready == capture->slot_count) {
+			capture->dropped += len;
+			capture->dropped_buffers++;
+			pthread_mutex_unlock(&capture->lock);
+			return;
+		}
+		pthread_mutex_unlock(&capture->lock);
+		/* the writer only moves head and ready together, the slot after the ready ones stays put */
+		slot = capture->ring + (size_t) ((head + ready) % capture->slot_count) * capture->slot_size;
+		n = capture->slot_size - capture->fill;
+		n = n < len ? n : len;
+		memcpy(slot + capture->fill, buf, n);
+		capture->fill += n;
+		buf += n;
+		len -= n;
+		if (capture->fill == capture->slot_size) {
+			capture->fill = 0;
+			pthread_mutex_lock(&capture->lock);
+			capture->ready++;
+			pthread_cond_signal(&capture->wake);
+			pthread_mutex_unlock(&capture->lock);
+		}
+	}
+}
+
+int iq_capture_close(iq_capture_t * capture) {
+	int r;
+	pthread_mutex_lock(&capture->lock);
+	capture->stop = 1;
+	pthread_cond_signal(&capture->wake);
+	pthread_mutex_unlock(&capture->lock);
+	pthread_join(capture->writer, NULL);
+	pthread_mutex_destroy(&capture->lock);
+	pthread_cond_destroy(&capture->wake);
+
+	/* the last slot is not a whole one, and the header goes back over the page cache too */
+	if (capture->direct)
+		direct_off(capture);
+	if (capture->fill > 0) {
+		if (!capture->failed && write_at(capture, capture->ring + (size_t) capture->head * capture->slot_size,
+				capture->fill, capture->offset) == 0) {
+			capture->written += capture->fill;
+		} else {
+			capture->failed = 1;
+			capture->dropped += capture->fill;
+		}
+	}
+	if (ftruncate(capture->fd, (off_t) (IQ_CAPTURE_HEADER_SIZE + capture->written)) != 0)
+		capture->failed = 1;
+
+	capture->header.samples = capture->written / 2;
+	capture->header.dropped_samples = capture->dropped / 2;
+	capture->header.dropped_buffers = capture->dropped_buffers;
+	capture->header.flags = IQ_CAPTURE_COMPLETE;
+	iq_capture_header_pack(&capture->header, capture->header_block);
+	if (write_at(capture, capture->header_block, IQ_CAPTURE_HEADER_SIZE, 0) != 0 || fsync(capture->fd) != 0)
+		capture->failed = 1;
+	r = capture->failed ? -1 : 0;
+	free_capture(capture);
+	return r;
+}
@@ -0,0 +1,119 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef IQ_CAPTURE_H_
+#define IQ_CAPTURE_H_
+
+/*
+ * Writer for .rtliq files, the raw samples of the dongle for reprocessing.
+ * All numbers are little endian.
+ *
+ * Header, IQ_CAPTURE_HEADER_SIZE bytes padded with zeros
+ *   char[4]  magic "RTIQ"
+ *   uint16   version
+ *   uint16   header size in bytes, the samples start at this offset
+ *   uint32   sample rate in Hz
+ *   uint32   center frequency in Hz
+ *   int32    tuner gain in tenths of a dB, or IQ_CAPTURE_AUTO_GAIN
+ *   int32    frequency correction in ppm
+ *   int64    unix time of the first sample in microseconds
+ *   uint64   IQ pairs in the file
+ *   uint64   IQ pairs dropped because storage fell behind
+ *   uint32   USB buffers samples were dropped from
+ *   uint32   flags, IQ_CAPTURE_COMPLETE once the counts are final
+ *
+ * Then the samples as the dongle delivers them, unsigned 8 bit I and Q
+ * interleaved, the same as rtl_sdr writes.
+ *
+ * The USB callback only copies a buffer into a ring of aligned slots and
+ * never waits for storage; a writer thread hands every full slot to the
+ * kernel in one write, with O_DIRECT where the file system takes it so the
+ * samples skip the page cache. A buffer that finds the ring full is dropped
+ * and counted. The file is preallocated for the whole capture and cut to
+ * the samples written on close, when the header is written again with the
+ * final counts. A capture that is cut short keeps the header of the start:
+ * no IQ_CAPTURE_COMPLETE flag, and readers take the samples from the size.
+ */
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <sys/types.h>
+
+#define IQ_CAPTURE_MAGIC "RTIQ"
+#define IQ_CAPTURE_VERSION (1)
+/* the header fills one aligned block, so the slots land on aligned offsets */
+#define IQ_CAPTURE_HEADER_SIZE (4096)
+#define IQ_CAPTURE_ALIGN (4096)
+
+#define IQ_CAPTURE_AUTO_GAIN INT32_MIN
+#define IQ_CAPTURE_COMPLETE (1)
+
+typedef struct iq_capture_header {
+	uint32_t sample_rate;
+	uint32_t frequency;
+	int32_t gain;
+	int32_t ppm;
+	int64_t start_us;
+	uint64_t samples;
+	uint64_t dropped_samples;
+	uint32_t dropped_buffers;
+	uint32_t flags;
+} iq_capture_header_t;
+
+typedef struct iq_capture {
+	int fd;
+	int direct;		/* the fd was opened with O_DIRECT */
+	iq_capture_header_t header;
+	uint8_t * header_block;
+
+	/* slot_count slots of slot_size bytes, ready ones from head on in order */
+	uint8_t * ring;
+	size_t slot_size;
+	int slot_count;
+	int head;
+	int ready;		/* slot_count when the callback has nowhere to copy to */
+	size_t fill;		/* bytes in the slot after the ready ones, only the callback touches it */
+
+	pthread_t writer;
+	pthread_mutex_t lock;
+	pthread_cond_t wake;
+	int stop;
+	int failed;
+
+	off_t offset;		/* where the head slot goes */
+	uint64_t written;	/* sample bytes in the file */
+	uint64_t dropped;	/* sample bytes dropped */
+	uint32_t dropped_buffers;
+} iq_capture_t;
+
+/* packs the header into IQ_CAPTURE_HEADER_SIZE bytes, and back, 0 on success */
+void iq_capture_header_pack(const iq_capture_header_t * header, uint8_t * block);
+int iq_capture_header_unpack(const uint8_t * block, size_t len, iq_capture_header_t * header);
+
+/*
+ * Creates the file, preallocates it for size sample bytes and starts the
+ * writer. slot_size is rounded up to IQ_CAPTURE_ALIGN. Returns 0 on success.
+ */
+int iq_capture_open(iq_capture_t * capture, const char * path, const iq_capture_header_t * header,
+		size_t slot_size, int slot_count, uint64_t size);
+
+/* from the USB callback: copies the samples into the ring, or drops them if it is full */
+void iq_capture_push(iq_capture_t * capture, const uint8_t * buf, size_t len);
+
+/* writes what is left, the final header and closes, 0 unless a write failed */
+int iq_capture_close(iq_capture_t * capture);
+
+#endif /* IQ_CAPTURE_H_ */
@@ -0,0 +1,71 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "iq_replay.h"
+
+/* large sequential reads, the scanner asks for a hop at a time */
+#define IQ_REPLAY_BUFFER (1 << 20)
+
+int iq_replay_open(iq_replay_t * replay, const char * path) {
+	uint8_t block[IQ_CAPTURE_HEADER_SIZE];
+	size_t header_len;
+	long size;
+	memset(replay, 0, sizeof(iq_replay_t));
+	replay->file = fopen(path, "rb");
+	if (replay->file == NULL)
+		return -1;
+	setvbuf(replay->file, NULL, _IOFBF, IQ_REPLAY_BUFFER);
+	header_len = fread(block, 1, sizeof(block), replay->file);
+	if (iq_capture_header_unpack(block, header_len, &replay->header) != 0
+			|| header_len < IQ_CAPTURE_HEADER_SIZE || replay->header.sample_rate == 0) {
+		iq_replay_close(replay);
+		return -1;
+	}
+	replay->samples = replay->header.samples;
+	if (!(replay->header.flags & IQ_CAPTURE_COMPLETE)) {
+		/* the preallocated space of a capture that was cut short may hold zeros past its samples */
+		if (fseek(replay->file, 0, SEEK_END) != 0 || (size = ftell(replay->file)) < IQ_CAPTURE_HEADER_SIZE
+				|| fseek(replay->file, IQ_CAPTURE_HEADER_SIZE, SEEK_SET) != 0) {
+			iq_replay_close(replay);
+			return -1;
+		}
+		replay->samples = (uint64_t) (size - IQ_CAPTURE_HEADER_SIZE) / 2;
+	}
+	return 0;
+}
+
+int iq_replay_read(iq_replay_t * replay, uint8_t * buf, int len) {
+	uint64_t left = 2 * (replay->samples - replay->position);
+	size_t n;
+	if ((uint64_t) len > left)
+		len = (int) left;
+	n = fread(buf, 1, (size_t) len, replay->file);
+	replay->position += n / 2;
+	return (int) n;
+}
+
+int64_t iq_replay_time_us(const iq_replay_t * replay) {
+	return replay->header.start_us
+			+ (int64_t) (replay->position / replay->header.sample_rate) * 1000000
+			+ (int64_t) (replay->position % replay->header.sample_rate) * 1000000 / replay->header.sample_rate;
+}
+
+void iq_replay_close(iq_replay_t * replay) {
+	if (replay->file != NULL)
+		fclose(replay->file);
+	replay->file = NULL;
+}
@@ -0,0 +1,49 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef IQ_REPLAY_H_
+#define IQ_REPLAY_H_
+
+/*
+ * Reads a .rtliq capture back in place of the dongle, see iq_capture.h.
+ *
+ * The samples are handed out in order, as fast as they are asked for, and
+ * the clock is that of the capture: its start time plus the samples read so
+ * far, so a replay gives the same output every time it is run.
+ */
+
+#include <stdint.h>
+#include <stdio.h>
+#include "iq_capture.h"
+
+typedef struct iq_replay {
+	FILE * file;
+	iq_capture_header_t header;
+	uint64_t samples;	/* IQ pairs in the file, from its size when it was cut short */
+	uint64_t position;	/* IQ pairs read */
+} iq_replay_t;
+
+/* 0 on success, -1 if the file can not be read or is no capture */
+int iq_replay_open(iq_replay_t * replay, const char * path);
+
+/* reads up to len bytes of samples, returns how many, less than len only at the end */
+int iq_replay_read(iq_replay_t * replay, uint8_t * buf, int len);
+
+/* unix time of the next sample in microseconds */
+int64_t iq_replay_time_us(const iq_replay_t * replay);
+
+void iq_replay_close(iq_replay_t * replay);
+
+#endif /* IQ_REPLAY_H_ */
@@ -0,0 +1,61 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef POWER_DEVICE_H_
+#define POWER_DEVICE_H_
+
+/*
+ * Where the scanner gets its samples from: the dongle through librtlsdr, or
+ * a simulated one, see synth_device.h.
+ *
+ * The calls are those of librtlsdr the scanner makes, with the same return
+ * values, negative on failure, and the same threading: read_async blocks the
+ * calling thread and hands buffers of 8 bit IQ pairs to the callback until
+ * cancel_async is called from another thread or from the callback.
+ */
+
+#include <stdint.h>
+
+/* the gain for set_gain that lets the tuner choose, as rtl_power's AUTO_GAIN */
+#define POWER_DEVICE_AUTO_GAIN -100
+
+/* from set_center_freq when the tuner did not lock, it may once settled, any other failure is I/O */
+#define POWER_DEVICE_NO_LOCK -50
+
+typedef void (*power_device_cb_t)(unsigned char * buf, uint32_t len, void * ctx);
+
+typedef struct power_device power_device_t;
+
+struct power_device {
+	const char * name;
+	void * ctx;
+	int (*set_sample_rate)(power_device_t * device, uint32_t rate);
+	int (*set_center_freq)(power_device_t * device, uint32_t freq);
+	uint32_t (*get_center_freq)(power_device_t * device);
+	/* tenths of a dB, the device picks the nearest it has, or POWER_DEVICE_AUTO_GAIN */
+	int (*set_gain)(power_device_t * device, int gain);
+	int (*set_freq_correction)(power_device_t * device, int ppm);
+	int (*reset_buffer)(power_device_t * device);
+	int (*read_sync)(power_device_t * device, void * buf, int len, int * n_read);
+	int (*read_async)(power_device_t * device, power_device_cb_t cb, void * cb_ctx, uint32_t buf_num, uint32_t buf_len);
+	int (*cancel_async)(power_device_t * device);
+	/* how long the tuner takes to settle after a retune, it may tune to some of the count freqs
+	 * and read to measure it, so only before read_async */
+	int (*settle_us)(power_device_t * device, const uint32_t * freqs, int count);
+	/* releases ctx, the device can not be used again */
+	void (*close)(power_device_t * device);
+};
+
+#endif /* POWER_DEVICE_H_ */
@@ -0,0 +1,59 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef POWER_ENGINE_H_
+#define POWER_ENGINE_H_
+
+/*
+ * The rtl_power scanner of rtlsdrdevice.c, kept alive between recordings.
+ *
+ * PowerEngine calls these through JNI, the host tests directly. The device
+ * is the one of the last nativeOpen or nativeOpenSynthetic, or -z, and is
+ * opened on the first sweep. It stays open, with the plan and the buffers,
+ * until a sweep fails or the engine is closed. The calls take the engine
+ * lock, so only one of them runs at a time.
+ */
+
+#include <stdint.h>
+
+/* parses rtl_power arguments, argv[0] is the program name, 0 on success */
+int power_engine_configure(int argc, char ** argv);
+
+/* records as configured until done or stopped, 0 on success */
+int power_engine_sweep(void);
+
+/* where a sweep spent its time on a hop, the layout of HopTimings in Java, keep 8 byte aligned */
+typedef struct hop_stats {
+	int32_t freq;
+	int32_t reads;
+	int32_t retunes;
+	int32_t lock_failures;	/* missed PLL locks, each retried */
+	int32_t io_errors;	/* retunes that failed on the way to the tuner */
+	int32_t unused;
+	int64_t tune_us;
+	int64_t settle_us;
+	int64_t read_us;
+} hop_stats_t;
+
+/* copies the stats of up to max hops of the last sweep to stats, returns how many */
+int power_engine_hop_stats(hop_stats_t * stats, int max);
+
+/* aborts a running sweep or capture after the current hop, then releases the device and the buffers */
+void power_engine_close(void);
+
+/* writes samples IQ pairs of the device to path, see iq_capture.h, 0 on success */
+int power_engine_capture(const char * path, uint32_t frequency, uint32_t rate, int gain, int ppm, uint64_t samples);
+
+#endif /* POWER_ENGINE_H_ */
@@ -0,0 +1,266 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+#include "power_fft.h"
+#include "dsp_kernels.h"
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+/* FFT based on fix_fft.c by Roberts, Slaney and Bouras
+   http://www.jjj.de/fft/fftpage.html
+   16 bit ints for everything
+   -32768..+32768 maps to -1.0..+1.0
+*/
+
+struct fixed_tables {
+	int16_t * sinewave;	/* 3/4 of a wave of n points */
+	int * window;		/* window * 256 */
+};
+
+static inline int16_t FIX_MPY(int16_t a, int16_t b)
+/* fixed point multiply and scale */
+{
+	int c = ((int)a * (int)b) >> 14;
+	b = c & 0x01;
+	return (c >> 1) + b;
+}
+
+static void fix_fft(const int16_t * sinewave, int log2_n, int16_t iq[])
+/* interleaved iq[], 0 <= n < 2**m, changes in place */
+{
+	int mr, nn, i, j, l, k, istep, n, m, shift;
+	int16_t qr, qi, tr, ti, wr, wi;
+	n = 1 << log2_n;
+	mr = 0;
+	nn = n - 1;
+	/* decimation in time - re-order data */
+	for (m=1; m<=nn; ++m) {
+		l = n;
+		do {
+			l >>= 1;
+		} while (mr+l > nn);
+		mr = (mr & (l-1)) + l;
+		if (mr <= m)
+			continue;
+		// real = 2*m, imag = 2*m+1
+		tr = iq[2*m];
+		iq[2*m] = iq[2*mr];
+		iq[2*mr] = tr;
+		ti = iq[2*m+1];
+		iq[2*m+1] = iq[2*mr+1];
+		iq[2*mr+1] = ti;
+	}
+	l = 1;
+	k = log2_n-1;
+	while (l < n) {
+		shift = 1;
+		istep = l << 1;
+		for (m=0; m<l; ++m) {
+			j = m << k;
+			wr =  sinewave[j+n/4];
+			wi = -sinewave[j];
+			if (shift) {
+				wr >>= 1; wi >>= 1;
+			}
+			for (i=m; i<n; i+=istep) {
+				j = i + l;
+				tr = FIX_MPY(wr,iq[2*j]) - FIX_MPY(wi,iq[2*j+1]);
+				ti = FIX_MPY(wr,iq[2*j+1]) + FIX_MPY(wi,iq[2*j]);
+				qr = iq[2*i];
+				qi = iq[2*i+1];
+				if (shift) {
+					qr >>= 1; qi >>= 1;
+				}
+				iq[2*j] = qr - tr;
+				iq[2*j+1] = qi - ti;
+				iq[2*i] = qr + tr;
+				iq[2*i+1] = qi + ti;
+			}
+		}
+		--k;
+		l = istep;
+	}
+}
+
+static void fixed_release(power_fft_t * fft) {
+	struct fixed_tables * t = (struct fixed_tables *) fft->tables;
+	if (t == NULL) return;
+	free(t->sinewave);
+	free(t->window);
+	free(t);
+	fft->tables = NULL;
+}
+
+static int fixed_init(power_fft_t * fft) {
+	int i;
+	struct fixed_tables * t = (struct fixed_tables *) calloc(1, sizeof(struct fixed_tables));
+	fft->tables = t;
+	if (t == NULL) return -1;
+	t->sinewave = (int16_t *) malloc(sizeof(int16_t) * (fft->n*3/4 + 1));
+	t->window = (int *) malloc(sizeof(int) * fft->n);
+	if (t->sinewave == NULL || t->window == NULL) {
+		fixed_release(fft);
+		return -1;
+	}
+	for (i = 0; i < fft->n*3/4; i++)
+		t->sinewave[i] = (int16_t) round(32767*sin((double)i * 2.0 * M_PI / fft->n));
+	for (i = 0; i < fft->n; i++)
+		t->window[i] = (int)(256*fft->window_fn(i, fft->n));
+	return 0;
+}
+
+static void fixed_segment(const power_fft_t * fft, int16_t * iq, void * scratch, double * power, int mode) {
+	const struct fixed_tables * t = (const struct fixed_tables *) fft->tables;
+	dsp_window_i16(iq, t->window, fft->n);
+	fix_fft(t->sinewave, fft->log2_n, iq);
+	dsp_power_i16(iq, power, fft->n, mode);
+}
+
+const power_fft_backend_t power_fft_fixed = {
+	"fixed", fixed_init, fixed_release, 0, fixed_segment
+};
+
+/*
+ * Iterative radix-2 decimation in time on separate real and imaginary arrays.
+ * The twiddles of each stage lie one after the other, stage l at [l-1, 2l-1),
+ * so the inner loop reads every array with unit stride and -O3 vectorises it
+ * for NEON or SSE.
+ */
+struct float_tables {
+	float * window;		/* window * 256 */
+	float * twiddle_re;
+	float * twiddle_im;
+	int * bitrev;
+	double scale;		/* 1/n^2, the fixed point transform divides by n */
+};
+
+static void float_release(power_fft_t * fft) {
+	struct float_tables * t = (struct float_tables *) fft->tables;
+	if (t == NULL) return;
+	free(t->window);
+	free(t->twiddle_re);
+	free(t->twiddle_im);
+	free(t->bitrev);
+	free(t);
+	fft->tables = NULL;
+}
+
+static int float_init(power_fft_t * fft) {
+	int i, k, l, r;
+	const int n = fft->n;
+	struct float_tables * t = (struct float_tables *) calloc(1, sizeof(struct float_tables));
+	fft->tables = t;
+	if (t == NULL) return -1;
+	t->window = (float *) malloc(sizeof(float) * n);
+	t->twiddle_re = (float *) malloc(sizeof(float) * n);
+	t->twiddle_im = (float *) malloc(sizeof(float) * n);
+	t->bitrev = (int *) malloc(sizeof(int) * n);
+	if (t->window == NULL || t->twiddle_re == NULL || t->twiddle_im == NULL || t->bitrev == NULL) {
+		float_release(fft);
+		return -1;
+	}
+	for (i = 0; i < n; i++)
+		t->window[i] = (float)(256*fft->window_fn(i, n));
+	for (l = 1; l < n; l <<= 1) {
+		for (k = 0; k < l; k++) {
+			t->twiddle_re[l-1+k] = (float) cos(M_PI * k / l);
+			t->twiddle_im[l-1+k] = (float) -sin(M_PI * k / l);
+		}
+	}
+	for (i = 0; i < n; i++) {
+		r = 0;
+		for (k = 0; k < fft->log2_n; k++)
+			r |= ((i >> k) & 1) << (fft->log2_n - 1 - k);
+		t->bitrev[i] = r;
+	}
+	t->scale = 1.0 / ((double)n * (double)n);
+	return 0;
+}
+
+static void float_segment(const power_fft_t * fft, int16_t * iq, void * scratch, double * power, int mode) {
+	const struct float_tables * t = (const struct float_tables *) fft->tables;
+	const int n = fft->n;
+	float * re = (float *) scratch;
+	float * im = re + n;
+	int i, k, l;
+
+	for (i = 0; i < n; i++) {
+		re[t->bitrev[i]] = (float)iq[2*i] * t->window[i];
+		im[t->bitrev[i]] = (float)iq[2*i+1] * t->window[i];
+	}
+	for (l = 1; l < n; l <<= 1) {
+		const float * __restrict wr = t->twiddle_re + l - 1;
+		const float * __restrict wi = t->twiddle_im + l - 1;
+		for (i = 0; i < n; i += 2*l) {
+			float * __restrict ar = re + i;
+			float * __restrict ai = im + i;
+			float * __restrict br = re + i + l;
+			float * __restrict bi = im + i + l;
+			for (k = 0; k < l; k++) {
+				float tr = wr[k]*br[k] - wi[k]*bi[k];
+				float ti = wr[k]*bi[k] + wi[k]*br[k];
+				br[k] = ar[k] - tr;
+				bi[k] = ai[k] - ti;
+				ar[k] = ar[k] + tr;
+				ai[k] = ai[k] + ti;
+			}
+		}
+	}
+	dsp_power_f32(re, im, t->scale, power, n, mode);
+}
+
+const power_fft_backend_t power_fft_float = {
+	"float", float_init, float_release, 2 * sizeof(float), float_segment
+};
+
+const power_fft_backend_t * power_fft_backend(const char * name) {
+	if (name == NULL) return NULL;
+	if (strcmp(name, power_fft_fixed.name) == 0) return &power_fft_fixed;
+	if (strcmp(name, power_fft_float.name) == 0) return &power_fft_float;
+	return NULL;
+}
+
+int power_fft_init(power_fft_t * fft, const power_fft_backend_t * backend, int log2_n, double (*window_fn)(int, int)) {
+	fft->backend = backend;
+	fft->log2_n = log2_n;
+	fft->n = 1 << log2_n;
+	fft->window_fn = window_fn;
+	fft->tables = NULL;
+	if (backend->init(fft) != 0) {
+		fft->backend = NULL;
+		return -1;
+	}
+	return 0;
+}
+
+void power_fft_free(power_fft_t * fft) {
+	if (fft->backend != NULL)
+		fft->backend->release(fft);
+	fft->backend = NULL;
+	fft->tables = NULL;
+}
+
+size_t power_fft_scratch_size(const power_fft_t * fft) {
+	return fft->backend->scratch_per_point * fft->n;
+}
+
+void power_fft_segment(const power_fft_t * fft, int16_t * iq, void * scratch, double * power, int mode) {
+	fft->backend->segment(fft, iq, scratch, power, mode);
+}
@@ -0,0 +1,72 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef POWER_FFT_H_
+#define POWER_FFT_H_
+
+/*
+ * The FFT rtl_power runs on every segment of a hop. A backend windows the
+ * interleaved iq of one segment, transforms it and adds the power of every
+ * bin to the hop's averages.
+ *
+ * Every backend scales like the original fix_fft: the window is multiplied
+ * by 256 and the transform divided by its size, so the dBm stay comparable
+ * whichever backend recorded them.
+ *
+ *   fixed  16 bit fix_fft, the default, identical to upstream rtl_power
+ *   float  radix-2 in single precision, no truncation after the window
+ *
+ * The tables of a power_fft_t are only read while transforming, threads can
+ * share one as long as each brings its own scratch.
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+
+typedef struct power_fft power_fft_t;
+
+typedef struct power_fft_backend {
+	const char * name;
+	/* builds the tables for fft->log2_n and fft->window_fn, returns 0 on success */
+	int (*init)(power_fft_t * fft);
+	void (*release)(power_fft_t * fft);
+	/* bytes of scratch per point */
+	size_t scratch_per_point;
+	/* iq holds 2^log2_n interleaved points and is overwritten */
+	void (*segment)(const power_fft_t * fft, int16_t * iq, void * scratch, double * power, int mode);
+} power_fft_backend_t;
+
+struct power_fft {
+	const power_fft_backend_t * backend;
+	int log2_n;
+	int n;
+	double (*window_fn)(int, int);
+	void * tables;
+};
+
+extern const power_fft_backend_t power_fft_fixed;
+extern const power_fft_backend_t power_fft_float;
+
+/* the backend called name, or NULL */
+const power_fft_backend_t * power_fft_backend(const char * name);
+
+int power_fft_init(power_fft_t * fft, const power_fft_backend_t * backend, int log2_n, double (*window_fn)(int, int));
+void power_fft_free(power_fft_t * fft);
+size_t power_fft_scratch_size(const power_fft_t * fft);
+
+/* adds |X[k]|^2 of the windowed segment to power[k], or as the DSP_POWER_ mode of dsp_kernels.h says */
+void power_fft_segment(const power_fft_t * fft, int16_t * iq, void * scratch, double * power, int mode);
+
+#endif /* POWER_FFT_H_ */
@@ -0,0 +1,70 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stddef.h>
+#include <android/log.h>
+#include "power_sink.h"
+
+void power_sinks_clear(power_sinks_t * sinks) {
+	sinks->count = 0;
+}
+
+int power_sinks_add(power_sinks_t * sinks, power_sink_t * sink) {
+	if (sinks->count == POWER_SINK_MAX) return -1;
+	sink->failed = 0;
+	sinks->sinks[sinks->count++] = sink;
+	return 0;
+}
+
+/* records a failure, returns -1 when the recording has to stop */
+static int sink_failed(power_sink_t * sink) {
+	sink->failed = 1;
+	if (sink->required) {
+		__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to write %s\n", sink->name);
+		return -1;
+	}
+	__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to write %s, disabled\n", sink->name);
+	return 0;
+}
+
+int power_sinks_begin_integration(power_sinks_t * sinks, int64_t timestamp) {
+	int i, r = 0;
+	for (i = 0; i < sinks->count; i++) {
+		power_sink_t * sink = sinks->sinks[i];
+		if (sink->failed || sink->begin_integration == NULL) continue;
+		if (sink->begin_integration(sink, timestamp) != 0 && sink_failed(sink) != 0) r = -1;
+	}
+	return r;
+}
+
+int power_sinks_hop(power_sinks_t * sinks, const power_hop_t * hop, const double * dbm) {
+	int i, r = 0;
+	for (i = 0; i < sinks->count; i++) {
+		power_sink_t * sink = sinks->sinks[i];
+		if (sink->failed || sink->hop == NULL) continue;
+		if (sink->hop(sink, hop, dbm) != 0 && sink_failed(sink) != 0) r = -1;
+	}
+	return r;
+}
+
+int power_sinks_end_integration(power_sinks_t * sinks) {
+	int i, r = 0;
+	for (i = 0; i < sinks->count; i++) {
+		power_sink_t * sink = sinks->sinks[i];
+		if (sink->failed || sink->end_integration == NULL) continue;
+		if (sink->end_integration(sink) != 0 && sink_failed(sink) != 0) r = -1;
+	}
+	return r;
+}
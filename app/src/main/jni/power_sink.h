@@ -0,0 +1,77 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef POWER_SINK_H_
+#define POWER_SINK_H_
+
+/*
+ * Destinations of the power spectrum rtl_power measures, e.g. the csv file,
+ * the .rtlp and .idx files or the Java listener.
+ *
+ * The scanner computes the dBm of every bin once and hands each integration
+ * to all sinks: begin_integration, then hop for every tuning hop in order,
+ * the mean first and then every extra series of the hop, then
+ * end_integration. A sink that fails stops the recording when it is
+ * required, otherwise it is skipped for the rest of the recording.
+ */
+
+#include <stdint.h>
+
+#define POWER_SINK_MAX (8)
+
+/* what the dBm of a hop are, the mean always comes first, see power_stats.h */
+#define POWER_SERIES_MEAN 0
+#define POWER_SERIES_MIN 1
+#define POWER_SERIES_MAX 2
+#define POWER_SERIES_PERCENTILE 100	/* plus the percentile, 1 to 99 */
+
+typedef struct power_hop {
+	int32_t freq_low;
+	int32_t freq_high;
+	double step;
+	int32_t samples;
+	int bin_count;
+	int series;
+} power_hop_t;
+
+typedef struct power_sink power_sink_t;
+
+struct power_sink {
+	const char * name;
+	void * ctx;
+	int required;
+
+	/* each returns 0 on success */
+	int (*begin_integration)(power_sink_t * sink, int64_t timestamp);
+	int (*hop)(power_sink_t * sink, const power_hop_t * hop, const double * dbm);
+	int (*end_integration)(power_sink_t * sink);
+
+	int failed;
+};
+
+typedef struct power_sinks {
+	power_sink_t * sinks[POWER_SINK_MAX];
+	int count;
+} power_sinks_t;
+
+void power_sinks_clear(power_sinks_t * sinks);
+int power_sinks_add(power_sinks_t * sinks, power_sink_t * sink);
+
+/* each returns 0, or -1 once a required sink failed */
+int power_sinks_begin_integration(power_sinks_t * sinks, int64_t timestamp);
+int power_sinks_hop(power_sinks_t * sinks, const power_hop_t * hop, const double * dbm);
+int power_sinks_end_integration(power_sinks_t * sinks);
+
+#endif /* POWER_SINK_H_ */
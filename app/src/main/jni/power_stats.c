@@ -0,0 +1,190 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "power_stats.h"
+#include "power_sink.h"
+
+int power_stats_reserve(power_stats_t * stats, int n, int with_histogram) {
+	if (stats->capacity < n) {
+		free(stats->min);
+		free(stats->max);
+		stats->min = (double *) malloc(sizeof(double) * n);
+		stats->max = (double *) malloc(sizeof(double) * n);
+		stats->capacity = stats->min != NULL && stats->max != NULL ? n : 0;
+		if (stats->capacity == 0)
+			return -1;
+	}
+	if (with_histogram && stats->histogram_capacity < n) {
+		free(stats->histogram);
+		stats->histogram = (uint32_t *) malloc(sizeof(uint32_t) * POWER_STATS_BUCKETS * n);
+		stats->histogram_capacity = stats->histogram != NULL ? n : 0;
+		if (stats->histogram == NULL)
+			return -1;
+	}
+	stats->n = n;
+	/* a histogram left from an earlier plan is not updated */
+	if (!with_histogram) {
+		free(stats->histogram);
+		stats->histogram = NULL;
+		stats->histogram_capacity = 0;
+	}
+	power_stats_reset(stats);
+	return 0;
+}
+
+void power_stats_free(power_stats_t * stats) {
+	free(stats->min);
+	free(stats->max);
+	free(stats->histogram);
+	memset(stats, 0, sizeof(power_stats_t));
+}
+
+void power_stats_reset(power_stats_t * stats) {
+	int k;
+	for (k = 0; k < stats->n; k++) {
+		stats->min[k] = HUGE_VAL;
+		stats->max[k] = -HUGE_VAL;
+	}
+	if (stats->histogram != NULL)
+		memset(stats->histogram, 0, sizeof(uint32_t) * POWER_STATS_BUCKETS * stats->n);
+	stats->blocks = 0;
+}
+
+static inline int bucket_of(double power) {
+	union { double d; uint64_t u; } bits;
+	int64_t b;
+	bits.d = power;
+	/* biased exponent and the top mantissa bits, without the sign */
+	b = (int64_t)((bits.u << 1) >> (53 - POWER_STATS_STEP_BITS)) - ((1023 + POWER_STATS_MIN_EXP) << POWER_STATS_STEP_BITS);
+	b = b < 0 ? 0 : b;
+	return b >= POWER_STATS_BUCKETS ? POWER_STATS_BUCKETS - 1 : (int)b;
+}
+
+void power_stats_add(power_stats_t * stats, const double * __restrict power, double * __restrict avg, int peak_hold) {
+	double * __restrict min = stats->min;
+	double * __restrict max = stats->max;
+	uint32_t * __restrict histogram = stats->histogram;
+	const int n = stats->n;
+	int k;
+	if (histogram == NULL) {
+		for (k = 0; k < n; k++) {
+			double p = power[k];
+			avg[k] = peak_hold ? (p > avg[k] ? p : avg[k]) : avg[k] + p;
+			min[k] = p < min[k] ? p : min[k];
+			max[k] = p > max[k] ? p : max[k];
+		}
+	} else {
+		for (k = 0; k < n; k++) {
+			double p = power[k];
+			avg[k] = peak_hold ? (p > avg[k] ? p : avg[k]) : avg[k] + p;
+			min[k] = p < min[k] ? p : min[k];
+			max[k] = p > max[k] ? p : max[k];
+			histogram[k * POWER_STATS_BUCKETS + bucket_of(p)]++;
+		}
+	}
+	stats->blocks++;
+}
+
+/* the geometric middle, half the bucket in dB from either end */
+static double bucket_middle(int b) {
+	int e = (b >> POWER_STATS_STEP_BITS) + POWER_STATS_MIN_EXP;
+	int m = b & (POWER_STATS_STEPS - 1);
+	return ldexp(sqrt((1.0 + (double)m / POWER_STATS_STEPS) * (1.0 + (m + 1.0) / POWER_STATS_STEPS)), e);
+}
+
+static double percentile(const power_stats_t * stats, int bin, int pct) {
+	const uint32_t * h = stats->histogram + bin * POWER_STATS_BUCKETS;
+	long rank = (long) ceil((double) pct * stats->blocks / 100.0);
+	long seen = 0;
+	int b;
+	if (rank < 1)
+		rank = 1;
+	for (b = 0; b < POWER_STATS_BUCKETS; b++) {
+		seen += h[b];
+		if (seen >= rank)
+			return bucket_middle(b);
+	}
+	return bucket_middle(POWER_STATS_BUCKETS - 1);
+}
+
+double power_stats_value(const power_stats_t * stats, int bin, int series) {
+	if (series == POWER_SERIES_MIN)
+		return stats->min[bin];
+	if (series == POWER_SERIES_MAX)
+		return stats->max[bin];
+	if (series > POWER_SERIES_PERCENTILE && stats->histogram != NULL)
+		return percentile(stats, bin, series - POWER_SERIES_PERCENTILE);
+	return NAN;
+}
+
+int power_series_parse(const char * list, int * series, int max) {
+	char name[16];
+	const char * at = list;
+	int count = 0, s, i, len, pct;
+	while (*at != '\0') {
+		len = (int) strcspn(at, ",");
+		if (len == 0 || len >= (int) sizeof(name))
+			return -1;
+		memcpy(name, at, len);
+		name[len] = '\0';
+		at += len;
+		if (*at == ',')
+			at++;
+		if (strcmp(name, "mean") == 0)
+			continue;
+		if (strcmp(name, "min") == 0) {
+			s = POWER_SERIES_MIN;
+		} else if (strcmp(name, "max") == 0) {
+			s = POWER_SERIES_MAX;
+		} else if (name[0] == 'p' && len > 1 && (int) strspn(name + 1, "0123456789") == len - 1
+				&& (pct = atoi(name + 1)) >= 1 && pct <= 99) {
+			s = POWER_SERIES_PERCENTILE + pct;
+		} else {
+			return -1;
+		}
+		for (i = 0; i < count && series[i] != s; i++)
+			;
+		if (i < count)
+			continue;
+		if (count == max)
+			return -1;
+		series[count++] = s;
+	}
+	return count;
+}
+
+int power_series_wants_histogram(const int * series, int count) {
+	int i;
+	for (i = 0; i < count; i++) {
+		if (series[i] > POWER_SERIES_PERCENTILE)
+			return 1;
+	}
+	return 0;
+}
+
+void power_series_name(int series, char * name, size_t len) {
+	if (series == POWER_SERIES_MIN)
+		snprintf(name, len, "min");
+	else if (series == POWER_SERIES_MAX)
+		snprintf(name, len, "max");
+	else if (series > POWER_SERIES_PERCENTILE)
+		snprintf(name, len, "p%d", series - POWER_SERIES_PERCENTILE);
+	else
+		snprintf(name, len, "mean");
+}
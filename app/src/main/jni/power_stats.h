@@ -0,0 +1,70 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef POWER_STATS_H_
+#define POWER_STATS_H_
+
+/*
+ * The series of a hop besides the mean, per bin over the fft blocks of an
+ * integration: the minimum, the maximum and percentiles.
+ *
+ * Every block updates the sum the mean comes from, the minimum, the maximum
+ * and a histogram in one pass. The histogram has POWER_STATS_STEPS buckets per
+ * octave of power, taken straight from the exponent and the top bits of the
+ * mantissa of the double, 0.5 to 1 dB wide, so a percentile is within half a
+ * dB of the exact one. Powers below 2^POWER_STATS_MIN_EXP land in the first
+ * bucket and above 2^(POWER_STATS_MAX_EXP+1) in the last.
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define POWER_STATS_STEP_BITS 2
+#define POWER_STATS_STEPS (1 << POWER_STATS_STEP_BITS)
+#define POWER_STATS_MIN_EXP -8
+#define POWER_STATS_MAX_EXP 31
+#define POWER_STATS_BUCKETS ((POWER_STATS_MAX_EXP - POWER_STATS_MIN_EXP + 1) * POWER_STATS_STEPS)
+
+/* the extra series a recording can ask for with -A */
+#define POWER_SERIES_LIMIT 8
+
+typedef struct power_stats {
+	int n;			/* bins, 0 without extra series */
+	int blocks;		/* added since the last reset */
+	double * min;
+	double * max;
+	uint32_t * histogram;	/* POWER_STATS_BUCKETS per bin, NULL without percentiles */
+	int capacity;		/* bins allocated */
+	int histogram_capacity;
+} power_stats_t;
+
+/* makes room for n bins, keeping what is allocated if it fits, 0 on success */
+int power_stats_reserve(power_stats_t * stats, int n, int with_histogram);
+void power_stats_free(power_stats_t * stats);
+void power_stats_reset(power_stats_t * stats);
+
+/* one pass over the power of a block: avg += power, or keeps the larger with peak_hold, and the series */
+void power_stats_add(power_stats_t * stats, const double * power, double * avg, int peak_hold);
+
+/* the power of a series in a bin, for the percentiles the middle of their bucket */
+double power_stats_value(const power_stats_t * stats, int bin, int series);
+
+/* parses e.g. "min,max,p10,p50,p90", returns how many series or -1 */
+int power_series_parse(const char * list, int * series, int max);
+int power_series_wants_histogram(const int * series, int count);
+/* "mean", "min", "max" or "p50" */
+void power_series_name(int series, char * name, size_t len);
+
+#endif /* POWER_STATS_H_ */
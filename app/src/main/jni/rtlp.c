@@ -0,0 +1,176 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include "rtlp.h"
+
+static void reserve(rtlp_writer_t * writer, size_t extra) {
+	size_t needed = writer->buf_len + extra;
+	if (needed <= writer->buf_size || writer->failed) return;
+
+	size_t size = writer->buf_size == 0 ? 4096 : writer->buf_size;
+	while (size < needed) size *= 2;
+	uint8_t * buf = (uint8_t *) realloc(writer->buf, size);
+	if (buf == NULL) {
+		writer->failed = 1;
+		return;
+	}
+	writer->buf = buf;
+	writer->buf_size = size;
+}
+
+static void put_u16_at(uint8_t * p, uint16_t v) {
+	p[0] = (uint8_t) v;
+	p[1] = (uint8_t) (v >> 8);
+}
+
+static void put_u16(rtlp_writer_t * writer, uint16_t v) {
+	reserve(writer, 2);
+	if (writer->failed) return;
+	put_u16_at(writer->buf + writer->buf_len, v);
+	writer->buf_len += 2;
+}
+
+static void put_u32(rtlp_writer_t * writer, uint32_t v) {
+	reserve(writer, 4);
+	if (writer->failed) return;
+	uint8_t * p = writer->buf + writer->buf_len;
+	p[0] = (uint8_t) v;
+	p[1] = (uint8_t) (v >> 8);
+	p[2] = (uint8_t) (v >> 16);
+	p[3] = (uint8_t) (v >> 24);
+	writer->buf_len += 4;
+}
+
+static void put_u64(rtlp_writer_t * writer, uint64_t v) {
+	put_u32(writer, (uint32_t) v);
+	put_u32(writer, (uint32_t) (v >> 32));
+}
+
+static void put_f32(rtlp_writer_t * writer, float v) {
+	uint32_t bits;
+	memcpy(&bits, &v, sizeof(bits));
+	put_u32(writer, bits);
+}
+
+static void put_f64(rtlp_writer_t * writer, double v) {
+	uint64_t bits;
+	memcpy(&bits, &v, sizeof(bits));
+	put_u64(writer, bits);
+}
+
+static void put_string(rtlp_writer_t * writer, const char * s) {
+	size_t len = s == NULL ? 0 : strlen(s);
+	if (len > UINT16_MAX) len = UINT16_MAX;
+	put_u16(writer, (uint16_t) len);
+	reserve(writer, len);
+	if (writer->failed) return;
+	memcpy(writer->buf + writer->buf_len, s, len);
+	writer->buf_len += len;
+}
+
+static int flush_buf(rtlp_writer_t * writer) {
+	if (!writer->failed && writer->buf_len > 0) {
+		if (fwrite(writer->buf, 1, writer->buf_len, writer->file) != writer->buf_len || fflush(writer->file) != 0)
+			writer->failed = 1;
+	}
+	writer->buf_len = 0;
+	return writer->failed ? -1 : 0;
+}
+
+int16_t rtlp_centi_db(double dbm) {
+	if (isnan(dbm)) return RTLP_DBM_NAN;
+	if (isinf(dbm)) return dbm < 0 ? RTLP_DBM_NEG_INF : RTLP_DBM_NAN - 1;
+	double centi = floor(dbm * 100.0 + 0.5);
+	// keep both sentinels free
+	if (centi <= RTLP_DBM_NEG_INF) return RTLP_DBM_NEG_INF + 1;
+	if (centi >= RTLP_DBM_NAN) return RTLP_DBM_NAN - 1;
+	return (int16_t) centi;
+}
+
+int rtlp_open(rtlp_writer_t * writer, const char * path, const rtlp_header_t * header) {
+	memset(writer, 0, sizeof(rtlp_writer_t));
+	writer->file = fopen(path, "wb");
+	if (writer->file == NULL) return -1;
+
+	reserve(writer, 4);
+	if (writer->failed) return -1;
+	memcpy(writer->buf, RTLP_MAGIC, 4);
+	writer->buf_len = 4;
+	put_u16(writer, RTLP_VERSION);
+	put_u16(writer, 0); // header size, patched below
+	put_f64(writer, header->latitude);
+	put_f64(writer, header->longitude);
+	put_f32(writer, header->altitude);
+	put_string(writer, header->batch_id);
+	put_string(writer, header->integration_interval);
+	if (writer->failed) return -1;
+	put_u16_at(writer->buf + 6, (uint16_t) writer->buf_len);
+	return flush_buf(writer);
+}
+
+void rtlp_begin_integration(rtlp_writer_t * writer, int64_t timestamp) {
+	writer->buf_len = 0;
+	writer->hop_count = 0;
+	writer->bin_count = 0;
+	put_u64(writer, (uint64_t) timestamp);
+	writer->hop_count_at = writer->buf_len;
+	put_u16(writer, 0);
+}
+
+static void end_hop(rtlp_writer_t * writer) {
+	if (writer->hop_count > 0 && !writer->failed)
+		put_u16_at(writer->buf + writer->bin_count_at, (uint16_t) writer->bin_count);
+}
+
+void rtlp_begin_hop(rtlp_writer_t * writer, int32_t freq_low, int32_t freq_high, float step, int32_t samples) {
+	end_hop(writer);
+	writer->hop_count++;
+	writer->bin_count = 0;
+	put_u32(writer, (uint32_t) freq_low);
+	put_u32(writer, (uint32_t) freq_high);
+	put_f32(writer, step);
+	put_u32(writer, (uint32_t) samples);
+	writer->bin_count_at = writer->buf_len;
+	put_u16(writer, 0);
+}
+
+void rtlp_add_dbm(rtlp_writer_t * writer, double dbm) {
+	if (writer->bin_count >= UINT16_MAX) return;
+	writer->bin_count++;
+	put_u16(writer, (uint16_t) rtlp_centi_db(dbm));
+}
+
+int rtlp_end_integration(rtlp_writer_t * writer) {
+	end_hop(writer);
+	if (!writer->failed)
+		put_u16_at(writer->buf + writer->hop_count_at, (uint16_t) writer->hop_count);
+	return flush_buf(writer);
+}
+
+int64_t rtlp_tell(rtlp_writer_t * writer) {
+	if (writer->file == NULL) return -1;
+	return (int64_t) ftell(writer->file);
+}
+
+int rtlp_close(rtlp_writer_t * writer) {
+	int failed = writer->failed;
+	if (writer->file != NULL && fclose(writer->file) != 0) failed = 1;
+	free(writer->buf);
+	memset(writer, 0, sizeof(rtlp_writer_t));
+	return failed ? -1 : 0;
+}
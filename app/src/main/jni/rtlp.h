@@ -0,0 +1,91 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef RTLP_H_
+#define RTLP_H_
+
+/*
+ * Writer for .rtlp files, the binary counterpart of the rtl_power csv.
+ * All numbers are little endian.
+ *
+ * Header
+ *   char[4]  magic "RTLP"
+ *   uint16   version
+ *   uint16   header size in bytes, readers skip to this offset
+ *   float64  latitude
+ *   float64  longitude
+ *   float32  altitude
+ *   uint16   length, then the UTF-8 bytes of the BATCH_ID
+ *   uint16   length, then the UTF-8 bytes of the integration interval
+ *
+ * Then one record per integration
+ *   int64    unix timestamp in seconds
+ *   uint16   number of hops, then for every hop
+ *     int32    Hz low
+ *     int32    Hz high
+ *     float32  Hz step
+ *     int32    samples
+ *     uint16   number of bins
+ *     int16[]  dBm of every bin in hundredths of a dB
+ *
+ * A record is only written once complete, so a recording that is cut short
+ * ends on a whole integration or on a partial record readers can drop.
+ */
+
+#include <stdio.h>
+#include <stdint.h>
+
+#define RTLP_MAGIC "RTLP"
+#define RTLP_VERSION (1)
+
+#define RTLP_DBM_NEG_INF INT16_MIN
+#define RTLP_DBM_NAN INT16_MAX
+
+typedef struct rtlp_header {
+	const char * batch_id;
+	double latitude;
+	double longitude;
+	float altitude;
+	const char * integration_interval;
+} rtlp_header_t;
+
+typedef struct rtlp_writer {
+	FILE * file;
+
+	uint8_t * buf;
+	size_t buf_len;
+	size_t buf_size;
+
+	size_t hop_count_at;
+	int hop_count;
+	size_t bin_count_at;
+	int bin_count;
+
+	int failed;
+} rtlp_writer_t;
+
+int rtlp_open(rtlp_writer_t * writer, const char * path, const rtlp_header_t * header);
+void rtlp_begin_integration(rtlp_writer_t * writer, int64_t timestamp);
+void rtlp_begin_hop(rtlp_writer_t * writer, int32_t freq_low, int32_t freq_high, float step, int32_t samples);
+void rtlp_add_dbm(rtlp_writer_t * writer, double dbm);
+int rtlp_end_integration(rtlp_writer_t * writer);
+int rtlp_close(rtlp_writer_t * writer);
+
+/* offset in the file the next integration record will be written at */
+int64_t rtlp_tell(rtlp_writer_t * writer);
+
+int16_t rtlp_centi_db(double dbm);
+
+#endif /* RTLP_H_ */
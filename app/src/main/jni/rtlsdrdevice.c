@@ -27,6 +27,19 @@
 #include "sdrtcp.h"
 #include "SdrException.h"
 #include "tcp_commands.h"
+#include "rtlp.h"
+#include "sweepidx.h"
+#include "power_sink.h"
+#include "power_fft.h"
+#include "dsp_kernels.h"
+#include "freq_plan.h"
+#include "power_stats.h"
+#include "iq_capture.h"
+#include "iq_replay.h"
+#include "power_device.h"
+#include "synth_device.h"
+#include "power_engine.h"
+#include "settle_probe.h"
 
 #define RUN_OR(command, exit_command) { \
     int cmd_result = command; \
@@ -316,14 +329,30 @@ JNIEXPORT jobjectArray JNICALL Java_com_sdrtouch_rtlsdr_driver_RtlSdrDevice_getS
 
 int globalFD;
 char * globalDevicePath;
+/* set instead of the fd by PowerEngine.openSynthetic, see synth_device.h */
+char * globalSynthSpec;
 
-JNIEXPORT void JNICALL
-Java_com_sdrtouch_rtlsdr_RTLPower_passFDandDeviceName(JNIEnv *env, jobject instance,jint fd_,jstring path_)
+static char * replaceString(char * old, JNIEnv *env, jstring value)
 {
-    //set up some dirty global variables found just above this metohd
-    globalFD = fd_;
-    globalDevicePath = (*env)->GetStringUTFChars(env, path_, 0);
+    free(old);
+    const char *cstring = (*env)->GetStringUTFChars(env, value, 0);
+    char * copy = strdup(cstring);
+    (*env)->ReleaseStringUTFChars(env, value, cstring);
+    return copy;
+}
+
+rtlp_header_t globalBatchInfo;
 
+JNIEXPORT void JNICALL
+Java_com_sdrtouch_rtlsdr_RTLPower_passBatchInfo(JNIEnv *env, jobject instance, jstring batchID_, jdouble latitude_,
+                                                jdouble longitude_, jfloat altitude_, jstring interval_)
+{
+    //metadata for the header of the .rtlp file
+    globalBatchInfo.batch_id = replaceString((char *) globalBatchInfo.batch_id, env, batchID_);
+    globalBatchInfo.integration_interval = replaceString((char *) globalBatchInfo.integration_interval, env, interval_);
+    globalBatchInfo.latitude = latitude_;
+    globalBatchInfo.longitude = longitude_;
+    globalBatchInfo.altitude = altitude_;
 }
 
 JNIEXPORT void JNICALL
@@ -341,16 +370,188 @@ static volatile int executionFinished = 0;
 
 static int backgroundProcessingFailed = 0;
 
-JNIEXPORT void JNICALL
-Java_com_sdrtouch_rtlsdr_RTLPower_beginRTLPower( JNIEnv* env, jobject object, jobjectArray stringArray)
+//the RTLPower task that is running a sweep, told about every finished rolling batch
+static JNIEnv * callbackEnv = NULL;
+static jobject callbackObject = NULL;
+
+static void notify_batch_finished(const char * batchID)
+{
+    if (callbackEnv == NULL) {
+        return;}
+    JNIEnv * env = callbackEnv;
+    jclass cls = (*env)->GetObjectClass(env, callbackObject);
+    jmethodID method = (*env)->GetMethodID(env, cls, "onBatchFinished", "(Ljava/lang/String;)V");
+    (*env)->DeleteLocalRef(env, cls);
+    if (method == NULL) {
+        (*env)->ExceptionClear(env);
+        return;}
+    jstring id = (*env)->NewStringUTF(env, batchID);
+    (*env)->CallVoidMethod(env, callbackObject, method, id);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);}
+    (*env)->DeleteLocalRef(env, id);
+}
+
+/* hands RTLPower.onHopStats a view of the stats records, it copies them */
+static void notify_hop_stats(void * stats, int count, size_t record_size)
+{
+    if (callbackEnv == NULL || count <= 0) {
+        return;}
+    JNIEnv * env = callbackEnv;
+    jclass cls = (*env)->GetObjectClass(env, callbackObject);
+    jmethodID method = (*env)->GetMethodID(env, cls, "onHopStats", "(Ljava/nio/ByteBuffer;I)V");
+    (*env)->DeleteLocalRef(env, cls);
+    if (method == NULL) {
+        (*env)->ExceptionClear(env);
+        return;}
+    jobject records = (*env)->NewDirectByteBuffer(env, stats, (jlong)(count * record_size));
+    if (records == NULL) {
+        (*env)->ExceptionClear(env);
+        return;}
+    (*env)->CallVoidMethod(env, callbackObject, method, records, (jint)count);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);}
+    (*env)->DeleteLocalRef(env, records);
+}
+
+/*
+ * Streams every integration to RTLPower without going through a file. The dBm
+ * of all bins and a record per hop are written to memory shared with Java as
+ * direct buffers, RTLPower.onStreamBuffers is told whenever they are replaced
+ * by larger ones and RTLPower.onIntegration once an integration is complete.
+ */
+typedef struct stream_hop {
+    int32_t freq_low;
+    int32_t freq_high;
+    float step;
+    int32_t samples;
+    int32_t bin_offset;
+    int32_t bin_count;
+    int32_t series;
+} stream_hop_t;
+
+typedef struct stream_state {
+    jmethodID on_buffers;
+    jmethodID on_integration;
+    int64_t timestamp;
+    stream_hop_t * hops;
+    int hop_count;
+    int hop_capacity;
+    float * dbm;
+    int bin_count;
+    int bin_capacity;
+    int buffers_changed;
+} stream_state_t;
+
+static stream_state_t stream;
+
+static int stream_begin_integration(power_sink_t * sink, int64_t timestamp)
+{
+    stream.timestamp = timestamp;
+    stream.hop_count = 0;
+    stream.bin_count = 0;
+    return 0;
+}
+
+static int stream_hop(power_sink_t * sink, const power_hop_t * hop, const double * dbm)
+{
+    int i;
+    if (stream.hop_count == stream.hop_capacity) {
+        int capacity = stream.hop_capacity == 0 ? 64 : stream.hop_capacity * 2;
+        stream_hop_t * hops = realloc(stream.hops, capacity * sizeof(stream_hop_t));
+        if (hops == NULL) {
+            return -1;}
+        stream.hops = hops;
+        stream.hop_capacity = capacity;
+        stream.buffers_changed = 1;
+    }
+    if (stream.bin_count + hop->bin_count > stream.bin_capacity) {
+        int capacity = stream.bin_capacity == 0 ? 4096 : stream.bin_capacity;
+        while (capacity < stream.bin_count + hop->bin_count) {
+            capacity *= 2;}
+        float * bins = realloc(stream.dbm, capacity * sizeof(float));
+        if (bins == NULL) {
+            return -1;}
+        stream.dbm = bins;
+        stream.bin_capacity = capacity;
+        stream.buffers_changed = 1;
+    }
+    stream_hop_t * record = &stream.hops[stream.hop_count++];
+    record->freq_low = hop->freq_low;
+    record->freq_high = hop->freq_high;
+    record->step = (float)hop->step;
+    record->samples = hop->samples;
+    record->bin_offset = stream.bin_count;
+    record->bin_count = hop->bin_count;
+    record->series = hop->series;
+    for (i = 0; i < hop->bin_count; i++) {
+        stream.dbm[stream.bin_count++] = (float)dbm[i];}
+    return 0;
+}
+
+static int stream_end_integration(power_sink_t * sink)
+{
+    JNIEnv * env = callbackEnv;
+    if (stream.buffers_changed) {
+        // the buffers only grow during the first integrations, Java keeps views of them
+        jobject hops = (*env)->NewDirectByteBuffer(env, stream.hops, (jlong)(stream.hop_capacity * sizeof(stream_hop_t)));
+        jobject bins = (*env)->NewDirectByteBuffer(env, stream.dbm, (jlong)(stream.bin_capacity * sizeof(float)));
+        if (hops == NULL || bins == NULL) {
+            (*env)->ExceptionClear(env);
+            return -1;}
+        (*env)->CallVoidMethod(env, callbackObject, stream.on_buffers, hops, bins);
+        (*env)->DeleteLocalRef(env, hops);
+        (*env)->DeleteLocalRef(env, bins);
+        if ((*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionClear(env);
+            return -1;}
+        stream.buffers_changed = 0;
+    }
+    (*env)->CallVoidMethod(env, callbackObject, stream.on_integration, (jlong)stream.timestamp,
+                           (jint)stream.hop_count, (jint)stream.bin_count);
+    if ((*env)->ExceptionCheck(env)) {
+        // a listener that throws is not called again
+        (*env)->ExceptionClear(env);
+        return -1;}
+    return 0;
+}
+
+static power_sink_t stream_sink = { "the Java stream", NULL, 0, stream_begin_integration, stream_hop, stream_end_integration, 0 };
+
+static int stream_open(void)
+{
+    if (callbackEnv == NULL) {
+        return -1;}
+    JNIEnv * env = callbackEnv;
+    jclass cls = (*env)->GetObjectClass(env, callbackObject);
+    stream.on_buffers = (*env)->GetMethodID(env, cls, "onStreamBuffers", "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)V");
+    stream.on_integration = (*env)->GetMethodID(env, cls, "onIntegration", "(JII)V");
+    (*env)->DeleteLocalRef(env, cls);
+    if (stream.on_buffers == NULL || stream.on_integration == NULL) {
+        (*env)->ExceptionClear(env);
+        return -1;}
+    stream.buffers_changed = 1;
+    return 0;
+}
+
+static void stream_close(void)
+{
+    // Java must not touch the buffers after nativeSweep returns
+    free(stream.hops);
+    free(stream.dbm);
+    memset(&stream, 0, sizeof(stream));
+}
+
+static jbyteArray power_engine_plan(JNIEnv *env);
+
+/* copies a Java String[] into an argv with a fake program name at index 0, free with free_argv */
+static char ** new_argv(JNIEnv* env, jobjectArray stringArray, int * argc)
 {
-    //Call main function for rtl_power
-    // your argc
     // Get the number of args
     jsize ArgCount = (*env)->GetArrayLength(env, stringArray);
     // malloc the array of char* to be passed to the legacy main
     char ** argv = malloc(sizeof(char*)*(ArgCount+1)); // +1 for fake program name at index 0
-    argv[ 0 ] = "MyProgramName";
+    argv[ 0 ] = strdup("MyProgramName");
 
     int i;
     for ( i = 0; i < ArgCount; ++i ) {
@@ -360,16 +561,78 @@ Java_com_sdrtouch_rtlsdr_RTLPower_beginRTLPower( JNIEnv* env, jobject object, jo
         (*env)->ReleaseStringUTFChars(env, string, cstring );
         (*env)->DeleteLocalRef(env, string );
     }
+    *argc = ArgCount + 1;
+    return argv;
+}
+
+static void free_argv(char ** argv, int argc)
+{
+    int i;
+    for( i = 0; i < argc; ++i ) {
+        free(argv[i]);
+    }
+    free(argv);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativeOpen(JNIEnv *env, jobject instance, jint fd_, jstring path_)
+{
+    globalFD = fd_;
+    globalDevicePath = replaceString(globalDevicePath, env, path_);
+    free(globalSynthSpec);
+    globalSynthSpec = NULL;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativeOpenSynthetic(JNIEnv *env, jobject instance, jstring spec_)
+{
+    globalSynthSpec = replaceString(globalSynthSpec, env, spec_);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativeConfigure(JNIEnv *env, jobject instance, jobjectArray stringArray)
+{
+    int argc, r;
+    char ** argv = new_argv(env, stringArray, &argc);
+    r = power_engine_configure(argc, argv);
+    free_argv(argv, argc);
+    return (jboolean)(r == 0);
+}
 
-    // call the legacy "main" function
+JNIEXPORT jboolean JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativeSweep(JNIEnv *env, jobject instance, jobject callbacks)
+{
     executionFinished = 0;
-    mainCOPIED( ArgCount + 1, argv );
-	executionFinished = 1;
-    //__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Cleaned up memory in C");
+    callbackEnv = env;
+    callbackObject = callbacks;
+    power_engine_sweep();
+    callbackEnv = NULL;
+    callbackObject = NULL;
+    executionFinished = 1;
+    return (jboolean)(!backgroundProcessingFailed);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativeClose(JNIEnv *env, jobject instance)
+{
+    power_engine_close();
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativePlan(JNIEnv *env, jobject instance)
+{
+    return power_engine_plan(env);
+}
 
-    //for( i = 0; i < ArgCount; ++i ) {
-    //    free(argv[i]);
-    //}
+JNIEXPORT jboolean JNICALL
+Java_com_sdrtouch_rtlsdr_PowerEngine_nativeCapture(JNIEnv *env, jobject instance, jstring path_, jint frequency,
+                                                   jint sampleRate, jint gain, jint ppm, jlong samples)
+{
+    int r;
+    const char *path = (*env)->GetStringUTFChars(env, path_, 0);
+    r = power_engine_capture(path, (uint32_t)frequency, (uint32_t)sampleRate, gain, ppm, (uint64_t)samples);
+    (*env)->ReleaseStringUTFChars(env, path_, path);
+    return (jboolean)(r == 0);
 }
 
 JNIEXPORT jint JNICALL
@@ -901,28 +1164,54 @@ int verbose_device_search(char *s)
 
 #include <math.h>
 #include <pthread.h>
+#include <sys/time.h>
 #include <libusb.h>
 
 #include "rtl-sdr.h"
 
 #define MAX(x, y) (((x) > (y)) ? (x) : (y))
 
-#define DEFAULT_BUF_LENGTH		(1 * 16384)
 #define AUTO_GAIN			-100
 #define BUFFER_DUMP			(1<<12)
 
-#define MAXIMUM_RATE			2800000
-#define MINIMUM_RATE			1000000
-
 static rtlsdr_dev_t *dev = NULL;
+/* what the scanner reads, the dongle above or a simulated one with -z, NULL while neither is open */
+static power_device_t *device = NULL;
+static power_device_t rtlsdr_device;
+static power_device_t synth_device;
+/* with -r the hops are read from a capture instead of the dongle, see iq_replay.h */
+static iq_replay_t replay;
+static int replay_enabled = 0;
+static int replay_ended = 0;
 FILE *file;
+rtlp_writer_t rtlp;
+int rtlp_enabled = 0;
+sweepidx_writer_t sweepidx;
+int sweepidx_enabled = 0;
+int stream_enabled = 0;
+
+/* every integration goes to each of these, opened with the batch */
+static power_sinks_t sinks;
+static double *hop_dbm = NULL;
+static int hop_dbm_len = 0;
+
+/* output file names, with every BATCH_TOKEN replaced by the id of the batch being recorded */
+#define BATCH_TOKEN "{batch}"
+static const char *csv_template = NULL;
+static const char *rtlp_template = NULL;
+static const char *sweepidx_template = NULL;
+static char *csv_path = NULL;
+static char *rtlp_path = NULL;
+static char *sweepidx_path = NULL;
+static char batch_id[64];
 
-int16_t* Sinewave;
-double* power_table;
-int N_WAVE, LOG2_N_WAVE;
 int next_power;
 int16_t *fft_buf;
-int *window_coefs;
+int fft_buf_len;
+/* the fft of the plan and the scratch of the scanning thread */
+const power_fft_t *scan_fft;
+void *fft_scratch;
+size_t fft_scratch_len;
 
 struct tuning_state
 /* one per tuning range */
@@ -930,7 +1219,7 @@ struct tuning_state
     int freq;
     int rate;
     int bin_e;
-    long *avg;  /* length == 2^bin_e */
+    double *avg;  /* length == 2^bin_e */
     int samples;
     int downsample;
     int downsample_passes;  /* for the recursive filter */
@@ -940,6 +1229,11 @@ struct tuning_state
     /* having the iq buffer here is wasteful, but will avoid contention */
     uint8_t *buf8;
     int buf_len;
+    /* allocated lengths, kept when the plan changes and the buffers still fit */
+    int avg_capacity;
+    int buf_capacity;
+    /* the extra series of -A, n is 0 without */
+    power_stats_t stats;
     //int *comp_fir;
     //pthread_rwlock_t buf_lock;
     //pthread_mutex_t buf_mutex;
@@ -947,12 +1241,22 @@ struct tuning_state
 
 /* 3000 is enough for 3GHz b/w worst case */
 #define MAX_TUNES	3000
-struct tuning_state tunes[MAX_TUNES];
+/* as many as the largest plan so far needed, see tunes_reserve */
+struct tuning_state *tunes = NULL;
+int tunes_capacity = 0;
 int tune_count = 0;
+/* the tunes[] index of every hop in the order of the current sweep */
+int *scan_order = NULL;
+static int tunes_reserve(int count);
 
 int boxcar = 1;
 int comp_fir_size = 0;
 int peak_hold = 0;
+/* emitted after the mean of every hop, -A */
+int series[POWER_SERIES_LIMIT];
+int series_count = 0;
+/* at most that much memory for the histograms of the percentiles */
+#define SERIES_HISTOGRAM_LIMIT (32 << 20)
 
 void usage(void)
 {
@@ -967,12 +1271,25 @@ void usage(void)
                     "\t[-1 enables single-shot mode (default: off)]\n"
                     "\t[-e exit_timer (default: off/0)]\n"
                     //"\t[-s avg/iir smoothing (default: avg)]\n"
-                    //"\t[-t threads (default: 1)]\n"
+                    "\t[-t threads (default: 1)]\n"
+                    "\t (fft threads, more than 1 process the hops while the next ones are read)\n"
                     "\t[-d device_index (default: 0)]\n"
                     "\t[-g tuner_gain (default: automatic)]\n"
                     "\t[-p ppm_error (default: 0)]\n"
+                    "\t[-b binary_filename (also writes the sweeps as .rtlp)]\n"
+                    "\t[-x index_filename (writes an .idx summary of every sweep)]\n"
+                    "\t[-n integrations (roll over to a new batch after this many sweeps)]\n"
+                    "\t[-R roll_time (roll over to a new batch after this long, e.g. 15m)]\n"
+                    "\t (rolling needs " BATCH_TOKEN " in the file names, it is replaced\n"
+                    "\t  by the batch id, yyyyMMdd-HHmmss of its first sweep)\n"
+                    "\t[-S streams every sweep to RTLPower.onIntegration]\n"
+                    "\t[-r capture (replays a .rtliq capture instead of reading the dongle)]\n"
+                    "\t (as fast as it can, stamped with the time of the capture, pick -f\n"
+                    "\t  around the capture so the plan samples at its rate)\n"
+                    "\t[-z spec (reads a simulated dongle instead, see synth_device.h)]\n"
+                    "\t (e.g. noise=-50,tone=100.3M:-20,burst=101M:-10:100:25,realtime)\n"
                     "\tfilename (a '-' dumps samples to stdout)\n"
-                    "\t (omitting the filename also uses stdout)\n"
+                    "\t (omitting the filename also uses stdout, or writes no csv with -S)\n"
                     "\n"
                     "Experimental options:\n"
                     "\t[-w window (default: rectangle)]\n"
@@ -985,9 +1302,18 @@ void usage(void)
                     "\t (enables low-leakage downsample filter,\n"
                     "\t  fir_size can be 0 or 9.  0 has bad roll off,\n"
                     "\t  try with '-c 50%%')\n"
+                    "\t[-a fft (default: fixed)]\n"
+                    "\t (fixed is the 16 bit fix_fft, float keeps the dynamic range of the window)\n"
                     "\t[-P enables peak hold (default: off)]\n"
+                    "\t[-A series (default: only the mean)]\n"
+                    "\t (e.g. min,max,p10,p50,p90 per bin over the integration, written\n"
+                    "\t  to name.min.csv and so on next to the csv and streamed with -S)\n"
                     "\t[-D enable direct sampling (default: off)]\n"
                     "\t[-O enable offset tuning (default: off)]\n"
+                    "\t[-y reads every hop with a blocking transfer (default: streams)]\n"
+                    "\t[-H hop_order (default: up)]\n"
+                    "\t (up sweeps from the lowest hop, zigzag turns around every sweep)\n"
+                    "\t[-L settle_us (default: measured on the tuner)]\n"
                     "\n"
                     "CSV FFT output columns:\n"
                     "\tdate, time, Hz low, Hz high, Hz step, samples, dbm, dbm, ...\n\n"
@@ -1019,25 +1345,6 @@ void multi_bail(void)
     }
 }
 
-#ifdef _WIN32
-BOOL WINAPI
-sighandler(int signum)
-{
-	if (CTRL_C_EVENT == signum) {
-		do_exit++;
-		multi_bail();
-		return TRUE;
-	}
-	return FALSE;
-}
-#else
-static void sighandler(int signum)
-{
-    do_exit++;
-    multi_bail();
-}
-#endif
-
 /* more cond dumbness */
 #define safe_cond_signal(n, m) pthread_mutex_lock(m); pthread_cond_signal(n); pthread_mutex_unlock(m)
 #define safe_cond_wait(n, m) pthread_mutex_lock(m); pthread_cond_wait(n, m); pthread_mutex_unlock(m)
@@ -1066,94 +1373,6 @@ double log2(double n)
 }
 #endif
 
-/* FFT based on fix_fft.c by Roberts, Slaney and Bouras
-   http://www.jjj.de/fft/fftpage.html
-   16 bit ints for everything
-   -32768..+32768 maps to -1.0..+1.0
-*/
-
-void sine_table(int size)
-{
-    int i;
-    double d;
-    LOG2_N_WAVE = size;
-    N_WAVE = 1 << LOG2_N_WAVE;
-    Sinewave = malloc(sizeof(int16_t) * N_WAVE*3/4);
-    power_table = malloc(sizeof(double) * N_WAVE);
-    for (i=0; i<N_WAVE*3/4; i++)
-    {
-        d = (double)i * 2.0 * M_PI / N_WAVE;
-        Sinewave[i] = (int)round(32767*sin(d));
-        //printf("%i\n", Sinewave[i]);
-    }
-}
-
-inline int16_t FIX_MPY(int16_t a, int16_t b)
-/* fixed point multiply and scale */
-{
-    int c = ((int)a * (int)b) >> 14;
-    b = c & 0x01;
-    return (c >> 1) + b;
-}
-
-int fix_fft(int16_t iq[], int m)
-/* interleaved iq[], 0 <= n < 2**m, changes in place */
-{
-    int mr, nn, i, j, l, k, istep, n, shift;
-    int16_t qr, qi, tr, ti, wr, wi;
-    n = 1 << m;
-    if (n > N_WAVE)
-    {return -1;}
-    mr = 0;
-    nn = n - 1;
-    /* decimation in time - re-order data */
-    for (m=1; m<=nn; ++m) {
-        l = n;
-        do
-        {l >>= 1;}
-        while (mr+l > nn);
-        mr = (mr & (l-1)) + l;
-        if (mr <= m)
-        {continue;}
-        // real = 2*m, imag = 2*m+1
-        tr = iq[2*m];
-        iq[2*m] = iq[2*mr];
-        iq[2*mr] = tr;
-        ti = iq[2*m+1];
-        iq[2*m+1] = iq[2*mr+1];
-        iq[2*mr+1] = ti;
-    }
-    l = 1;
-    k = LOG2_N_WAVE-1;
-    while (l < n) {
-        shift = 1;
-        istep = l << 1;
-        for (m=0; m<l; ++m) {
-            j = m << k;
-            wr =  Sinewave[j+N_WAVE/4];
-            wi = -Sinewave[j];
-            if (shift) {
-                wr >>= 1; wi >>= 1;}
-            for (i=m; i<n; i+=istep) {
-                j = i + l;
-                tr = FIX_MPY(wr,iq[2*j]) - FIX_MPY(wi,iq[2*j+1]);
-                ti = FIX_MPY(wr,iq[2*j+1]) + FIX_MPY(wi,iq[2*j]);
-                qr = iq[2*i];
-                qi = iq[2*i+1];
-                if (shift) {
-                    qr >>= 1; qi >>= 1;}
-                iq[2*j] = qr - tr;
-                iq[2*j+1] = qi - ti;
-                iq[2*i] = qr + tr;
-                iq[2*i+1] = qi + ti;
-            }
-        }
-        --k;
-        l = istep;
-    }
-    return 0;
-}
-
 double rectangle(int i, int length)
 {
     return 1.0;
@@ -1242,7 +1461,7 @@ void rms_power(struct tuning_state *ts)
     uint8_t *buf = ts->buf8;
     int buf_len = ts->buf_len;
     long p, t;
-    double dc, err;
+    double dc, err, power;
 
     p = t = 0L;
     for (i=0; i<buf_len; i++) {
@@ -1255,7 +1474,10 @@ void rms_power(struct tuning_state *ts)
     err = t * 2 * dc - dc * dc * buf_len;
     p -= (long)round(err);
 
-    if (!peak_hold) {
+    if (ts->stats.n) {
+        power = (double)p;
+        power_stats_add(&ts->stats, &power, ts->avg, peak_hold);
+    } else if (!peak_hold) {
         ts->avg[0] += p;
     } else {
         ts->avg[0] = MAX(ts->avg[0], p);
@@ -1263,124 +1485,107 @@ void rms_power(struct tuning_state *ts)
     ts->samples += 1;
 }
 
-void frequency_range(char *arg, double crop)
-/* flesh out the tunes[] for scanning */
-// do we want the fewest ranges (easy) or the fewest bins (harder)?
+/* lower:upper:bin_size into the key, -1 unless all three are there */
+int parse_range(char *arg, freq_plan_key_t *key)
 {
-    char *start, *stop, *step;
-    int i, j, upper, lower, max_size, bw_seen, bw_used, bin_e, buf_len;
-    int downsample, downsample_passes;
-    double bin_size;
-    struct tuning_state *ts;
+    char *stop, *step;
+    if (arg == NULL) {
+        return -1;}
     /* hacky string parsing */
-    start = arg;
-    stop = strchr(start, ':') + 1;
-    stop[-1] = '\0';
-    step = strchr(stop, ':') + 1;
-    step[-1] = '\0';
-    lower = (int)atofs(start);
-    upper = (int)atofs(stop);
-    max_size = (int)atofs(step);
-    stop[-1] = ':';
-    step[-1] = ':';
-    downsample = 1;
-    downsample_passes = 0;
-    /* evenly sized ranges, as close to MAXIMUM_RATE as possible */
-    // todo, replace loop with algebra
-    for (i=1; i<1500; i++) {
-        bw_seen = (upper - lower) / i;
-        bw_used = (int)((double)(bw_seen) / (1.0 - crop));
-        if (bw_used > MAXIMUM_RATE) {
-            continue;}
-        tune_count = i;
-        break;
-    }
-    /* unless small bandwidth */
-    if (bw_used < MINIMUM_RATE) {
-        tune_count = 1;
-        downsample = MAXIMUM_RATE / bw_used;
-        bw_used = bw_used * downsample;
-    }
-    if (!boxcar && downsample > 1) {
-        downsample_passes = (int)log2(downsample);
-        downsample = 1 << downsample_passes;
-        bw_used = (int)((double)(bw_seen * downsample) / (1.0 - crop));
-    }
-    /* number of bins is power-of-two, bin size is under limit */
-    // todo, replace loop with log2
-    for (i=1; i<=21; i++) {
-        bin_e = i;
-        bin_size = (double)bw_used / (double)((1<<i) * downsample);
-        if (bin_size <= (double)max_size) {
-            break;}
-    }
-    /* unless giant bins */
-    if (max_size >= MINIMUM_RATE) {
-        bw_seen = max_size;
-        bw_used = max_size;
-        tune_count = (upper - lower) / bw_seen;
-        bin_e = 0;
-        crop = 0;
-    }
-    if (tune_count > MAX_TUNES) {
-        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: bandwidth too wide.\n");
-        backgroundProcessingFailed=1;
-        //exit(1);
-        return;
-    }
-    buf_len = 2 * (1<<bin_e) * downsample;
-    if (buf_len < DEFAULT_BUF_LENGTH) {
-        buf_len = DEFAULT_BUF_LENGTH;
+    stop = strchr(arg, ':');
+    if (stop == NULL) {
+        return -1;}
+    step = strchr(stop + 1, ':');
+    if (step == NULL) {
+        return -1;}
+    stop[0] = '\0';
+    step[0] = '\0';
+    key->lower = (int)atofs(arg);
+    key->upper = (int)atofs(stop + 1);
+    key->max_bin = (int)atofs(step + 1);
+    stop[0] = ':';
+    step[0] = ':';
+    return 0;
+}
+
+int frequency_range(const freq_plan_t *p)
+/* flesh out the tunes[] for scanning the plan, keeping the buffers that fit */
+{
+    int i, j, bin_len;
+    const freq_plan_record_t *r = p->record;
+    struct tuning_state *ts;
+    if (tunes_reserve(r->hop_count) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");
+        return -1;
     }
-    /* build the array */
-    for (i=0; i<tune_count; i++) {
+    bin_len = 1 << r->bin_e;
+    for (i=0; i<r->hop_count; i++) {
         ts = &tunes[i];
-        ts->freq = lower + i*bw_seen + bw_seen/2;
-        ts->rate = bw_used;
-        ts->bin_e = bin_e;
+        ts->freq = p->freq[i];
+        ts->rate = r->rate;
+        ts->bin_e = r->bin_e;
         ts->samples = 0;
-        ts->crop = crop;
-        ts->downsample = downsample;
-        ts->downsample_passes = downsample_passes;
-        ts->avg = (long*)malloc((1<<bin_e) * sizeof(long));
+        ts->crop = r->crop;
+        ts->downsample = r->downsample;
+        ts->downsample_passes = r->downsample_passes;
+        if (ts->avg_capacity < bin_len) {
+            free(ts->avg);
+            ts->avg = (double*)malloc(bin_len * sizeof(double));
+            ts->avg_capacity = ts->avg ? bin_len : 0;
+        }
         if (!ts->avg) {
             __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");
-            backgroundProcessingFailed=1;
-            //exit(1);
-            return;
+            return -1;
+        }
+        for (j=0; j<bin_len; j++) {
+            ts->avg[j] = 0.0;
         }
-        for (j=0; j<(1<<bin_e); j++) {
-            ts->avg[j] = 0L;
+        if (ts->buf_capacity < r->buf_len) {
+            free(ts->buf8);
+            ts->buf8 = (uint8_t*)malloc(r->buf_len * sizeof(uint8_t));
+            ts->buf_capacity = ts->buf8 ? r->buf_len : 0;
         }
-        ts->buf8 = (uint8_t*)malloc(buf_len * sizeof(uint8_t));
         if (!ts->buf8) {
             __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");
-            backgroundProcessingFailed=1;
-            //exit(1);
-            return;
+            return -1;
+        }
+        ts->buf_len = r->buf_len;
+        if (series_count == 0) {
+            ts->stats.n = 0;
+        } else if (power_stats_reserve(&ts->stats, bin_len, power_series_wants_histogram(series, series_count)) != 0) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");
+            return -1;
         }
-        ts->buf_len = buf_len;
-    }
-    /* report */
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Number of frequency hops: %i\n", tune_count);
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Dongle bandwidth: %iHz\n", bw_used);
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Downsampling by: %ix\n", downsample);
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Cropping by: %0.2f%%\n", crop*100);
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Total FFT bins: %i\n", tune_count * (1<<bin_e));
+    }
+    tune_count = r->hop_count;
+    return 0;
+}
+
+void report_plan(const freq_plan_t *p)
+{
+    const freq_plan_record_t *r = p->record;
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Number of frequency hops: %i\n", r->hop_count);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Dongle bandwidth: %iHz\n", r->rate);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Downsampling by: %ix\n", r->downsample);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Cropping by: %0.2f%%\n", r->crop*100);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Total FFT bins: %i\n", r->hop_count * (1<<r->bin_e));
     __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Logged FFT bins: %i\n", \
-	  (int)((double)(tune_count * (1<<bin_e)) * (1.0-crop)));
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "FFT bin size: %0.2fHz\n", bin_size);
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Buffer size: %i bytes (%0.2fms)\n", buf_len, 1000 * 0.5 * (float)buf_len / (float)bw_used);
+	  (int)((double)(r->hop_count * (1<<r->bin_e)) * (1.0-r->crop)));
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "FFT bin size: %0.2fHz\n", p->bin_size);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Buffer size: %i bytes (%0.2fms)\n", r->buf_len, 1000 * 0.5 * (float)r->buf_len / (float)r->rate);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Using the %s fft of %d points\n", p->fft.backend->name, p->fft.n);
 }
 
-void retune(rtlsdr_dev_t *d, int freq)
+/* how long the tuner is given after a retune, see settle_flush and async_read */
+int settle_us = 5000;
+
+void settle_flush(power_device_t *d)
 {
     uint8_t dump[BUFFER_DUMP];
     int n_read;
-    rtlsdr_set_center_freq(d, (uint32_t)freq);
     /* wait for settling and flush buffer */
-    usleep(5000);
-    rtlsdr_read_sync(d, &dump, BUFFER_DUMP, &n_read);
+    usleep(settle_us);
+    d->read_sync(d, &dump, BUFFER_DUMP, &n_read);
     if (n_read != BUFFER_DUMP) {
         __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: bad retune.\n");}
 }
@@ -1412,23 +1617,6 @@ void fifth_order(int16_t *data, int length)
     }
 }
 
-void remove_dc(int16_t *data, int length)
-/* works on interleaved data */
-{
-    int i;
-    int16_t ave;
-    long sum = 0L;
-    for (i=0; i < length; i+=2) {
-        sum += data[i];
-    }
-    ave = (int16_t)(sum / (long)(length));
-    if (ave == 0) {
-        return;}
-    for (i=0; i < length; i+=2) {
-        data[i] -= ave;
-    }
-}
-
 void generic_fir(int16_t *data, int length, int *fir)
 /* Okay, not at all generic.  Assumes length 9, fix that eventually. */
 {
@@ -1467,410 +1655,1786 @@ void downsample_iq(int16_t *data, int length)
     //remove_dc(data+1, length-1);
 }
 
-long real_conj(int16_t real, int16_t imag)
-/* real(n * conj(n)) */
+size_t hop_scratch_size(const power_fft_t *fft)
+/* the power of a block, then what the fft needs */
 {
-    return ((long)real*(long)real + (long)imag*(long)imag);
+    return fft->n * sizeof(double) + power_fft_scratch_size(fft);
 }
 
-void scanner(void)
+void process_hop(struct tuning_state *ts, int16_t *iq, void *scratch)
+/* fft and averaging of a hop read into ts->buf8, iq is scratch of buf_len,
+ * scratch is hop_scratch_size(scan_fft) */
 {
-    int i, j, j2, f, n_read, offset, bin_e, bin_len, buf_len, ds, ds_p;
-    int32_t w;
-    struct tuning_state *ts;
-    bin_e = tunes[0].bin_e;
-    bin_len = 1 << bin_e;
-    buf_len = tunes[0].buf_len;
-    for (i=0; i<tune_count; i++) {
-        if (do_exit >= 2)
-        {return;}
-        ts = &tunes[i];
-        f = (int)rtlsdr_get_center_freq(dev);
-        if (f != ts->freq) {
-            retune(dev, ts->freq);}
-        rtlsdr_read_sync(dev, ts->buf8, buf_len, &n_read);
-        if (n_read != buf_len) {
-            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: dropped samples.\n");}
-        /* rms */
-        if (bin_len == 1) {
-            rms_power(ts);
-            continue;
-        }
-        /* prep for fft */
-        for (j=0; j<buf_len; j++) {
-            fft_buf[j] = (int16_t)ts->buf8[j] - 127;
-        }
-        ds = ts->downsample;
-        ds_p = ts->downsample_passes;
-        if (boxcar && ds > 1) {
-            j=2, j2=0;
-            while (j < buf_len) {
-                fft_buf[j2]   += fft_buf[j];
-                fft_buf[j2+1] += fft_buf[j+1];
-                fft_buf[j] = 0;
-                fft_buf[j+1] = 0;
-                j += 2;
-                if (j % (ds*2) == 0) {
-                    j2 += 2;}
-            }
-        } else if (ds_p) {  /* recursive */
+    int j, offset, bin_len, buf_len, ds, ds_p;
+    dsp_dc_t dc;
+    double *block = (double *)scratch;
+    bin_len = 1 << ts->bin_e;
+    buf_len = ts->buf_len;
+    /* rms */
+    if (bin_len == 1) {
+        rms_power(ts);
+        return;
+    }
+    /* prep for fft */
+    ds = ts->downsample;
+    ds_p = ts->downsample_passes;
+    if (boxcar && ds > 1) {
+        dsp_u8_boxcar(ts->buf8, iq, buf_len, ds);
+        dsp_dc_sums(iq, buf_len / ds, &dc);
+    } else {
+        dsp_u8_to_iq(ts->buf8, iq, buf_len, &dc);
+        if (ds_p) {  /* recursive */
             for (j=0; j < ds_p; j++) {
-                downsample_iq(fft_buf, buf_len >> j);
+                downsample_iq(iq, buf_len >> j);
             }
             /* droop compensation */
             if (comp_fir_size == 9 && ds_p <= CIC_TABLE_MAX) {
-                generic_fir(fft_buf, buf_len >> j, cic_9_tables[ds_p]);
-                generic_fir(fft_buf+1, (buf_len >> j)-1, cic_9_tables[ds_p]);
-            }
-        }
-        remove_dc(fft_buf, buf_len / ds);
-        remove_dc(fft_buf+1, (buf_len / ds) - 1);
-        /* window function and fft */
-        for (offset=0; offset<(buf_len/ds); offset+=(2*bin_len)) {
-            // todo, let rect skip this
-            for (j=0; j<bin_len; j++) {
-                w =  (int32_t)fft_buf[offset+j*2];
-                w *= (int32_t)(window_coefs[j]);
-                //w /= (int32_t)(ds);
-                fft_buf[offset+j*2]   = (int16_t)w;
-                w =  (int32_t)fft_buf[offset+j*2+1];
-                w *= (int32_t)(window_coefs[j]);
-                //w /= (int32_t)(ds);
-                fft_buf[offset+j*2+1] = (int16_t)w;
-            }
-            fix_fft(fft_buf+offset, bin_e);
-            if (!peak_hold) {
-                for (j=0; j<bin_len; j++) {
-                    ts->avg[j] += real_conj(fft_buf[offset+j*2], fft_buf[offset+j*2+1]);
-                }
-            } else {
-                for (j=0; j<bin_len; j++) {
-                    ts->avg[j] = MAX(real_conj(fft_buf[offset+j*2], fft_buf[offset+j*2+1]), ts->avg[j]);
-                }
+                generic_fir(iq, buf_len >> j, cic_9_tables[ds_p]);
+                generic_fir(iq+1, (buf_len >> j)-1, cic_9_tables[ds_p]);
             }
-            ts->samples += ds;
         }
+        /* the sums of the conversion are only those of the hop without downsampling */
+        if (ds > 1) {
+            dsp_dc_sums(iq, buf_len / ds, &dc);}
+    }
+    dsp_remove_dc(iq, buf_len / ds, &dc);
+    /* window function and fft */
+    for (offset=0; offset<(buf_len/ds); offset+=(2*bin_len)) {
+        if (ts->stats.n) {
+            /* the extra series need the block by itself */
+            power_fft_segment(scan_fft, iq+offset, block + bin_len, block, DSP_POWER_SET);
+            power_stats_add(&ts->stats, block, ts->avg, peak_hold);
+        } else {
+            power_fft_segment(scan_fft, iq+offset, block + bin_len, ts->avg, peak_hold);}
+        ts->samples += ds;
     }
 }
 
-void csv_dbm(struct tuning_state *ts)
+/* with -t the hops are read on the scanning thread and handed to a pool of workers,
+ * so retuning and reading the next hop overlaps with the fft of the ones before it.
+ * every hop has its own buf8 and avg, a worker only needs its own fft buffers. */
+#define MAX_SCAN_THREADS 8
+
+struct scan_pool {
+    pthread_t threads[MAX_SCAN_THREADS];
+    int16_t *fft_bufs[MAX_SCAN_THREADS];
+    void *scratch[MAX_SCAN_THREADS];
+    int count;
+    int buf_len;
+    size_t scratch_len;
+    pthread_mutex_t lock;
+    pthread_cond_t work;  /* a hop was read, or the workers should stop */
+    pthread_cond_t idle;  /* a hop was processed */
+    int read;             /* hops of the sweep read so far, tunes[0..read) */
+    int taken;            /* hops a worker started on */
+    int processed;
+    int stop;
+};
+
+int scan_threads = 1;
+static struct scan_pool scan_pool = {
+    .lock = PTHREAD_MUTEX_INITIALIZER,
+    .work = PTHREAD_COND_INITIALIZER,
+    .idle = PTHREAD_COND_INITIALIZER,
+};
+
+static void *scan_worker(void *arg)
 {
-    int i, len, ds, i1, i2, bw2, bin_count;
-    long tmp;
-    double dbm;
-    len = 1 << ts->bin_e;
-    ds = ts->downsample;
-    /* fix FFT stuff quirks */
-    if (ts->bin_e > 0) {
-        /* nuke DC component (not effective for all windows) */
-        ts->avg[0] = ts->avg[1];
-        /* FFT is translated by 180 degrees */
-        for (i=0; i<len/2; i++) {
-            tmp = ts->avg[i];
-            ts->avg[i] = ts->avg[i+len/2];
-            ts->avg[i+len/2] = tmp;
+    int16_t *iq = scan_pool.fft_bufs[(intptr_t)arg];
+    void *scratch = scan_pool.scratch[(intptr_t)arg];
+    int i;
+    pthread_mutex_lock(&scan_pool.lock);
+    while (!scan_pool.stop) {
+        if (scan_pool.taken == scan_pool.read) {
+            pthread_cond_wait(&scan_pool.work, &scan_pool.lock);
+            continue;}
+        i = scan_pool.taken++;
+        pthread_mutex_unlock(&scan_pool.lock);
+        process_hop(&tunes[scan_order[i]], iq, scratch);
+        pthread_mutex_lock(&scan_pool.lock);
+        scan_pool.processed++;
+        pthread_cond_signal(&scan_pool.idle);
+    }
+    pthread_mutex_unlock(&scan_pool.lock);
+    return NULL;
+}
+
+/* only between sweeps, the workers must be idle */
+void scan_pool_stop(void)
+{
+    int i;
+    pthread_mutex_lock(&scan_pool.lock);
+    scan_pool.stop = 1;
+    pthread_cond_broadcast(&scan_pool.work);
+    pthread_mutex_unlock(&scan_pool.lock);
+    for (i=0; i<scan_pool.count; i++) {
+        pthread_join(scan_pool.threads[i], NULL);
+    }
+    for (i=0; i<MAX_SCAN_THREADS; i++) {
+        free(scan_pool.fft_bufs[i]);
+        free(scan_pool.scratch[i]);
+        scan_pool.fft_bufs[i] = NULL;
+        scan_pool.scratch[i] = NULL;
+    }
+    scan_pool.count = 0;
+    scan_pool.buf_len = 0;
+    scan_pool.scratch_len = 0;
+    scan_pool.stop = 0;
+}
+
+/* starts the workers, or keeps the running ones when their buffers still fit */
+int scan_pool_start(int threads, int buf_len, size_t scratch_len)
+{
+    int i;
+    if (threads > MAX_SCAN_THREADS) {
+        threads = MAX_SCAN_THREADS;}
+    if (scan_pool.count == threads && scan_pool.buf_len >= buf_len && scan_pool.scratch_len >= scratch_len) {
+        return 0;}
+    scan_pool_stop();
+    for (i=0; i<threads; i++) {
+        scan_pool.fft_bufs[i] = malloc(buf_len * sizeof(int16_t));
+        scan_pool.scratch[i] = malloc(scratch_len + 1);
+        if (scan_pool.fft_bufs[i] == NULL || scan_pool.scratch[i] == NULL) {
+            scan_pool_stop();
+            return -1;
         }
     }
-    /* Hz low, Hz high, Hz step, samples, dbm, dbm, ... */
-    bin_count = (int)((double)len * (1.0 - ts->crop));
-    bw2 = (int)(((double)ts->rate * (double)bin_count) / (len * 2 * ds));
-    fprintf(file, "%i, %i, %.2f, %i, ", ts->freq - bw2, ts->freq + bw2,
-            (double)ts->rate / (double)(len*ds), ts->samples);
-    /*__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "printing Hz low, Hz high, Hz step, samples");*/
+    scan_pool.buf_len = buf_len;
+    scan_pool.scratch_len = scratch_len;
+    scan_pool.read = scan_pool.taken = scan_pool.processed = 0;
+    for (i=0; i<threads; i++) {
+        if (pthread_create(&scan_pool.threads[i], NULL, scan_worker, (void *)(intptr_t)i) != 0) {
+            scan_pool_stop();
+            return -1;
+        }
+        scan_pool.count++;
+    }
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Started %d fft threads\n", threads);
+    return 0;
+}
 
-    // something seems off with the dbm math
-    i1 = 0 + (int)((double)len * ts->crop * 0.5);
-    i2 = (len-1) - (int)((double)len * ts->crop * 0.5);
-    /*__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "printing individual samples");*/
-    for (i=i1; i<=i2; i++) {
-        dbm  = (double)ts->avg[i];
-        dbm /= (double)ts->rate;
-        dbm /= (double)ts->samples;
-        dbm  = 10 * log10(dbm);
-        fprintf(file, "%.2f, ", dbm);
-    }
-    dbm = (double)ts->avg[i2] / ((double)ts->rate * (double)ts->samples);
-    if (ts->bin_e == 0) {
-        dbm = ((double)ts->avg[0] / \
-		((double)ts->rate * (double)ts->samples));}
-    dbm  = 10 * log10(dbm);
-    fprintf(file, "%.2f\n", dbm);
-    for (i=0; i<len; i++) {
-        ts->avg[i] = 0L;
+/*
+ * The hop schedule: the order the hops of a sweep are visited in, how long the
+ * tuner settles after a retune and the retries when its PLL does not lock.
+ *
+ * The settle time starts at -L or at what the tuner needs, measured on the
+ * samples of a few hops when a tuner of its type is first used, see
+ * settle_probe.h, and kept for the later recordings. It grows by half for
+ * the rest of the recording whenever the PLL fails to lock, up to four times
+ * the start. A retune that fails any other way, a lost USB transfer, is counted
+ * as an I/O error and not retried. The time spent on every hop is kept in
+ * hop_stats and handed to RTLPower.onHopStats when the recording ends.
+ */
+#define LOCK_RETRIES 3
+/* the settle time is measured on the samples of this many hops spread over the plan */
+#define SETTLE_PROBE_HOPS 5
+#define SETTLE_PROBE_MS 50
+/* what the probe can not see, the transfers still in flight when a retune was made */
+#define SETTLE_PROBE_MIN_US 500
+
+enum hop_order {
+    HOP_ORDER_UP,       /* lowest to highest frequency, as upstream rtl_power */
+    HOP_ORDER_ZIGZAG,   /* up, then down the next sweep, no jump back to the start */
+};
+
+static hop_stats_t *hop_stats = NULL;
+static int settle_start_us;
+/* the settle time measured per tuner type, on the first recording with one, 0 until then */
+#define TUNER_TYPES (RTLSDR_TUNER_R828D + 1)
+static int measured_settle_us[TUNER_TYPES];
+static int sweep_count;
+
+/* the settle time of a tuner type the probe could not measure, what rtl_power's
+ * BUFFER_DUMP gave every tuner before, less on the R82xx whose driver waits for the lock */
+static int tuner_settle_us(enum rtlsdr_tuner tuner)
+{
+    switch (tuner) {
+        case RTLSDR_TUNER_R820T:
+        case RTLSDR_TUNER_R828D:
+            /* set_pll already waits for the lock bit */
+            return 2000;
+        case RTLSDR_TUNER_E4000:
+        case RTLSDR_TUNER_FC0012:
+        case RTLSDR_TUNER_FC0013:
+        case RTLSDR_TUNER_FC2580:
+        default:
+            return 5000;
     }
-    ts->samples = 0;
 }
 
-int mainCOPIED(int argc, char **argv)
+/* the dongle behind power_device.h, ctx is its rtlsdr_dev_t */
+static int rtlsdr_device_set_sample_rate(power_device_t *d, uint32_t rate)
 {
-#ifndef _WIN32
-    struct sigaction sigact;
-#endif
-    char *filename = NULL;
-    int i, length, r, opt, wb_mode = 0;
-    int f_set = 0;
-    int gain = AUTO_GAIN; // tenths of a dB
-    int dev_index = 0;
-    int dev_given = 0;
-    int ppm_error = 0;
-    int interval = 10;
-    int fft_threads = 1;
-    int smoothing = 0;
-    int single = 0;
-    int direct_sampling = 0;
-    int offset_tuning = 0;
-    double crop = 0.0;
-    char *freq_optarg;
-    time_t next_tick;
-    time_t time_now;
-    time_t exit_time = 0;
-    char t_str[50];
-    struct tm *cal_time;
-    double (*window_fn)(int, int) = rectangle;
-    freq_optarg = "";
+    return rtlsdr_set_sample_rate((rtlsdr_dev_t *)d->ctx, rate);
+}
 
-    for( i = 0; i < argc; ++i ) {
-        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "ArgVar[%d] in Main: %s",i,  argv[i]);
+/* librtlsdr takes an R82xx that did not lock as tuned and fails an E4000 that did not,
+ * asking the tuner tells a missed lock from a failed transfer */
+static int rtlsdr_device_set_center_freq(power_device_t *d, uint32_t freq)
+{
+    rtlsdr_dev_t *dev = (rtlsdr_dev_t *)d->ctx;
+    enum rtlsdr_tuner tuner = rtlsdr_get_tuner_type(dev);
+    int r = rtlsdr_set_center_freq(dev, freq);
+    int ask = r == 0 ? tuner == RTLSDR_TUNER_R820T || tuner == RTLSDR_TUNER_R828D : tuner == RTLSDR_TUNER_E4000;
+    if (ask && rtlsdr_get_tuner_lock(dev) == 0) {
+        return POWER_DEVICE_NO_LOCK;}
+    return r;
+}
+
+static uint32_t rtlsdr_device_get_center_freq(power_device_t *d)
+{
+    return rtlsdr_get_center_freq((rtlsdr_dev_t *)d->ctx);
+}
+
+static int rtlsdr_device_set_gain(power_device_t *d, int gain)
+{
+    if (gain == POWER_DEVICE_AUTO_GAIN) {
+        return verbose_auto_gain((rtlsdr_dev_t *)d->ctx);}
+    return verbose_gain_set((rtlsdr_dev_t *)d->ctx, nearest_gain((rtlsdr_dev_t *)d->ctx, gain));
+}
+
+static int rtlsdr_device_set_freq_correction(power_device_t *d, int ppm)
+{
+    return verbose_ppm_set((rtlsdr_dev_t *)d->ctx, ppm);
+}
+
+static int rtlsdr_device_reset_buffer(power_device_t *d)
+{
+    return verbose_reset_buffer((rtlsdr_dev_t *)d->ctx);
+}
+
+static int rtlsdr_device_read_sync(power_device_t *d, void *buf, int len, int *n_read)
+{
+    return rtlsdr_read_sync((rtlsdr_dev_t *)d->ctx, buf, len, n_read);
+}
+
+static int rtlsdr_device_read_async(power_device_t *d, power_device_cb_t cb, void *cb_ctx, uint32_t buf_num, uint32_t buf_len)
+{
+    return rtlsdr_read_async((rtlsdr_dev_t *)d->ctx, cb, cb_ctx, buf_num, buf_len);
+}
+
+static int rtlsdr_device_cancel_async(power_device_t *d)
+{
+    return rtlsdr_cancel_async((rtlsdr_dev_t *)d->ctx);
+}
+
+/* the median over up to SETTLE_PROBE_HOPS of freqs of how long the samples take to settle
+ * after tuning there, see settle_probe.h, -1 if none could be read */
+static int measure_settle_us(power_device_t *d, const uint32_t *freqs, int count)
+{
+    uint32_t rate = rtlsdr_get_sample_rate((rtlsdr_dev_t *)d->ctx);
+    int64_t pairs = (int64_t)rate * SETTLE_PROBE_MS / 1000;
+    int len, n_read, i, j, us, measured = 0;
+    int settled[SETTLE_PROBE_HOPS];
+    uint8_t *buf;
+    if (rate == 0) {
+        return -1;}
+    /* enough blocks however few pairs a block needs at this rate, in whole USB transfers */
+    if (pairs < (int64_t)settle_probe_block_pairs(rate) * SETTLE_PROBE_MIN_BLOCKS * 2) {
+        pairs = (int64_t)settle_probe_block_pairs(rate) * SETTLE_PROBE_MIN_BLOCKS * 2;}
+    len = (int)((2 * pairs + 16383) & ~16383);
+    buf = malloc(len);
+    if (buf == NULL) {
+        return -1;}
+    for (i=0; i<count && measured<SETTLE_PROBE_HOPS; i++) {
+        if (d->set_center_freq(d, freqs[i]) < 0) {
+            continue;}
+        if (d->read_sync(d, buf, len, &n_read) < 0 || n_read != len) {
+            continue;}
+        us = settle_probe_us(buf, n_read, rate);
+        if (us < 0) {
+            continue;}
+        /* insertion sort, for the median */
+        for (j=measured; j>0 && settled[j-1]>us; j--) {
+            settled[j] = settled[j-1];}
+        settled[j] = us;
+        measured++;
+    }
+    free(buf);
+    if (measured == 0) {
+        return -1;}
+    us = settled[measured / 2];
+    return us < SETTLE_PROBE_MIN_US ? SETTLE_PROBE_MIN_US : us;
+}
+
+static int rtlsdr_device_settle_us(power_device_t *d, const uint32_t *freqs, int count)
+{
+    enum rtlsdr_tuner tuner = rtlsdr_get_tuner_type((rtlsdr_dev_t *)d->ctx);
+    int us;
+    if ((int)tuner < 0 || (int)tuner >= TUNER_TYPES) {
+        return tuner_settle_us(tuner);}
+    if (measured_settle_us[tuner] == 0) {
+        us = measure_settle_us(d, freqs, count);
+        if (us < 0) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unable to measure the settle time of tuner %d\n", tuner);
+            return tuner_settle_us(tuner);
+        }
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Measured %d us of settling on tuner %d\n", us, tuner);
+        measured_settle_us[tuner] = us;
     }
-    //set freq
-    f_set=1;
-    freq_optarg = argv[2];
+    return measured_settle_us[tuner];
+}
 
-    //set single shot
-    single=1;
-    //set output file
-    filename=argv[4];
+static void rtlsdr_device_close(power_device_t *d)
+{
+    rtlsdr_close((rtlsdr_dev_t *)d->ctx);
+    d->ctx = NULL;
+}
 
+static void rtlsdr_device_init(power_device_t *d, rtlsdr_dev_t *rtl_dev)
+{
+    memset(d, 0, sizeof(power_device_t));
+    d->name = "rtlsdr";
+    d->ctx = rtl_dev;
+    d->set_sample_rate = rtlsdr_device_set_sample_rate;
+    d->set_center_freq = rtlsdr_device_set_center_freq;
+    d->get_center_freq = rtlsdr_device_get_center_freq;
+    d->set_gain = rtlsdr_device_set_gain;
+    d->set_freq_correction = rtlsdr_device_set_freq_correction;
+    d->reset_buffer = rtlsdr_device_reset_buffer;
+    d->read_sync = rtlsdr_device_read_sync;
+    d->read_async = rtlsdr_device_read_async;
+    d->cancel_async = rtlsdr_device_cancel_async;
+    d->settle_us = rtlsdr_device_settle_us;
+    d->close = rtlsdr_device_close;
+}
 
-/*
-    while ((opt = getopt(argc, argv, "f:i:s:t:d:g:p:e:w:c:F:1PDOh")) != -1) {
-        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "getOpt in C: %c", (char)opt);
-        switch (opt) {
-            case 'f': // lower:upper:bin_size
-                freq_optarg = strdup(optarg);
-                f_set = 1;
-                break;
-            case 'd':
-                dev_index = verbose_device_search(optarg);
-                dev_given = 1;
-                break;
+/* grows tunes[], scan_order[] and hop_stats[] to count hops, the new tunes without buffers */
+static int tunes_reserve(int count)
+{
+    struct tuning_state *grown;
+    int *order;
+    hop_stats_t *stats;
+    if (count <= tunes_capacity) {
+        return 0;}
+    grown = realloc(tunes, count * sizeof(struct tuning_state));
+    if (grown == NULL) {
+        return -1;}
+    memset(grown + tunes_capacity, 0, (count - tunes_capacity) * sizeof(struct tuning_state));
+    tunes = grown;
+    order = realloc(scan_order, count * sizeof(int));
+    if (order == NULL) {
+        return -1;}
+    scan_order = order;
+    stats = realloc(hop_stats, count * sizeof(hop_stats_t));
+    if (stats == NULL) {
+        return -1;}
+    hop_stats = stats;
+    tunes_capacity = count;
+    return 0;
+}
+
+static int64_t now_us(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+/* the settle time for the tuner and fresh stats, called once the dongle is open */
+void schedule_start(int fixed_settle_us)
+{
+    int i, probes = tune_count < SETTLE_PROBE_HOPS ? tune_count : SETTLE_PROBE_HOPS;
+    uint32_t probe_freqs[SETTLE_PROBE_HOPS];
+    for (i=0; i<probes; i++) {
+        probe_freqs[i] = (uint32_t)tunes[i * tune_count / probes].freq;
+    }
+    if (fixed_settle_us > 0) {
+        settle_start_us = fixed_settle_us;
+    } else {
+        /* a replay has no tuner */
+        settle_start_us = device != NULL && !replay_enabled ? device->settle_us(device, probe_freqs, probes) : 0;
+    }
+    settle_us = settle_start_us;
+    sweep_count = 0;
+    memset(hop_stats, 0, tune_count * sizeof(hop_stats_t));
+    for (i=0; i<tune_count; i++) {
+        hop_stats[i].freq = tunes[i].freq;
+    }
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Settling %d us after a retune\n", settle_us);
+}
+
+static void schedule_sweep(int order)
+{
+    int i;
+    int down = order == HOP_ORDER_ZIGZAG && (sweep_count % 2) == 1;
+    for (i=0; i<tune_count; i++) {
+        scan_order[i] = down ? tune_count - 1 - i : i;
+    }
+    sweep_count++;
+}
+
+/* tunes to the hop unless the dongle is there already, returns 1 if it retuned.
+ * a missed PLL lock is tried again with a longer settle time, a failed transfer is not. */
+static int tune_hop(struct tuning_state *ts, hop_stats_t *st)
+{
+    int attempt, r = 0;
+    int64_t start;
+    if ((int)device->get_center_freq(device) == ts->freq) {
+        return 0;}
+    start = now_us();
+    for (attempt=0; attempt<=LOCK_RETRIES; attempt++) {
+        r = device->set_center_freq(device, (uint32_t)ts->freq);
+        if (r != POWER_DEVICE_NO_LOCK) {
+            break;}
+        st->lock_failures++;
+        if (settle_us < 4 * settle_start_us) {
+            settle_us = settle_us * 3 / 2;}
+        usleep(settle_us);
+    }
+    if (r == POWER_DEVICE_NO_LOCK) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: no PLL lock at %d Hz.\n", ts->freq);
+    } else if (r < 0) {
+        st->io_errors++;
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: failed to tune to %d Hz (%d).\n", ts->freq, r);
+    }
+    st->tune_us += now_us() - start;
+    st->retunes++;
+    return 1;
+}
+
+/* without -y the dongle streams for the whole recording into a ring of ASYNC_BUF_NUM
+ * transfers and the callback copies the samples of the hop being read into its buf8,
+ * instead of starting a bulk transfer for every read. after a retune the transfers
+ * in flight, which may hold samples of the old frequency, and settle_us are dropped. */
+#define ASYNC_BUF_NUM 4
+#define ASYNC_BUF_LEN (8 * 1024)
+#define ASYNC_WAIT_MS 100
+
+struct async_reader {
+    pthread_t thread;
+    int running;        /* the thread was started */
+    int ended;          /* read_async returned */
+    pthread_mutex_t lock;
+    pthread_cond_t filled;  /* dst is full, or the stream ended */
+    uint8_t *dst;       /* the hop being read, NULL drops the samples */
+    int need;
+    int got;
+    int skip_transfers;
+    int skip_bytes;
+};
+
+static struct async_reader async_reader = {
+    .lock = PTHREAD_MUTEX_INITIALIZER,
+    .filled = PTHREAD_COND_INITIALIZER,
+};
+
+static void wait_ms(pthread_cond_t *cond, pthread_mutex_t *lock, int ms)
+{
+    struct timeval tp;
+    struct timespec ts;
+    gettimeofday(&tp, NULL);
+    ts.tv_sec = tp.tv_sec;
+    ts.tv_nsec = tp.tv_usec * 1000 + ms * 1000000L;
+    ts.tv_sec += ts.tv_nsec / 1000000000L;
+    ts.tv_nsec = ts.tv_nsec % 1000000000L;
+    pthread_cond_timedwait(cond, lock, &ts);
+}
+
+static void async_callback(unsigned char *buf, uint32_t len, void *ctx)
+{
+    int n, offset;
+    pthread_mutex_lock(&async_reader.lock);
+    if (async_reader.dst == NULL) {
+        pthread_mutex_unlock(&async_reader.lock);
+        return;
+    }
+    if (async_reader.skip_transfers > 0) {
+        async_reader.skip_transfers--;
+        pthread_mutex_unlock(&async_reader.lock);
+        return;
+    }
+    offset = async_reader.skip_bytes < (int)len ? async_reader.skip_bytes : (int)len;
+    async_reader.skip_bytes -= offset;
+    n = (int)len - offset;
+    if (n > async_reader.need - async_reader.got) {
+        n = async_reader.need - async_reader.got;}
+    memcpy(async_reader.dst + async_reader.got, buf + offset, n);
+    async_reader.got += n;
+    if (async_reader.got == async_reader.need) {
+        async_reader.dst = NULL;
+        pthread_cond_signal(&async_reader.filled);
+    }
+    pthread_mutex_unlock(&async_reader.lock);
+}
+
+static void *async_thread(void *arg)
+{
+    int r = device->read_async(device, async_callback, NULL, ASYNC_BUF_NUM, ASYNC_BUF_LEN);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Async reads finished with %d\n", r);
+    pthread_mutex_lock(&async_reader.lock);
+    async_reader.ended = 1;
+    pthread_cond_broadcast(&async_reader.filled);
+    pthread_mutex_unlock(&async_reader.lock);
+    return NULL;
+}
+
+int async_start(void)
+{
+    async_reader.dst = NULL;
+    async_reader.ended = 0;
+    if (pthread_create(&async_reader.thread, NULL, async_thread, NULL) != 0) {
+        return -1;}
+    async_reader.running = 1;
+    return 0;
+}
+
+void async_stop(void)
+{
+    if (!async_reader.running) {
+        return;}
+    pthread_mutex_lock(&async_reader.lock);
+    async_reader.dst = NULL;
+    /* a cancel before read_async got going is lost, repeat it until the stream ends */
+    while (!async_reader.ended) {
+        device->cancel_async(device);
+        wait_ms(&async_reader.filled, &async_reader.lock, ASYNC_WAIT_MS);
+    }
+    pthread_mutex_unlock(&async_reader.lock);
+    pthread_join(async_reader.thread, NULL);
+    async_reader.running = 0;
+}
+
+/* waits for the samples of a hop, returns -1 if the stream ended or the recording was aborted */
+static int async_read(struct tuning_state *ts, int retuned)
+{
+    int r;
+    pthread_mutex_lock(&async_reader.lock);
+    async_reader.need = ts->buf_len;
+    async_reader.got = 0;
+    async_reader.skip_transfers = retuned ? ASYNC_BUF_NUM : 0;
+    async_reader.skip_bytes = retuned ? (int)((int64_t)ts->rate * 2 * settle_us / 1000000) & ~1 : 0;
+    async_reader.dst = ts->buf8;
+    while (async_reader.dst != NULL && !async_reader.ended && do_exit < 2) {
+        wait_ms(&async_reader.filled, &async_reader.lock, ASYNC_WAIT_MS);}
+    r = async_reader.dst == NULL ? 0 : -1;
+    async_reader.dst = NULL;
+    pthread_mutex_unlock(&async_reader.lock);
+    return r;
+}
+
+void scanner(int order)
+{
+    int i, n_read, buf_len, retuned;
+    int pipelined = scan_pool.count > 0;
+    struct tuning_state *ts;
+    hop_stats_t *st;
+    int64_t start;
+    buf_len = tunes[0].buf_len;
+    schedule_sweep(order);
+    if (pipelined) {
+        pthread_mutex_lock(&scan_pool.lock);
+        scan_pool.read = scan_pool.taken = scan_pool.processed = 0;
+        pthread_mutex_unlock(&scan_pool.lock);
+    }
+    for (i=0; i<tune_count; i++) {
+        if (do_exit >= 2)
+        {break;}
+        ts = &tunes[scan_order[i]];
+        st = &hop_stats[scan_order[i]];
+        retuned = replay_enabled ? 0 : tune_hop(ts, st);
+        if (replay_enabled) {
+            start = now_us();
+            if (iq_replay_read(&replay, ts->buf8, buf_len) != buf_len) {
+                /* the capture is used up, this hop is left out */
+                replay_ended = 1;
+                break;
+            }
+        } else if (async_reader.running) {
+            /* the settle time is dropped from the stream, it counts as reading */
+            start = now_us();
+            if (async_read(ts, retuned) != 0) {
+                if (async_reader.ended) {
+                    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: the sample stream ended.\n");
+                    backgroundProcessingFailed=1;
+                    do_exit = 1;
+                }
+                break;
+            }
+            if (retuned) {
+                st->settle_us += settle_us;}
+        } else {
+            if (retuned) {
+                start = now_us();
+                settle_flush(device);
+                st->settle_us += now_us() - start;
+            }
+            start = now_us();
+            device->read_sync(device, ts->buf8, buf_len, &n_read);
+            if (n_read != buf_len) {
+                __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: dropped samples.\n");}
+        }
+        st->read_us += now_us() - start;
+        st->reads++;
+        if (!pipelined) {
+            process_hop(ts, fft_buf, fft_scratch);
+            continue;
+        }
+        pthread_mutex_lock(&scan_pool.lock);
+        scan_pool.read++;
+        pthread_cond_signal(&scan_pool.work);
+        pthread_mutex_unlock(&scan_pool.lock);
+    }
+    if (pipelined) {
+        /* emit_dbm reads the averages and the next sweep reads into the same buf8 */
+        pthread_mutex_lock(&scan_pool.lock);
+        while (scan_pool.processed < scan_pool.read) {
+            pthread_cond_wait(&scan_pool.idle, &scan_pool.lock);}
+        pthread_mutex_unlock(&scan_pool.lock);
+    }
+}
+
+int emit_series(struct tuning_state *ts, power_hop_t *hop, int s, int i1, int i2)
+/* the bins i1..i2 of an extra series, in the order emit_dbm turned avg into */
+{
+    int i, raw, len;
+    double scale;
+    len = 1 << ts->bin_e;
+    /* a block holds samples/blocks of the samples the mean is divided by */
+    scale = (double)ts->rate * ((double)ts->samples / (double)ts->stats.blocks);
+    hop->series = s;
+    hop->bin_count = 0;
+    for (i=i1; i<=i2; i++) {
+        raw = 0;
+        if (len > 1) {
+            /* translated by 180 degrees and the dc bin nuked, like avg */
+            raw = (i + len/2) % len;
+            if (raw == 0) {
+                raw = 1;}
+        }
+        hop_dbm[hop->bin_count++] = 10 * log10(power_stats_value(&ts->stats, raw, s) / scale);
+    }
+    return power_sinks_hop(&sinks, hop, hop_dbm);
+}
+
+void emit_dbm(struct tuning_state *ts)
+{
+    int i, len, ds, i1, i2, bw2, bin_count;
+    double tmp;
+    double dbm;
+    power_hop_t hop;
+    len = 1 << ts->bin_e;
+    hop.series = POWER_SERIES_MEAN;
+    ds = ts->downsample;
+    /* fix FFT stuff quirks */
+    if (ts->bin_e > 0) {
+        /* nuke DC component (not effective for all windows) */
+        ts->avg[0] = ts->avg[1];
+        /* FFT is translated by 180 degrees */
+        for (i=0; i<len/2; i++) {
+            tmp = ts->avg[i];
+            ts->avg[i] = ts->avg[i+len/2];
+            ts->avg[i+len/2] = tmp;
+        }
+    }
+    /* Hz low, Hz high, Hz step, samples, dbm, dbm, ... */
+    bin_count = (int)((double)len * (1.0 - ts->crop));
+    bw2 = (int)(((double)ts->rate * (double)bin_count) / (len * 2 * ds));
+    hop.freq_low = ts->freq - bw2;
+    hop.freq_high = ts->freq + bw2;
+    hop.step = (double)ts->rate / (double)(len*ds);
+    hop.samples = ts->samples;
+
+    // something seems off with the dbm math
+    i1 = 0 + (int)((double)len * ts->crop * 0.5);
+    i2 = (len-1) - (int)((double)len * ts->crop * 0.5);
+    if (hop_dbm_len < len) {
+        free(hop_dbm);
+        hop_dbm = malloc(len * sizeof(double));
+        hop_dbm_len = hop_dbm != NULL ? len : 0;
+    }
+    if (hop_dbm == NULL) {
+        /* a hop without its bins is no row, stop like a sink that failed */
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");
+        backgroundProcessingFailed=1;
+        do_exit = 1;
+    } else {
+        hop.bin_count = 0;
+        for (i=i1; i<=i2; i++) {
+            dbm  = ts->avg[i];
+            dbm /= (double)ts->rate;
+            dbm /= (double)ts->samples;
+            dbm  = 10 * log10(dbm);
+            hop_dbm[hop.bin_count++] = dbm;
+        }
+        if (power_sinks_hop(&sinks, &hop, hop_dbm) != 0) {
+            backgroundProcessingFailed=1;
+            do_exit = 1;}
+        for (i=0; i<series_count && ts->stats.n && ts->stats.blocks; i++) {
+            if (emit_series(ts, &hop, series[i], i1, i2) != 0) {
+                backgroundProcessingFailed=1;
+                do_exit = 1;}
+        }
+    }
+    if (ts->stats.n) {
+        power_stats_reset(&ts->stats);}
+    for (i=0; i<len; i++) {
+        ts->avg[i] = 0.0;
+    }
+    ts->samples = 0;
+}
+
+/* the csv rtl_power always wrote, one line per hop */
+static char csv_time[50];
+
+static int csv_begin_integration(power_sink_t *sink, int64_t timestamp)
+{
+    time_t t = (time_t)timestamp;
+    strftime(csv_time, sizeof(csv_time), "%Y-%m-%d, %H:%M:%S", localtime(&t));
+    return 0;
+}
+
+static void csv_line(FILE *out, const power_hop_t *hop, const double *dbm)
+{
+    int i;
+    fprintf(out, "%s, ", csv_time);
+    fprintf(out, "%i, %i, %.2f, %i, ", hop->freq_low, hop->freq_high, hop->step, hop->samples);
+    for (i=0; i<hop->bin_count; i++) {
+        fprintf(out, "%.2f, ", dbm[i]);
+    }
+    /* the last bin is printed twice, readers expect it */
+    fprintf(out, "%.2f\n", hop->bin_count > 0 ? dbm[hop->bin_count - 1] : -INFINITY);
+}
+
+static int csv_hop(power_sink_t *sink, const power_hop_t *hop, const double *dbm)
+{
+    if (hop->series == POWER_SERIES_MEAN) {
+        csv_line(file, hop, dbm);}
+    return 0;
+}
+
+static int csv_end_integration(power_sink_t *sink)
+{
+    return fflush(file) == 0 ? 0 : -1;
+}
+
+/* the same lines for every extra series, in a csv next to the csv, e.g. sweep.p90.csv */
+static FILE *series_files[POWER_SERIES_LIMIT];
+
+static char *series_path(const char *csv, int s)
+{
+    char name[16];
+    const char *dot = strrchr(csv, '.');
+    const char *slash = strrchr(csv, '/');
+    size_t stem = dot != NULL && (slash == NULL || dot > slash) ? (size_t)(dot - csv) : strlen(csv);
+    char *path;
+    power_series_name(s, name, sizeof(name));
+    path = malloc(strlen(csv) + strlen(name) + 2);
+    if (path == NULL) {
+        return NULL;}
+    memcpy(path, csv, stem);
+    sprintf(path + stem, ".%s%s", name, csv + stem);
+    return path;
+}
+
+static int series_csv_hop(power_sink_t *sink, const power_hop_t *hop, const double *dbm)
+{
+    int i;
+    for (i=0; i<series_count; i++) {
+        if (series[i] == hop->series) {
+            csv_line(series_files[i], hop, dbm);}
+    }
+    return 0;
+}
+
+static int series_csv_end_integration(power_sink_t *sink)
+{
+    int i;
+    for (i=0; i<series_count; i++) {
+        if (fflush(series_files[i]) != 0) {
+            return -1;}
+    }
+    return 0;
+}
+
+static void close_series_files(void)
+{
+    int i;
+    for (i=0; i<POWER_SERIES_LIMIT; i++) {
+        if (series_files[i] != NULL) {
+            fclose(series_files[i]);}
+        series_files[i] = NULL;
+    }
+}
+
+/* opens the csv of every extra series next to the csv, 0 if all of them could be */
+static int open_series_files(const char *csv)
+{
+    int i;
+    char *path;
+    for (i=0; i<series_count; i++) {
+        path = series_path(csv, series[i]);
+        series_files[i] = path != NULL ? fopen(path, "wb") : NULL;
+        if (series_files[i] == NULL) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open %s\n", path != NULL ? path : csv);
+            free(path);
+            close_series_files();
+            return -1;
+        }
+        free(path);
+    }
+    return 0;
+}
+
+static int rtlp_sink_begin_integration(power_sink_t *sink, int64_t timestamp)
+{
+    rtlp_begin_integration(&rtlp, timestamp);
+    return 0;
+}
+
+static int rtlp_sink_hop(power_sink_t *sink, const power_hop_t *hop, const double *dbm)
+{
+    int i;
+    if (hop->series != POWER_SERIES_MEAN) {
+        return 0;}
+    rtlp_begin_hop(&rtlp, hop->freq_low, hop->freq_high, (float)hop->step, hop->samples);
+    for (i=0; i<hop->bin_count; i++) {
+        rtlp_add_dbm(&rtlp, dbm[i]);}
+    return 0;
+}
+
+static int rtlp_sink_end_integration(power_sink_t *sink)
+{
+    return rtlp_end_integration(&rtlp);
+}
+
+static int sweepidx_sink_begin_integration(power_sink_t *sink, int64_t timestamp)
+{
+    // every sink begins before any of them writes, so these are where the integration starts
+    sweepidx_begin_integration(&sweepidx, timestamp, file != NULL && file != stdout ? (int64_t)ftell(file) : -1,
+                               rtlp_enabled ? rtlp_tell(&rtlp) : -1);
+    return 0;
+}
+
+static int sweepidx_sink_hop(power_sink_t *sink, const power_hop_t *hop, const double *dbm)
+{
+    int i;
+    if (hop->series != POWER_SERIES_MEAN) {
+        return 0;}
+    sweepidx_begin_hop(&sweepidx, hop->freq_low, hop->freq_high);
+    for (i=0; i<hop->bin_count; i++) {
+        sweepidx_add_dbm(&sweepidx, dbm[i]);}
+    return 0;
+}
+
+static int sweepidx_sink_end_integration(power_sink_t *sink)
+{
+    return sweepidx_end_integration(&sweepidx);
+}
+
+static power_sink_t csv_sink = { NULL, NULL, 0, csv_begin_integration, csv_hop, csv_end_integration, 0 };
+static power_sink_t rtlp_sink = { NULL, NULL, 1, rtlp_sink_begin_integration, rtlp_sink_hop, rtlp_sink_end_integration, 0 };
+static power_sink_t sweepidx_sink = { NULL, NULL, 0, sweepidx_sink_begin_integration, sweepidx_sink_hop, sweepidx_sink_end_integration, 0 };
+static power_sink_t series_sink = { "the series csv files", NULL, 0, csv_begin_integration, series_csv_hop, series_csv_end_integration, 0 };
+
+/* template with every BATCH_TOKEN replaced by id, the caller frees it */
+static char *batch_path(const char *template, const char *id)
+{
+    size_t token_len = strlen(BATCH_TOKEN);
+    size_t id_len = strlen(id);
+    size_t len = strlen(template);
+    const char *hit;
+    char *path, *out;
+    for (hit = strstr(template, BATCH_TOKEN); hit != NULL; hit = strstr(hit + token_len, BATCH_TOKEN)) {
+        len = len - token_len + id_len;}
+    path = malloc(len + 1);
+    if (path == NULL) {
+        return NULL;}
+    out = path;
+    while ((hit = strstr(template, BATCH_TOKEN)) != NULL) {
+        memcpy(out, template, (size_t)(hit - template));
+        out += hit - template;
+        memcpy(out, id, id_len);
+        out += id_len;
+        template = hit + token_len;
+    }
+    strcpy(out, template);
+    return path;
+}
+
+/*
+ * opens the csv, .rtlp and .idx files of batch_id and lists them with the Java
+ * stream as the sinks of the batch, only a missing index is not fatal
+ */
+static int open_outputs(void)
+{
+    rtlp_header_t header = globalBatchInfo;
+    free(csv_path);
+    free(rtlp_path);
+    free(sweepidx_path);
+    csv_path = csv_template != NULL ? batch_path(csv_template, batch_id) : NULL;
+    rtlp_path = rtlp_template != NULL ? batch_path(rtlp_template, batch_id) : NULL;
+    sweepidx_path = sweepidx_template != NULL ? batch_path(sweepidx_template, batch_id) : NULL;
+    power_sinks_clear(&sinks);
+
+    if (csv_path == NULL) {
+        /* only streaming */
+        file = NULL;
+    } else if (strcmp(csv_path, "-") == 0) { /* Write log to stdout */
+        file = stdout;
+#ifdef _WIN32
+        // Is this necessary?  Output is ascii.
+		_setmode(_fileno(file), _O_BINARY);
+#endif
+    } else {
+        file = fopen(csv_path, "wb");
+        if (!file) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open %s\n", csv_path);
+            return -1;
+        }
+    }
+    if (file != NULL) {
+        csv_sink.name = csv_path;
+        power_sinks_add(&sinks, &csv_sink);}
+    /* the series have no place on stdout, the mean is all rtl_power ever wrote there */
+    if (file != NULL && file != stdout && series_count > 0 && open_series_files(csv_path) == 0) {
+        power_sinks_add(&sinks, &series_sink);}
+
+    rtlp_enabled = 0;
+    if (rtlp_path != NULL) {
+        header.batch_id = batch_id;
+        if (rtlp_open(&rtlp, rtlp_path, &header) != 0) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open %s\n", rtlp_path);
+            rtlp_close(&rtlp);
+            if (file != NULL && file != stdout) {
+                fclose(file);}
+            file = NULL;
+            return -1;
+        }
+        rtlp_enabled = 1;
+        rtlp_sink.name = rtlp_path;
+        power_sinks_add(&sinks, &rtlp_sink);
+    }
+
+    sweepidx_enabled = 0;
+    if (sweepidx_path != NULL) {
+        if (sweepidx_open(&sweepidx, sweepidx_path) != 0) {
+            // the index can be rebuilt from the data, carry on without it
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open %s\n", sweepidx_path);
+            sweepidx_close(&sweepidx);
+        } else {
+            sweepidx_enabled = 1;
+            sweepidx_sink.name = sweepidx_path;
+            power_sinks_add(&sinks, &sweepidx_sink);}
+    }
+
+    if (stream_enabled) {
+        power_sinks_add(&sinks, &stream_sink);}
+    return 0;
+}
+
+static void close_outputs(void)
+{
+    if (file != NULL && file != stdout) {
+        fclose(file);}
+    file = NULL;
+    close_series_files();
+    if (rtlp_enabled) {
+        rtlp_close(&rtlp);
+        rtlp_enabled = 0;}
+    if (sweepidx_enabled) {
+        sweepidx_close(&sweepidx);
+        sweepidx_enabled = 0;}
+}
+
+/*
+ * The scanner as an engine that outlives a recording: configure() parses the
+ * options and builds the frequency plan, sweep() records with it and close()
+ * lets go of the dongle. The dongle stays open and the tables and buffers stay
+ * allocated between recordings, they are only rebuilt when the plan changes.
+ * There is one engine per process, the scanner state is global.
+ */
+struct power_options {
+    /* owned copies, argv can be freed after configure */
+    char *freq_range;
+    char *csv_filename;
+    char *rtlp_filename;
+    char *sweepidx_filename;
+    char *replay_filename;
+    char *synth_spec;
+    int gain;
+    int ppm_error;
+    int interval;
+    int single;
+    int roll_count;
+    int roll_time;
+    int stream;
+    int sync_reads;
+    int hop_order;
+    int settle_us;
+    int direct_sampling;
+    int offset_tuning;
+    int exit_time;
+    double crop;
+    double (*window_fn)(int, int);
+    const power_fft_backend_t *fft_backend;
+};
+
+/* the tuner settings last applied to the open dongle */
+struct device_settings {
+    int gain;
+    int ppm_error;
+    int direct_sampling;
+    int offset_tuning;
+};
+
+static struct power_options options;
+/* the plans built so far and the one the tunes are fleshed out for */
+static freq_plan_cache_t plan_cache;
+static const freq_plan_t *plan;
+static struct device_settings applied;
+static int device_fd = -1;
+/* the spec the simulated dongle was opened with */
+static char *device_spec = NULL;
+static int configured = 0;
+static pthread_mutex_t engine_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static char *copy_option(char *old, const char *value)
+{
+    free(old);
+    return value != NULL ? strdup(value) : NULL;
+}
+
+static void engine_free_buffers(void)
+{
+    int i;
+    scan_pool_stop();
+    for (i=0; i<tunes_capacity; i++) {
+        free(tunes[i].avg);
+        free(tunes[i].buf8);
+        power_stats_free(&tunes[i].stats);
+    }
+    free(tunes);
+    free(scan_order);
+    free(hop_stats);
+    tunes = NULL;
+    scan_order = NULL;
+    hop_stats = NULL;
+    tunes_capacity = 0;
+    tune_count = 0;
+    free(fft_buf);
+    fft_buf = NULL;
+    fft_buf_len = 0;
+    free(fft_scratch);
+    fft_scratch = NULL;
+    fft_scratch_len = 0;
+    scan_fft = NULL;
+    free(hop_dbm);
+    hop_dbm = NULL;
+    hop_dbm_len = 0;
+    plan = NULL;
+    freq_plan_cache_clear(&plan_cache);
+}
+
+/* takes the plan from the cache, or builds it, and fleshes out the tunes and fft buffers for it */
+static int engine_plan(void)
+{
+    freq_plan_key_t key;
+    const freq_plan_t *p;
+    int error, misses;
+    size_t scratch_len;
+    memset(&key, 0, sizeof(key));
+    if (parse_range(options.freq_range, &key) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: frequency range %s is not lower:upper:bin_size.\n", options.freq_range);
+        return -1;
+    }
+    key.crop = options.crop;
+    key.boxcar = boxcar;
+    key.window_fn = options.window_fn;
+    key.fft_backend = options.fft_backend;
+    misses = plan_cache.misses;
+    p = freq_plan_get(&plan_cache, &key, MAX_TUNES, &error);
+    if (p == NULL) {
+        if (error == FREQ_PLAN_TOO_WIDE) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: bandwidth too wide.\n");
+        } else if (error == FREQ_PLAN_BAD_RANGE) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: no hops in %s.\n", options.freq_range);
+        } else {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");}
+        return -1;
+    }
+    if (plan_cache.misses == misses) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Reusing the plan for %s\n", options.freq_range);
+    } else {
+        report_plan(p);}
+
+    if (power_series_wants_histogram(series, series_count) && (double)p->record->hop_count * (1 << p->record->bin_e)
+            * POWER_STATS_BUCKETS * sizeof(uint32_t) > SERIES_HISTOGRAM_LIMIT) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: too many bins for percentiles, use larger bins.\n");
+        return -1;
+    }
+    plan = NULL;
+    scan_fft = NULL;
+    if (frequency_range(p) != 0) {
+        return -1;}
+    if (fft_buf_len < p->record->buf_len) {
+        free(fft_buf);
+        fft_buf = malloc(p->record->buf_len * sizeof(int16_t));
+        fft_buf_len = fft_buf != NULL ? p->record->buf_len : 0;
+    }
+    scratch_len = hop_scratch_size(&p->fft) + 1;
+    if (fft_scratch_len < scratch_len) {
+        free(fft_scratch);
+        fft_scratch = malloc(scratch_len);
+        fft_scratch_len = fft_scratch != NULL ? scratch_len : 0;
+    }
+    if (fft_buf == NULL || fft_scratch == NULL) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: malloc.\n");
+        return -1;
+    }
+    plan = p;
+    scan_fft = &p->fft;
+    return 0;
+}
+
+static int engine_configure(int argc, char **argv)
+{
+    int i, opt;
+    int f_set = 0;
+
+    for( i = 0; i < argc; ++i ) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "ArgVar[%d] in Main: %s",i,  argv[i]);
+    }
+    configured = 0;
+    backgroundProcessingFailed = 0;
+    options.csv_filename = copy_option(options.csv_filename, NULL);
+    options.rtlp_filename = copy_option(options.rtlp_filename, NULL);
+    options.sweepidx_filename = copy_option(options.sweepidx_filename, NULL);
+    options.replay_filename = copy_option(options.replay_filename, NULL);
+    options.synth_spec = copy_option(options.synth_spec, NULL);
+    options.gain = AUTO_GAIN; // tenths of a dB
+    options.ppm_error = 0;
+    options.interval = 10;
+    options.single = 0;
+    options.roll_count = 0;
+    options.roll_time = 0;
+    options.stream = 0;
+    options.sync_reads = 0;
+    options.hop_order = HOP_ORDER_UP;
+    options.settle_us = 0;
+    options.direct_sampling = 0;
+    options.offset_tuning = 0;
+    options.exit_time = 0;
+    options.crop = 0.0;
+    options.window_fn = rectangle;
+    options.fft_backend = &power_fft_fixed;
+    boxcar = 1;
+    comp_fir_size = 0;
+    peak_hold = 0;
+    series_count = 0;
+    scan_threads = 1;
+
+    //getopt keeps its position in globals, start over for every recording
+    optind = 0;
+    while ((opt = getopt(argc, argv, "f:i:s:t:d:g:p:e:w:c:F:a:A:b:x:n:R:r:z:H:L:S1PDOyh")) != -1) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "getOpt in C: %c", (char)opt);
+        switch (opt) {
+            case 'f': // lower:upper:bin_size
+                options.freq_range = copy_option(options.freq_range, optarg);
+                f_set = 1;
+                break;
+            case 'd':
+                //the dongle is the one RTLPower passed the fd of
+                break;
             case 'g':
-                gain = (int)(atof(optarg) * 10);
+                options.gain = (int)(atof(optarg) * 10);
                 break;
             case 'c':
-                crop = atofp(optarg);
+                options.crop = atofp(optarg);
                 break;
             case 'i':
-                interval = (int)round(atoft(optarg));
+                options.interval = (int)round(atoft(optarg));
                 break;
             case 'e':
-                exit_time = (time_t)((int)round(atoft(optarg)));
+                options.exit_time = (int)round(atoft(optarg));
                 break;
             case 's':
-                if (strcmp("avg",  optarg) == 0) {
-                    smoothing = 0;}
-                if (strcmp("iir",  optarg) == 0) {
-                    smoothing = 1;}
+                //only avg smoothing is implemented
                 break;
             case 'w':
                 if (strcmp("rectangle",  optarg) == 0) {
-                    window_fn = rectangle;}
+                    options.window_fn = rectangle;}
                 if (strcmp("hamming",  optarg) == 0) {
-                    window_fn = hamming;}
+                    options.window_fn = hamming;}
                 if (strcmp("blackman",  optarg) == 0) {
-                    window_fn = blackman;}
+                    options.window_fn = blackman;}
                 if (strcmp("blackman-harris",  optarg) == 0) {
-                    window_fn = blackman_harris;}
+                    options.window_fn = blackman_harris;}
                 if (strcmp("hann-poisson",  optarg) == 0) {
-                    window_fn = hann_poisson;}
+                    options.window_fn = hann_poisson;}
                 if (strcmp("youssef",  optarg) == 0) {
-                    window_fn = youssef;}
+                    options.window_fn = youssef;}
                 if (strcmp("kaiser",  optarg) == 0) {
-                    window_fn = kaiser;}
+                    options.window_fn = kaiser;}
                 if (strcmp("bartlett",  optarg) == 0) {
-                    window_fn = bartlett;}
+                    options.window_fn = bartlett;}
                 break;
             case 't':
-                fft_threads = atoi(optarg);
+                scan_threads = atoi(optarg);
+                if (scan_threads < 1) {
+                    scan_threads = 1;}
                 break;
             case 'p':
-                ppm_error = atoi(optarg);
+                options.ppm_error = atoi(optarg);
                 break;
             case '1':
-                single = 1;
+                options.single = 1;
                 break;
             case 'P':
                 peak_hold = 1;
                 break;
             case 'D':
-                direct_sampling = 1;
+                options.direct_sampling = 1;
                 break;
             case 'O':
-                offset_tuning = 1;
+                options.offset_tuning = 1;
+                break;
+            case 'y':
+                options.sync_reads = 1;
+                break;
+            case 'H':
+                if (strcmp("up", optarg) == 0) {
+                    options.hop_order = HOP_ORDER_UP;
+                } else if (strcmp("zigzag", optarg) == 0) {
+                    options.hop_order = HOP_ORDER_ZIGZAG;
+                } else {
+                    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unknown hop order %s, use up or zigzag.\n", optarg);
+                    backgroundProcessingFailed=1;
+                    return -1;
+                }
+                break;
+            case 'L':
+                options.settle_us = atoi(optarg);
                 break;
             case 'F':
                 boxcar = 0;
                 comp_fir_size = atoi(optarg);
                 break;
+            case 'a':
+                options.fft_backend = power_fft_backend(optarg);
+                if (options.fft_backend == NULL) {
+                    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unknown fft %s, use fixed or float.\n", optarg);
+                    backgroundProcessingFailed=1;
+                    return -1;
+                }
+                break;
+            case 'A':
+                series_count = power_series_parse(optarg, series, POWER_SERIES_LIMIT);
+                if (series_count < 0) {
+                    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unknown series %s, use e.g. min,max,p10,p50,p90.\n", optarg);
+                    series_count = 0;
+                    backgroundProcessingFailed=1;
+                    return -1;
+                }
+                break;
+            case 'b':
+                options.rtlp_filename = copy_option(options.rtlp_filename, optarg);
+                break;
+            case 'x':
+                options.sweepidx_filename = copy_option(options.sweepidx_filename, optarg);
+                break;
+            case 'n':
+                options.roll_count = atoi(optarg);
+                break;
+            case 'R':
+                options.roll_time = (int)round(atoft(optarg));
+                break;
+            case 'S':
+                options.stream = 1;
+                break;
+            case 'r':
+                options.replay_filename = copy_option(options.replay_filename, optarg);
+                break;
+            case 'z':
+                options.synth_spec = copy_option(options.synth_spec, optarg);
+                break;
             case 'h':
             default:
                 usage();
                 break;
         }
     }
-    */
 
     if (!f_set) {
         __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "No frequency range provided.\n");
         backgroundProcessingFailed=1;
-        //exit(1);
-        return 0;
+        return -1;
     }
 
-    if ((crop < 0.0) || (crop > 1.0)) {
+    if ((options.crop < 0.0) || (options.crop > 1.0)) {
         __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Crop value outside of 0 to 1.\n");
         backgroundProcessingFailed=1;
-        //exit(1);
-        return 0;
+        return -1;
     }
 
-    frequency_range(freq_optarg, crop);
-
-    if (tune_count == 0) {
-        usage();}
-/*
     if (argc <= optind) {
-        filename = "-";
+        /* streaming to Java needs no csv */
+        options.csv_filename = copy_option(options.csv_filename, options.stream ? NULL : "-");
     } else {
-        filename = argv[optind];
+        options.csv_filename = copy_option(options.csv_filename, argv[optind]);
     }
-*/
-    if (interval < 1) {
-        interval = 1;}
 
-    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Reporting every %i seconds\n", interval);
+    if (options.interval < 1) {
+        options.interval = 1;}
 
-    //the value of dev_given is set to TRUE (1) IF the user specified a value for argument -d
-    //if (!dev_given) {
-    //    dev_index = verbose_device_search("0");
-    //}
-
-    if (dev_index < 0) {
+    if ((options.roll_count > 0 || options.roll_time > 0) && (options.single
+            || (options.csv_filename != NULL && strstr(options.csv_filename, BATCH_TOKEN) == NULL)
+            || (options.rtlp_filename != NULL && strstr(options.rtlp_filename, BATCH_TOKEN) == NULL)
+            || (options.sweepidx_filename != NULL && strstr(options.sweepidx_filename, BATCH_TOKEN) == NULL))) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Rolling batches need %s in every file name and no -1\n", BATCH_TOKEN);
         backgroundProcessingFailed=1;
-        //exit(1);
-        return 0;
+        return -1;
     }
-    //original line commented out
-    //r = rtlsdr_open(&dev, (uint32_t)dev_index);
-    r = rtlsdr_open2(&dev, globalFD, globalDevicePath);
-    if (r < 0) {
-        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open rtlsdr device #%d.\n", dev_index);
+
+    if (engine_plan() != 0) {
         backgroundProcessingFailed=1;
-        //exit(1);
-        return 0;
+        return -1;
     }
-#ifndef _WIN32
-    sigact.sa_handler = sighandler;
-    sigemptyset(&sigact.sa_mask);
-    sigact.sa_flags = 0;
-    sigaction(SIGINT, &sigact, NULL);
-    sigaction(SIGTERM, &sigact, NULL);
-    sigaction(SIGQUIT, &sigact, NULL);
-    sigaction(SIGPIPE, &sigact, NULL);
-#else
-    SetConsoleCtrlHandler( (PHANDLER_ROUTINE) sighandler, TRUE );
-#endif
+    if (scan_threads <= 1) {
+        scan_pool_stop();
+    } else if (scan_pool_start(scan_threads, tunes[0].buf_len, hop_scratch_size(scan_fft)) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unable to start fft threads, scanning on one\n");}
+    configured = 1;
+    return 0;
+}
+
+static void engine_close_device(void)
+{
+    if (device != NULL) {
+        device->close(device);}
+    device = NULL;
+    dev = NULL;
+    device_fd = -1;
+    free(device_spec);
+    device_spec = NULL;
+}
+
+/* the spec of -z, or the one PowerEngine.openSynthetic passed, NULL for the dongle */
+static const char *source_spec(void)
+{
+    return options.synth_spec != NULL ? options.synth_spec : globalSynthSpec;
+}
 
-    if (direct_sampling) {
-        verbose_direct_sampling(dev, 1);
+/* the open device is the one asked for */
+static int device_is_source(const char *spec)
+{
+    if (spec != NULL) {
+        return device == &synth_device && strcmp(device_spec, spec) == 0;}
+    return device == &rtlsdr_device && device_fd == globalFD;
+}
+
+/* opens the simulated dongle of spec, 0 on success */
+static int engine_open_synth(const char *spec)
+{
+    synth_config_t config;
+    if (synth_config_parse(&config, spec) != 0 || synth_device_open(&synth_device, &config) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to simulate a dongle of %s.\n", spec);
+        return -1;
     }
+    device = &synth_device;
+    device_spec = strdup(spec);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Simulating a dongle of %s.\n", spec);
+    return 0;
+}
 
-    if (offset_tuning) {
-        verbose_offset_tuning(dev);
+/* opens the dongle RTLPower passed the fd of, or the simulated one, unless it is open already, and applies the tuner settings */
+static int engine_open_device(void)
+{
+    int r;
+    const char *spec = source_spec();
+    if (device != NULL && !device_is_source(spec)) {
+        engine_close_device();}
+    if (device == NULL) {
+        if (spec != NULL) {
+            if (engine_open_synth(spec) != 0) {
+                return -1;}
+        } else {
+            //original line commented out
+            //r = rtlsdr_open(&dev, (uint32_t)dev_index);
+            r = rtlsdr_open2(&dev, globalFD, globalDevicePath);
+            if (r < 0) {
+                __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open rtlsdr device #%d.\n", 0);
+                dev = NULL;
+                return -1;
+            }
+            rtlsdr_device_init(&rtlsdr_device, dev);
+            device = &rtlsdr_device;
+            device_fd = globalFD;
+        }
+        memset(&applied, 0, sizeof(applied));
+        applied.gain = AUTO_GAIN - 1;
+
+        /* the simulated dongle has neither mode, it ignores them */
+        if (options.direct_sampling && dev != NULL) {
+            verbose_direct_sampling(dev, 1);
+            applied.direct_sampling = 1;
+        }
+        if (options.offset_tuning && dev != NULL) {
+            verbose_offset_tuning(dev);
+            applied.offset_tuning = 1;
+        }
+    } else if (dev != NULL && (options.direct_sampling != applied.direct_sampling || options.offset_tuning != applied.offset_tuning)) {
+        // these modes are not switched off again, start over with a fresh dongle
+        engine_close_device();
+        return engine_open_device();
     }
 
     /* Set the tuner gain */
-    if (gain == AUTO_GAIN) {
-        verbose_auto_gain(dev);
-    } else {
-        gain = nearest_gain(dev, gain);
-        verbose_gain_set(dev, gain);
+    if (options.gain != applied.gain) {
+        device->set_gain(device, options.gain);
+        applied.gain = options.gain;
     }
 
-    verbose_ppm_set(dev, ppm_error);
+    if (options.ppm_error != applied.ppm_error) {
+        device->set_freq_correction(device, options.ppm_error);
+        applied.ppm_error = options.ppm_error;
+    }
+    return 0;
+}
 
-    if (strcmp(filename, "-") == 0) { /* Write log to stdout */
-        file = stdout;
-#ifdef _WIN32
-        // Is this necessary?  Output is ascii.
-		_setmode(_fileno(file), _O_BINARY);
-#endif
-    } else {
-        file = fopen(filename, "wb");
-        if (!file) {
-            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to open %s\n", filename);
+/* opens the capture of -r, unless the dongle is read, 0 on success */
+static int replay_start(void)
+{
+    replay_enabled = 0;
+    replay_ended = 0;
+    if (options.replay_filename == NULL) {
+        return 0;}
+    if (iq_replay_open(&replay, options.replay_filename) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unable to replay %s, it is no capture.\n", options.replay_filename);
+        return -1;
+    }
+    if (replay.header.sample_rate != (uint32_t)tunes[0].rate) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Error: the plan samples at %d Hz and the capture at %u Hz, pick -f around the capture.\n",
+                            tunes[0].rate, replay.header.sample_rate);
+        iq_replay_close(&replay);
+        return -1;
+    }
+    if (tune_count != 1 || tunes[0].freq != (int)replay.header.frequency) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "The capture was tuned to %u Hz, every hop gets the samples that come next.\n",
+                            replay.header.frequency);}
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Replaying %llu samples of %s\n",
+                        (unsigned long long)replay.samples, options.replay_filename);
+    replay_enabled = 1;
+    return 0;
+}
+
+static void replay_stop(void)
+{
+    if (replay_enabled) {
+        iq_replay_close(&replay);}
+    replay_enabled = 0;
+}
+
+/* the clock integrations are stamped with, the capture's when replaying */
+static time_t sweep_time(void)
+{
+    if (replay_enabled) {
+        return (time_t)(iq_replay_time_us(&replay) / 1000000);}
+    return time(NULL);
+}
+
+static int engine_sweep(void)
+{
+    int i, r = 0;
+    int batch_integrations = 0;
+    time_t batch_end = 0;
+    time_t next_tick;
+    time_t time_now;
+    time_t exit_time = 0;
+    struct tm *cal_time;
+
+    if (!configured) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Not configured.\n");
+        backgroundProcessingFailed=1;
+        return 0;
+    }
+    backgroundProcessingFailed = 0;
+    csv_template = options.csv_filename;
+    rtlp_template = options.rtlp_filename;
+    sweepidx_template = options.sweepidx_filename;
+
+    if (replay_start() != 0) {
+        backgroundProcessingFailed=1;
+        return 0;
+    }
+    stream_enabled = 0;
+    if (options.stream) {
+        if (stream_open() != 0) {
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unable to stream to Java\n");
             backgroundProcessingFailed=1;
-            //exit(1);
+            replay_stop();
             return 0;
         }
+        stream_enabled = 1;
+    }
+    //the first batch is the one the app asked for, later ones are named after their first sweep
+    if (globalBatchInfo.batch_id != NULL) {
+        snprintf(batch_id, sizeof(batch_id), "%s", globalBatchInfo.batch_id);
+    } else {
+        time_now = sweep_time();
+        strftime(batch_id, sizeof(batch_id), "%Y%m%d-%H%M%S", localtime(&time_now));
     }
 
-    /* Reset endpoint before we start reading from it (mandatory) */
-    verbose_reset_buffer(dev);
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Reporting every %i seconds\n", options.interval);
 
-    /* actually do stuff */
-    rtlsdr_set_sample_rate(dev, (uint32_t)tunes[0].rate);
-    sine_table(tunes[0].bin_e);
-    next_tick = time(NULL) + interval;
-    if (exit_time) {
-        exit_time = time(NULL) + exit_time;}
-    fft_buf = malloc(tunes[0].buf_len * sizeof(int16_t));
-    length = 1 << tunes[0].bin_e;
-    window_coefs = malloc(length * sizeof(int));
-    for (i=0; i<length; i++) {
-        window_coefs[i] = (int)(256*window_fn(i, length));
+    if (!replay_enabled && engine_open_device() != 0) {
+        backgroundProcessingFailed=1;
+        stream_close();
+        stream_enabled = 0;
+        //exit(1);
+        return 0;
     }
+
+    if (open_outputs() != 0) {
+        close_outputs();
+        stream_close();
+        stream_enabled = 0;
+        replay_stop();
+        backgroundProcessingFailed=1;
+        //exit(1);
+        return 0;
+    }
+
+    if (!replay_enabled) {
+        /* Reset endpoint before we start reading from it (mandatory) */
+        device->reset_buffer(device);
+        device->set_sample_rate(device, (uint32_t)tunes[0].rate);
+    }
+
+    /* actually do stuff */
+    schedule_start(options.settle_us);
+    if (!options.sync_reads && !replay_enabled && async_start() != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Unable to stream, reading every hop\n");}
+    next_tick = sweep_time() + options.interval;
+    if (options.exit_time) {
+        exit_time = sweep_time() + options.exit_time;}
+    if (options.roll_time) {
+        batch_end = sweep_time() + options.roll_time;}
     while (!do_exit) {
-        scanner();
-        time_now = time(NULL);
-        if (time_now < next_tick) {
+        scanner(options.hop_order);
+        time_now = sweep_time();
+        if (replay_ended) {
+            /* what is left of the capture makes a last integration if every hop got samples */
+            for (i=0; i<tune_count && tunes[i].samples > 0; i++) {}
+            if (i < tune_count) {
+                break;}
+        } else if (time_now < next_tick) {
             continue;}
         // time, Hz low, Hz high, Hz step, samples, dbm, dbm, ...
         cal_time = localtime(&time_now);
-        strftime(t_str, 50, "%Y-%m-%d, %H:%M:%S", cal_time);
-        /*__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "==== CSV row start ====");*/
+        if (batch_integrations > 0 && ((options.roll_count && batch_integrations >= options.roll_count)
+                || (options.roll_time && time_now >= batch_end))) {
+            // the batch is complete, hand it over while the next one is recorded
+            close_outputs();
+            notify_batch_finished(batch_id);
+            strftime(batch_id, sizeof(batch_id), "%Y%m%d-%H%M%S", cal_time);
+            __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Rolling over to batch %s\n", batch_id);
+            batch_integrations = 0;
+            batch_end = time_now + options.roll_time;
+            if (open_outputs() != 0) {
+                backgroundProcessingFailed=1;
+                break;
+            }
+        }
+        if (power_sinks_begin_integration(&sinks, (int64_t)time_now) != 0) {
+            backgroundProcessingFailed=1;
+            do_exit = 1;}
         for (i=0; i<tune_count; i++) {
-            fprintf(file, "%s, ", t_str);
-            /*__android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG","printing timestamp");*/
-            csv_dbm(&tunes[i]);
+            emit_dbm(&tunes[i]);
         }
-        fflush(file);
-        while (time(NULL) >= next_tick) {
-            next_tick += interval;}
-        if (single) {
+        if (power_sinks_end_integration(&sinks) != 0) {
+            backgroundProcessingFailed=1;
+            do_exit = 1;}
+        batch_integrations++;
+        while (sweep_time() >= next_tick) {
+            next_tick += options.interval;}
+        if (options.single) {
             do_exit = 1;}
-        if (exit_time && time(NULL) >= exit_time) {
+        if (exit_time && sweep_time() >= exit_time) {
             do_exit = 1;}
+        if (replay_ended) {
+            break;}
     }
 
     /* clean up */
+    async_stop();
+    replay_stop();
 
-    if (do_exit) {
+    if (do_exit || replay_ended) {
         __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Recording complete, exiting...\n");}
     else {
         __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Library error %d, exiting...\n", r);}
 
-    if (file != stdout) {
-        fclose(file);}
-
-    rtlsdr_close(dev);
-    free(fft_buf);
-    free(window_coefs);
-    //for (i=0; i<tune_count; i++) {
-    //	free(tunes[i].avg);
-    //	free(tunes[i].buf8);
-    //}
+    close_outputs();
+    if ((options.roll_count > 0 || options.roll_time > 0) && batch_integrations > 0) {
+        notify_batch_finished(batch_id);}
+    notify_hop_stats(hop_stats, tune_count, sizeof(hop_stats_t));
+    power_sinks_clear(&sinks);
+    stream_close();
+    stream_enabled = 0;
+    csv_template = rtlp_template = sweepidx_template = NULL;
     return r >= 0 ? r : -r;
 }
 
+/* a capture keeps every USB buffer, larger transfers than the scanner's and a ring well ahead of storage */
+#define CAPTURE_BUF_NUM 15
+#define CAPTURE_BUF_LEN (16 * 16384)
+#define CAPTURE_SLOT_LEN (1 << 20)
+#define CAPTURE_SLOTS 16
+
+struct capture_run {
+    iq_capture_t capture;
+    uint64_t remaining;     /* sample bytes still to capture */
+};
+
+static void capture_callback(unsigned char *buf, uint32_t len, void *ctx)
+{
+    struct capture_run *run = (struct capture_run *)ctx;
+    if (do_exit || run->remaining == 0) {
+        device->cancel_async(device);
+        return;
+    }
+    if (len > run->remaining) {
+        len = (uint32_t)run->remaining;}
+    iq_capture_push(&run->capture, buf, len);
+    run->remaining -= len;
+    if (run->remaining == 0) {
+        device->cancel_async(device);}
+}
+
+/* writes samples IQ pairs at frequency to path, see iq_capture.h, the gain in tenths of a dB */
+static int engine_capture(const char *path, uint32_t frequency, uint32_t rate, int gain, int ppm, uint64_t samples)
+{
+    static struct capture_run run;
+    iq_capture_header_t header;
+    struct timeval tv;
+    int saved_gain = options.gain;
+    int saved_ppm = options.ppm_error;
+    int r;
+
+    // the dongle takes the capture's tuner settings, the next sweep puts its own back
+    options.gain = gain == IQ_CAPTURE_AUTO_GAIN ? AUTO_GAIN : gain;
+    options.ppm_error = ppm;
+    r = engine_open_device();
+    options.gain = saved_gain;
+    options.ppm_error = saved_ppm;
+    if (r != 0) {
+        return -1;}
+    if (device->set_sample_rate(device, rate) < 0 || device->set_center_freq(device, frequency) < 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to tune to %u Hz at %u S/s.\n", frequency, rate);
+        return -1;
+    }
+    device->reset_buffer(device);
+
+    memset(&header, 0, sizeof(header));
+    header.sample_rate = rate;
+    header.frequency = frequency;
+    header.gain = gain;
+    header.ppm = ppm;
+    gettimeofday(&tv, NULL);
+    header.start_us = (int64_t)tv.tv_sec * 1000000 + tv.tv_usec;
+    if (iq_capture_open(&run.capture, path, &header, CAPTURE_SLOT_LEN, CAPTURE_SLOTS, samples * 2) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to create %s for %llu samples.\n", path,
+                            (unsigned long long)samples);
+        return -1;
+    }
+    run.remaining = samples * 2;
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Capturing %llu samples at %u Hz to %s\n",
+                        (unsigned long long)samples, frequency, path);
+    r = device->read_async(device, capture_callback, &run, CAPTURE_BUF_NUM, CAPTURE_BUF_LEN);
+    if (r < 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Async reads failed with %d\n", r);}
+    if (iq_capture_close(&run.capture) != 0) {
+        __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Failed to write %s.\n", path);
+        r = -1;
+    }
+    __android_log_print(ANDROID_LOG_DEBUG, "RTL_LOG", "Captured %llu samples, dropped %llu from %u buffers\n",
+                        (unsigned long long)run.capture.header.samples,
+                        (unsigned long long)run.capture.header.dropped_samples,
+                        run.capture.header.dropped_buffers);
+    return r < 0 ? -1 : 0;
+}
+
+/* lets go of the dongle and every buffer, the next sweep needs configure again */
+static void engine_close(void)
+{
+    engine_close_device();
+    engine_free_buffers();
+    configured = 0;
+    options.freq_range = copy_option(options.freq_range, NULL);
+    options.csv_filename = copy_option(options.csv_filename, NULL);
+    options.rtlp_filename = copy_option(options.rtlp_filename, NULL);
+    options.sweepidx_filename = copy_option(options.sweepidx_filename, NULL);
+    options.replay_filename = copy_option(options.replay_filename, NULL);
+    options.synth_spec = copy_option(options.synth_spec, NULL);
+}
+
+int power_engine_configure(int argc, char **argv)
+{
+    int r;
+    pthread_mutex_lock(&engine_lock);
+    r = engine_configure(argc, argv);
+    pthread_mutex_unlock(&engine_lock);
+    return r;
+}
+
+int power_engine_sweep(void)
+{
+    int r;
+    pthread_mutex_lock(&engine_lock);
+    r = engine_sweep();
+    if (backgroundProcessingFailed) {
+        // the dongle may be gone, open it again next time
+        engine_close_device();}
+    pthread_mutex_unlock(&engine_lock);
+    return r;
+}
+
+int power_engine_hop_stats(hop_stats_t *stats, int max)
+{
+    int count;
+    pthread_mutex_lock(&engine_lock);
+    count = hop_stats == NULL ? 0 : tune_count < max ? tune_count : max;
+    if (count > 0) {
+        memcpy(stats, hop_stats, count * sizeof(hop_stats_t));}
+    pthread_mutex_unlock(&engine_lock);
+    return count;
+}
+
+void power_engine_close(void)
+{
+    if (pthread_mutex_trylock(&engine_lock) != 0) {
+        // a sweep is running, abort it after the current hop
+        do_exit = 2;
+        pthread_mutex_lock(&engine_lock);
+    }
+    engine_close();
+    pthread_mutex_unlock(&engine_lock);
+}
+
+int power_engine_capture(const char *path, uint32_t frequency, uint32_t rate, int gain, int ppm, uint64_t samples)
+{
+    int r;
+    pthread_mutex_lock(&engine_lock);
+    r = engine_capture(path, frequency, rate, gain, ppm, samples);
+    if (r != 0) {
+        engine_close_device();}
+    pthread_mutex_unlock(&engine_lock);
+    return r;
+}
+
+/* a copy of the record of the configured plan for FrequencyPlan, NULL unless configured */
+static jbyteArray power_engine_plan(JNIEnv *env)
+{
+    jbyteArray record = NULL;
+    pthread_mutex_lock(&engine_lock);
+    if (configured && plan != NULL) {
+        record = (*env)->NewByteArray(env, (jsize)plan->record_size);
+        if (record != NULL) {
+            (*env)->SetByteArrayRegion(env, record, 0, (jsize)plan->record_size, (const jbyte *)plan->record);}
+    }
+    pthread_mutex_unlock(&engine_lock);
+    return record;
+}
+
 // vim: tabstop=8:softtabstop=8:shiftwidth=8:noexpandtab
@@ -0,0 +1,53 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include "settle_probe.h"
+
+/* the mean power of pairs IQ pairs from iq, the 8 bit samples centred on 127.5 */
+static double block_power(const uint8_t * iq, int pairs) {
+	double sum = 0, i, q;
+	int k;
+	for (k = 0; k < pairs; k++) {
+		i = iq[2 * k] - 127.5;
+		q = iq[2 * k + 1] - 127.5;
+		sum += i * i + q * q;
+	}
+	return sum / pairs;
+}
+
+int settle_probe_block_pairs(uint32_t rate) {
+	int pairs = (int) ((uint64_t) rate * SETTLE_PROBE_BLOCK_US / 1000000);
+	return pairs < SETTLE_PROBE_MIN_PAIRS ? SETTLE_PROBE_MIN_PAIRS : pairs;
+}
+
+int settle_probe_us(const uint8_t * iq, int len, uint32_t rate) {
+	int pairs = settle_probe_block_pairs(rate);
+	int blocks, tail, b, settled = 0;
+	double settled_power = 0, db;
+	blocks = len / 2 / pairs;
+	if (blocks < SETTLE_PROBE_MIN_BLOCKS)
+		return -1;
+	tail = blocks - blocks / 4;
+	for (b = tail; b < blocks; b++)
+		settled_power += block_power(iq + 2 * b * pairs, pairs);
+	settled_power /= blocks - tail;
+	for (b = 0; b < tail; b++) {
+		db = 10 * log10(block_power(iq + 2 * b * pairs, pairs) / settled_power);
+		if (fabs(db) > SETTLE_PROBE_DB)
+			settled = b + 1;
+	}
+	return (int) ((int64_t) settled * pairs * 1000000 / rate);
+}
@@ -0,0 +1,47 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SETTLE_PROBE_H_
+#define SETTLE_PROBE_H_
+
+/*
+ * How long a tuner takes to settle, measured on the samples read straight
+ * after a retune instead of guessed per tuner.
+ *
+ * The samples are cut into blocks of SETTLE_PROBE_BLOCK_US, but no fewer than
+ * SETTLE_PROBE_MIN_PAIRS IQ pairs so the noise of a block does not pass for a
+ * swing, and the power of each is compared with that of the last quarter,
+ * where the tuner has long settled. The tuner has settled after the last block more than
+ * SETTLE_PROBE_DB away from it: the PLL and the filters swing the power while
+ * they settle, and samples of the old frequency still in the USB buffers
+ * count as settling too, so the measure errs on the long side.
+ */
+
+#include <stdint.h>
+
+#define SETTLE_PROBE_BLOCK_US 250
+#define SETTLE_PROBE_MIN_PAIRS 1024
+#define SETTLE_PROBE_DB 1.0
+/* fewer blocks are too few to tell the settled power */
+#define SETTLE_PROBE_MIN_BLOCKS 16
+
+/* the IQ pairs of a block at rate */
+int settle_probe_block_pairs(uint32_t rate);
+
+/* us from the first of len bytes of 8 bit IQ pairs at rate until they settled,
+ * -1 if they are too few */
+int settle_probe_us(const uint8_t * iq, int len, uint32_t rate);
+
+#endif /* SETTLE_PROBE_H_ */
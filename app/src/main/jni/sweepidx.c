@@ -0,0 +1,160 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include "rtlp.h"
+#include "sweepidx.h"
+
+static void put_bytes(sweepidx_writer_t * writer, const void * data, size_t len) {
+	if (writer->failed) return;
+	if (fwrite(data, 1, len, writer->file) != len) writer->failed = 1;
+}
+
+static void put_u8(sweepidx_writer_t * writer, uint8_t v) {
+	put_bytes(writer, &v, 1);
+}
+
+static void put_u16(sweepidx_writer_t * writer, uint16_t v) {
+	uint8_t p[2] = { (uint8_t) v, (uint8_t) (v >> 8) };
+	put_bytes(writer, p, 2);
+}
+
+static void put_u32(sweepidx_writer_t * writer, uint32_t v) {
+	uint8_t p[4] = { (uint8_t) v, (uint8_t) (v >> 8), (uint8_t) (v >> 16), (uint8_t) (v >> 24) };
+	put_bytes(writer, p, 4);
+}
+
+static void put_u64(sweepidx_writer_t * writer, uint64_t v) {
+	put_u32(writer, (uint32_t) v);
+	put_u32(writer, (uint32_t) (v >> 32));
+}
+
+int sweepidx_open(sweepidx_writer_t * writer, const char * path) {
+	memset(writer, 0, sizeof(sweepidx_writer_t));
+	writer->file = fopen(path, "wb");
+	if (writer->file == NULL) return -1;
+	put_bytes(writer, SWEEPIDX_MAGIC, 4);
+	put_u16(writer, SWEEPIDX_VERSION);
+	put_u16(writer, 8);
+	if (!writer->failed && fflush(writer->file) != 0) writer->failed = 1;
+	return writer->failed ? -1 : 0;
+}
+
+void sweepidx_begin_integration(sweepidx_writer_t * writer, int64_t timestamp, int64_t csv_offset, int64_t rtlp_offset) {
+	writer->timestamp = timestamp;
+	writer->csv_offset = csv_offset;
+	writer->rtlp_offset = rtlp_offset;
+	writer->hop_count = 0;
+	writer->min = INFINITY;
+	writer->max = -INFINITY;
+	writer->sum = 0;
+	writer->finite_bins = 0;
+}
+
+void sweepidx_begin_hop(sweepidx_writer_t * writer, int32_t freq_low, int32_t freq_high) {
+	if (writer->hop_count == writer->hop_capacity) {
+		int capacity = writer->hop_capacity == 0 ? 256 : writer->hop_capacity * 2;
+		int32_t * low = (int32_t *) realloc(writer->hop_low, capacity * sizeof(int32_t));
+		if (low != NULL) writer->hop_low = low;
+		int32_t * high = (int32_t *) realloc(writer->hop_high, capacity * sizeof(int32_t));
+		if (high != NULL) writer->hop_high = high;
+		int16_t * max = (int16_t *) realloc(writer->hop_max, capacity * sizeof(int16_t));
+		if (max != NULL) writer->hop_max = max;
+		if (low == NULL || high == NULL || max == NULL) {
+			writer->failed = 1;
+			return;
+		}
+		writer->hop_capacity = capacity;
+	}
+	writer->hop_low[writer->hop_count] = freq_low;
+	writer->hop_high[writer->hop_count] = freq_high;
+	writer->hop_max[writer->hop_count] = RTLP_DBM_NEG_INF;
+	writer->hop_count++;
+}
+
+void sweepidx_add_dbm(sweepidx_writer_t * writer, double dbm) {
+	if (writer->hop_count == 0 || isnan(dbm)) return;
+	int16_t centi = rtlp_centi_db(dbm);
+	int16_t * hop_max = &writer->hop_max[writer->hop_count - 1];
+	if (centi > *hop_max) *hop_max = centi;
+	if (dbm < writer->min) writer->min = dbm;
+	if (dbm > writer->max) writer->max = dbm;
+	if (isfinite(dbm)) {
+		writer->sum += dbm;
+		writer->finite_bins++;
+	}
+}
+
+static int layout_changed(sweepidx_writer_t * writer) {
+	return writer->layout_count != writer->hop_count
+		|| memcmp(writer->layout_low, writer->hop_low, writer->hop_count * sizeof(int32_t)) != 0
+		|| memcmp(writer->layout_high, writer->hop_high, writer->hop_count * sizeof(int32_t)) != 0;
+}
+
+static void write_layout(sweepidx_writer_t * writer) {
+	int i;
+	free(writer->layout_low);
+	free(writer->layout_high);
+	writer->layout_low = (int32_t *) malloc(writer->hop_count * sizeof(int32_t) + 1);
+	writer->layout_high = (int32_t *) malloc(writer->hop_count * sizeof(int32_t) + 1);
+	if (writer->layout_low == NULL || writer->layout_high == NULL) {
+		writer->failed = 1;
+		return;
+	}
+	memcpy(writer->layout_low, writer->hop_low, writer->hop_count * sizeof(int32_t));
+	memcpy(writer->layout_high, writer->hop_high, writer->hop_count * sizeof(int32_t));
+	writer->layout_count = writer->hop_count;
+
+	put_u8(writer, 'L');
+	put_u16(writer, (uint16_t) writer->hop_count);
+	for (i = 0; i < writer->hop_count; i++) {
+		put_u32(writer, (uint32_t) writer->hop_low[i]);
+		put_u32(writer, (uint32_t) writer->hop_high[i]);
+	}
+}
+
+int sweepidx_end_integration(sweepidx_writer_t * writer) {
+	int i;
+	if (writer->failed) return -1;
+	if (layout_changed(writer)) write_layout(writer);
+
+	put_u8(writer, 'I');
+	put_u64(writer, (uint64_t) writer->timestamp);
+	put_u64(writer, (uint64_t) writer->csv_offset);
+	put_u64(writer, (uint64_t) writer->rtlp_offset);
+	put_u16(writer, (uint16_t) (writer->hop_count > 0 ? rtlp_centi_db(writer->min) : RTLP_DBM_NEG_INF));
+	put_u16(writer, (uint16_t) (writer->hop_count > 0 ? rtlp_centi_db(writer->max) : RTLP_DBM_NEG_INF));
+	put_u16(writer, (uint16_t) (writer->finite_bins > 0 ? rtlp_centi_db(writer->sum / writer->finite_bins) : RTLP_DBM_NEG_INF));
+	put_u16(writer, (uint16_t) writer->hop_count);
+	for (i = 0; i < writer->hop_count; i++) {
+		put_u16(writer, (uint16_t) writer->hop_max[i]);
+	}
+	if (!writer->failed && fflush(writer->file) != 0) writer->failed = 1;
+	return writer->failed ? -1 : 0;
+}
+
+int sweepidx_close(sweepidx_writer_t * writer) {
+	int failed = writer->failed;
+	if (writer->file != NULL && fclose(writer->file) != 0) failed = 1;
+	free(writer->hop_low);
+	free(writer->hop_high);
+	free(writer->hop_max);
+	free(writer->layout_low);
+	free(writer->layout_high);
+	memset(writer, 0, sizeof(sweepidx_writer_t));
+	return failed ? -1 : 0;
+}
@@ -0,0 +1,82 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SWEEPIDX_H_
+#define SWEEPIDX_H_
+
+/*
+ * Writer for the .idx sidecar of a recording, a summary of every integration
+ * that answers most queries without reading the .csv or .rtlp file.
+ * All numbers are little endian, dBm values are hundredths of a dB as in rtlp.h.
+ *
+ * Header
+ *   char[4]  magic "RIDX"
+ *   uint16   version
+ *   uint16   header size in bytes
+ *
+ * Then records, each starting with a tag byte
+ *   'L' hop layout, written before the first integration and whenever the hops change
+ *     uint16   number of hops, then for every hop
+ *       int32    Hz low
+ *       int32    Hz high
+ *   'I' integration
+ *     int64    unix timestamp in seconds
+ *     int64    offset of the integration in the .csv, -1 if there is none
+ *     int64    offset of the integration in the .rtlp, -1 if there is none
+ *     int16    lowest dBm of all bins
+ *     int16    highest dBm of all bins
+ *     int16    mean dBm of all bins, averaged in dB, ignoring bins without power
+ *     uint16   number of hops, then the highest dBm of every hop as int16
+ */
+
+#include <stdio.h>
+#include <stdint.h>
+
+#define SWEEPIDX_MAGIC "RIDX"
+#define SWEEPIDX_VERSION (1)
+
+typedef struct sweepidx_writer {
+	FILE * file;
+
+	int hop_count;
+	int hop_capacity;
+	int32_t * hop_low;
+	int32_t * hop_high;
+	int16_t * hop_max;
+
+	// the layout last written to the file
+	int layout_count;
+	int32_t * layout_low;
+	int32_t * layout_high;
+
+	int64_t timestamp;
+	int64_t csv_offset;
+	int64_t rtlp_offset;
+	double min;
+	double max;
+	double sum;
+	long finite_bins;
+
+	int failed;
+} sweepidx_writer_t;
+
+int sweepidx_open(sweepidx_writer_t * writer, const char * path);
+void sweepidx_begin_integration(sweepidx_writer_t * writer, int64_t timestamp, int64_t csv_offset, int64_t rtlp_offset);
+void sweepidx_begin_hop(sweepidx_writer_t * writer, int32_t freq_low, int32_t freq_high);
+void sweepidx_add_dbm(sweepidx_writer_t * writer, double dbm);
+int sweepidx_end_integration(sweepidx_writer_t * writer);
+int sweepidx_close(sweepidx_writer_t * writer);
+
+#endif /* SWEEPIDX_H_ */
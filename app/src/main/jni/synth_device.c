@@ -0,0 +1,398 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <math.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "synth_device.h"
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+/* what librtlsdr streams in when read_async is given no length */
+#define SYNTH_DEFAULT_BUF_LEN (16 * 16384)
+#define SYNTH_DEFAULT_RATE 2048000
+/* the standard deviation of the sum of four uniform bytes */
+#define SYNTH_BYTES_SD 147.8
+
+typedef struct synth {
+	synth_config_t config;
+	pthread_mutex_t lock;	/* the tuner settings and cancelled, set from other threads */
+	uint32_t rate;
+	uint32_t freq;
+	int gain;
+	int ppm;
+	int cancelled;
+	/* only the tuning thread */
+	int missed_locks;	/* since the tuner last locked */
+	int retunes;
+	/* only the reading thread */
+	uint64_t samples;	/* IQ pairs made so far, the clock of the signals */
+	uint32_t noise;
+	int64_t paced_us;	/* realtime: when paced_samples were due, 0 to start over */
+	uint64_t paced_samples;
+} synth_t;
+
+/* what a signal looks like for the buffer being made */
+typedef struct synth_carrier {
+	double amp;
+	double re, im;	/* the phasor of the next sample */
+	double rot_re, rot_im;
+	double at, on, period;	/* samples into the period, on the first on of them */
+} synth_carrier_t;
+
+static double parse_number(const char * at, char ** end, int suffixes) {
+	double value = strtod(at, end);
+	if (!suffixes)
+		return value;
+	switch (**end) {
+		case 'k':
+		case 'K':
+			(*end)++;
+			return value * 1e3;
+		case 'M':
+			(*end)++;
+			return value * 1e6;
+		case 'G':
+			(*end)++;
+			return value * 1e9;
+		default:
+			return value;
+	}
+}
+
+/* the item's name and the '=' after it, returns where its value starts or NULL */
+static const char * item_value(const char * item, const char * name) {
+	size_t len = strlen(name);
+	if (strncmp(item, name, len) != 0 || item[len] != '=')
+		return NULL;
+	return item + len + 1;
+}
+
+static int parse_item(synth_config_t * config, const char * item, const char * end) {
+	const char * value;
+	char * at;
+	synth_signal_t * signal;
+	if (end == item)
+		return 0;
+	if ((size_t) (end - item) == strlen("realtime") && strncmp(item, "realtime", end - item) == 0) {
+		config->realtime = 1;
+		return 0;
+	}
+	if ((value = item_value(item, "noise")) != NULL) {
+		config->noise = parse_number(value, &at, 0);
+	} else if ((value = item_value(item, "settle")) != NULL) {
+		config->settle_us = (int) parse_number(value, &at, 0);
+	} else if ((value = item_value(item, "nolock")) != NULL) {
+		config->missed_locks = (int) parse_number(value, &at, 0);
+	} else if ((value = item_value(item, "ioerror")) != NULL) {
+		config->io_error_every = (int) parse_number(value, &at, 0);
+	} else if ((value = item_value(item, "seed")) != NULL) {
+		config->seed = (uint32_t) parse_number(value, &at, 0);
+	} else if ((value = item_value(item, "tone")) != NULL || (value = item_value(item, "burst")) != NULL) {
+		if (config->signal_count == SYNTH_MAX_SIGNALS)
+			return -1;
+		signal = &config->signals[config->signal_count++];
+		memset(signal, 0, sizeof(synth_signal_t));
+		signal->freq = parse_number(value, &at, 1);
+		if (*at++ != ':')
+			return -1;
+		signal->level = parse_number(at, &at, 0);
+		if (item[0] == 'b') {
+			if (*at++ != ':')
+				return -1;
+			signal->period = parse_number(at, &at, 0) / 1000.0;
+			if (*at++ != ':')
+				return -1;
+			signal->duty = parse_number(at, &at, 0) / 100.0;
+			if (signal->period <= 0)
+				return -1;
+		}
+	} else {
+		return -1;
+	}
+	return at == end ? 0 : -1;
+}
+
+int synth_config_parse(synth_config_t * config, const char * spec) {
+	const char * end;
+	memset(config, 0, sizeof(synth_config_t));
+	config->noise = -60;
+	config->seed = 1;
+	while (*spec != '\0') {
+		end = strchr(spec, ',');
+		if (end == NULL)
+			end = spec + strlen(spec);
+		if (parse_item(config, spec, end) != 0)
+			return -1;
+		spec = *end == ',' ? end + 1 : end;
+	}
+	return 0;
+}
+
+static int64_t synth_now_us(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t) ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+/* a normal deviate from four bytes of xorshift32 */
+static double synth_gauss(uint32_t * state) {
+	uint32_t x = *state;
+	x ^= x << 13;
+	x ^= x >> 17;
+	x ^= x << 5;
+	*state = x;
+	return ((double) ((x & 0xff) + (x >> 8 & 0xff) + (x >> 16 & 0xff) + (x >> 24)) - 510.0) / SYNTH_BYTES_SD;
+}
+
+static uint8_t synth_clip(double v) {
+	if (v <= 0)
+		return 0;
+	if (v >= 255)
+		return 255;
+	return (uint8_t) (v + 0.5);
+}
+
+/* the carriers heard at the current settings, returns how many */
+static int synth_carriers(synth_t * s, synth_carrier_t * carriers, double * noise_sd) {
+	double rate, lo, scale, offset, cycles, seconds, in_second;
+	int i, n = 0;
+	pthread_mutex_lock(&s->lock);
+	rate = s->rate;
+	/* the tuner multiplies the crystal it is told, a correction of an exact one moves it the other way */
+	lo = s->freq / (1.0 + s->ppm * 1e-6);
+	scale = s->gain == POWER_DEVICE_AUTO_GAIN ? 1.0 : pow(10.0, s->gain / 200.0);
+	pthread_mutex_unlock(&s->lock);
+	*noise_sd = 127.5 * pow(10.0, s->config.noise / 20.0) * scale / sqrt(2.0);
+	seconds = floor(s->samples / rate);
+	in_second = s->samples - seconds * rate;
+	for (i = 0; i < s->config.signal_count; i++) {
+		const synth_signal_t * signal = &s->config.signals[i];
+		synth_carrier_t * c = &carriers[n];
+		offset = signal->freq - lo;
+		if (fabs(offset) >= rate / 2)
+			continue;
+		/* whole seconds apart, so the phase keeps its precision however long it runs */
+		cycles = fmod(fmod(offset * seconds, 1.0) + offset * in_second / rate, 1.0);
+		c->amp = 127.5 * pow(10.0, signal->level / 20.0) * scale;
+		c->re = cos(2 * M_PI * cycles);
+		c->im = sin(2 * M_PI * cycles);
+		c->rot_re = cos(2 * M_PI * offset / rate);
+		c->rot_im = sin(2 * M_PI * offset / rate);
+		if (signal->period > 0) {
+			c->period = signal->period * rate;
+			c->on = signal->duty * c->period;
+			c->at = fmod((double) s->samples, c->period);
+		} else {
+			c->period = 0;
+		}
+		n++;
+	}
+	return n;
+}
+
+static void synth_make(synth_t * s, uint8_t * buf, int len) {
+	synth_carrier_t carriers[SYNTH_MAX_SIGNALS];
+	double noise_sd, i_v, q_v, re;
+	int n, k, j;
+	n = synth_carriers(s, carriers, &noise_sd);
+	for (k = 0; k + 1 < len; k += 2) {
+		i_v = 127.5 + noise_sd * synth_gauss(&s->noise);
+		q_v = 127.5 + noise_sd * synth_gauss(&s->noise);
+		for (j = 0; j < n; j++) {
+			synth_carrier_t * c = &carriers[j];
+			if (c->period == 0 || c->at < c->on) {
+				i_v += c->amp * c->re;
+				q_v += c->amp * c->im;
+			}
+			re = c->re * c->rot_re - c->im * c->rot_im;
+			c->im = c->re * c->rot_im + c->im * c->rot_re;
+			c->re = re;
+			if (c->period > 0 && ++c->at >= c->period)
+				c->at -= c->period;
+		}
+		buf[k] = synth_clip(i_v);
+		buf[k + 1] = synth_clip(q_v);
+	}
+	if (len & 1)
+		buf[len - 1] = 127;
+	s->samples += len / 2;
+}
+
+/* realtime: waits until the samples made so far are due */
+static void synth_pace(synth_t * s) {
+	int64_t due, now;
+	uint32_t rate;
+	if (!s->config.realtime)
+		return;
+	pthread_mutex_lock(&s->lock);
+	rate = s->rate;
+	pthread_mutex_unlock(&s->lock);
+	now = synth_now_us();
+	if (s->paced_us == 0) {
+		s->paced_us = now;
+		s->paced_samples = s->samples;
+		return;
+	}
+	due = s->paced_us + (int64_t) ((s->samples - s->paced_samples) * 1000000 / rate);
+	if (due > now)
+		usleep((useconds_t) (due - now));
+}
+
+static int synth_set_sample_rate(power_device_t * device, uint32_t rate) {
+	synth_t * s = (synth_t *) device->ctx;
+	if (rate == 0)
+		return -1;
+	pthread_mutex_lock(&s->lock);
+	s->rate = rate;
+	pthread_mutex_unlock(&s->lock);
+	s->paced_us = 0;
+	return 0;
+}
+
+static int synth_set_center_freq(power_device_t * device, uint32_t freq) {
+	synth_t * s = (synth_t *) device->ctx;
+	int r = 0;
+	s->retunes++;
+	if (s->config.io_error_every > 0 && s->retunes % s->config.io_error_every == 0) {
+		r = -1;
+	} else if (s->missed_locks < s->config.missed_locks) {
+		s->missed_locks++;
+		r = POWER_DEVICE_NO_LOCK;
+	} else {
+		s->missed_locks = 0;
+	}
+	/* like librtlsdr, the tuner is nowhere after a failed retune */
+	pthread_mutex_lock(&s->lock);
+	s->freq = r == 0 ? freq : 0;
+	pthread_mutex_unlock(&s->lock);
+	return r;
+}
+
+static uint32_t synth_get_center_freq(power_device_t * device) {
+	synth_t * s = (synth_t *) device->ctx;
+	uint32_t freq;
+	pthread_mutex_lock(&s->lock);
+	freq = s->freq;
+	pthread_mutex_unlock(&s->lock);
+	return freq;
+}
+
+static int synth_set_gain(power_device_t * device, int gain) {
+	synth_t * s = (synth_t *) device->ctx;
+	pthread_mutex_lock(&s->lock);
+	s->gain = gain;
+	pthread_mutex_unlock(&s->lock);
+	return 0;
+}
+
+static int synth_set_freq_correction(power_device_t * device, int ppm) {
+	synth_t * s = (synth_t *) device->ctx;
+	pthread_mutex_lock(&s->lock);
+	s->ppm = ppm;
+	pthread_mutex_unlock(&s->lock);
+	return 0;
+}
+
+static int synth_reset_buffer(power_device_t * device) {
+	synth_t * s = (synth_t *) device->ctx;
+	s->paced_us = 0;
+	return 0;
+}
+
+static int synth_read_sync(power_device_t * device, void * buf, int len, int * n_read) {
+	synth_t * s = (synth_t *) device->ctx;
+	synth_make(s, (uint8_t *) buf, len);
+	synth_pace(s);
+	*n_read = len;
+	return 0;
+}
+
+static int synth_read_async(power_device_t * device, power_device_cb_t cb, void * cb_ctx, uint32_t buf_num, uint32_t buf_len) {
+	synth_t * s = (synth_t *) device->ctx;
+	uint8_t * buf;
+	int cancelled;
+	if (buf_len == 0)
+		buf_len = SYNTH_DEFAULT_BUF_LEN;
+	buf = (uint8_t *) malloc(buf_len);
+	if (buf == NULL)
+		return -1;
+	/* like librtlsdr, a cancel before the stream started is not seen */
+	pthread_mutex_lock(&s->lock);
+	s->cancelled = 0;
+	pthread_mutex_unlock(&s->lock);
+	do {
+		synth_make(s, buf, (int) buf_len);
+		synth_pace(s);
+		cb(buf, buf_len, cb_ctx);
+		pthread_mutex_lock(&s->lock);
+		cancelled = s->cancelled;
+		pthread_mutex_unlock(&s->lock);
+	} while (!cancelled);
+	free(buf);
+	return 0;
+}
+
+static int synth_cancel_async(power_device_t * device) {
+	synth_t * s = (synth_t *) device->ctx;
+	pthread_mutex_lock(&s->lock);
+	s->cancelled = 1;
+	pthread_mutex_unlock(&s->lock);
+	return 0;
+}
+
+static int synth_settle_us(power_device_t * device, const uint32_t * freqs, int count) {
+	return ((synth_t *) device->ctx)->config.settle_us;
+}
+
+static void synth_close(power_device_t * device) {
+	synth_t * s = (synth_t *) device->ctx;
+	if (s == NULL)
+		return;
+	pthread_mutex_destroy(&s->lock);
+	free(s);
+	device->ctx = NULL;
+}
+
+int synth_device_open(power_device_t * device, const synth_config_t * config) {
+	synth_t * s = (synth_t *) calloc(1, sizeof(synth_t));
+	if (s == NULL)
+		return -1;
+	s->config = *config;
+	pthread_mutex_init(&s->lock, NULL);
+	s->rate = SYNTH_DEFAULT_RATE;
+	s->gain = POWER_DEVICE_AUTO_GAIN;
+	s->noise = config->seed != 0 ? config->seed : 1;
+	memset(device, 0, sizeof(power_device_t));
+	device->name = "synthetic";
+	device->ctx = s;
+	device->set_sample_rate = synth_set_sample_rate;
+	device->set_center_freq = synth_set_center_freq;
+	device->get_center_freq = synth_get_center_freq;
+	device->set_gain = synth_set_gain;
+	device->set_freq_correction = synth_set_freq_correction;
+	device->reset_buffer = synth_reset_buffer;
+	device->read_sync = synth_read_sync;
+	device->read_async = synth_read_async;
+	device->cancel_async = synth_cancel_async;
+	device->settle_us = synth_settle_us;
+	device->close = synth_close;
+	return 0;
+}
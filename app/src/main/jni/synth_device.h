@@ -0,0 +1,78 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef SYNTH_DEVICE_H_
+#define SYNTH_DEVICE_H_
+
+/*
+ * A simulated dongle behind power_device.h, so the scanner runs without USB.
+ *
+ * It makes 8 bit IQ pairs of a noise floor plus tones and bursts at fixed
+ * frequencies. Only the signals within half the sample rate of the tuned
+ * frequency are heard, the gain raises everything by as many dB and clips
+ * at the range of a byte, like the dongle's ADC, and a ppm correction moves
+ * the tuner the way a real one moves it with an exact crystal. The levels are
+ * in dB of full scale at 0 dB gain, the automatic gain is 0 dB.
+ *
+ * The samples only depend on the configuration and on how many were read,
+ * the noise on the order of the reads too, so runs repeat exactly. Without
+ * realtime they come as fast as they are made, with it no faster than the
+ * sample rate, as from USB.
+ *
+ * A configuration is written as a spec of comma separated items, frequencies
+ * with an optional k, M or G:
+ *
+ *   noise=<dBFS>                           the noise floor, -60 without
+ *   tone=<Hz>:<dBFS>                       a carrier
+ *   burst=<Hz>:<dBFS>:<period ms>:<duty %> a carrier on for duty of every period
+ *   settle=<us>                            the tuner's settle time, 0 without
+ *   nolock=<n>                             the PLL misses the lock n times before every lock
+ *   ioerror=<n>                            every n-th retune fails as a lost USB transfer would
+ *   seed=<n>                               the noise, 1 without
+ *   realtime
+ *
+ * e.g. "noise=-50,tone=100.3M:-20,burst=101M:-10:100:25,realtime".
+ */
+
+#include <stdint.h>
+#include "power_device.h"
+
+#define SYNTH_MAX_SIGNALS 16
+
+typedef struct synth_signal {
+	double freq;	/* Hz */
+	double level;	/* dBFS at 0 dB gain */
+	double period;	/* seconds, 0 for a steady tone */
+	double duty;	/* the part of the period it is on */
+} synth_signal_t;
+
+typedef struct synth_config {
+	double noise;	/* dBFS of the noise floor at 0 dB gain */
+	synth_signal_t signals[SYNTH_MAX_SIGNALS];
+	int signal_count;
+	int settle_us;
+	int missed_locks;	/* before every lock */
+	int io_error_every;	/* retunes, 0 for none */
+	int realtime;
+	uint32_t seed;
+} synth_config_t;
+
+/* 0 on success, -1 if the spec has an item it does not know or too many signals */
+int synth_config_parse(synth_config_t * config, const char * spec);
+
+/* fills device with the simulated dongle, 0 on success, close releases it */
+int synth_device_open(power_device_t * device, const synth_config_t * config);
+
+#endif /* SYNTH_DEVICE_H_ */
@@ -0,0 +1,75 @@
+package com.sdrtouch.rtlsdr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SyntheticPowerDeviceTest {
+    /** Records what a device asks the engine to open */
+    private static class RecordingNatives implements PowerDevice.Natives {
+        final List<String> calls = new ArrayList<String>();
+
+        @Override
+        public void openUsb(int fd, String path) {
+            calls.add("usb " + fd + " " + path);
+        }
+
+        @Override
+        public void openSynthetic(String spec) {
+            calls.add("synthetic " + spec);
+        }
+    }
+
+    @Test
+    public void testSpec() {
+        SyntheticPowerDevice device = new SyntheticPowerDevice()
+                .noise(-50)
+                .tone(100300000, -20)
+                .burst(1200000000L, -10.25, 100, 25)
+                .settle(2000)
+                .seed(-1)
+                .realtime();
+
+        assertThat(device.getSpec(), equalTo(
+                "noise=-50.0,tone=100300000:-20.0,burst=1200000000:-10.3:100:25.0,settle=2000,seed=4294967295,realtime"));
+    }
+
+    @Test
+    public void testDefaultsAreEmpty() {
+        assertThat(new SyntheticPowerDevice().getSpec(), equalTo(""));
+    }
+
+    @Test
+    public void testAttachOpensTheSpec() {
+        RecordingNatives natives = new RecordingNatives();
+
+        new SyntheticPowerDevice("tone=100.3M:-20,,realtime").noise(-40).attach(natives);
+
+        assertThat(natives.calls.size(), equalTo(1));
+        assertThat(natives.calls.get(0), equalTo("synthetic tone=100.3M:-20,realtime,noise=-40.0"));
+    }
+
+    @Test
+    public void testTooManySignals() {
+        SyntheticPowerDevice device = new SyntheticPowerDevice();
+        for (int i = 0; i < SyntheticPowerDevice.MAX_SIGNALS; i++)
+            device.tone(100000000 + i * 100000, -20);
+        try {
+            device.burst(101000000, -20, 10, 50);
+            fail("the native side takes " + SyntheticPowerDevice.MAX_SIGNALS);
+        } catch (IllegalStateException expected) {
+            // the spec is left as it was
+        }
+        assertThat(device.getSpec().split(",").length, equalTo(SyntheticPowerDevice.MAX_SIGNALS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBurstNeedsAPeriod() {
+        new SyntheticPowerDevice().burst(101000000, -20, 0, 50);
+    }
+}
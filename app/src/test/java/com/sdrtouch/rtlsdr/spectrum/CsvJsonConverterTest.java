@@ -0,0 +1,96 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TimeZone;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.INFO;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class CsvJsonConverterTest {
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp() {
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    private static String convert(CsvJsonConverter converter, InputStream csv) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.convert(csv, out, INFO);
+        return out.toString("UTF-8");
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+        return out.toString("UTF-8");
+    }
+
+    private static InputStream csv(String text) throws IOException {
+        return new ByteArrayInputStream(text.getBytes("US-ASCII"));
+    }
+
+    @Test
+    public void testMatchesLegacyOutput() throws Exception {
+        String expected = read(CsvRowTokenizerTest.fixture("/rtl_power/fm_88M_108M_125k.json"));
+        assertThat(convert(new CsvJsonConverter(), CsvRowTokenizerTest.fixture(CsvRowTokenizerTest.FM)), equalTo(expected));
+    }
+
+    @Test
+    public void testSingleIntegration() throws Exception {
+        String json = convert(new CsvJsonConverter(), csv("2016-11-28, 13:45:08, 1000000000, 1001000000, 1000000.00, 713, -24.15, -24.15\n"));
+        assertThat(json, equalTo("{\"BATCH_ID\":\"20161128-140200\",\"altitude\":\"12.5\",\"latitude\":\"-33.8836\",\"longitude\":\"151.2004\"," +
+                "\"integrationInterval\":\"10s\",\"integrations\":[{\"unixTimestamp\":\"1480340708\",\"date\":\"2016-11-28\",\"time\":\"13:45:08\"," +
+                "\"totalSamples\":\"713\",\"metricSeries\":[{\"frequencyLow\":\"1000000000\",\"frequencyHigh\":\"1001000000\",\"frequencyStep\":\"1000000\"," +
+                "\"metricValues\":[{\"1000000000\":-24.15}]}]}]}"));
+    }
+
+    @Test
+    public void testOutOfOrderRowsWithinWindowAreMerged() throws Exception {
+        CsvJsonConverter converter = new CsvJsonConverter(2);
+        String json = convert(converter, csv(
+                "2016-11-28, 13:45:10, 1, 2, 1.00, 5, -1.00\n" +
+                "2016-11-28, 13:45:00, 1, 2, 1.00, 5, -2.00\n" +
+                "2016-11-28, 13:45:10, 2, 3, 1.00, 5, -3.00\n"));
+        assertThat(converter.getLateRows(), equalTo(0));
+        assertThat(json, containsString("\"unixTimestamp\":\"1480340700\""));
+        // earliest integration comes first and the late 13:45:10 row joined its integration
+        assertThat(json.indexOf("1480340700") < json.indexOf("1480340710"), equalTo(true));
+        assertThat(json, containsString("{\"1\":-1.00}]},{\"frequencyLow\":\"2\""));
+    }
+
+    @Test
+    public void testRowsOutsideWindowAreKept() throws Exception {
+        CsvJsonConverter converter = new CsvJsonConverter(1);
+        String json = convert(converter, csv(
+                "2016-11-28, 13:45:00, 1, 2, 1.00, 5, -1.00\n" +
+                "2016-11-28, 13:45:10, 1, 2, 1.00, 5, -2.00\n" +
+                "2016-11-28, 13:45:20, 1, 2, 1.00, 5, -3.00\n" +
+                "2016-11-28, 13:45:00, 2, 3, 1.00, 5, -4.00\n"));
+        assertThat(converter.getLateRows(), equalTo(1));
+        assertThat(json, containsString("{\"2\":-4.00}"));
+        assertThat(json.endsWith("]}]}]}"), equalTo(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void testEmptyCsv() throws Exception {
+        convert(new CsvJsonConverter(), csv("\n"));
+    }
+}
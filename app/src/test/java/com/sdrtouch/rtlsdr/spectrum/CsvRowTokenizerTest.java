@@ -0,0 +1,172 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CsvRowTokenizerTest {
+    static final String SURVEY = "/rtl_power/survey_1000M_1700M_1M.csv";
+    static final String FM = "/rtl_power/fm_88M_108M_125k.csv";
+
+    static InputStream fixture(String name) {
+        InputStream in = CsvRowTokenizerTest.class.getResourceAsStream(name);
+        if (in == null) throw new IllegalStateException("Missing fixture " + name);
+        return in;
+    }
+
+    private static CsvRowTokenizer tokenizer(String csv) throws IOException {
+        return new CsvRowTokenizer(new ByteArrayInputStream(csv.getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void testHeaderColumns() throws Exception {
+        CsvRowTokenizer row = new CsvRowTokenizer(fixture(FM));
+        assertTrue(row.next());
+        assertThat(row.getYear(), equalTo(2016));
+        assertThat(row.getMonth(), equalTo(11));
+        assertThat(row.getDay(), equalTo(28));
+        assertThat(row.getHour(), equalTo(14));
+        assertThat(row.getMinute(), equalTo(2));
+        assertThat(row.getSecond(), equalTo(10));
+        assertThat(row.getFrequencyLow(), equalTo(88000000));
+        assertThat(row.getFrequencyHigh(), equalTo(90500000));
+        assertThat(row.getFrequencyStep(), equalTo(78125.0));
+        assertThat(row.getSamples(), equalTo(40));
+        assertThat(row.getDbmCount(), equalTo(33));
+    }
+
+    @Test
+    public void testSurveyRows() throws Exception {
+        CsvRowTokenizer row = new CsvRowTokenizer(fixture(SURVEY));
+        int rows = 0;
+        while (row.next()) {
+            assertThat(row.getFrequencyLow(), equalTo(1000000000 + rows * 1000000));
+            assertThat(row.getFrequencyHigh(), equalTo(row.getFrequencyLow() + 1000000));
+            assertThat(row.getDbmCount(), equalTo(2));
+            rows++;
+        }
+        assertThat(rows, equalTo(40));
+        assertFalse(row.next());
+    }
+
+    @Test
+    public void testDbmValuesMatchText() throws Exception {
+        BufferedReader text = new BufferedReader(new InputStreamReader(fixture(FM), "US-ASCII"));
+        CsvRowTokenizer row = new CsvRowTokenizer(fixture(FM));
+        String line;
+        while ((line = text.readLine()) != null) {
+            assertTrue(row.next());
+            String[] entry = line.split(", ");
+            assertThat(row.getDbmCount(), equalTo(entry.length - CsvRowTokenizer.COLUMN_DBM));
+            for (int i = 0; i < row.getDbmCount(); i++) {
+                String expected = entry[CsvRowTokenizer.COLUMN_DBM + i];
+                float value = expected.equals("-inf") ? Float.NEGATIVE_INFINITY : Float.parseFloat(expected);
+                assertThat(row.getDbm()[i], equalTo(value));
+            }
+        }
+        assertFalse(row.next());
+    }
+
+    @Test
+    public void testRawColumns() throws Exception {
+        CsvRowTokenizer row = new CsvRowTokenizer(fixture(SURVEY));
+        assertTrue(row.next());
+        ByteBuilder out = new ByteBuilder();
+        row.appendRaw(CsvRowTokenizer.COLUMN_DATE, out);
+        out.append('|');
+        row.appendRaw(CsvRowTokenizer.COLUMN_TIME, out);
+        out.append('|');
+        row.appendRaw(CsvRowTokenizer.COLUMN_DBM, out);
+        assertThat(out.toString(), equalTo("2016-11-28|13:45:08|-24.15"));
+    }
+
+    @Test
+    public void testInfinityAndNan() throws Exception {
+        CsvRowTokenizer row = tokenizer("2016-11-28, 14:02:10, 88000000, 90500000, 78125.00, 40, -inf, nan, inf, -0.00\n");
+        assertTrue(row.next());
+        assertThat(row.getDbm()[0], equalTo(Float.NEGATIVE_INFINITY));
+        assertTrue(Float.isNaN(row.getDbm()[1]));
+        assertThat(row.getDbm()[2], equalTo(Float.POSITIVE_INFINITY));
+        assertThat(row.getDbm()[3], equalTo(-0.0f));
+    }
+
+    private static double step(String step) throws Exception {
+        CsvRowTokenizer row = tokenizer("2016-11-28, 14:02:10, 88000000, 90500000, " + step + ", 40, -20.5\n");
+        assertTrue(row.next());
+        return row.getFrequencyStep();
+    }
+
+    @Test
+    public void testLongNumbersRoundLikeParseDouble() throws Exception {
+        String[] steps = {
+                "78125.1234567891", // 15 digits, still exact
+                "11408.4322863460068", // the mantissa is past 2^53
+                "22657.3195622447256",
+                "0.00000000000000000000125", // a power of ten past the table
+                "000000000000000000078125.5", // leading zeros are not digits
+                "7.8125e4"};
+        for (String step : steps) {
+            assertThat(step, step(step), equalTo(Double.parseDouble(step)));
+        }
+    }
+
+    @Test
+    public void testBlankLinesCarriageReturnsAndMissingNewline() throws Exception {
+        CsvRowTokenizer row = tokenizer("\n2016-11-28, 14:02:10, 1, 2, 1.00, 3, -1.50\r\n\r\n2016-11-28, 14:02:20, 4, 5, 1.00, 6, -2.25");
+        assertTrue(row.next());
+        assertThat(row.getSamples(), equalTo(3));
+        assertThat(row.getDbm()[0], equalTo(-1.5f));
+        assertTrue(row.next());
+        assertThat(row.getSecond(), equalTo(20));
+        assertThat(row.getDbm()[0], equalTo(-2.25f));
+        assertFalse(row.next());
+    }
+
+    @Test
+    public void testRowsLongerThanBuffer() throws Exception {
+        StringBuilder csv = new StringBuilder("2016-11-28, 14:02:10, 88000000, 90500000, 78125.00, 40");
+        for (int i = 0; i < 500; i++) csv.append(", -").append(i).append(".25");
+        csv.append('\n');
+        CsvRowTokenizer row = new CsvRowTokenizer(new ByteArrayInputStream(csv.toString().getBytes("US-ASCII")), 128);
+        assertTrue(row.next());
+        assertThat(row.getDbmCount(), equalTo(500));
+        assertThat(row.getDbm()[499], equalTo(-499.25f));
+        assertFalse(row.next());
+    }
+
+    @Test
+    public void testArraysAreReused() throws Exception {
+        CsvRowTokenizer row = new CsvRowTokenizer(fixture(FM));
+        assertTrue(row.next());
+        float[] dbm = row.getDbm();
+        while (row.next()) {
+            assertThat(row.getDbm(), sameInstance(dbm));
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testTooFewColumns() throws Exception {
+        tokenizer("2016-11-28, 14:02:10, 88000000, 90500000\n").next();
+    }
+
+    @Test(expected = ParseException.class)
+    public void testBadNumber() throws Exception {
+        tokenizer("2016-11-28, 14:02:10, 88000000, 9O500000, 78125.00, 40, -1.00\n").next();
+    }
+
+    @Test(expected = ParseException.class)
+    public void testBadDate() throws Exception {
+        tokenizer("28/11/2016, 14:02:10, 88000000, 90500000, 78125.00, 40, -1.00\n").next();
+    }
+}
@@ -0,0 +1,83 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class FrequencyPlanTest {
+    /** Writes a record the way freq_plan_record_t in freq_plan.h lays it out */
+    private static ByteBuffer record(int rate, int binExponent, int downsample, int passes, int bufferLength,
+                                     double crop, int... centers) {
+        ByteBuffer record = ByteBuffer.allocate(FrequencyPlan.HEADER_SIZE + 4 * centers.length).order(ByteOrder.nativeOrder());
+        record.putInt(0, centers.length);
+        record.putInt(4, rate);
+        record.putInt(8, binExponent);
+        record.putInt(12, downsample);
+        record.putInt(16, passes);
+        record.putInt(20, bufferLength);
+        record.putDouble(24, crop);
+        for (int hop = 0; hop < centers.length; hop++) {
+            record.putInt(FrequencyPlan.HEADER_SIZE + 4 * hop, centers[hop]);
+        }
+        return record;
+    }
+
+    @Test
+    public void testFmBand() {
+        // -f 88M:108M:125k, the rows of fm_88M_108M_125k.csv
+        FrequencyPlan plan = new FrequencyPlan(record(2500000, 5, 1, 0, 16384, 0,
+                89250000, 91750000, 94250000, 96750000, 99250000, 101750000, 104250000, 106750000));
+
+        assertThat(plan.getHopCount(), equalTo(8));
+        assertThat(plan.getBinsPerHop(), equalTo(32));
+        assertThat(plan.getLoggedBinsPerHop(), equalTo(32));
+        assertThat(plan.getBinWidth(), equalTo(78125.0));
+        assertThat(plan.getBufferLength(), equalTo(16384));
+        assertThat(plan.getFrequencyLow(0), equalTo(88000000));
+        assertThat(plan.getFrequencyHigh(0), equalTo(90500000));
+        assertThat(plan.getFrequencyLow(7), equalTo(105500000));
+        assertThat(plan.getFrequencyHigh(7), equalTo(108000000));
+        assertThat(plan.toString(), equalTo("8 hops of 32 bins from 88.000 to 108.000 MHz, 78125.0 Hz bins at 2.500 MHz sampling"));
+    }
+
+    @Test
+    public void testCropAndDownsampling() {
+        // -f 100M:100.1M:1k -c 0.2 -F 9, one hop downsampled through 4 passes
+        FrequencyPlan plan = new FrequencyPlan(record(2000000, 7, 16, 4, 16384, 0.2, 100050000));
+
+        assertThat(plan.getDownsample(), equalTo(16));
+        assertThat(plan.getDownsamplePasses(), equalTo(4));
+        assertThat(plan.getCrop(), equalTo(0.2));
+        assertThat(plan.getLoggedBinsPerHop(), equalTo(102));
+        assertThat(plan.getBinWidth(), equalTo(976.5625));
+        assertThat(plan.getFrequencyLow(0), equalTo(100050000 - 49804));
+        assertThat(plan.getFrequencyHigh(0), equalTo(100050000 + 49804));
+    }
+
+    @Test
+    public void testCopiesTheRecord() {
+        ByteBuffer record = record(1000000, 0, 1, 0, 16384, 0, 1000500000, 1001500000);
+        FrequencyPlan plan = new FrequencyPlan(record);
+        record.putInt(FrequencyPlan.HEADER_SIZE, 0);
+        assertThat(plan.getCenterFrequency(0), equalTo(1000500000));
+        assertThat(plan.getBinsPerHop(), equalTo(1));
+        assertThat(plan.getFrequencyLow(1), equalTo(1001000000));
+    }
+
+    @Test
+    public void testTruncatedRecord() {
+        ByteBuffer record = record(2500000, 5, 1, 0, 16384, 0, 89250000, 91750000);
+        record.putInt(0, 3);
+        try {
+            new FrequencyPlan(record);
+            fail("3 hops do not fit");
+        } catch (IllegalArgumentException expected) {
+            // the engine always hands over whole records
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HopTimingsTest {
+    private final ByteBuffer records = ByteBuffer.allocateDirect(4 * HopTimings.RECORD_SIZE).order(ByteOrder.nativeOrder());
+
+    /** Writes a record the way hop_stats_t in rtlsdrdevice.c lays it out */
+    private void put(int hop, int freq, int reads, int retunes, int lockFailures, int ioErrors, long tune, long settle, long read) {
+        int at = hop * HopTimings.RECORD_SIZE;
+        records.putInt(at, freq);
+        records.putInt(at + 4, reads);
+        records.putInt(at + 8, retunes);
+        records.putInt(at + 12, lockFailures);
+        records.putInt(at + 16, ioErrors);
+        records.putLong(at + 24, tune);
+        records.putLong(at + 32, settle);
+        records.putLong(at + 40, read);
+    }
+
+    @Test
+    public void testRecords() {
+        put(0, 1000500000, 10, 10, 0, 1, 3000, 20000, 77000);
+        put(1, 1001500000, 10, 10, 2, 0, 9000, 41000, 150000);
+        put(2, 1002500000, 0, 0, 0, 0, 0, 0, 0);
+        HopTimings timings = new HopTimings(records, 3);
+
+        assertThat(timings.getHopCount(), equalTo(3));
+        assertThat(timings.getFrequency(1), equalTo(1001500000));
+        assertThat(timings.getReads(1), equalTo(10));
+        assertThat(timings.getRetunes(1), equalTo(10));
+        assertThat(timings.getLockFailures(1), equalTo(2));
+        assertThat(timings.getIoErrors(0), equalTo(1));
+        assertThat(timings.getIoErrors(1), equalTo(0));
+        assertThat(timings.getTuneMicros(1), equalTo(9000L));
+        assertThat(timings.getSettleMicros(1), equalTo(41000L));
+        assertThat(timings.getReadMicros(1), equalTo(150000L));
+        assertThat(timings.getTotalMicros(), equalTo(300000L));
+        assertThat(timings.getRetuneShare(), equalTo(73000 / 300000.0));
+        assertThat(timings.getTotalLockFailures(), equalTo(2));
+        assertThat(timings.getTotalIoErrors(), equalTo(1));
+        assertThat(timings.getSlowestHop(), equalTo(1));
+        assertThat(timings.toString(), equalTo("3 hops in 0.3 s, 24.3% retuning, 2 PLL retries, 1 failed retunes, slowest 1001.500 MHz at 20.0 ms per read"));
+    }
+
+    @Test
+    public void testCopiesTheRecords() {
+        put(0, 88000000, 1, 1, 0, 0, 1, 2, 3);
+        HopTimings timings = new HopTimings(records, 1);
+        put(0, 0, 0, 0, 0, 0, 0, 0, 0);
+        assertThat(timings.getFrequency(0), equalTo(88000000));
+        assertThat(timings.getMicros(0), equalTo(6L));
+    }
+
+    @Test
+    public void testNoReads() {
+        HopTimings timings = new HopTimings(records, 0);
+        assertThat(timings.getSlowestHop(), equalTo(-1));
+        assertThat(timings.getRetuneShare(), equalTo(0.0));
+        assertThat(timings.toString(), equalTo("0 hops in 0.0 s, 0.0% retuning, 0 PLL retries"));
+    }
+
+    @Test
+    public void testMoreHopsThanRecords() {
+        try {
+            new HopTimings(records, 5);
+            fail("5 records do not fit");
+        } catch (IllegalArgumentException expected) {
+            // the scanner never hands over more than it has
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Scanner;
+import java.util.TimeZone;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class IntegrationFrameTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final ByteBuffer hops = ByteBuffer.allocateDirect(64 * IntegrationFrame.HOP_RECORD_SIZE).order(ByteOrder.nativeOrder());
+    private final ByteBuffer bins = ByteBuffer.allocateDirect(4096 * 4).order(ByteOrder.nativeOrder());
+
+    /** Writes an integration of the batch into the buffers the way stream_hop() in rtlsdrdevice.c does */
+    private void fill(IntegrationFrame frame, SpectrumBatch batch, int integration, boolean withSeries) {
+        int bin = 0;
+        int hop = 0;
+        for (int row = batch.getIntegrationStart(integration); row < batch.getIntegrationEnd(integration); row++, hop++) {
+            int at = hop * IntegrationFrame.HOP_RECORD_SIZE;
+            hops.putInt(at, batch.getFrequencyLow(row));
+            hops.putInt(at + 4, batch.getFrequencyHigh(row));
+            hops.putFloat(at + 8, batch.getStepHz(row));
+            hops.putInt(at + 12, batch.getSamples(row));
+            hops.putInt(at + 16, bin);
+            hops.putInt(at + 20, batch.getValueCount(row));
+            hops.putInt(at + 24, IntegrationFrame.SERIES_MEAN);
+            for (int i = 0; i < batch.getValueCount(row); i++) {
+                bins.putFloat(4 * bin++, batch.getValue(batch.getValueOffset(row) + i));
+            }
+            if (withSeries) {
+                // a min series after every hop, which the batch leaves out
+                hop++;
+                at = hop * IntegrationFrame.HOP_RECORD_SIZE;
+                hops.putInt(at, batch.getFrequencyLow(row));
+                hops.putInt(at + 4, batch.getFrequencyHigh(row));
+                hops.putFloat(at + 8, batch.getStepHz(row));
+                hops.putInt(at + 12, batch.getSamples(row));
+                hops.putInt(at + 16, bin);
+                hops.putInt(at + 20, 1);
+                hops.putInt(at + 24, IntegrationFrame.SERIES_MIN);
+                bins.putFloat(4 * bin++, -120f);
+            }
+        }
+        frame.set(batch.getTimestamp(batch.getIntegrationStart(integration)), hop, bin);
+    }
+
+    private void assertStreamedBatchMatchesRecording(boolean withSeries) throws Exception {
+        File file = new File(IntegrationFrameTest.class.getResource(RtlpReaderTest.FM_RTLP).toURI());
+        SpectrumBatch recorded = new RtlpReader(UTC).read(file);
+
+        IntegrationFrame frame = new IntegrationFrame(hops, bins);
+        BatchCollector collector = new BatchCollector(recorded.getInfo(), UTC);
+        for (int integration = 0; integration < recorded.getIntegrationCount(); integration++) {
+            fill(frame, recorded, integration, withSeries);
+            int hopCount = recorded.getIntegrationEnd(integration) - recorded.getIntegrationStart(integration);
+            assertThat(frame.getHopCount(), equalTo(withSeries ? 2 * hopCount : hopCount));
+            collector.onIntegration(frame);
+        }
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new SpectrumJsonWriter().write(collector.getBatch(), json);
+        String expected = new Scanner(CsvRowTokenizerTest.fixture("/rtl_power/fm_88M_108M_125k.json"), "UTF-8").useDelimiter("\\A").next();
+        assertThat(json.toString("UTF-8"), equalTo(expected));
+    }
+
+    @Test
+    public void testStreamedBatchMatchesRecording() throws Exception {
+        assertStreamedBatchMatchesRecording(false);
+    }
+
+    @Test
+    public void testSeriesAreLeftOutOfTheBatch() throws Exception {
+        assertStreamedBatchMatchesRecording(true);
+    }
+
+    @Test
+    public void testHopRecords() {
+        IntegrationFrame frame = new IntegrationFrame(hops, bins);
+        hops.putInt(IntegrationFrame.HOP_RECORD_SIZE, 88000000);
+        hops.putInt(IntegrationFrame.HOP_RECORD_SIZE + 4, 90500000);
+        hops.putFloat(IntegrationFrame.HOP_RECORD_SIZE + 8, 125000f);
+        hops.putInt(IntegrationFrame.HOP_RECORD_SIZE + 12, 713);
+        hops.putInt(IntegrationFrame.HOP_RECORD_SIZE + 16, 3);
+        hops.putInt(IntegrationFrame.HOP_RECORD_SIZE + 20, 2);
+        hops.putInt(IntegrationFrame.HOP_RECORD_SIZE + 24, IntegrationFrame.SERIES_PERCENTILE + 90);
+        bins.putFloat(12, -30.5f);
+        bins.putFloat(16, Float.NEGATIVE_INFINITY);
+        frame.set(1480341720L, 2, 5);
+
+        assertThat(frame.getFrequencyLow(1), equalTo(88000000));
+        assertThat(frame.getFrequencyHigh(1), equalTo(90500000));
+        assertThat(frame.getStepHz(1), equalTo(125000f));
+        assertThat(frame.getSamples(1), equalTo(713));
+        assertThat(IntegrationFrame.getSeriesName(frame.getSeries(1)), equalTo("p90"));
+        float[] dbm = new float[3];
+        frame.getDbm(1, dbm, 1);
+        assertThat(dbm[1], equalTo(-30.5f));
+        assertThat(dbm[2], equalTo(Float.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testIntegrationLargerThanBuffers() {
+        IntegrationFrame frame = new IntegrationFrame(hops, bins);
+        try {
+            frame.set(1480341720L, 65, 10);
+            fail("65 hop records do not fit");
+        } catch (IllegalArgumentException expected) {
+            // the scanner grows the buffers before it says so
+        }
+    }
+}
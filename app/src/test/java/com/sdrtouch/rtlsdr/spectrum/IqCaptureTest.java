@@ -0,0 +1,96 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class IqCaptureTest {
+    private static final int HEADER_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Writes a capture the way iq_capture.c lays it out */
+    private File capture(int gain, long samples, long dropped, int droppedBuffers, int flags, int sampleBytes)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(IqCapture.MAGIC);
+        header.putShort((short) IqCapture.VERSION);
+        header.putShort((short) HEADER_SIZE);
+        header.putInt(2400000);
+        header.putInt((int) 2400000000L);
+        header.putInt(gain);
+        header.putInt(-57);
+        header.putLong(1476691200123456L);
+        header.putLong(samples);
+        header.putLong(dropped);
+        header.putInt(droppedBuffers);
+        header.putInt(flags);
+        File file = folder.newFile("capture" + IqCapture.EXTENSION);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(header.array());
+            out.write(new byte[sampleBytes]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testCompleteCapture() throws IOException {
+        IqCapture capture = IqCapture.read(capture(496, 4800000, 262144, 2, 1, 2 * 4800000));
+
+        assertThat(capture.isComplete(), equalTo(true));
+        assertThat(capture.getHeaderSize(), equalTo(HEADER_SIZE));
+        assertThat(capture.getSampleRate(), equalTo(2400000));
+        assertThat(capture.getFrequency(), equalTo(2400000000L));
+        assertThat(capture.getGain(), equalTo(496));
+        assertThat(capture.getPpm(), equalTo(-57));
+        assertThat(capture.getStartMicros(), equalTo(1476691200123456L));
+        assertThat(capture.getSampleCount(), equalTo(4800000L));
+        assertThat(capture.getDroppedSamples(), equalTo(262144L));
+        assertThat(capture.getDroppedBuffers(), equalTo(2L));
+        assertThat(capture.getDurationSeconds(), equalTo(2.0));
+        assertThat(capture.toString(), equalTo(
+                "4800000 samples at 2400.000 MHz, 2.400 MS/s, 49.6 dB gain, -57 ppm, 262144 dropped from 2 buffers"));
+    }
+
+    @Test
+    public void testCutShortCountsTheFile() throws IOException {
+        // the header of the start, the preallocated space was never cut back either
+        IqCapture capture = IqCapture.read(capture(IqCapture.AUTO_GAIN, 0, 0, 0, 0, 3000));
+
+        assertThat(capture.isComplete(), equalTo(false));
+        assertThat(capture.getSampleCount(), equalTo(1500L));
+        assertThat(capture.toString(), equalTo(
+                "1500 samples at 2400.000 MHz, 2.400 MS/s, auto gain, -57 ppm, 0 dropped from 0 buffers, cut short"));
+    }
+
+    @Test
+    public void testNotACapture() throws IOException {
+        File file = folder.newFile("capture.csv");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[HEADER_SIZE]);
+        } finally {
+            out.close();
+        }
+        try {
+            IqCapture.read(file);
+            fail("no magic");
+        } catch (IOException expected) {
+            // the csv of a recording is not a capture
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.info;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class OutboxWorkerTest {
+    private static final int INTEGRATIONS = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpectrumStandIn standIn;
+    private File recordings;
+    private UploadOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        standIn = new SpectrumStandIn();
+        recordings = folder.newFolder("RTL_POWER");
+        outbox = new UploadOutbox(new File(recordings, UploadOutbox.DIRECTORY_NAME));
+    }
+
+    @After
+    public void tearDown() {
+        standIn.stop();
+    }
+
+    /** Records a batch as rtl_power would and queues it, returns the JSON of the whole batch */
+    private String record(String batchID) throws Exception {
+        String json = write(batchID);
+        outbox.enqueue(info(batchID), recordings);
+        return json;
+    }
+
+    private String write(String batchID) throws Exception {
+        SpectrumBatch batch = SpectrumUploaderTest.batch(INTEGRATIONS);
+        batch.setInfo(info(batchID));
+        OutputStream out = new FileOutputStream(new File(recordings, batchID + RtlpFormat.EXTENSION));
+        new RtlpWriter().write(batch, out);
+        out.close();
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new SpectrumJsonWriter().write(batch, json);
+        return json.toString("UTF-8");
+    }
+
+    /** A batch uploaded alone fits in one part */
+    private static String onlyPart(String json) {
+        return SpectrumUploaderTest.part(json, 1, true);
+    }
+
+    private List<String> sortedAccepted() {
+        List<String> accepted = new ArrayList<>(standIn.accepted);
+        Collections.sort(accepted);
+        return accepted;
+    }
+
+    @Test
+    public void testDrainUploadsEveryQueuedBatch() throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++) expected.add(onlyPart(record("20161128-14020" + i)));
+        // a batch without the binary copy is read from its csv
+        InputStream csv = CsvRowTokenizerTest.fixture(CsvRowTokenizerTest.FM);
+        OutputStream out = new FileOutputStream(new File(recordings, "20161128-150000.csv"));
+        out.write(SpectrumStandIn.bytes(csv));
+        out.close();
+        outbox.enqueue(info("20161128-150000"), recordings);
+
+        OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint());
+        assertThat(worker.drain(), equalTo(4));
+        assertThat(outbox.list().size(), equalTo(0));
+        assertThat(standIn.accepted.size(), equalTo(4));
+        for (String json : expected) assertThat(standIn.accepted.contains(json), equalTo(true));
+        assertThat(standIn.accepted.toString().contains("\"BATCH_ID\":\"20161128-150000\""), equalTo(true));
+    }
+
+    @Test
+    public void testFailedBatchBacksOffAndResumes() throws Exception {
+        String expected = onlyPart(record("20161128-140200"));
+        standIn.failAfter = 0;
+        OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint());
+        long before = System.currentTimeMillis();
+        assertThat(worker.drain(), equalTo(0));
+
+        UploadOutbox.Entry entry = outbox.list().get(0);
+        assertThat(entry.getAttempts(), equalTo(1));
+        assertThat(entry.getNextAttempt() >= before + UploadOutbox.FIRST_BACKOFF_MILLIS, equalTo(true));
+        assertThat(entry.getLastError().contains("503"), equalTo(true));
+        // not due yet
+        standIn.failAfter = Integer.MAX_VALUE;
+        assertThat(worker.drain(), equalTo(0));
+        assertThat(standIn.accepted.size(), equalTo(0));
+
+        // queueing it again, e.g. once connectivity returns, makes it due now
+        outbox.enqueue(entry.getInfo(), entry.getRecordingDirectory());
+        assertThat(worker.drain(), equalTo(1));
+        assertThat(standIn.accepted.get(0), equalTo(expected));
+        assertThat(outbox.list().size(), equalTo(0));
+    }
+
+    @Test
+    public void testBoundedConcurrency() throws Exception {
+        for (int i = 0; i < 6; i++) record("20161128-14020" + i);
+        standIn.delayMillis = 100;
+        OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint(), 2);
+        assertThat(worker.drain(), equalTo(6));
+        assertThat(standIn.maxConcurrent, equalTo(2));
+    }
+
+    @Test
+    public void testCoalescesSmallBatches() throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++) expected.add(record("20161128-14020" + i));
+        OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint(), 1);
+        worker.setCoalesceLimit(64 * 1024);
+        assertThat(worker.drain(), equalTo(3));
+
+        assertThat(standIn.accepted.size(), equalTo(1));
+        // due order, the same for all three, falls back to the batch id
+        assertThat(standIn.accepted.get(0), equalTo("[" + expected.get(0) + "," + expected.get(1) + "," + expected.get(2) + "]"));
+        assertThat(journals(), equalTo(0));
+    }
+
+    private int journals() {
+        int journals = 0;
+        for (File file : recordings.listFiles()) {
+            if (file.getName().endsWith(SpectrumUploader.JOURNAL_EXTENSION)) journals++;
+        }
+        return journals;
+    }
+
+    @Test
+    public void testUploadedBatchLeavesWithItsJournal() throws Exception {
+        record("20161128-140200");
+        record("20161128-140201");
+        OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint());
+        worker.setPartSize(2500);
+        standIn.failAfter = 3;
+        assertThat(worker.drain(), equalTo(0));
+        // the parts before the failure are in the journals
+        assertThat(journals() > 0, equalTo(true));
+
+        standIn.failAfter = Integer.MAX_VALUE;
+        for (UploadOutbox.Entry entry : outbox.list()) outbox.enqueue(entry.getInfo(), entry.getRecordingDirectory());
+        assertThat(worker.drain(), equalTo(2));
+        assertThat(outbox.list().size(), equalTo(0));
+        assertThat(journals(), equalTo(0));
+    }
+
+    @Test
+    public void testNextDrainWaitsAtLeastTheMinimum() throws Exception {
+        OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint());
+        long now = 1000000L;
+        List<UploadOutbox.Entry> waiting = new ArrayList<>();
+        // still due, e.g. because its backoff could not be written
+        waiting.add(new UploadOutbox.Entry(info("20161128-140200"), recordings, 1, now - 5000, null));
+        assertThat(worker.nextDelay(waiting, now), equalTo(OutboxWorker.MIN_RESCHEDULE_MILLIS));
+
+        waiting.set(0, new UploadOutbox.Entry(info("20161128-140200"), recordings, 1, now + 60000, null));
+        assertThat(worker.nextDelay(waiting, now), equalTo(60000L));
+    }
+
+    @Test
+    public void testNextDrainSkipsBatchesInFlight() throws Exception {
+        // the first batch blocks on the server while the worker plans its next drain
+        record("20161128-140200");
+        standIn.delayMillis = 500;
+        final OutboxWorker worker = new OutboxWorker(outbox, standIn.getEndpoint());
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                worker.drain();
+            }
+        });
+        drain.start();
+        for (int wait = 0; wait < 100 && standIn.inProgress() == 0; wait++) Thread.sleep(5);
+
+        long now = System.currentTimeMillis();
+        List<UploadOutbox.Entry> waiting = new ArrayList<>(outbox.list());
+        assertThat(worker.nextDelay(waiting, now), equalTo(UploadOutbox.FIRST_BACKOFF_MILLIS));
+        waiting.add(new UploadOutbox.Entry(info("20161128-140201"), recordings, 2, now + 45000, null));
+        assertThat(worker.nextDelay(waiting, now), equalTo(45000L));
+        drain.join();
+    }
+
+    @Test
+    public void testBackgroundDrainPicksUpEarlierQueue() throws Exception {
+        // queued by a process that died before uploading
+        List<String> expected = new ArrayList<>();
+        expected.add(onlyPart(record("20161128-140200")));
+        expected.add(onlyPart(record("20161128-140201")));
+
+        OutboxWorker worker = new OutboxWorker(new UploadOutbox(outbox.getDirectory()), standIn.getEndpoint());
+        worker.start();
+        try {
+            expected.add(onlyPart(write("20161128-140202")));
+            worker.submit(info("20161128-140202"), recordings);
+            for (int wait = 0; wait < 100 && (standIn.acceptedCount() < 3 || !outbox.list().isEmpty()); wait++) {
+                Thread.sleep(50);
+            }
+        } finally {
+            worker.stop();
+        }
+        Collections.sort(expected);
+        assertThat(sortedAccepted(), equalTo(expected));
+        assertThat(outbox.list().size(), equalTo(0));
+    }
+}
@@ -0,0 +1,86 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.TimeZone;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.INFO;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class RtlpReaderTest {
+    // written by jni/rtlp.c from the rows of the FM csv fixture
+    static final String FM_RTLP = "/rtl_power/fm_88M_108M_125k.rtlp";
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static byte[] bytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static String json(SpectrumBatch batch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SpectrumJsonWriter().write(batch, out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        BatchInfo info = RtlpReader.readHeader(ByteBuffer.wrap(bytes(CsvRowTokenizerTest.fixture(FM_RTLP))));
+        assertThat(info.batchID, equalTo("20161128-140200"));
+        assertThat(info.latitude, equalTo(-33.8836));
+        assertThat(info.longitude, equalTo(151.2004));
+        assertThat(info.altitude, equalTo(12.5f));
+        assertThat(info.integrationInterval, equalTo("10s"));
+    }
+
+    @Test
+    public void testNativeFileMatchesLegacyJson() throws Exception {
+        File file = new File(RtlpReaderTest.class.getResource(FM_RTLP).toURI());
+        SpectrumBatch batch = new RtlpReader(UTC).read(file);
+        assertThat(batch.getIntegrationCount(), equalTo(2));
+        assertThat(batch.getValueCount(0), equalTo(32));
+        String expected = new Scanner(CsvRowTokenizerTest.fixture("/rtl_power/fm_88M_108M_125k.json"), "UTF-8").useDelimiter("\\A").next();
+        assertThat(json(batch), equalTo(expected));
+    }
+
+    @Test
+    public void testWriterMatchesNativeWriter() throws Exception {
+        TimestampDecoder decoder = new TimestampDecoder(UTC);
+        SpectrumBatch batch = new SpectrumCsvReader(decoder).read(CsvRowTokenizerTest.fixture(CsvRowTokenizerTest.FM),
+                INFO, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RtlpWriter().write(batch, out);
+        assertThat(out.toByteArray(), equalTo(bytes(CsvRowTokenizerTest.fixture(FM_RTLP))));
+    }
+
+    @Test
+    public void testTruncatedIntegrationIsDropped() throws Exception {
+        byte[] file = bytes(CsvRowTokenizerTest.fixture(FM_RTLP));
+        SpectrumBatch whole = new RtlpReader(UTC).read(ByteBuffer.wrap(file));
+        SpectrumBatch cut = new RtlpReader(UTC).read(ByteBuffer.wrap(Arrays.copyOf(file, file.length - 7)));
+        assertThat(cut.getIntegrationCount(), equalTo(1));
+        assertThat(cut.getRowCount(), equalTo(whole.getIntegrationEnd(0)));
+    }
+
+    @Test
+    public void testCentiDb() {
+        assertThat(RtlpFormat.toCentiDb(-24.15f), equalTo((short) -2415));
+        assertThat(RtlpFormat.fromCentiDb((short) -2415), equalTo(-24.15f));
+        assertThat(RtlpFormat.toCentiDb(Float.NEGATIVE_INFINITY), equalTo(RtlpFormat.DBM_NEGATIVE_INFINITY));
+        assertThat(RtlpFormat.fromCentiDb(RtlpFormat.DBM_NEGATIVE_INFINITY), equalTo(Float.NEGATIVE_INFINITY));
+        assertThat(Float.isNaN(RtlpFormat.fromCentiDb(RtlpFormat.toCentiDb(Float.NaN))), equalTo(true));
+        assertThat(RtlpFormat.toCentiDb(-400f), equalTo((short) (Short.MIN_VALUE + 1)));
+    }
+}
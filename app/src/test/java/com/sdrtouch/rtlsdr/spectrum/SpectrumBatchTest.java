@@ -0,0 +1,95 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Scanner;
+import java.util.TimeZone;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.INFO;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SpectrumBatchTest {
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp() {
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    private static SpectrumBatch read(InputStream csv) throws Exception {
+        return new SpectrumCsvReader().read(csv, INFO, 0);
+    }
+
+    private static String json(SpectrumBatch batch) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SpectrumJsonWriter().write(batch, out);
+        return out.toString("UTF-8");
+    }
+
+    private static String dbm(float value) {
+        return SpectrumJsonWriter.appendDbm(new ByteBuilder(), value).toString();
+    }
+
+    @Test
+    public void testColumns() throws Exception {
+        SpectrumBatch batch = read(CsvRowTokenizerTest.fixture(CsvRowTokenizerTest.FM));
+        assertThat(batch.getRowCount(), equalTo(16));
+        assertThat(batch.getIntegrationCount(), equalTo(2));
+        assertThat(batch.getIntegrationStart(1), equalTo(8));
+        assertThat(batch.getIntegrationEnd(1), equalTo(16));
+        assertThat(batch.getFrequencyLow(0), equalTo(88000000));
+        assertThat(batch.getStepHz(0), equalTo(78125f));
+        assertThat(batch.getValueCount(), equalTo(16 * 32));
+        assertThat(batch.getValueOffset(5), equalTo(5 * 32));
+        assertThat(batch.getTimestamp(8) - batch.getTimestamp(7), equalTo(10L));
+    }
+
+    @Test
+    public void testJsonMatchesLegacyOutput() throws Exception {
+        String expected = new Scanner(CsvRowTokenizerTest.fixture("/rtl_power/fm_88M_108M_125k.json"), "UTF-8").useDelimiter("\\A").next();
+        SpectrumBatch batch = read(CsvRowTokenizerTest.fixture(CsvRowTokenizerTest.FM));
+        assertThat(json(batch), equalTo(expected));
+        // serializing again gives the same document without re-reading the csv
+        assertThat(json(batch), equalTo(expected));
+    }
+
+    @Test
+    public void testOutOfOrderRowsAreSortedStably() throws Exception {
+        SpectrumBatch batch = read(new ByteArrayInputStream((
+                "2016-11-28, 13:45:18, 1000000000, 1001000000, 1000000.00, 713, -20.00, -20.00\n" +
+                "2016-11-28, 13:45:08, 1000000000, 1001000000, 1000000.00, 713, -10.00, -10.00\n" +
+                "2016-11-28, 13:45:18, 1001000000, 1002000000, 1000000.00, 713, -21.00, -21.00\n" +
+                "2016-11-28, 13:45:08, 1001000000, 1002000000, 1000000.00, 713, -11.00, -11.00\n").getBytes("US-ASCII")));
+        assertThat(batch.getIntegrationCount(), equalTo(2));
+        float[] expected = {-10f, -11f, -20f, -21f};
+        for (int row = 0; row < 4; row++) {
+            assertThat(batch.getValue(batch.getValueOffset(row)), equalTo(expected[row]));
+            assertThat(batch.getValueCount(row), equalTo(1));
+        }
+        assertThat(batch.getFrequencyLow(1), equalTo(1001000000));
+        assertThat(batch.getLocalTime(3), equalTo(134518));
+    }
+
+    @Test
+    public void testDbmFormatting() {
+        assertThat(dbm(-24.15f), equalTo("-24.15"));
+        assertThat(dbm(3.1f), equalTo("3.10"));
+        assertThat(dbm(-0.0f), equalTo("-0.00"));
+        assertThat(dbm(0f), equalTo("0.00"));
+        assertThat(dbm(-100.05f), equalTo("-100.05"));
+        assertThat(dbm(Float.NEGATIVE_INFINITY), equalTo("-inf"));
+        assertThat(dbm(Float.NaN), equalTo("nan"));
+    }
+}
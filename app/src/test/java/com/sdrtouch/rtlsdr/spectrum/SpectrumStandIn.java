@@ -0,0 +1,106 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stands in for spectrumdatabase.org in tests: a local HTTP server that keeps the bodies it
+ * accepted, decoded, and fails or slows down on request.
+ */
+class SpectrumStandIn implements HttpHandler {
+    final List<String> accepted = new ArrayList<>();
+    final List<String> encodings = new ArrayList<>();
+    long bytesReceived;
+    int failAfter = Integer.MAX_VALUE;
+    long delayMillis;
+    int maxConcurrent;
+
+    private final HttpServer server;
+    private int concurrent;
+
+    SpectrumStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/addrecord/spectrum", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    URL getEndpoint() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/addrecord/spectrum");
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    synchronized int acceptedCount() {
+        return accepted.size();
+    }
+
+    /** Requests received and not answered yet */
+    synchronized int inProgress() {
+        return concurrent;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        byte[] raw = bytes(exchange.getRequestBody());
+        InputStream in = new ByteArrayInputStream(raw);
+        if ("gzip".equals(encoding)) in = new GZIPInputStream(in);
+        if ("deflate".equals(encoding)) in = new InflaterInputStream(in);
+        String body = new String(bytes(in), "UTF-8");
+
+        synchronized (this) {
+            concurrent++;
+            maxConcurrent = Math.max(maxConcurrent, concurrent);
+        }
+        try {
+            if (delayMillis > 0) Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        byte[] response;
+        int status;
+        synchronized (this) {
+            concurrent--;
+            if (accepted.size() >= failAfter) {
+                response = "unavailable".getBytes("UTF-8");
+                status = 503;
+            } else {
+                bytesReceived += raw.length;
+                accepted.add(body);
+                encodings.add(encoding);
+                response = ("stored " + accepted.size()).getBytes("UTF-8");
+                status = 200;
+            }
+        }
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    static byte[] bytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,264 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.TimeZone;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.INFO;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SpectrumUploaderTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long START = 1480341720;
+    private static final int INTEGRATIONS = 40;
+    private static final int HOPS = 4;
+    // room for the header and about five integrations
+    private static final int PART_SIZE = 2500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpectrumStandIn standIn;
+    private URL endpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        standIn = new SpectrumStandIn();
+        endpoint = standIn.getEndpoint();
+    }
+
+    @After
+    public void tearDown() {
+        standIn.stop();
+    }
+
+    static SpectrumBatch batch(int integrations) {
+        SpectrumBatch batch = new SpectrumBatch(INFO);
+        float[] dbm = new float[8];
+        for (int i = 0; i < integrations; i++) {
+            int seconds = 10 * i;
+            int localTime = 140200 + (seconds / 60) * 100 + seconds % 60;
+            for (int hop = 0; hop < HOPS; hop++) {
+                for (int bin = 0; bin < dbm.length; bin++) dbm[bin] = -40f + i * 0.25f + hop + bin * 0.01f;
+                int low = 88000000 + hop * 1000000;
+                batch.addRow(START + seconds, 20161128, localTime, low, low + 1000000, 125000f, 20, dbm, 0, dbm.length);
+            }
+        }
+        batch.seal();
+        return batch;
+    }
+
+    private static String json(SpectrumBatch batch, int first, int end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SpectrumJsonWriter().write(batch, first, end, out);
+        return out.toString("UTF-8");
+    }
+
+    /** The document as the uploader posts it, numbered as a part of its batch */
+    static String part(String document, int number, boolean last) {
+        return document.substring(0, document.length() - 2) + "],\"part\":\"" + number + "\",\"lastPart\":\"" + last + "\"}";
+    }
+
+    private static boolean isLastPart(String part) {
+        return part.endsWith("\"lastPart\":\"true\"}");
+    }
+
+    /**
+     * Checks that every part is a numbered document of whole integrations, together they hold first to
+     * end once and the last one says so
+     */
+    private void assertPartsCover(SpectrumBatch batch, int first, int end) throws IOException {
+        int integration = first;
+        for (int i = 0; i < standIn.accepted.size(); i++) {
+            String part = standIn.accepted.get(i);
+            assertThat(part.length() <= PART_SIZE, equalTo(true));
+            int count = part.split("\"unixTimestamp\"").length - 1;
+            assertThat(part, equalTo(part(json(batch, integration, integration + count), i + 1, isLastPart(part))));
+            integration += count;
+        }
+        assertThat(integration, equalTo(end));
+        assertThat(isLastPart(standIn.accepted.get(standIn.accepted.size() - 1)), equalTo(true));
+    }
+
+    private File journal() {
+        return new File(folder.getRoot(), INFO.batchID + SpectrumUploader.JOURNAL_EXTENSION);
+    }
+
+    @Test
+    public void testIntegrationAlignedParts() throws Exception {
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        SpectrumUploader uploader = new SpectrumUploader(endpoint, PART_SIZE);
+        int parts = uploader.upload(batch, journal());
+
+        assertThat(parts > 1, equalTo(true));
+        assertThat(standIn.accepted.size(), equalTo(parts));
+        assertPartsCover(batch, 0, INTEGRATIONS);
+        for (int i = 0; i < parts - 1; i++) assertThat(isLastPart(standIn.accepted.get(i)), equalTo(false));
+        assertThat(uploader.getLastResponse(), equalTo("stored " + parts));
+
+        // everything is acknowledged, nothing is sent again
+        assertThat(uploader.upload(batch, journal()), equalTo(0));
+        assertThat(standIn.accepted.size(), equalTo(parts));
+    }
+
+    private void assertCompressedUpload(PayloadCompression compression) throws Exception {
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        SpectrumUploader uploader = new SpectrumUploader(endpoint, PART_SIZE);
+        uploader.setCompression(compression);
+        uploader.upload(batch, journal());
+
+        assertPartsCover(batch, 0, INTEGRATIONS);
+        long plain = 0;
+        for (int i = 0; i < standIn.accepted.size(); i++) {
+            assertThat(standIn.encodings.get(i), equalTo(compression.getContentEncoding()));
+            plain += standIn.accepted.get(i).length();
+        }
+        assertThat(uploader.getBytesSent(), equalTo(standIn.bytesReceived));
+        assertThat(uploader.getBytesSent() * 3 < plain, equalTo(true));
+    }
+
+    @Test
+    public void testGzipParts() throws Exception {
+        assertCompressedUpload(PayloadCompression.gzip(1));
+    }
+
+    @Test
+    public void testDeflateParts() throws Exception {
+        assertCompressedUpload(PayloadCompression.deflate(9));
+    }
+
+    @Test
+    public void testUncompressedByDefault() throws Exception {
+        SpectrumUploader uploader = new SpectrumUploader(endpoint, PART_SIZE);
+        uploader.upload(batch(INTEGRATIONS), journal());
+        assertThat(standIn.encodings.get(0), equalTo(null));
+        assertThat(uploader.getBytesSent(), equalTo(standIn.bytesReceived));
+    }
+
+    @Test
+    public void testSingleLargePart() throws Exception {
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        new SpectrumUploader(endpoint).upload(batch, journal());
+        assertThat(standIn.accepted.size(), equalTo(1));
+        assertThat(standIn.accepted.get(0), equalTo(part(json(batch, 0, INTEGRATIONS), 1, true)));
+    }
+
+    @Test
+    public void testDiscardJournal() throws Exception {
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        int parts = new SpectrumUploader(endpoint, PART_SIZE).upload(batch, journal());
+        assertThat(journal().exists(), equalTo(true));
+
+        assertThat(SpectrumUploader.discardJournal(journal()), equalTo(true));
+        assertThat(journal().exists(), equalTo(false));
+        assertThat(SpectrumUploader.discardJournal(journal()), equalTo(true));
+        // without the journal the batch is new again, numbered from the first part
+        standIn.accepted.clear();
+        assertThat(new SpectrumUploader(endpoint, PART_SIZE).upload(batch, journal()), equalTo(parts));
+        assertPartsCover(batch, 0, INTEGRATIONS);
+    }
+
+    @Test
+    public void testResumeAfterFailure() throws Exception {
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        standIn.failAfter = 3;
+        SpectrumUploader uploader = new SpectrumUploader(endpoint, PART_SIZE);
+        try {
+            uploader.upload(batch, journal());
+            fail("The fourth part should have been rejected");
+        } catch (IOException expected) {
+            // the first three parts are in the journal
+        }
+        assertThat(standIn.accepted.size(), equalTo(3));
+
+        standIn.failAfter = Integer.MAX_VALUE;
+        uploader.upload(batch, journal());
+        assertPartsCover(batch, 0, INTEGRATIONS);
+    }
+
+    /** Records integrations first to end of the batch, a recording that is started with 0 and grows after that */
+    private File record(SpectrumBatch batch, int first, int end) throws IOException {
+        File rtlp = new File(folder.getRoot(), INFO.batchID + RtlpFormat.EXTENSION);
+        OutputStream out = new FileOutputStream(rtlp, first > 0);
+        RtlpWriter writer = new RtlpWriter();
+        if (first == 0) writer.writeHeader(INFO, out);
+        for (int i = first; i < end; i++) writer.writeIntegration(batch, i, out);
+        out.close();
+        return rtlp;
+    }
+
+    private int uploadRecording(File rtlp, boolean finished) throws Exception {
+        SweepFileReader recording = new SweepFileReader(rtlp, UTC);
+        try {
+            return new SpectrumUploader(endpoint, PART_SIZE).upload(recording, recording.getInfo(), journal(), finished);
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testResumeFromRecording() throws Exception {
+        // a recording that is still growing: upload, record more, upload the rest once it is finished
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        File rtlp = record(batch, 0, 25);
+        int partsBefore = uploadRecording(rtlp, false);
+        assertThat(partsBefore > 0, equalTo(true));
+        assertThat(standIn.accepted.size(), equalTo(partsBefore));
+        // only full parts, the integrations after them may still be joined by more
+        int sent = 0;
+        for (String part : standIn.accepted) {
+            assertThat(isLastPart(part), equalTo(false));
+            sent += part.split("\"unixTimestamp\"").length - 1;
+        }
+        assertThat(sent < 25, equalTo(true));
+
+        record(batch, 25, INTEGRATIONS);
+        int parts = uploadRecording(rtlp, true);
+        assertThat(standIn.accepted.size(), equalTo(partsBefore + parts));
+        assertPartsCover(batch, 0, INTEGRATIONS);
+    }
+
+    @Test
+    public void testLastPartOnlyOnceFinished() throws Exception {
+        SpectrumBatch batch = batch(INTEGRATIONS);
+        File rtlp = record(batch, 0, 25);
+        int parts = uploadRecording(rtlp, false);
+        // reaching the end of the file again changes nothing while the batch is open
+        assertThat(uploadRecording(rtlp, false), equalTo(0));
+        assertThat(standIn.accepted.size(), equalTo(parts));
+
+        // closed without recording more, what was held back goes out as the last part
+        assertThat(uploadRecording(rtlp, true), equalTo(1));
+        assertPartsCover(batch, 0, 25);
+        assertThat(uploadRecording(rtlp, true), equalTo(0));
+    }
+
+    @Test
+    public void testJournalOfAnotherBatchIsIgnored() throws Exception {
+        new SpectrumUploader(endpoint, PART_SIZE).upload(batch(10), journal());
+        standIn.accepted.clear();
+
+        // same name, different recording
+        SpectrumBatch other = new SpectrumBatch(INFO);
+        SpectrumBatch source = batch(INTEGRATIONS);
+        for (int row = 0; row < source.getRowCount(); row++) {
+            other.addRow(source.getTimestamp(row) + 3600, source.getLocalDate(row), source.getLocalTime(row) + 10000,
+                    source.getFrequencyLow(row), source.getFrequencyHigh(row), source.getStepHz(row), source.getSamples(row),
+                    source.getValues(), source.getValueOffset(row), source.getValueCount(row));
+        }
+        new SpectrumUploader(endpoint, PART_SIZE).upload(other, journal());
+        assertPartsCover(other, 0, INTEGRATIONS);
+    }
+}
@@ -0,0 +1,148 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.INFO;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SweepFileReaderTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    // 2016-11-28 14:02:00 UTC
+    private static final long START = 1480341720L;
+    private static final int INTEGRATIONS = 500;
+    private static final int HOPS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] csv(int integrations) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < integrations; i++) {
+            long seconds = 14 * 3600 + 2 * 60 + i * 10L;
+            String time = String.format(Locale.US, "2016-%02d-%02d, %02d:%02d:%02d", 11, 28 + seconds / 86400,
+                    seconds / 3600 % 24, seconds / 60 % 60, seconds % 60);
+            for (int hop = 0; hop < HOPS; hop++) {
+                int low = 88000000 + hop * 2500000;
+                float dbm = -20f - i % 50 - hop;
+                sb.append(time).append(", ").append(low).append(", ").append(low + 2500000).append(", 1250000.00, 40, ")
+                        .append(String.format(Locale.US, "%.2f, %.2f, %.2f", dbm, dbm - 1, dbm - 1)).append('\n');
+            }
+        }
+        return sb.toString().getBytes("US-ASCII");
+    }
+
+    private File csvFile() throws IOException {
+        return write("sweeps.csv", csv(INTEGRATIONS));
+    }
+
+    private File rtlpFile() throws Exception {
+        SpectrumBatch batch = new SpectrumCsvReader(new TimestampDecoder(UTC)).read(new ByteArrayInputStream(csv(INTEGRATIONS)), INFO, 0);
+        File file = folder.newFile("sweeps.rtlp");
+        FileOutputStream out = new FileOutputStream(file);
+        new RtlpWriter().write(batch, out);
+        out.close();
+        return file;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static SweepFileReader open(File file) throws IOException {
+        // small chunks so integrations regularly straddle a chunk boundary
+        return new SweepFileReader(new MappedFile(file, 1000), UTC);
+    }
+
+    private static void assertRandomAccess(SweepFileReader reader) throws Exception {
+        assertThat(reader.getIntegration(INTEGRATIONS - 1).getTimestamp(), equalTo(START + (INTEGRATIONS - 1) * 10L));
+        for (int n : new int[]{0, 1, 63, 64, 65, 257, 499}) {
+            SweepFileReader.Integration integration = reader.getIntegration(n);
+            assertThat(integration.getIndex(), equalTo(n));
+            assertThat(integration.getTimestamp(), equalTo(START + n * 10L));
+            SpectrumBatch batch = new SpectrumBatch(INFO);
+            integration.appendTo(batch);
+            batch.seal();
+            assertThat(batch.getRowCount(), equalTo(HOPS));
+            assertThat(batch.getTimestamp(0), equalTo(START + n * 10L));
+            assertThat(batch.getValueCount(2), equalTo(2));
+            assertThat(batch.getValue(batch.getValueOffset(2)), equalTo(-22f - n % 50));
+        }
+        assertThat(reader.getIntegration(INTEGRATIONS), nullValue());
+        assertThat(reader.getIntegrationCount(), equalTo(INTEGRATIONS));
+    }
+
+    private static void assertTimeLookups(SweepFileReader reader) throws Exception {
+        assertThat(reader.findAtOrAfter(START + 1234).getTimestamp(), equalTo(START + 1240));
+        assertThat(reader.findAtOrAfter(START - 100).getTimestamp(), equalTo(START));
+        assertThat(reader.findAtOrAfter(START + INTEGRATIONS * 10L), nullValue());
+
+        List<SweepFileReader.Integration> found = reader.findBetween(START + 95, START + 140);
+        assertThat(found.size(), equalTo(5));
+        assertThat(found.get(0).getTimestamp(), equalTo(START + 100));
+        assertThat(found.get(4).getTimestamp(), equalTo(START + 140));
+    }
+
+    @Test
+    public void testCsvRandomAccess() throws Exception {
+        SweepFileReader reader = open(csvFile());
+        assertThat(reader.getInfo(), nullValue());
+        assertRandomAccess(reader);
+        reader.close();
+    }
+
+    @Test
+    public void testRtlpRandomAccess() throws Exception {
+        SweepFileReader reader = open(rtlpFile());
+        assertThat(reader.getInfo().batchID, equalTo(INFO.batchID));
+        assertRandomAccess(reader);
+        reader.close();
+    }
+
+    @Test
+    public void testTimeLookupsBeforeAndAfterIndexing() throws Exception {
+        for (File file : new File[]{csvFile(), rtlpFile()}) {
+            SweepFileReader cold = open(file);
+            // nothing scanned yet, the file is bisected
+            assertThat(cold.findAtOrAfter(START + 2000).getIndex(), equalTo(-1));
+            assertTimeLookups(cold);
+            cold.close();
+
+            SweepFileReader indexed = open(file);
+            indexed.getIntegrationCount();
+            assertThat(indexed.findAtOrAfter(START + 2000).getIndex(), equalTo(200));
+            assertTimeLookups(indexed);
+            indexed.close();
+        }
+    }
+
+    @Test
+    public void testIncompleteTailIsIgnored() throws Exception {
+        for (File file : new File[]{csvFile(), rtlpFile()}) {
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            truncate.setLength(truncate.length() - 5);
+            truncate.close();
+
+            SweepFileReader reader = open(file);
+            assertThat(reader.getIntegrationCount(), equalTo(INTEGRATIONS - 1));
+            assertThat(reader.findAtOrAfter(START + (INTEGRATIONS - 1) * 10L), nullValue());
+            reader.close();
+        }
+    }
+}
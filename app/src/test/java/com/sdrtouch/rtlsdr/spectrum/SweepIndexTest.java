@@ -0,0 +1,138 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.TimeZone;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SweepIndexTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    // written by jni/sweepidx.c while converting the FM csv fixture
+    private static final String FM_IDX = "/rtl_power/fm_88M_108M_125k.idx";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File copy(String fixture, String name) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        InputStream in = CsvRowTokenizerTest.fixture(fixture);
+        FileOutputStream out = new FileOutputStream(file);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+        out.close();
+        in.close();
+        return file;
+    }
+
+    private static void assertSameSummary(SweepIndex actual, SweepIndex expected) {
+        assertThat(actual.getIntegrationCount(), equalTo(expected.getIntegrationCount()));
+        for (int i = 0; i < expected.getIntegrationCount(); i++) {
+            assertThat(actual.getTimestamp(i), equalTo(expected.getTimestamp(i)));
+            assertThat(actual.getMinDbm(i), equalTo(expected.getMinDbm(i)));
+            assertThat(actual.getMaxDbm(i), equalTo(expected.getMaxDbm(i)));
+            assertThat(actual.getMeanDbm(i), equalTo(expected.getMeanDbm(i)));
+            assertThat(actual.getHopCount(i), equalTo(expected.getHopCount(i)));
+            for (int hop = 0; hop < expected.getHopCount(i); hop++) {
+                assertThat(actual.getHopLow(i, hop), equalTo(expected.getHopLow(i, hop)));
+                assertThat(actual.getHopHigh(i, hop), equalTo(expected.getHopHigh(i, hop)));
+                assertThat(actual.getHopMaxDbm(i, hop), equalTo(expected.getHopMaxDbm(i, hop)));
+            }
+        }
+    }
+
+    @Test
+    public void testNativeIndex() throws Exception {
+        SweepIndex index = SweepIndex.read(copy(FM_IDX, "native.idx"));
+        assertThat(index.getIntegrationCount(), equalTo(2));
+        assertThat(index.getHopCount(1), equalTo(8));
+        assertThat(index.getHopLow(1, 3), equalTo(95500000));
+        assertThat(index.getHopHigh(1, 3), equalTo(98000000));
+        assertThat(index.getMinDbm(1), equalTo(Float.NEGATIVE_INFINITY));
+        assertThat(index.getCsvOffset(0), equalTo(0L));
+        assertThat(index.getRtlpOffset(0), equalTo(50L));
+
+        SweepFileReader csv = new SweepFileReader(copy(CsvRowTokenizerTest.FM, "fm.csv"), UTC);
+        assertThat(csv.getIntegration(1).getOffset(), equalTo(index.getCsvOffset(1)));
+        csv.close();
+        SweepFileReader rtlp = new SweepFileReader(copy(RtlpReaderTest.FM_RTLP, "fm.rtlp"), UTC);
+        assertThat(rtlp.getIntegration(1).getOffset(), equalTo(index.getRtlpOffset(1)));
+        rtlp.close();
+    }
+
+    @Test
+    public void testRebuildMatchesNativeIndex() throws Exception {
+        SweepIndex expected = SweepIndex.read(copy(FM_IDX, "native.idx"));
+
+        File csv = copy(CsvRowTokenizerTest.FM, "fm.csv");
+        SweepIndex fromCsv = SweepIndex.update(new File(folder.getRoot(), "csv.idx"), null, csv, UTC);
+        assertSameSummary(fromCsv, expected);
+        assertThat(fromCsv.getCsvOffset(1), equalTo(expected.getCsvOffset(1)));
+        assertThat(fromCsv.getRtlpOffset(1), equalTo(-1L));
+
+        File rtlp = copy(RtlpReaderTest.FM_RTLP, "fm.rtlp");
+        File idx = new File(folder.getRoot(), "rtlp.idx");
+        assertSameSummary(SweepIndex.update(idx, rtlp, csv, UTC), expected);
+        // written to disk as well
+        SweepIndex reread = SweepIndex.read(idx);
+        assertSameSummary(reread, expected);
+        assertThat(reread.getRtlpOffset(1), equalTo(expected.getRtlpOffset(1)));
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        File native_ = copy(FM_IDX, "fm.idx");
+        File csv = copy(CsvRowTokenizerTest.FM, "fm.csv");
+        SweepIndex expected = SweepIndex.update(new File(folder.getRoot(), "full.idx"), null, csv, UTC);
+
+        // a recording cut short after the first integration, with half a record at the end of its index
+        File rtlp = copy(RtlpReaderTest.FM_RTLP, "fm.rtlp");
+        long fullLength = rtlp.length();
+        RandomAccessFile file = new RandomAccessFile(rtlp, "rw");
+        file.setLength(SweepIndex.read(native_).getRtlpOffset(1));
+        file.close();
+        file = new RandomAccessFile(native_, "rw");
+        file.setLength(file.length() - 9);
+        file.close();
+        assertThat(SweepIndex.read(native_).getIntegrationCount(), equalTo(1));
+        assertThat(SweepIndex.update(native_, rtlp, null, UTC).getIntegrationCount(), equalTo(1));
+
+        // the rest of the recording arrives
+        rtlp.delete();
+        rtlp = copy(RtlpReaderTest.FM_RTLP, "fm.rtlp");
+        assertThat(rtlp.length(), equalTo(fullLength));
+        SweepIndex updated = SweepIndex.update(native_, rtlp, null, UTC);
+        assertSameSummary(updated, expected);
+        // the first entry came from the native index, the appended one from the .rtlp
+        assertThat(updated.getCsvOffset(0), equalTo(0L));
+        assertThat(updated.getCsvOffset(1), equalTo(-1L));
+        assertSameSummary(SweepIndex.read(native_), expected);
+    }
+
+    @Test
+    public void testFindCrossing() throws Exception {
+        SweepIndex index = SweepIndex.read(copy(FM_IDX, "native.idx"));
+        float loudest = Math.max(index.getMaxDbm(0), index.getMaxDbm(1));
+        int loudestIntegration = index.getMaxDbm(0) >= index.getMaxDbm(1) ? 0 : 1;
+        int hop = 0;
+        while (index.getHopMaxDbm(loudestIntegration, hop) != loudest) hop++;
+        int low = index.getHopLow(loudestIntegration, hop);
+        int high = index.getHopHigh(loudestIntegration, hop);
+
+        assertThat(index.findCrossing(loudest + 0.01f, 88000000, 108000000).length, equalTo(0));
+        int[] found = index.findCrossing(loudest, low + 1, high - 1);
+        assertThat(found.length >= 1, equalTo(true));
+        assertThat(found[found.length - 1] == loudestIntegration || found[0] == loudestIntegration, equalTo(true));
+        assertThat(index.findCrossing(-1000f, 88000000, 108000000).length, equalTo(2));
+        assertThat(index.findCrossing(-1000f, 200000000, 300000000).length, equalTo(0));
+    }
+}
@@ -0,0 +1,17 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+/**
+ * The batch the fixture recordings were made in, for the tests that need one but don't care
+ * where or when it was recorded.
+ */
+final class TestBatches {
+    static final BatchInfo INFO = info("20161128-140200");
+
+    private TestBatches() {
+    }
+
+    /** The fixture batch under another id, for tests that keep several apart */
+    static BatchInfo info(String batchID) {
+        return new BatchInfo(batchID, 12.5f, -33.8836, 151.2004, "10s");
+    }
+}
@@ -0,0 +1,71 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TimestampDecoderTest {
+
+    private static void assertSameAsSimpleDateFormat(String zone, int year, int month, int day) throws Exception {
+        TimeZone timeZone = TimeZone.getTimeZone(zone);
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss");
+        sdf.setTimeZone(timeZone);
+        TimestampDecoder decoder = new TimestampDecoder(timeZone);
+
+        Calendar local = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        local.clear();
+        local.set(year, month - 1, day - 1);
+        // walk over three days of wall clock time in steps of 7 minutes and 13 seconds
+        for (int step = 0; step < 3 * 24 * 60 * 60; step += 433) {
+            Calendar wall = (Calendar) local.clone();
+            wall.add(Calendar.SECOND, step);
+            String text = String.format("%04d-%02d-%02d%02d:%02d:%02d", wall.get(Calendar.YEAR), wall.get(Calendar.MONTH) + 1,
+                    wall.get(Calendar.DAY_OF_MONTH), wall.get(Calendar.HOUR_OF_DAY), wall.get(Calendar.MINUTE), wall.get(Calendar.SECOND));
+            long expected = sdf.parse(text).getTime() / 1000;
+            long actual = decoder.toUnixTime(wall.get(Calendar.YEAR), wall.get(Calendar.MONTH) + 1, wall.get(Calendar.DAY_OF_MONTH),
+                    wall.get(Calendar.HOUR_OF_DAY), wall.get(Calendar.MINUTE), wall.get(Calendar.SECOND));
+            assertThat(zone + " " + text, actual, equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testUtc() throws Exception {
+        assertSameAsSimpleDateFormat("UTC", 2016, 11, 28);
+        assertSameAsSimpleDateFormat("UTC", 2016, 2, 29);
+        assertSameAsSimpleDateFormat("UTC", 2000, 1, 1);
+    }
+
+    @Test
+    public void testDaylightSavingTransitions() throws Exception {
+        // Sydney leaves daylight saving on the 3rd of April 2016 and enters it on the 2nd of October
+        assertSameAsSimpleDateFormat("Australia/Sydney", 2016, 4, 3);
+        assertSameAsSimpleDateFormat("Australia/Sydney", 2016, 10, 2);
+        assertSameAsSimpleDateFormat("America/New_York", 2016, 3, 13);
+        assertSameAsSimpleDateFormat("America/New_York", 2016, 11, 6);
+        assertSameAsSimpleDateFormat("Asia/Kolkata", 2016, 11, 28);
+    }
+
+    @Test
+    public void testRepeatedTimestampsAreCached() {
+        TimestampDecoder decoder = new TimestampDecoder(TimeZone.getTimeZone("UTC"));
+        for (int hop = 0; hop < 700; hop++) {
+            assertThat(decoder.toUnixTime(2016, 11, 28, 13, 45, 8), equalTo(1480340708L));
+        }
+        assertThat(decoder.toUnixTime(2016, 11, 28, 13, 45, 18), equalTo(1480340718L));
+        assertThat(decoder.toUnixTime(2016, 11, 28, 13, 45, 8), equalTo(1480340708L));
+        assertThat(decoder.getMisses(), equalTo(2));
+        assertThat(decoder.getHits(), equalTo(700));
+    }
+
+    @Test
+    public void testDaysFromCivil() {
+        assertThat(TimestampDecoder.daysFromCivil(1970, 1, 1), equalTo(0L));
+        assertThat(TimestampDecoder.daysFromCivil(1969, 12, 31), equalTo(-1L));
+        assertThat(TimestampDecoder.daysFromCivil(2016, 11, 28), equalTo(17133L));
+    }
+}
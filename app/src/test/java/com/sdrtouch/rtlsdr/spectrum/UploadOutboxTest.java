@@ -0,0 +1,83 @@
+package com.sdrtouch.rtlsdr.spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static com.sdrtouch.rtlsdr.spectrum.TestBatches.INFO;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class UploadOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntriesSurviveReopening() throws Exception {
+        File directory = new File(folder.getRoot(), UploadOutbox.DIRECTORY_NAME);
+        File recordings = folder.getRoot();
+        new UploadOutbox(directory).enqueue(INFO, recordings);
+
+        List<UploadOutbox.Entry> entries = new UploadOutbox(directory).list();
+        assertThat(entries.size(), equalTo(1));
+        UploadOutbox.Entry entry = entries.get(0);
+        assertThat(entry.getInfo().batchID, equalTo(INFO.batchID));
+        assertThat(entry.getInfo().altitude, equalTo(INFO.altitude));
+        assertThat(entry.getInfo().latitude, equalTo(INFO.latitude));
+        assertThat(entry.getInfo().longitude, equalTo(INFO.longitude));
+        assertThat(entry.getInfo().integrationInterval, equalTo(INFO.integrationInterval));
+        assertThat(entry.getRecordingDirectory(), equalTo(recordings));
+        assertThat(entry.getAttempts(), equalTo(0));
+        assertThat(entry.getLastError(), equalTo(null));
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        UploadOutbox outbox = new UploadOutbox(folder.newFolder());
+        UploadOutbox.Entry entry = outbox.enqueue(INFO, folder.getRoot());
+        assertThat(outbox.due(0).size(), equalTo(1));
+
+        entry = outbox.failed(entry, 1000, "HTTP 503");
+        entry = outbox.failed(entry, 2000, "HTTP 503");
+        assertThat(entry.getAttempts(), equalTo(2));
+        assertThat(entry.getNextAttempt(), equalTo(2000 + 2 * UploadOutbox.FIRST_BACKOFF_MILLIS));
+        assertThat(outbox.due(2000).size(), equalTo(0));
+        assertThat(outbox.due(entry.getNextAttempt()).size(), equalTo(1));
+
+        // queued again, due at once but the attempts are kept
+        entry = outbox.enqueue(INFO, folder.getRoot());
+        assertThat(entry.getAttempts(), equalTo(2));
+        assertThat(outbox.due(0).size(), equalTo(1));
+
+        outbox.remove(entry);
+        assertThat(outbox.list().size(), equalTo(0));
+    }
+
+    @Test
+    public void testBackoffDoublesUpToAnHour() {
+        assertThat(UploadOutbox.backoffMillis(0), equalTo(0L));
+        assertThat(UploadOutbox.backoffMillis(1), equalTo(30 * 1000L));
+        assertThat(UploadOutbox.backoffMillis(4), equalTo(240 * 1000L));
+        assertThat(UploadOutbox.backoffMillis(8), equalTo(UploadOutbox.MAX_BACKOFF_MILLIS));
+        assertThat(UploadOutbox.backoffMillis(1000), equalTo(UploadOutbox.MAX_BACKOFF_MILLIS));
+    }
+
+    @Test
+    public void testUnreadableEntriesAreSkipped() throws Exception {
+        File directory = folder.newFolder();
+        UploadOutbox outbox = new UploadOutbox(directory);
+        outbox.enqueue(INFO, folder.getRoot());
+        // left behind by a crash while writing
+        FileOutputStream out = new FileOutputStream(new File(directory, "20161128-140210" + UploadOutbox.ENTRY_EXTENSION));
+        out.write("batchID=20161128-140210\naltitude=".getBytes("US-ASCII"));
+        out.close();
+        new FileOutputStream(new File(directory, INFO.batchID + UploadOutbox.ENTRY_EXTENSION + ".tmp")).close();
+
+        assertThat(outbox.list().size(), equalTo(1));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Checks the dsp kernels are bit-identical to the loops scanner() had inline,
+ * copied below as they were. make test runs it built with -O3 and built as
+ * the scalar fallback.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "dsp_kernels.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+/* ---- the code before the kernels, from rtlsdrdevice.c ---- */
+
+static void old_convert(const uint8_t * buf8, int16_t * fft_buf, int buf_len) {
+	int j;
+	for (j=0; j<buf_len; j++) {
+		fft_buf[j] = (int16_t)buf8[j] - 127;
+	}
+}
+
+static void old_boxcar(int16_t * fft_buf, int buf_len, int ds) {
+	int j, j2;
+	j=2, j2=0;
+	while (j < buf_len) {
+		fft_buf[j2]   += fft_buf[j];
+		fft_buf[j2+1] += fft_buf[j+1];
+		fft_buf[j] = 0;
+		fft_buf[j+1] = 0;
+		j += 2;
+		if (j % (ds*2) == 0) {
+			j2 += 2;}
+	}
+}
+
+static void old_remove_dc(int16_t *data, int length) {
+	int i;
+	int16_t ave;
+	long sum = 0L;
+	for (i=0; i < length; i+=2) {
+		sum += data[i];
+	}
+	ave = (int16_t)(sum / (long)(length));
+	if (ave == 0) {
+		return;}
+	for (i=0; i < length; i+=2) {
+		data[i] -= ave;
+	}
+}
+
+static void old_window(int16_t * fft_buf, const int * window_coefs, int bin_len) {
+	int j;
+	int32_t w;
+	for (j=0; j<bin_len; j++) {
+		w =  (int32_t)fft_buf[j*2];
+		w *= (int32_t)(window_coefs[j]);
+		fft_buf[j*2]   = (int16_t)w;
+		w =  (int32_t)fft_buf[j*2+1];
+		w *= (int32_t)(window_coefs[j]);
+		fft_buf[j*2+1] = (int16_t)w;
+	}
+}
+
+static long real_conj(int16_t real, int16_t imag) {
+	return ((long)real*(long)real + (long)imag*(long)imag);
+}
+
+/* ---- */
+
+static void random_bytes(uint8_t * buf8, int len, unsigned seed, int extreme) {
+	int j;
+	srand(seed);
+	for (j = 0; j < len; j++)
+		buf8[j] = extreme ? (rand() & 1 ? 255 : 0) : (uint8_t)(100 + rand() % 60);
+}
+
+static void test_convert_and_dc(int len, int ds, int with_boxcar, int extreme) {
+	uint8_t * buf8 = (uint8_t *) malloc(len);
+	int16_t * expected = (int16_t *) malloc(sizeof(int16_t) * len);
+	int16_t * actual = (int16_t *) malloc(sizeof(int16_t) * len);
+	dsp_dc_t dc;
+	int used = len / ds;
+
+	random_bytes(buf8, len, (unsigned)(len + ds), extreme);
+	old_convert(buf8, expected, len);
+	if (with_boxcar) {
+		old_boxcar(expected, len, ds);
+		dsp_u8_boxcar(buf8, actual, len, ds);
+		CHECK(memcmp(expected, actual, sizeof(int16_t) * len) == 0, "boxcar len=%d ds=%d extreme=%d", len, ds, extreme);
+		dsp_dc_sums(actual, used, &dc);
+	} else {
+		dsp_u8_to_iq(buf8, actual, len, &dc);
+		CHECK(memcmp(expected, actual, sizeof(int16_t) * len) == 0, "convert len=%d", len);
+		if (ds > 1)
+			dsp_dc_sums(actual, used, &dc);
+	}
+	old_remove_dc(expected, used);
+	old_remove_dc(expected+1, used - 1);
+	dsp_remove_dc(actual, used, &dc);
+	CHECK(memcmp(expected, actual, sizeof(int16_t) * len) == 0, "dc len=%d ds=%d boxcar=%d extreme=%d", len, ds, with_boxcar, extreme);
+
+	free(buf8);
+	free(expected);
+	free(actual);
+}
+
+static void test_dc_offset(void) {
+	/* a dongle with a strong dc offset, so both averages are non-zero */
+	uint8_t buf8[64];
+	int16_t expected[64], actual[64];
+	dsp_dc_t dc;
+	int j;
+	for (j = 0; j < 64; j++)
+		buf8[j] = (uint8_t)(j % 2 ? 90 + j : 200 - j);
+	old_convert(buf8, expected, 64);
+	old_remove_dc(expected, 64);
+	old_remove_dc(expected+1, 63);
+	dsp_u8_to_iq(buf8, actual, 64, &dc);
+	CHECK(dc.sum_i != 0 && dc.sum_q != 0, "offset sums");
+	dsp_remove_dc(actual, 64, &dc);
+	CHECK(memcmp(expected, actual, sizeof(expected)) == 0, "offset");
+}
+
+static void test_window_and_power(int n, int extreme) {
+	int16_t * expected = (int16_t *) malloc(sizeof(int16_t) * 2 * n);
+	int16_t * actual = (int16_t *) malloc(sizeof(int16_t) * 2 * n);
+	int * window = (int *) malloc(sizeof(int) * n);
+	long * avg = (long *) calloc(n, sizeof(long));
+	double * power = (double *) calloc(n, sizeof(double));
+	int j, round;
+
+	srand((unsigned) n);
+	for (j = 0; j < n; j++)
+		window[j] = extreme ? 256 : rand() % 257;
+	for (round = 0; round < 3; round++) {
+		for (j = 0; j < 2 * n; j++)
+			expected[j] = actual[j] = extreme ? (j % 3 ? -128 : 127) : (int16_t)(rand() % 255 - 127);
+		old_window(expected, window, n);
+		dsp_window_i16(actual, window, n);
+		CHECK(memcmp(expected, actual, sizeof(int16_t) * 2 * n) == 0, "window n=%d", n);
+		for (j = 0; j < n; j++)
+			avg[j] += real_conj(expected[j*2], expected[j*2+1]);
+		dsp_power_i16(actual, power, n, 0);
+	}
+	for (j = 0; j < n; j++)
+		CHECK((double)avg[j] == power[j], "power n=%d bin %d", n, j);
+
+	/* peak hold */
+	for (j = 0; j < n; j++) {
+		avg[j] = j % 2 ? 0 : 1L << 40;
+		power[j] = (double)avg[j];
+	}
+	for (j = 0; j < n; j++)
+		avg[j] = real_conj(expected[j*2], expected[j*2+1]) > avg[j] ? real_conj(expected[j*2], expected[j*2+1]) : avg[j];
+	dsp_power_i16(actual, power, n, 1);
+	for (j = 0; j < n; j++)
+		CHECK((double)avg[j] == power[j], "peak hold n=%d bin %d", n, j);
+
+	/* the block alone */
+	dsp_power_i16(actual, power, n, DSP_POWER_SET);
+	for (j = 0; j < n; j++)
+		CHECK((double)real_conj(expected[j*2], expected[j*2+1]) == power[j], "set n=%d bin %d", n, j);
+
+	free(expected);
+	free(actual);
+	free(window);
+	free(avg);
+	free(power);
+}
+
+static void test_power_f32(void) {
+	float re[37], im[37];
+	double expected[37], power[37];
+	int k;
+	for (k = 0; k < 37; k++) {
+		re[k] = (float)k * 1.5f - 20;
+		im[k] = 3.25f - (float)k;
+		expected[k] = 1.0 + ((double)re[k]*re[k] + (double)im[k]*im[k]) * 0.25;
+		power[k] = 1.0;
+	}
+	dsp_power_f32(re, im, 0.25, power, 37, 0);
+	for (k = 0; k < 37; k++)
+		CHECK(expected[k] == power[k], "f32 bin %d", k);
+	for (k = 0; k < 37; k++)
+		power[k] = k == 5 ? 1e9 : 0;
+	dsp_power_f32(re, im, 0.25, power, 37, 1);
+	CHECK(power[5] == 1e9 && power[6] == (expected[6] - 1.0), "f32 peak hold");
+	dsp_power_f32(re, im, 0.25, power, 37, DSP_POWER_SET);
+	CHECK(power[5] == expected[5] - 1.0 && power[6] == expected[6] - 1.0, "f32 set");
+}
+
+int main(void) {
+	int ds, extreme;
+	/* buf_len from frequency_range: 2 * 2^bin_e * downsample, at least 16384 */
+	int lens[] = {16384, 2 * 1024 * 3, 2 * 4096 * 5, 2 * 256 * 7};
+	int l;
+	test_dc_offset();
+	test_power_f32();
+	for (extreme = 0; extreme <= 1; extreme++) {
+		for (l = 0; l < 4; l++) {
+			test_convert_and_dc(lens[l], 1, 0, extreme);
+			for (ds = 2; ds <= 9; ds++) {
+				test_convert_and_dc(lens[l], ds, 1, extreme);
+				test_convert_and_dc(lens[l], ds, 0, extreme);
+			}
+			/* wide boxcars overflow 16 bits */
+			test_convert_and_dc(lens[l], 300, 1, extreme);
+		}
+		test_window_and_power(8, extreme);
+		test_window_and_power(1024, extreme);
+		test_window_and_power(65536, extreme);
+	}
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
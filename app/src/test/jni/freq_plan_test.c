@@ -0,0 +1,250 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Checks the plans match the tunes frequency_range() in rtlsdrdevice.c built
+ * before the cache, copied below as it was, and that the cache hands out the
+ * same plan for the same key and evicts the least recently used one.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "freq_plan.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+static double rectangle(int i, int length) {
+	return 1.0;
+}
+
+static double hamming(int i, int length) {
+	double a, b, w, N1;
+	a = 25.0/46.0;
+	b = 21.0/46.0;
+	N1 = (double)(length-1);
+	w = a - b*cos(2*i*M_PI/N1);
+	return w;
+}
+
+/* ---- the code before the plans, from rtlsdrdevice.c ---- */
+
+#define DEFAULT_BUF_LENGTH		(1 * 16384)
+#define MAXIMUM_RATE			2800000
+#define MINIMUM_RATE			1000000
+
+struct old_tune {
+	int freq, rate, bin_e, downsample, downsample_passes, buf_len;
+	double crop;
+};
+
+static struct old_tune tunes[3000];
+static int tune_count;
+
+static void old_frequency_range(int lower, int upper, int max_size, double crop, int boxcar) {
+	int i, bw_seen, bw_used, bin_e, buf_len;
+	int downsample, downsample_passes;
+	double bin_size;
+	downsample = 1;
+	downsample_passes = 0;
+	for (i=1; i<1500; i++) {
+		bw_seen = (upper - lower) / i;
+		bw_used = (int)((double)(bw_seen) / (1.0 - crop));
+		if (bw_used > MAXIMUM_RATE) {
+			continue;}
+		tune_count = i;
+		break;
+	}
+	if (bw_used < MINIMUM_RATE) {
+		tune_count = 1;
+		downsample = MAXIMUM_RATE / bw_used;
+		bw_used = bw_used * downsample;
+	}
+	if (!boxcar && downsample > 1) {
+		downsample_passes = (int)log2(downsample);
+		downsample = 1 << downsample_passes;
+		bw_used = (int)((double)(bw_seen * downsample) / (1.0 - crop));
+	}
+	for (i=1; i<=21; i++) {
+		bin_e = i;
+		bin_size = (double)bw_used / (double)((1<<i) * downsample);
+		if (bin_size <= (double)max_size) {
+			break;}
+	}
+	if (max_size >= MINIMUM_RATE) {
+		bw_seen = max_size;
+		bw_used = max_size;
+		tune_count = (upper - lower) / bw_seen;
+		bin_e = 0;
+		crop = 0;
+	}
+	buf_len = 2 * (1<<bin_e) * downsample;
+	if (buf_len < DEFAULT_BUF_LENGTH) {
+		buf_len = DEFAULT_BUF_LENGTH;
+	}
+	for (i=0; i<tune_count; i++) {
+		tunes[i].freq = lower + i*bw_seen + bw_seen/2;
+		tunes[i].rate = bw_used;
+		tunes[i].bin_e = bin_e;
+		tunes[i].crop = crop;
+		tunes[i].downsample = downsample;
+		tunes[i].downsample_passes = downsample_passes;
+		tunes[i].buf_len = buf_len;
+	}
+}
+
+/* ---- */
+
+static freq_plan_key_t key_of(int lower, int upper, int max_bin, double crop, int boxcar) {
+	freq_plan_key_t key;
+	memset(&key, 0, sizeof(key));
+	key.lower = lower;
+	key.upper = upper;
+	key.max_bin = max_bin;
+	key.crop = crop;
+	key.boxcar = boxcar;
+	key.window_fn = rectangle;
+	key.fft_backend = &power_fft_fixed;
+	return key;
+}
+
+static void test_same_as_before(int lower, int upper, int max_bin, double crop, int boxcar) {
+	freq_plan_cache_t cache;
+	freq_plan_key_t key = key_of(lower, upper, max_bin, crop, boxcar);
+	const freq_plan_t * plan;
+	const freq_plan_record_t * r;
+	int i, error;
+
+	memset(&cache, 0, sizeof(cache));
+	old_frequency_range(lower, upper, max_bin, crop, boxcar);
+	plan = freq_plan_get(&cache, &key, 3000, &error);
+	CHECK(plan != NULL && error == FREQ_PLAN_OK, "%d:%d:%d error %d", lower, upper, max_bin, error);
+	if (plan == NULL) return;
+	r = plan->record;
+	CHECK(r->hop_count == tune_count, "%d:%d:%d hops %d, was %d", lower, upper, max_bin, r->hop_count, tune_count);
+	CHECK(plan->record_size == sizeof(freq_plan_record_t) + tune_count * sizeof(int32_t), "record size");
+	CHECK((const char *) plan->freq == (const char *) r + 32, "hops follow the 32 byte header");
+	CHECK(plan->fft.n == 1 << r->bin_e && plan->fft.backend == &power_fft_fixed, "fft");
+	for (i = 0; i < tune_count && i < r->hop_count; i++) {
+		CHECK(plan->freq[i] == tunes[i].freq && r->rate == tunes[i].rate && r->bin_e == tunes[i].bin_e
+				&& r->crop == tunes[i].crop && r->downsample == tunes[i].downsample
+				&& r->downsample_passes == tunes[i].downsample_passes && r->buf_len == tunes[i].buf_len,
+				"%d:%d:%d crop %.2f boxcar %d hop %d", lower, upper, max_bin, crop, boxcar, i);
+	}
+	freq_plan_cache_clear(&cache);
+}
+
+static void test_fm_band(void) {
+	/* the plan of the fm_88M_108M_125k fixture, 8 hops of 32 bins of 78125 Hz */
+	freq_plan_cache_t cache;
+	freq_plan_key_t key = key_of(88000000, 108000000, 125000, 0, 1);
+	const freq_plan_t * plan;
+	int error;
+	memset(&cache, 0, sizeof(cache));
+	plan = freq_plan_get(&cache, &key, 3000, &error);
+	CHECK(plan != NULL, "fm band");
+	if (plan == NULL) return;
+	CHECK(plan->record->hop_count == 8 && plan->record->rate == 2500000 && plan->record->bin_e == 5,
+			"fm band %d hops at %d", plan->record->hop_count, plan->record->rate);
+	CHECK(plan->freq[0] == 89250000 && plan->freq[7] == 106750000, "fm band centers");
+	CHECK(plan->bin_size == 78125.0, "fm band bins of %f", plan->bin_size);
+	freq_plan_cache_clear(&cache);
+}
+
+static void test_cache(void) {
+	freq_plan_cache_t cache;
+	freq_plan_key_t keys[FREQ_PLAN_CACHE_SIZE + 1];
+	freq_plan_key_t hamming_key;
+	const freq_plan_t * first;
+	const freq_plan_t * plan;
+	int i, error;
+
+	memset(&cache, 0, sizeof(cache));
+	for (i = 0; i <= FREQ_PLAN_CACHE_SIZE; i++)
+		keys[i] = key_of(100000000 + i * 10000000, 110000000 + i * 10000000, 10000, 0, 1);
+	first = freq_plan_get(&cache, &keys[0], 3000, &error);
+	plan = freq_plan_get(&cache, &keys[0], 3000, &error);
+	CHECK(plan == first && cache.hits == 1 && cache.misses == 1, "same key, same plan");
+
+	hamming_key = keys[0];
+	hamming_key.window_fn = hamming;
+	plan = freq_plan_get(&cache, &hamming_key, 3000, &error);
+	CHECK(plan != first && cache.misses == 2, "the window is part of the key");
+	hamming_key.crop = 0.25;
+	plan = freq_plan_get(&cache, &hamming_key, 3000, &error);
+	CHECK(plan != first && cache.misses == 3, "the crop is part of the key");
+
+	/* using the first again keeps it while the others push the hamming plans out */
+	for (i = 1; i <= FREQ_PLAN_CACHE_SIZE; i++) {
+		freq_plan_get(&cache, &keys[0], 3000, &error);
+		freq_plan_get(&cache, &keys[i], 3000, &error);
+	}
+	CHECK(cache.count == FREQ_PLAN_CACHE_SIZE, "%d cached", cache.count);
+	plan = freq_plan_get(&cache, &keys[0], 3000, &error);
+	CHECK(plan == first, "the plan in use stays cached");
+	CHECK(cache.plans[0] == first, "most recently used first");
+	hamming_key.crop = 0;
+	i = cache.misses;
+	freq_plan_get(&cache, &hamming_key, 3000, &error);
+	CHECK(cache.misses == i + 1, "the least recently used was evicted");
+	freq_plan_cache_clear(&cache);
+	CHECK(cache.count == 0 && cache.hits == 0, "cleared");
+}
+
+static void test_errors(void) {
+	freq_plan_cache_t cache;
+	freq_plan_key_t key;
+	int error;
+	memset(&cache, 0, sizeof(cache));
+	key = key_of(24000000, 1766000000, 1000, 0, 1);
+	CHECK(freq_plan_get(&cache, &key, 100, &error) == NULL && error == FREQ_PLAN_TOO_WIDE, "too wide");
+	key = key_of(108000000, 88000000, 1000, 0, 1);
+	CHECK(freq_plan_get(&cache, &key, 3000, &error) == NULL && error == FREQ_PLAN_BAD_RANGE, "upside down");
+	key = key_of(88000000, 88500000, 1000000, 0, 1);
+	CHECK(freq_plan_get(&cache, &key, 3000, &error) == NULL && error == FREQ_PLAN_BAD_RANGE, "no giant bin fits");
+	CHECK(cache.count == 0, "failures are not cached");
+}
+
+int main(void) {
+	int boxcar;
+	test_fm_band();
+	test_cache();
+	test_errors();
+	for (boxcar = 0; boxcar <= 1; boxcar++) {
+		test_same_as_before(88000000, 108000000, 125000, 0, boxcar);
+		test_same_as_before(88000000, 108000000, 125000, 0.2, boxcar);
+		test_same_as_before(1000000000, 1700000000, 1000000, 0, boxcar);
+		test_same_as_before(24000000, 1766000000, 1000, 0.5, boxcar);
+		test_same_as_before(100000000, 100100000, 1000, 0, boxcar);
+		test_same_as_before(433000000, 435000000, 10, 0.1, boxcar);
+		test_same_as_before(144000000, 144300000, 100, 0, boxcar);
+	}
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
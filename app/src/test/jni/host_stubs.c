@@ -0,0 +1,92 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * What rtlsdrdevice.c needs besides the scanner's own sources to link on a
+ * host: logcat goes to stderr when RTL_LOG is set, and there is no dongle,
+ * librtlsdr fails every call and the rtl_tcp server never starts. Enough for
+ * replays and the simulated dongle of -z, which never touch the real one.
+ */
+
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <android/log.h>
+#include "rtl-sdr.h"
+#include "rtl-sdr-android.h"
+#include "sdrtcp.h"
+#include "common.h"
+
+int __android_log_print(int prio, const char * tag, const char * fmt, ...) {
+	va_list args;
+	if (getenv("RTL_LOG") == NULL)
+		return 0;
+	va_start(args, fmt);
+	vfprintf(stderr, fmt, args);
+	va_end(args);
+	fputc('\n', stderr);
+	return 0;
+}
+
+int __android_log_write(int prio, const char * tag, const char * text) {
+	return __android_log_print(prio, tag, "%s", text);
+}
+
+void common_logf(const char * format, ...) {
+	va_list args;
+	if (getenv("RTL_LOG") == NULL)
+		return;
+	va_start(args, format);
+	vfprintf(stderr, format, args);
+	va_end(args);
+	fputc('\n', stderr);
+}
+
+void throwExceptionWithInt(JNIEnv * env, const char * className, const int code) {
+	common_logf("%s %d", className, code);
+}
+
+uint32_t rtlsdr_get_device_count(void) { return 0; }
+const char * rtlsdr_get_device_name(uint32_t index) { return ""; }
+int rtlsdr_get_device_usb_strings(uint32_t index, char * manufact, char * product, char * serial) { return -1; }
+int rtlsdr_open2(rtlsdr_dev_t ** out_dev, int fd, const char * devicePath) { *out_dev = NULL; return -1; }
+int rtlsdr_close(rtlsdr_dev_t * dev) { return -1; }
+int rtlsdr_set_xtal_freq(rtlsdr_dev_t * dev, uint32_t rtl_freq, uint32_t tuner_freq) { return -1; }
+int rtlsdr_set_center_freq(rtlsdr_dev_t * dev, uint32_t freq) { return -1; }
+uint32_t rtlsdr_get_center_freq(rtlsdr_dev_t * dev) { return 0; }
+int rtlsdr_set_freq_correction(rtlsdr_dev_t * dev, int ppm) { return -1; }
+enum rtlsdr_tuner rtlsdr_get_tuner_type(rtlsdr_dev_t * dev) { return RTLSDR_TUNER_UNKNOWN; }
+int rtlsdr_get_tuner_lock(rtlsdr_dev_t * dev) { return -1; }
+int rtlsdr_get_tuner_gains(rtlsdr_dev_t * dev, int * gains) { return -1; }
+int rtlsdr_set_tuner_gain(rtlsdr_dev_t * dev, int gain) { return -1; }
+int rtlsdr_set_tuner_if_gain(rtlsdr_dev_t * dev, int stage, int gain) { return -1; }
+int rtlsdr_set_tuner_gain_mode(rtlsdr_dev_t * dev, int manual) { return -1; }
+int rtlsdr_set_sample_rate(rtlsdr_dev_t * dev, uint32_t rate) { return -1; }
+uint32_t rtlsdr_get_sample_rate(rtlsdr_dev_t * dev) { return 0; }
+int rtlsdr_set_testmode(rtlsdr_dev_t * dev, int on) { return -1; }
+int rtlsdr_set_agc_mode(rtlsdr_dev_t * dev, int on) { return -1; }
+int rtlsdr_set_direct_sampling(rtlsdr_dev_t * dev, int on) { return -1; }
+int rtlsdr_set_offset_tuning(rtlsdr_dev_t * dev, int on) { return -1; }
+int rtlsdr_reset_buffer(rtlsdr_dev_t * dev) { return -1; }
+int rtlsdr_read_sync(rtlsdr_dev_t * dev, void * buf, int len, int * n_read) { *n_read = 0; return -1; }
+int rtlsdr_read_async(rtlsdr_dev_t * dev, rtlsdr_read_async_cb_t cb, void * ctx, uint32_t buf_num, uint32_t buf_len) { return -1; }
+int rtlsdr_cancel_async(rtlsdr_dev_t * dev) { return -1; }
+
+void sdrtcp_init(sdrtcp_t * obj) {}
+void sdrtcp_free(sdrtcp_t * obj) {}
+int sdrtcp_open_socket(sdrtcp_t * obj, const char * address, int port, const char * dongleMagic, uint32_t dongleType, uint32_t gainsCount) { return 0; }
+void sdrtcp_serve_client_async(sdrtcp_t * obj, void * ctx, sdrtcp_command_callback commandcb, sdrtcp_closed_callback closedcb) {}
+void sdrtcp_stop_serving_client(sdrtcp_t * obj) {}
+int sdrtcp_feed(sdrtcp_t * obj, unsigned char * buf, uint32_t len) { return 0; }
@@ -0,0 +1,175 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Checks a capture holds every sample pushed in order behind the header,
+ * that the final header has the counts and that written and dropped samples
+ * add up when the ring overflows.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "iq_capture.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+static uint8_t * read_file(const char * path, long * len) {
+	FILE * f = fopen(path, "rb");
+	uint8_t * data;
+	if (f == NULL)
+		return NULL;
+	fseek(f, 0, SEEK_END);
+	*len = ftell(f);
+	fseek(f, 0, SEEK_SET);
+	data = (uint8_t *) malloc(*len > 0 ? *len : 1);
+	if (fread(data, 1, *len, f) != (size_t) *len)
+		*len = -1;
+	fclose(f);
+	return data;
+}
+
+static void temp_path(char * path, size_t len) {
+	int fd;
+	snprintf(path, len, "/tmp/iq_capture_testXXXXXX");
+	fd = mkstemp(path);
+	if (fd >= 0)
+		close(fd);
+}
+
+static iq_capture_header_t settings(void) {
+	iq_capture_header_t header;
+	memset(&header, 0, sizeof(header));
+	header.sample_rate = 2400000;
+	header.frequency = 1090000000;
+	header.gain = -10;
+	header.ppm = -57;
+	header.start_us = 1476691200123456LL;
+	return header;
+}
+
+static void test_header(void) {
+	static uint8_t block[IQ_CAPTURE_HEADER_SIZE];
+	iq_capture_header_t in = settings(), out;
+	in.gain = IQ_CAPTURE_AUTO_GAIN;
+	in.samples = 5000000000ULL;
+	in.dropped_samples = 3;
+	in.dropped_buffers = 1;
+	in.flags = IQ_CAPTURE_COMPLETE;
+	iq_capture_header_pack(&in, block);
+	CHECK(memcmp(block, "RTIQ\1\0\0\20", 8) == 0, "magic, version and size");
+	CHECK(block[8] == 0x00 && block[9] == 0x9f && block[10] == 0x24, "little endian rate");
+	CHECK(iq_capture_header_unpack(block, sizeof(block), &out) == 0, "unpack");
+	CHECK(memcmp(&in, &out, sizeof(in)) == 0, "round trip");
+	block[0] = 'X';
+	CHECK(iq_capture_header_unpack(block, sizeof(block), &out) == -1, "magic");
+	block[0] = 'R';
+	CHECK(iq_capture_header_unpack(block, 40, &out) == -1, "short");
+}
+
+/* pushes len bytes of a counting pattern in uneven pieces, the way the USB buffers come */
+static void push_pattern(iq_capture_t * capture, size_t len) {
+	static uint8_t buf[70000];
+	size_t at = 0, n, k;
+	srand(3);
+	while (at < len) {
+		n = 2 * (size_t) (rand() % (sizeof(buf) / 2) + 1);
+		n = n < len - at ? n : len - at;
+		for (k = 0; k < n; k++)
+			buf[k] = (uint8_t) ((at + k) * 7 + (at + k) / 251);
+		iq_capture_push(capture, buf, n);
+		at += n;
+	}
+}
+
+static void test_capture(void) {
+	iq_capture_t capture;
+	iq_capture_header_t header = settings(), out;
+	char path[64];
+	uint8_t * data;
+	long len, k, bad = -1;
+	/* a partial last slot, and more than the ring holds at once */
+	const size_t total = 3 * 1000 * 1000 + 2;
+
+	temp_path(path, sizeof(path));
+	CHECK(iq_capture_open(&capture, path, &header, 100000, 64, total) == 0, "open");
+	CHECK(capture.slot_size == 102400, "slots are whole blocks, %zu", capture.slot_size);
+	/* 64 slots are more than the whole capture, nothing is dropped */
+	push_pattern(&capture, total);
+	CHECK(iq_capture_close(&capture) == 0, "close");
+
+	data = read_file(path, &len);
+	CHECK(data != NULL && len == IQ_CAPTURE_HEADER_SIZE + (long) total, "cut to the samples, %ld", len);
+	if (data != NULL && len == IQ_CAPTURE_HEADER_SIZE + (long) total) {
+		CHECK(iq_capture_header_unpack(data, len, &out) == 0, "header");
+		CHECK(out.samples == total / 2 && out.dropped_samples == 0 && out.dropped_buffers == 0, "counts");
+		CHECK(out.flags == IQ_CAPTURE_COMPLETE, "complete");
+		CHECK(out.frequency == header.frequency && out.ppm == header.ppm && out.start_us == header.start_us, "settings");
+		for (k = 0; k < (long) total && bad < 0; k++) {
+			if (data[IQ_CAPTURE_HEADER_SIZE + k] != (uint8_t) (k * 7 + k / 251))
+				bad = k;
+		}
+		CHECK(bad < 0, "sample %ld", bad);
+	}
+	free(data);
+	unlink(path);
+}
+
+static void test_overflow(void) {
+	iq_capture_t capture;
+	iq_capture_header_t header = settings(), out;
+	char path[64];
+	uint8_t * data;
+	long len;
+	const size_t total = 64 << 20;
+
+	/* two small slots can not keep up with pushes that never wait, whatever gets dropped is counted */
+	temp_path(path, sizeof(path));
+	CHECK(iq_capture_open(&capture, path, &header, 4096, 2, total) == 0, "open");
+	push_pattern(&capture, total);
+	CHECK(iq_capture_close(&capture) == 0, "close");
+	data = read_file(path, &len);
+	CHECK(data != NULL && iq_capture_header_unpack(data, len, &out) == 0, "header");
+	if (data != NULL) {
+		CHECK(2 * (out.samples + out.dropped_samples) == total, "%llu written and %llu dropped",
+				(unsigned long long) out.samples, (unsigned long long) out.dropped_samples);
+		CHECK(len == IQ_CAPTURE_HEADER_SIZE + (long) (2 * out.samples), "size");
+		CHECK((out.dropped_samples == 0) == (out.dropped_buffers == 0), "%u buffers", out.dropped_buffers);
+	}
+	free(data);
+	unlink(path);
+}
+
+int main(void) {
+	test_header();
+	test_capture();
+	test_overflow();
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
@@ -0,0 +1,331 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * What the scanner costs in CPU, to size the bins of a plan against what a
+ * phone has to spare:
+ *
+ *   kernels  every loop of process_hop on a hop of 2^17 IQ pairs, in millions
+ *            of samples a second, and the window functions per point
+ *   fft      both power_fft backends for 2^4 to 2^14 points, with the window
+ *            and the power of the bins, per sample and per bin
+ *   plans    whole sweeps of rtl_power -f plans replayed from a capture of the
+ *            simulated dongle, dongle reads left out: samples a second and ns
+ *            per bin out of the ffts, or per hop for the rms of wide bins
+ *
+ * Not a test, run with make bench or build/native-test/power_bench [section].
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "dsp_kernels.h"
+#include "freq_plan.h"
+#include "iq_capture.h"
+#include "power_fft.h"
+#include "power_run.h"
+#include "synth_device.h"
+
+/* the scanner's own, from rtlsdrdevice.c */
+double rectangle(int i, int length);
+double hamming(int i, int length);
+double blackman(int i, int length);
+double blackman_harris(int i, int length);
+double hann_poisson(int i, int length);
+double youssef(int i, int length);
+double bartlett(int i, int length);
+void downsample_iq(int16_t *data, int length);
+void generic_fir(int16_t *data, int length, int *fir);
+extern int cic_9_tables[][10];
+int parse_range(char *arg, freq_plan_key_t *key);
+
+/* a hop of 2^18 bytes, as rtl_power reads at 2.4 MS/s */
+#define PAIRS (1 << 17)
+#define BYTES (2 * PAIRS)
+#define ROUNDS 5
+/* seconds of samples replayed per plan */
+#define PLAN_SECONDS 4
+
+static double now(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static uint8_t buf8[BYTES];
+static int16_t iq[BYTES];
+static double power[1 << 14];
+static int window[1 << 14];
+static int kernel_ds;
+/* keeps the window functions from being optimised away */
+static volatile double window_sum;
+
+static void u8_to_iq(void) {
+	dsp_dc_t dc;
+	dsp_u8_to_iq(buf8, iq, BYTES, &dc);
+}
+
+static void u8_boxcar(void) {
+	dsp_u8_boxcar(buf8, iq, BYTES, kernel_ds);
+}
+
+static void dc_sums_and_remove(void) {
+	dsp_dc_t dc;
+	dsp_dc_sums(iq, BYTES, &dc);
+	dsp_remove_dc(iq, BYTES, &dc);
+}
+
+static void downsample_pass(void) {
+	downsample_iq(iq, BYTES);
+}
+
+static void cic_compensation(void) {
+	generic_fir(iq, BYTES, cic_9_tables[1]);
+	generic_fir(iq + 1, BYTES - 1, cic_9_tables[1]);
+}
+
+static void window_1024(void) {
+	int offset;
+	for (offset = 0; offset < BYTES; offset += 2 * 1024)
+		dsp_window_i16(iq + offset, window, 1024);
+}
+
+static void power_1024(void) {
+	int offset;
+	for (offset = 0; offset < BYTES; offset += 2 * 1024)
+		dsp_power_i16(iq + offset, power, 1024, DSP_POWER_ADD);
+}
+
+/* best of ROUNDS on a fresh hop, in seconds */
+static double time_kernel(void (*kernel)(void)) {
+	double start, elapsed, best = 1e9;
+	int round;
+	for (round = 0; round < ROUNDS; round++) {
+		u8_to_iq();
+		start = now();
+		kernel();
+		elapsed = now() - start;
+		if (elapsed < best)
+			best = elapsed;
+	}
+	return best;
+}
+
+static void bench_kernels(void) {
+	static const struct {
+		const char * name;
+		void (*kernel)(void);
+		int ds;
+	} kernels[] = {
+		{"u8_to_iq", u8_to_iq, 1},
+		{"u8_boxcar ds=4", u8_boxcar, 4},
+		{"u8_boxcar ds=16", u8_boxcar, 16},
+		{"remove_dc", dc_sums_and_remove, 1},
+		{"downsample_iq", downsample_pass, 1},
+		{"generic_fir cic", cic_compensation, 1},
+		{"window_i16", window_1024, 1},
+		{"power_i16", power_1024, 1},
+	};
+	static const struct {
+		const char * name;
+		double (*fn)(int, int);
+	} windows[] = {
+		{"rectangle", rectangle}, {"hamming", hamming}, {"blackman", blackman},
+		{"blackman-harris", blackman_harris}, {"hann-poisson", hann_poisson},
+		{"youssef", youssef}, {"bartlett", bartlett},
+	};
+	double start, elapsed, sum;
+	int k, i;
+
+	for (i = 0; i < 1024; i++)
+		window[i] = (int) (256 * hamming(i, 1024));
+	printf("%-20s %10s %10s\n", "kernel", "MS/s", "ns/sample");
+	for (k = 0; k < (int) (sizeof(kernels) / sizeof(kernels[0])); k++) {
+		kernel_ds = kernels[k].ds;
+		elapsed = time_kernel(kernels[k].kernel);
+		printf("%-20s %10.1f %10.2f\n", kernels[k].name, PAIRS / elapsed / 1e6, elapsed * 1e9 / PAIRS);
+	}
+	/* built once per plan, what a new plan costs */
+	printf("\n%-20s %10s\n", "window table", "ns/point");
+	for (k = 0; k < (int) (sizeof(windows) / sizeof(windows[0])); k++) {
+		sum = 0;
+		start = now();
+		for (i = 0; i < (1 << 14); i++)
+			sum += windows[k].fn(i, 1 << 14);
+		elapsed = now() - start;
+		window_sum = sum;
+		printf("%-20s %10.2f\n", windows[k].name, elapsed * 1e9 / (1 << 14));
+	}
+}
+
+static void bench_fft(void) {
+	const power_fft_backend_t * backends[] = {&power_fft_fixed, &power_fft_float};
+	power_fft_t fft;
+	void * scratch;
+	double start, elapsed, best;
+	int b, log2_n, n, round, offset;
+
+	printf("%-8s %-8s %12s %10s %10s\n", "points", "fft", "us/segment", "MS/s", "ns/bin");
+	for (log2_n = 4; log2_n <= 14; log2_n++) {
+		n = 1 << log2_n;
+		for (b = 0; b < 2; b++) {
+			power_fft_init(&fft, backends[b], log2_n, hamming);
+			scratch = malloc(power_fft_scratch_size(&fft) + 1);
+			best = 1e9;
+			for (round = 0; round < ROUNDS; round++) {
+				u8_to_iq();
+				start = now();
+				for (offset = 0; offset < BYTES; offset += 2 * n)
+					power_fft_segment(&fft, iq + offset, scratch, power, DSP_POWER_ADD);
+				elapsed = now() - start;
+				if (elapsed < best)
+					best = elapsed;
+			}
+			/* a segment of n samples makes n bins, per bin is per sample here, not in the plans */
+			printf("%-8d %-8s %12.3f %10.1f %10.2f\n", n, backends[b]->name,
+					best / (PAIRS / n) * 1e6, PAIRS / best / 1e6, best * 1e9 / PAIRS);
+			free(scratch);
+			power_fft_free(&fft);
+		}
+	}
+}
+
+/* PLAN_SECONDS of the simulated dongle at rate, written as a capture rtl_power -r replays */
+static int write_capture(const char * path, uint32_t rate, uint32_t center) {
+	static uint8_t block[IQ_CAPTURE_HEADER_SIZE];
+	iq_capture_header_t header;
+	synth_config_t config;
+	power_device_t device;
+	uint64_t at, samples = (uint64_t) rate * PLAN_SECONDS;
+	int n, n_read;
+	FILE * f = fopen(path, "wb");
+	if (f == NULL || synth_config_parse(&config, "noise=-45,tone=1000.3M:-20,tone=100.3M:-20") != 0
+			|| synth_device_open(&device, &config) != 0) {
+		if (f != NULL)
+			fclose(f);
+		return -1;
+	}
+	device.set_sample_rate(&device, rate);
+	/* the tones only show up at one center, they are there for realism, not for the timing */
+	device.set_center_freq(&device, center);
+	memset(&header, 0, sizeof(header));
+	header.sample_rate = rate;
+	header.frequency = center;
+	header.gain = IQ_CAPTURE_AUTO_GAIN;
+	header.start_us = (int64_t) 1476691200 * 1000000;
+	header.samples = samples;
+	header.flags = IQ_CAPTURE_COMPLETE;
+	iq_capture_header_pack(&header, block);
+	fwrite(block, 1, sizeof(block), f);
+	for (at = 0; at < samples; at += n / 2) {
+		n = samples - at < PAIRS ? (int) (samples - at) * 2 : BYTES;
+		device.read_sync(&device, buf8, n, &n_read);
+		fwrite(buf8, 1, n, f);
+	}
+	device.close(&device);
+	return fclose(f);
+}
+
+/* the key engine_plan makes of -f range with the other options left as they are */
+static int plan_key(const char * range, freq_plan_key_t * key) {
+	char copy[64];
+	snprintf(copy, sizeof(copy), "%s", range);
+	memset(key, 0, sizeof(freq_plan_key_t));
+	if (parse_range(copy, key) != 0)
+		return -1;
+	key->boxcar = 1;
+	key->window_fn = rectangle;
+	key->fft_backend = &power_fft_fixed;
+	return 0;
+}
+
+static double replay(const char * range, const char * capture, const char * csv) {
+	const char * args[] = {"rtl_power", "-f", range, "-i", "1", "-r", capture, csv};
+	char * argv[8];
+	double start, elapsed;
+	int i;
+	/* writable copies, atoft cuts the suffix off in place like the JNI argv */
+	for (i = 0; i < 8; i++)
+		argv[i] = strdup(args[i]);
+	start = now();
+	power_run(8, argv);
+	elapsed = now() - start;
+	for (i = 0; i < 8; i++)
+		free(argv[i]);
+	return elapsed;
+}
+
+static void bench_plans(void) {
+	/* the app's survey, an FM sweep and ever narrower bins up to 2^14 points */
+	static const char * plans[] = {
+		"1000M:1700M:1M", "88M:108M:125k", "1000M:1700M:10k", "400M:410M:1k", "400M:402M:200",
+	};
+	char capture[] = "/tmp/power_benchXXXXXX";
+	char csv[64];
+	freq_plan_cache_t cache;
+	const freq_plan_t * plan;
+	const freq_plan_record_t * r;
+	freq_plan_key_t key;
+	double elapsed, samples, bins;
+	int p, error, fd;
+
+	fd = mkstemp(capture);
+	close(fd);
+	snprintf(csv, sizeof(csv), "%s.csv", capture);
+	memset(&cache, 0, sizeof(cache));
+	printf("%-18s %6s %7s %6s %4s %10s %10s %10s\n", "plan", "hops", "points", "MS/s", "ds", "MS/s", "ns/bin", "sweeps/s");
+	for (p = 0; p < (int) (sizeof(plans) / sizeof(plans[0])); p++) {
+		if (plan_key(plans[p], &key) != 0 || (plan = freq_plan_get(&cache, &key, 3000, &error)) == NULL) {
+			printf("%-18s no plan\n", plans[p]);
+			continue;
+		}
+		r = plan->record;
+		if (write_capture(capture, (uint32_t) r->rate, (uint32_t) plan->freq[0]) != 0) {
+			printf("%-18s no capture\n", plans[p]);
+			continue;
+		}
+		elapsed = replay(plans[p], capture, csv);
+		/* every hop reads buf_len bytes of the capture in turn */
+		samples = (double) r->rate * PLAN_SECONDS;
+		/* the ffts make 2^bin_e bins out of 2^bin_e downsampled pairs, the rms one per hop */
+		bins = r->bin_e > 0 ? samples / r->downsample : samples / (r->buf_len / 2);
+		printf("%-18s %6d %7d %6.2f %4d %10.1f %10.2f %10.1f\n", plans[p], r->hop_count, 1 << r->bin_e,
+				r->rate / 1e6, r->downsample, samples / elapsed / 1e6, elapsed * 1e9 / bins,
+				samples / (r->buf_len / 2.0) / r->hop_count / elapsed);
+	}
+	freq_plan_cache_clear(&cache);
+	unlink(capture);
+	unlink(csv);
+}
+
+int main(int argc, char ** argv) {
+	const char * only = argc > 1 ? argv[1] : NULL;
+	int i;
+	for (i = 0; i < BYTES; i++)
+		buf8[i] = (uint8_t) (rand() % 256);
+	if (only == NULL || strcmp(only, "kernels") == 0) {
+		bench_kernels();
+		printf("\n");
+	}
+	if (only == NULL || strcmp(only, "fft") == 0) {
+		bench_fft();
+		printf("\n");
+	}
+	if (only == NULL || strcmp(only, "plans") == 0)
+		bench_plans();
+	return 0;
+}
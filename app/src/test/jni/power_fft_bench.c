@@ -0,0 +1,91 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Reports the time per segment of every power_fft backend for the sizes
+ * rtl_power picks, 2^bin_e points with bin_e from frequency_range().
+ * Not a test, run with make bench.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "power_fft.h"
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+/* samples per benchmark, as in a hop of 2^18 bytes of iq */
+#define POINTS (1 << 17)
+
+static double hamming(int i, int length) {
+	return 25.0/46.0 - 21.0/46.0*cos(2*i*M_PI/(double)(length-1));
+}
+
+static double now(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static double run(const power_fft_backend_t * backend, int log2_n, const int16_t * iq, int16_t * work) {
+	const int n = 1 << log2_n;
+	power_fft_t fft;
+	double * power = (double *) calloc(n, sizeof(double));
+	void * scratch;
+	double start, best = 1e9;
+	int round, offset;
+
+	power_fft_init(&fft, backend, log2_n, hamming);
+	scratch = malloc(power_fft_scratch_size(&fft) + 1);
+	for (round = 0; round < 5; round++) {
+		memcpy(work, iq, sizeof(int16_t) * 2 * POINTS);
+		start = now();
+		for (offset = 0; offset < 2 * POINTS; offset += 2 * n)
+			power_fft_segment(&fft, work + offset, scratch, power, 0);
+		if (now() - start < best)
+			best = now() - start;
+	}
+	power_fft_free(&fft);
+	free(scratch);
+	free(power);
+	return best / (POINTS / n) * 1e6;
+}
+
+int main(void) {
+	const power_fft_backend_t * backends[] = {&power_fft_fixed, &power_fft_float};
+	int16_t * iq = (int16_t *) malloc(sizeof(int16_t) * 2 * POINTS);
+	int16_t * work = (int16_t *) malloc(sizeof(int16_t) * 2 * POINTS);
+	int i, b, log2_n;
+
+	for (i = 0; i < 2 * POINTS; i++)
+		iq[i] = (int16_t)((rand() % 255) - 127);
+	printf("%-8s", "points");
+	for (b = 0; b < 2; b++)
+		printf("%14s", backends[b]->name);
+	printf("    us per segment\n");
+	for (log2_n = 4; log2_n <= 16; log2_n += 2) {
+		printf("%-8d", 1 << log2_n);
+		for (b = 0; b < 2; b++)
+			printf("%14.2f", run(backends[b], log2_n, iq, work));
+		printf("\n");
+	}
+	free(iq);
+	free(work);
+	return 0;
+}
@@ -0,0 +1,183 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Compares every power_fft backend with a double precision DFT on synthetic
+ * iq: two tones on dongle-like 8 bit noise, the way the scanner feeds a
+ * segment after remove_dc. Run with make test, exits 1 on a failure.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "power_fft.h"
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+static double rectangle(int i, int length) {
+	return 1.0;
+}
+
+static double hamming(int i, int length) {
+	return 25.0/46.0 - 21.0/46.0*cos(2*i*M_PI/(double)(length-1));
+}
+
+static void synthetic_iq(int16_t * iq, int n, unsigned seed) {
+	int i;
+	srand(seed);
+	for (i = 0; i < n; i++) {
+		double t = 2 * M_PI * i / n;
+		double re = 60*cos(t * n/8) + 20*cos(-t * (n/3 + 1)) + (rand() % 9) - 4;
+		double im = 60*sin(t * n/8) + 20*sin(-t * (n/3 + 1)) + (rand() % 9) - 4;
+		iq[2*i] = (int16_t) lround(re);
+		iq[2*i+1] = (int16_t) lround(im);
+	}
+}
+
+/* the scaling every backend promises: window * 256, divided by n */
+static void reference_power(const int16_t * iq, int n, double (*window_fn)(int, int), double * power) {
+	int j, k;
+	for (k = 0; k < n; k++) {
+		double re = 0, im = 0;
+		for (j = 0; j < n; j++) {
+			double w = 256 * window_fn(j, n);
+			double a = -2 * M_PI * (double)j * k / n;
+			re += w * (iq[2*j] * cos(a) - iq[2*j+1] * sin(a));
+			im += w * (iq[2*j] * sin(a) + iq[2*j+1] * cos(a));
+		}
+		re /= n;
+		im /= n;
+		power[k] = re*re + im*im;
+	}
+}
+
+static double db(double p) {
+	return 10 * log10(p > 1e-30 ? p : 1e-30);
+}
+
+static int peak(const double * power, int n) {
+	int k, best = 0;
+	for (k = 1; k < n; k++)
+		if (power[k] > power[best]) best = k;
+	return best;
+}
+
+/*
+ * max_error_db is the worst difference in any bin within floor_db of the
+ * strongest one, below that the fixed point backend only sees rounding
+ */
+static void compare(const power_fft_backend_t * backend, int log2_n, double (*window_fn)(int, int), double floor_db, double max_error_db) {
+	const int n = 1 << log2_n;
+	power_fft_t fft;
+	int16_t * iq = (int16_t *) malloc(sizeof(int16_t) * 2 * n);
+	int16_t * work = (int16_t *) malloc(sizeof(int16_t) * 2 * n);
+	double * expected = (double *) calloc(n, sizeof(double));
+	double * actual = (double *) calloc(n, sizeof(double));
+	void * scratch;
+	double worst = 0;
+	int k;
+
+	CHECK(power_fft_init(&fft, backend, log2_n, window_fn) == 0, "%s init %d", backend->name, log2_n);
+	scratch = malloc(power_fft_scratch_size(&fft) + 1);
+	synthetic_iq(iq, n, (unsigned) log2_n);
+	reference_power(iq, n, window_fn, expected);
+	memcpy(work, iq, sizeof(int16_t) * 2 * n);
+	power_fft_segment(&fft, work, scratch, actual, 0);
+
+	CHECK(peak(actual, n) == peak(expected, n), "%s n=%d peak at %d, not %d", backend->name, n, peak(actual, n), peak(expected, n));
+	for (k = 0; k < n; k++) {
+		if (db(expected[k]) < db(expected[peak(expected, n)]) - floor_db) continue;
+		if (fabs(db(actual[k]) - db(expected[k])) > worst)
+			worst = fabs(db(actual[k]) - db(expected[k]));
+	}
+	CHECK(worst <= max_error_db, "%s n=%d off by %.4f dB", backend->name, n, worst);
+	printf("%-5s n=%-5d worst %.5f dB within %.0f dB of the peak\n", backend->name, n, worst, floor_db);
+
+	/* peak hold keeps the larger of the old and the new power */
+	memcpy(work, iq, sizeof(int16_t) * 2 * n);
+	for (k = 0; k < n; k++)
+		actual[k] = expected[k] * 4;
+	power_fft_segment(&fft, work, scratch, actual, 1);
+	CHECK(actual[peak(expected, n)] == expected[peak(expected, n)] * 4, "%s n=%d peak hold", backend->name, n);
+
+	power_fft_free(&fft);
+	free(scratch);
+	free(iq);
+	free(work);
+	free(expected);
+	free(actual);
+}
+
+static void test_backend_names(void) {
+	CHECK(power_fft_backend("fixed") == &power_fft_fixed, "fixed");
+	CHECK(power_fft_backend("float") == &power_fft_float, "float");
+	CHECK(power_fft_backend("neon") == NULL, "unknown");
+	CHECK(power_fft_backend(NULL) == NULL, "null");
+}
+
+static void test_accumulates(void) {
+	power_fft_t fft;
+	int16_t iq[2*64];
+	double once[64], twice[64];
+	float scratch[2*64];
+	int k;
+	memset(once, 0, sizeof(once));
+	memset(twice, 0, sizeof(twice));
+	power_fft_init(&fft, &power_fft_float, 6, hamming);
+	synthetic_iq(iq, 64, 7);
+	power_fft_segment(&fft, iq, scratch, once, 0);
+	synthetic_iq(iq, 64, 7);
+	power_fft_segment(&fft, iq, scratch, twice, 0);
+	synthetic_iq(iq, 64, 7);
+	power_fft_segment(&fft, iq, scratch, twice, 0);
+	for (k = 0; k < 64; k++)
+		CHECK(twice[k] == 2 * once[k], "bin %d adds up", k);
+	power_fft_free(&fft);
+}
+
+int main(void) {
+	int log2_n;
+	test_backend_names();
+	test_accumulates();
+	for (log2_n = 1; log2_n <= 12; log2_n++) {
+		compare(&power_fft_float, log2_n, rectangle, 100, 0.01);
+		compare(&power_fft_float, log2_n, hamming, 100, 0.01);
+	}
+	/* sizes with bins above the 16 bit rounding, the bins rtl_power uses */
+	for (log2_n = 3; log2_n <= 10; log2_n++) {
+		compare(&power_fft_fixed, log2_n, rectangle, 10, 0.5);
+		compare(&power_fft_fixed, log2_n, hamming, 10, 0.5);
+	}
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
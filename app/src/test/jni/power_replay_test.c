@@ -0,0 +1,190 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Runs rtl_power on a capture of a tone over noise with -r: every second of
+ * the capture makes an integration stamped with the capture's time it ends
+ * at, the way a live one is stamped, the
+ * tone is in the bin it was put in, and the csv is the same byte for byte
+ * with and without fft threads.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "iq_capture.h"
+#include "power_run.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+#define RATE 2400000
+#define CENTER 100000000
+#define TONE 300000
+/* two whole integrations of a second and half of one */
+#define SAMPLES (RATE * 5 / 2)
+#define START_S 1476691200
+
+static void write_capture(const char * path) {
+	static uint8_t block[IQ_CAPTURE_HEADER_SIZE];
+	static uint8_t iq[2 * 65536];
+	iq_capture_header_t header;
+	uint32_t noise = 1;
+	long k, n, at;
+	FILE * f = fopen(path, "wb");
+	memset(&header, 0, sizeof(header));
+	header.sample_rate = RATE;
+	header.frequency = CENTER;
+	header.gain = IQ_CAPTURE_AUTO_GAIN;
+	header.start_us = (int64_t) START_S * 1000000;
+	header.samples = SAMPLES;
+	header.flags = IQ_CAPTURE_COMPLETE;
+	iq_capture_header_pack(&header, block);
+	fwrite(block, 1, sizeof(block), f);
+	for (at = 0; at < SAMPLES; at += n) {
+		n = SAMPLES - at < 65536 ? SAMPLES - at : 65536;
+		for (k = 0; k < n; k++) {
+			double phase = 2 * M_PI * (double) TONE * (double) (at + k) / RATE;
+			noise = noise * 1103515245 + 12345;
+			iq[2 * k] = (uint8_t) (127.5 + 40 * cos(phase) + (int) ((noise >> 16) % 17) - 8);
+			noise = noise * 1103515245 + 12345;
+			iq[2 * k + 1] = (uint8_t) (127.5 + 40 * sin(phase) + (int) ((noise >> 16) % 17) - 8);
+		}
+		fwrite(iq, 1, 2 * n, f);
+	}
+	fclose(f);
+}
+
+static char * read_text(const char * path) {
+	FILE * f = fopen(path, "rb");
+	char * text;
+	long len;
+	if (f == NULL)
+		return NULL;
+	fseek(f, 0, SEEK_END);
+	len = ftell(f);
+	fseek(f, 0, SEEK_SET);
+	text = (char *) calloc(1, len + 1);
+	if (fread(text, 1, len, f) != (size_t) len)
+		text[0] = '\0';
+	fclose(f);
+	return text;
+}
+
+static int run(const char * capture, const char * csv, const char * threads) {
+	/* writable copies, atoft cuts the suffix off in place like the JNI argv */
+	const char * args[] = {"rtl_power", "-f", "98.8M:101.2M:10k", "-i", "1", "-t", threads, "-r", capture, csv};
+	char * argv[10];
+	int i, r;
+	for (i = 0; i < 10; i++)
+		argv[i] = strdup(args[i]);
+	r = power_run(10, argv);
+	for (i = 0; i < 10; i++)
+		free(argv[i]);
+	return r;
+}
+
+static void test_replay(void) {
+	char capture[] = "/tmp/power_replay_testXXXXXX";
+	char one[64], two[64];
+	char expected_time[32];
+	char * csv, * csv_threads, * line;
+	int lines = 0, bins, peak, fd;
+	long low, high, samples;
+	double step, dbm, peak_dbm;
+	/* the first integration ends a second in */
+	time_t end = START_S + 1;
+
+	fd = mkstemp(capture);
+	close(fd);
+	snprintf(one, sizeof(one), "%s.csv", capture);
+	snprintf(two, sizeof(two), "%s.t2.csv", capture);
+	write_capture(capture);
+	CHECK(run(capture, one, "1") == 0, "replay");
+	CHECK(run(capture, two, "2") == 0, "replay with fft threads");
+
+	csv = read_text(one);
+	csv_threads = read_text(two);
+	CHECK(csv != NULL && csv_threads != NULL && strcmp(csv, csv_threads) == 0, "the same csv with threads");
+	strftime(expected_time, sizeof(expected_time), "%Y-%m-%d, %H:%M:%S", localtime(&end));
+	for (line = csv != NULL ? strtok(csv, "\n") : NULL; line != NULL; line = strtok(NULL, "\n")) {
+		char * at;
+		lines++;
+		if (lines == 1)
+			CHECK(strncmp(line, expected_time, strlen(expected_time)) == 0, "stamped %s, not %.20s", expected_time, line);
+		/* skip the date and time */
+		at = strchr(strchr(line, ',') + 1, ',') + 1;
+		low = strtol(at, &at, 10);
+		high = strtol(at + 1, &at, 10);
+		step = strtod(at + 1, &at);
+		samples = strtol(at + 1, &at, 10);
+		CHECK(low == CENTER - RATE / 2 && high == CENTER + RATE / 2, "%ld to %ld", low, high);
+		CHECK(step == 9375.0, "%f Hz bins", step);
+		CHECK(samples > 0, "samples");
+		peak = -1;
+		peak_dbm = -HUGE_VAL;
+		for (bins = 0; *at == ','; bins++) {
+			dbm = strtod(at + 1, &at);
+			if (dbm > peak_dbm) {
+				peak_dbm = dbm;
+				peak = bins;
+			}
+		}
+		/* 256 bins and the last one again */
+		CHECK(bins == 257, "%d bins", bins);
+		CHECK(peak == (RATE / 2 + TONE) / 9375, "the tone in bin %d", peak);
+	}
+	CHECK(lines == 3, "%d integrations, the last one of half a second", lines);
+	free(csv);
+	free(csv_threads);
+	unlink(capture);
+	unlink(one);
+	unlink(two);
+}
+
+static void test_not_a_capture(void) {
+	char capture[] = "/tmp/power_replay_testXXXXXX";
+	char csv[64];
+	int fd = mkstemp(capture);
+	if (write(fd, "2016-10-17, 08:00:00, 1, 2\n", 27) != 27)
+		failures++;
+	close(fd);
+	snprintf(csv, sizeof(csv), "%s.csv", capture);
+	run(capture, csv, "1");
+	CHECK(access(csv, F_OK) != 0, "nothing recorded");
+	unlink(capture);
+}
+
+int main(void) {
+	test_replay();
+	test_not_a_capture();
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
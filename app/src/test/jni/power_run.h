@@ -0,0 +1,48 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef POWER_RUN_H_
+#define POWER_RUN_H_
+
+#include <jni.h>
+#include "power_engine.h"
+
+JNIEXPORT void JNICALL Java_com_sdrtouch_rtlsdr_StreamActivity_resetRTLPOWER(JNIEnv * env, jobject instance);
+
+/*
+ * One recording of rtl_power arguments the way the app makes it: the scanner
+ * reset, configured and swept, and closed again so the next run starts from
+ * nothing. argv has to be writable, atoft cuts suffixes off in place like in
+ * the JNI copy. Unless hops is NULL the stats of up to *hops hops are copied
+ * to stats before the close and *hops is set to how many. 0 on success.
+ */
+static inline int power_run_hops(int argc, char ** argv, hop_stats_t * stats, int * hops) {
+	int r;
+	/* -1 stops the scanner, the app starts it again before every recording */
+	Java_com_sdrtouch_rtlsdr_StreamActivity_resetRTLPOWER(NULL, NULL);
+	r = power_engine_configure(argc, argv);
+	if (r == 0)
+		r = power_engine_sweep();
+	if (hops != NULL)
+		*hops = power_engine_hop_stats(stats, *hops);
+	power_engine_close();
+	return r;
+}
+
+static inline int power_run(int argc, char ** argv) {
+	return power_run_hops(argc, argv, NULL, NULL);
+}
+
+#endif /* POWER_RUN_H_ */
@@ -0,0 +1,160 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Checks the mean and peak hold are what they were without the series, the
+ * minimum and maximum are exact and the percentiles are within half a
+ * histogram bucket of the exact ones.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "power_stats.h"
+#include "power_sink.h"
+#include "dsp_kernels.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+#define BINS 64
+#define BLOCKS 2000
+
+static int compare(const void * a, const void * b) {
+	double x = *(const double *) a, y = *(const double *) b;
+	return x < y ? -1 : x > y;
+}
+
+/* the percentile the way a sorted array gives it, the rank rounded up */
+static double exact_percentile(double * sorted, int count, int pct) {
+	int rank = (int) ceil((double) pct * count / 100.0);
+	return sorted[rank < 1 ? 0 : rank - 1];
+}
+
+static void test_blocks(int peak_hold) {
+	power_stats_t stats;
+	static int16_t iq[2 * BINS];
+	static double block[BINS], expected[BINS], avg[BINS], min[BINS], max[BINS];
+	static double history[BINS][BLOCKS];
+	int k, b, p;
+	int pcts[] = {1, 10, 50, 90, 99};
+
+	memset(&stats, 0, sizeof(stats));
+	CHECK(power_stats_reserve(&stats, BINS, 1) == 0, "reserve");
+	srand(7);
+	for (k = 0; k < BINS; k++) {
+		expected[k] = avg[k] = 0;
+		min[k] = HUGE_VAL;
+		max[k] = -HUGE_VAL;
+	}
+	for (b = 0; b < BLOCKS; b++) {
+		/* a noise floor, and bins that are louder now and then */
+		for (k = 0; k < 2 * BINS; k++)
+			iq[k] = (int16_t)((rand() % 201 - 100) * (k % 8 == 0 && rand() % 4 == 0 ? 50 : 1));
+		dsp_power_i16(iq, expected, BINS, peak_hold);
+		dsp_power_i16(iq, block, BINS, DSP_POWER_SET);
+		power_stats_add(&stats, block, avg, peak_hold);
+		for (k = 0; k < BINS; k++) {
+			history[k][b] = block[k];
+			min[k] = block[k] < min[k] ? block[k] : min[k];
+			max[k] = block[k] > max[k] ? block[k] : max[k];
+		}
+	}
+	CHECK(stats.blocks == BLOCKS, "blocks");
+	for (k = 0; k < BINS; k++) {
+		CHECK(avg[k] == expected[k], "peak_hold %d bin %d, %f instead of %f", peak_hold, k, avg[k], expected[k]);
+		CHECK(power_stats_value(&stats, k, POWER_SERIES_MIN) == min[k], "min bin %d", k);
+		CHECK(power_stats_value(&stats, k, POWER_SERIES_MAX) == max[k], "max bin %d", k);
+		qsort(history[k], BLOCKS, sizeof(double), compare);
+		for (p = 0; p < 5; p++) {
+			double exact = exact_percentile(history[k], BLOCKS, pcts[p]);
+			double estimate = power_stats_value(&stats, k, POWER_SERIES_PERCENTILE + pcts[p]);
+			/* a bucket is at most 10*log10(1.25) ~ 0.97 dB wide */
+			CHECK(exact < 1.0 / 256 || fabs(10 * log10(estimate / exact)) < 0.49,
+					"p%d bin %d, %f instead of %f", pcts[p], k, estimate, exact);
+		}
+	}
+	power_stats_reset(&stats);
+	CHECK(stats.blocks == 0 && stats.min[0] == HUGE_VAL && stats.max[0] == -HUGE_VAL, "reset");
+	power_stats_free(&stats);
+}
+
+static void test_extremes(void) {
+	power_stats_t stats;
+	double block[4] = {0, 1e-30, 1e30, 3.0};
+	double avg[4] = {0};
+	double v;
+	memset(&stats, 0, sizeof(stats));
+	power_stats_reserve(&stats, 4, 1);
+	power_stats_add(&stats, block, avg, 0);
+	v = power_stats_value(&stats, 0, POWER_SERIES_PERCENTILE + 50);
+	CHECK(v > 0 && v < 1.0 / 128, "zero lands in the first bucket, %g", v);
+	CHECK(power_stats_value(&stats, 1, POWER_SERIES_PERCENTILE + 50) == v, "tiny lands in the first bucket");
+	v = power_stats_value(&stats, 2, POWER_SERIES_PERCENTILE + 50);
+	CHECK(v > 2147483648.0 && v < 4294967296.0, "huge lands in the last bucket, %g", v);
+	v = power_stats_value(&stats, 3, POWER_SERIES_PERCENTILE + 50);
+	CHECK(fabs(v - sqrt(3.0 * 3.5)) < 1e-12, "3 is in [3, 3.5), %g", v);
+	power_stats_free(&stats);
+
+	/* no histogram without percentiles, and room kept for a smaller plan */
+	power_stats_reserve(&stats, 8, 0);
+	CHECK(stats.histogram == NULL && stats.capacity == 8, "min and max only");
+	CHECK(isnan(power_stats_value(&stats, 0, POWER_SERIES_PERCENTILE + 50)), "no percentiles");
+	power_stats_reserve(&stats, 4, 1);
+	CHECK(stats.capacity == 8 && stats.n == 4 && stats.histogram != NULL, "kept");
+	power_stats_free(&stats);
+}
+
+static void test_parse(void) {
+	int series[POWER_SERIES_LIMIT];
+	char name[16];
+	CHECK(power_series_parse("min,max,p10,p50,p90", series, POWER_SERIES_LIMIT) == 5, "five");
+	CHECK(series[0] == POWER_SERIES_MIN && series[1] == POWER_SERIES_MAX && series[4] == POWER_SERIES_PERCENTILE + 90, "in order");
+	CHECK(power_series_wants_histogram(series, 5) && !power_series_wants_histogram(series, 2), "histogram");
+	CHECK(power_series_parse("mean,max,max", series, POWER_SERIES_LIMIT) == 1, "the mean is always there, once is enough");
+	CHECK(power_series_parse("", series, POWER_SERIES_LIMIT) == 0, "none");
+	CHECK(power_series_parse("p0", series, POWER_SERIES_LIMIT) == -1, "p0");
+	CHECK(power_series_parse("p100", series, POWER_SERIES_LIMIT) == -1, "p100");
+	CHECK(power_series_parse("p5x", series, POWER_SERIES_LIMIT) == -1, "p5x");
+	CHECK(power_series_parse("min,,max", series, POWER_SERIES_LIMIT) == -1, "empty");
+	CHECK(power_series_parse("median", series, POWER_SERIES_LIMIT) == -1, "median");
+	CHECK(power_series_parse("p1,p2,p3", series, 2) == -1, "too many");
+	power_series_name(POWER_SERIES_PERCENTILE + 90, name, sizeof(name));
+	CHECK(strcmp(name, "p90") == 0, "%s", name);
+	power_series_name(POWER_SERIES_MIN, name, sizeof(name));
+	CHECK(strcmp(name, "min") == 0, "%s", name);
+}
+
+int main(void) {
+	test_blocks(0);
+	test_blocks(1);
+	test_extremes();
+	test_parse();
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
@@ -0,0 +1,270 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Runs rtl_power on the simulated dongle of -z: the tones are found in the
+ * bins of the hops that tune to them, the gain raises them by as many dB, a
+ * burst is higher in the max series than in the mean, a tuner that misses
+ * its lock is retuned with a longer settle time while one that fails to
+ * retune is not, and the spec is checked on its own. Prints how fast the scanner swept, without a dongle to wait for.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "power_run.h"
+#include "synth_device.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+#define RANGE "99M:103M:10k"
+#define TONE_A 100300000.0
+#define TONE_B 102100000.0
+#define MAX_ARGS 16
+#define MAX_HOPS 64
+#define SETTLE_US 1000	/* the settle= of test_lock */
+
+/* the strongest bin of the hop that holds freq, from the last integration in the csv */
+typedef struct peak {
+	int found;
+	double freq;
+	double dbm;
+	double median;
+	long samples;	/* ffts of the hop over all integrations */
+	long hops;	/* lines of the csv */
+	long iq;	/* IQ pairs through the ffts, about */
+} peak_t;
+
+static int compare_doubles(const void * a, const void * b) {
+	double x = *(const double *) a, y = *(const double *) b;
+	return x < y ? -1 : x > y;
+}
+
+static peak_t find_peak(const char * path, double freq) {
+	static char line[1 << 16];
+	double dbm[4096];
+	peak_t peak;
+	FILE * f = fopen(path, "r");
+	memset(&peak, 0, sizeof(peak));
+	if (f == NULL)
+		return peak;
+	while (fgets(line, sizeof(line), f) != NULL) {
+		char * at = strchr(strchr(line, ',') + 1, ',') + 1;
+		long low = strtol(at, &at, 10);
+		long high = strtol(at + 1, &at, 10);
+		double step = strtod(at + 1, &at);
+		long samples = strtol(at + 1, &at, 10);
+		int bins, best = 0;
+		for (bins = 0; *at == ',' && bins < 4096; bins++)
+			dbm[bins] = strtod(at + 1, &at);
+		peak.hops++;
+		peak.iq += samples * (bins - 1);
+		if (freq < low || freq >= high)
+			continue;
+		peak.samples += samples;
+		for (bins = 0; bins < (int) ((high - low) / step); bins++)
+			if (dbm[bins] > dbm[best])
+				best = bins;
+		peak.found = 1;
+		peak.freq = low + best * step;
+		peak.dbm = dbm[best];
+		qsort(dbm, bins, sizeof(double), compare_doubles);
+		peak.median = dbm[bins / 2];
+	}
+	fclose(f);
+	return peak;
+}
+
+static double now_s(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+/* one integration of a second on the simulated dongle of spec, extra arguments before the csv,
+ * the stats of the hops as power_run_hops */
+static int run_hops(const char * spec, const char * csv, const char * extra[], double * seconds,
+		hop_stats_t * stats, int * hops) {
+	const char * args[MAX_ARGS] = {"rtl_power", "-f", RANGE, "-i", "1", "-1", "-z", spec};
+	char * argv[MAX_ARGS];
+	int argc = 8, i, r;
+	double start;
+	for (i = 0; extra != NULL && extra[i] != NULL; i++)
+		args[argc++] = extra[i];
+	args[argc++] = csv;
+	/* writable copies, atoft cuts the suffix off in place like the JNI argv */
+	for (i = 0; i < argc; i++)
+		argv[i] = strdup(args[i]);
+	start = now_s();
+	r = power_run_hops(argc, argv, stats, hops);
+	if (seconds != NULL)
+		*seconds = now_s() - start;
+	for (i = 0; i < argc; i++)
+		free(argv[i]);
+	return r;
+}
+
+static int run(const char * spec, const char * csv, const char * extra[], double * seconds) {
+	return run_hops(spec, csv, extra, seconds, NULL, NULL);
+}
+
+/* the stats of all hops of a run on spec added up */
+static hop_stats_t run_totals(const char * spec, const char * csv) {
+	hop_stats_t stats[MAX_HOPS], total;
+	int hops = MAX_HOPS, i;
+	memset(&total, 0, sizeof(total));
+	CHECK(run_hops(spec, csv, NULL, NULL, stats, &hops) == 0, "sweep on %s", spec);
+	for (i = 0; i < hops; i++) {
+		total.reads += stats[i].reads;
+		total.retunes += stats[i].retunes;
+		total.lock_failures += stats[i].lock_failures;
+		total.io_errors += stats[i].io_errors;
+		total.settle_us += stats[i].settle_us;
+	}
+	return total;
+}
+
+static void test_lock(void) {
+	char csv[] = "/tmp/power_synth_testXXXXXX";
+	char path[64];
+	hop_stats_t steady, missing, failing;
+	int fd = mkstemp(csv);
+	close(fd);
+	snprintf(path, sizeof(path), "%s.csv", csv);
+	/* streaming, every retune drops the settle time of the moment from the stream */
+	steady = run_totals("settle=1000", path);
+	CHECK(steady.retunes > 0 && steady.lock_failures == 0 && steady.io_errors == 0,
+		"%d retunes, %d missed locks, %d errors", steady.retunes, steady.lock_failures, steady.io_errors);
+	CHECK(steady.settle_us <= (int64_t) SETTLE_US * steady.retunes, "%lld us settling", (long long) steady.settle_us);
+
+	missing = run_totals("settle=1000,nolock=2", path);
+	CHECK(missing.retunes > 0 && missing.lock_failures == 2 * missing.retunes,
+		"%d missed locks in %d retunes", missing.lock_failures, missing.retunes);
+	CHECK(missing.io_errors == 0, "%d errors", missing.io_errors);
+	CHECK(missing.settle_us > (int64_t) 2 * SETTLE_US * missing.retunes,
+		"%lld us settling, the settle time grows", (long long) missing.settle_us);
+
+	failing = run_totals("settle=1000,ioerror=3", path);
+	CHECK(failing.retunes > 0 && failing.io_errors == failing.retunes / 3,
+		"%d errors in %d retunes", failing.io_errors, failing.retunes);
+	CHECK(failing.lock_failures == 0, "%d missed locks", failing.lock_failures);
+	CHECK(failing.settle_us <= (int64_t) SETTLE_US * failing.retunes,
+		"%lld us settling, errors are not retried", (long long) failing.settle_us);
+	unlink(csv);
+	unlink(path);
+}
+
+static void test_tones(void) {
+	char csv[] = "/tmp/power_synth_testXXXXXX";
+	char path[64];
+	double seconds;
+	peak_t a, b;
+	int fd = mkstemp(csv);
+	close(fd);
+	snprintf(path, sizeof(path), "%s.csv", csv);
+	CHECK(run("noise=-50,tone=100.3M:-20,tone=102.1M:-20", path, NULL, &seconds) == 0, "sweep");
+	a = find_peak(path, TONE_A);
+	b = find_peak(path, TONE_B);
+	CHECK(a.found && fabs(a.freq - TONE_A) <= 10000, "the first tone at %.0f Hz", a.freq);
+	CHECK(b.found && fabs(b.freq - TONE_B) <= 10000, "the second tone at %.0f Hz", b.freq);
+	CHECK(a.dbm - a.median > 20, "%.1f dB over the floor", a.dbm - a.median);
+	CHECK(b.dbm - b.median > 20, "%.1f dB over the floor", b.dbm - b.median);
+	printf("%ld hops, %.1f MS/s through the ffts in %.2f s\n", a.hops, a.iq / seconds / 1e6, seconds);
+	unlink(csv);
+	unlink(path);
+}
+
+static void test_gain(void) {
+	char csv[] = "/tmp/power_synth_testXXXXXX";
+	char path[64];
+	const char * gain[] = {"-g", "20", NULL};
+	const char * spec = "noise=-60,tone=100.3M:-40";
+	peak_t automatic, raised;
+	int fd = mkstemp(csv);
+	close(fd);
+	snprintf(path, sizeof(path), "%s.csv", csv);
+	CHECK(run(spec, path, NULL, NULL) == 0, "sweep");
+	automatic = find_peak(path, TONE_A);
+	CHECK(run(spec, path, gain, NULL) == 0, "sweep at 20 dB");
+	raised = find_peak(path, TONE_A);
+	CHECK(automatic.found && raised.found, "the tone");
+	CHECK(fabs(raised.dbm - automatic.dbm - 20) < 1, "%.2f dB louder", raised.dbm - automatic.dbm);
+	unlink(csv);
+	unlink(path);
+}
+
+static void test_burst(void) {
+	char csv[] = "/tmp/power_synth_testXXXXXX";
+	char path[64], max_path[64];
+	const char * series[] = {"-A", "max", NULL};
+	peak_t mean, max;
+	int fd = mkstemp(csv);
+	close(fd);
+	snprintf(path, sizeof(path), "%s.csv", csv);
+	snprintf(max_path, sizeof(max_path), "%s.max.csv", csv);
+	/* on for a fifth of every 10 ms, the mean of a hop is a fifth of its power */
+	CHECK(run("noise=-60,burst=100.3M:-20:10:20", path, series, NULL) == 0, "sweep");
+	mean = find_peak(path, TONE_A);
+	max = find_peak(max_path, TONE_A);
+	CHECK(mean.found && max.found, "the burst");
+	CHECK(fabs(mean.freq - TONE_A) <= 10000 && fabs(max.freq - TONE_A) <= 10000, "at %.0f and %.0f Hz", mean.freq, max.freq);
+	CHECK(max.dbm - mean.dbm > 5, "%.1f dB over its mean", max.dbm - mean.dbm);
+	unlink(csv);
+	unlink(path);
+	unlink(max_path);
+}
+
+static void test_spec(void) {
+	synth_config_t config;
+	CHECK(synth_config_parse(&config, "noise=-45.5,tone=100.3M:-20,burst=1.2G:-10:100:25,settle=2000,nolock=2,ioerror=5,seed=7,realtime") == 0, "parse");
+	CHECK(config.noise == -45.5, "noise %f", config.noise);
+	CHECK(config.signal_count == 2, "%d signals", config.signal_count);
+	CHECK(config.signals[0].freq == 100.3e6 && config.signals[0].level == -20 && config.signals[0].period == 0, "the tone");
+	CHECK(config.signals[1].freq == 1.2e9 && config.signals[1].period == 0.1 && config.signals[1].duty == 0.25, "the burst");
+	CHECK(config.missed_locks == 2 && config.io_error_every == 5, "the tuner's failures");
+	CHECK(config.settle_us == 2000 && config.seed == 7 && config.realtime, "the rest");
+	CHECK(synth_config_parse(&config, "") == 0 && config.noise == -60 && config.signal_count == 0, "the defaults");
+	CHECK(synth_config_parse(&config, "tone=100M") != 0, "no level");
+	CHECK(synth_config_parse(&config, "hum=50") != 0, "unknown item");
+	run("tone=100M", "/tmp/power_synth_test.none.csv", NULL, NULL);
+	CHECK(access("/tmp/power_synth_test.none.csv", F_OK) != 0, "nothing recorded with a bad spec");
+	unlink("/tmp/power_synth_test.none.csv");
+}
+
+int main(void) {
+	test_spec();
+	test_tones();
+	test_gain();
+	test_burst();
+	test_lock();
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
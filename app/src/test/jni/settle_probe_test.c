@@ -0,0 +1,108 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Checks the settle time is read off where the power of the samples stops
+ * swinging: nothing for samples that never swing, the end of the swing for
+ * samples of the old frequency, a swing and a settled tuner, and nothing
+ * for too few samples.
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "settle_probe.h"
+
+static int failures;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		printf("FAIL %s:%d: ", __FILE__, __LINE__); \
+		printf(__VA_ARGS__); \
+		printf("\n"); \
+		failures++; \
+	} \
+} while (0)
+
+#define RATE 2400000
+#define PROBE_MS 50
+#define LEN (2 * RATE / 1000 * PROBE_MS)
+
+static uint8_t iq[LEN];
+static uint32_t seed = 1;
+
+/* about normal, from the sum of four uniforms */
+static double noise(void) {
+	double sum = 0;
+	int k;
+	for (k = 0; k < 4; k++) {
+		seed = seed * 1103515245 + 12345;
+		sum += (seed >> 8 & 0xffff) / 65536.0 - 0.5;
+	}
+	return sum * sqrt(3.0);
+}
+
+static uint8_t sample(double amplitude) {
+	double v = 127.5 + amplitude * noise();
+	return (uint8_t) (v < 0 ? 0 : v > 255 ? 255 : v);
+}
+
+/* noise of amplitude from us_from to us_to at rate */
+static void fill(uint32_t rate, int us_from, int us_to, double amplitude) {
+	int k;
+	for (k = (int) ((int64_t) rate * us_from / 1000000); k < (int64_t) rate * us_to / 1000000; k++) {
+		iq[2 * k] = sample(amplitude);
+		iq[2 * k + 1] = sample(amplitude);
+	}
+}
+
+static void test_steady(void) {
+	int us;
+	fill(RATE, 0, PROBE_MS * 1000, 20);
+	us = settle_probe_us(iq, LEN, RATE);
+	CHECK(us == 0, "%d us", us);
+}
+
+static void test_swing(uint32_t rate) {
+	int len = (int) (2 * (int64_t) rate * PROBE_MS / 1000), us;
+	int block_us = (int) ((int64_t) settle_probe_block_pairs(rate) * 1000000 / rate);
+	fill(rate, 0, 2000, 10);	/* the old frequency */
+	fill(rate, 2000, 3000, 60);
+	fill(rate, 3000, 4000, 5);
+	fill(rate, 4000, PROBE_MS * 1000, 20);
+	us = settle_probe_us(iq, len, rate);
+	CHECK(us >= 4000 - block_us && us <= 4000 + block_us, "%d us at %u Hz", us, rate);
+}
+
+static void test_too_short(void) {
+	fill(RATE, 0, PROBE_MS * 1000, 20);
+	CHECK(settle_probe_us(iq, 2 * RATE / 1000, RATE) == -1, "a ms is too little");
+	CHECK(settle_probe_us(iq, 2 * 250000 / 1000 * PROBE_MS, 250000) == -1, "too few blocks of the least pairs");
+	CHECK(settle_probe_us(iq, 0, RATE) == -1, "nothing");
+}
+
+int main(void) {
+	test_steady();
+	test_swing(RATE);
+	test_swing(1024000);
+	test_too_short();
+	if (failures) {
+		printf("%d failures\n", failures);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
@@ -0,0 +1,28 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.tools.ArgumentParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** The rtl_tcp arguments of an intent split into their map, toMap is all the constructor does */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArgumentParserBenchmark {
+    private static final String ARGUMENTS = "-a 127.0.0.1 -p 14423 -f 100300000 -s 2048000 -g 496 -P 0 -n 'RTL Power'";
+
+    @Benchmark
+    public String parse() {
+        return new ArgumentParser(ARGUMENTS).getStringArgument("n");
+    }
+}
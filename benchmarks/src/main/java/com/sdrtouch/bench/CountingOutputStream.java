@@ -0,0 +1,22 @@
+package com.sdrtouch.bench;
+
+import java.io.OutputStream;
+
+/** Counts what is written and drops it, so only the encoding is measured */
+final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+    long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.rtlsdr.spectrum.CsvJsonConverter;
+import com.sdrtouch.rtlsdr.spectrum.CsvRowTokenizer;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumCsvReader;
+import com.sdrtouch.rtlsdr.spectrum.TimestampDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+
+/** Reading recordings the way CsvConverter does, from disk, for every fixture size */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class CsvBenchmark {
+    @Param({"10KB", "1MB", "100MB", "1GB"})
+    public String size;
+
+    private File csv;
+
+    @Setup
+    public void setUp() throws IOException {
+        csv = SweepFixtures.csv(size);
+    }
+
+    /** Only splitting the rows into columns, what the others read through */
+    @Benchmark
+    public long tokenize() throws IOException, ParseException {
+        InputStream in = SweepFixtures.open(csv);
+        try {
+            CsvRowTokenizer rows = new CsvRowTokenizer(in);
+            long values = 0;
+            while (rows.next()) values += rows.getDbmCount();
+            return values;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** The columns and the timestamp of every row, what TimestampDecoder adds to the tokenizer */
+    @Benchmark
+    public long tokenizeAndDecode() throws IOException, ParseException {
+        InputStream in = SweepFixtures.open(csv);
+        try {
+            CsvRowTokenizer rows = new CsvRowTokenizer(in);
+            TimestampDecoder decoder = new TimestampDecoder();
+            long sum = 0;
+            while (rows.next()) sum += decoder.decode(rows) + rows.getDbmCount();
+            return sum;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The baseline: the rows as CsvConverter read them before CsvRowTokenizer and TimestampDecoder, split
+     * on a regex, a new SimpleDateFormat per row and every value through Double.parseDouble
+     */
+    @Benchmark
+    public long splitRows() throws IOException, ParseException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(SweepFixtures.open(csv), "US-ASCII"));
+        try {
+            long sum = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entry = line.split(", ");
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss");
+                sum += format.parse(entry[0] + entry[1]).getTime() / 1000 + Integer.parseInt(entry[5]);
+                for (int i = 6; i < entry.length; i++) sum += (long) Double.parseDouble(entry[i]);
+            }
+            return sum;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** The whole recording into a batch, as it is read for an upload */
+    @Benchmark
+    public SpectrumBatch readBatch() throws IOException, ParseException {
+        InputStream in = SweepFixtures.open(csv);
+        try {
+            return new SpectrumCsvReader().read(in, SweepFixtures.INFO, csv.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Straight to json, a row at a time */
+    @Benchmark
+    public long convertToJson() throws IOException, ParseException {
+        InputStream in = SweepFixtures.open(csv);
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            new CsvJsonConverter().convert(in, out, SweepFixtures.INFO);
+        } finally {
+            in.close();
+        }
+        return out.getCount();
+    }
+}
@@ -0,0 +1,49 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumJsonWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the json of a parsed batch. The batch is held in memory, a GB of csv needs more heap than
+ * a phone has, so the sizes stop at 100MB unless asked for with -p size=1GB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+    @Param({"10KB", "1MB", "100MB"})
+    public String size;
+
+    private SpectrumBatch batch;
+
+    @Setup
+    public void setUp() throws IOException, ParseException {
+        batch = SweepFixtures.batch(size);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        new SpectrumJsonWriter().write(batch, out);
+        return out.getCount();
+    }
+}
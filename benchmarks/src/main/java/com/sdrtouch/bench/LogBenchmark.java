@@ -0,0 +1,56 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.tools.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log.appendLine from one thread and from as many as log at once in the app: the JNI callbacks, the
+ * recorder and the uploads. The log only grows, it is cleared after every iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogBenchmark {
+    private static final String LINE = "Tuned to 100300000 Hz.\n";
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        Log.clear();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void appendLine() {
+        Log.appendLine(LINE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void appendLineContended() {
+        Log.appendLine(LINE);
+    }
+
+    /** With the formatting of the varargs overload */
+    @Benchmark
+    @Threads(4)
+    public void appendFormattedContended() {
+        Log.appendLine("Tuned to %d Hz.", 100300000);
+    }
+}
@@ -0,0 +1,77 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.rtlsdr.spectrum.PayloadCompression;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumJsonWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The body of an upload: a batch as json an integration at a time, through the content encoding,
+ * as SpectrumUploader posts it. JMH only times it, {@link PayloadReport} tells the bytes on the wire
+ * and the CPU time per MB of recording that go with each encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PayloadBenchmark {
+    @Param({"10KB", "1MB", "100MB"})
+    public String size;
+
+    /** identity, or gzip and deflate with their level, e.g. gzip-6 */
+    @Param({"identity", "gzip-1", "gzip-6", "deflate-6"})
+    public String encoding;
+
+    private SpectrumBatch batch;
+    private PayloadCompression compression;
+
+    @Setup
+    public void setUp() throws IOException, ParseException {
+        batch = SweepFixtures.batch(size);
+        compression = compression(encoding);
+    }
+
+    @Benchmark
+    public long payload() throws IOException {
+        return write(batch, compression);
+    }
+
+    /** The compression of an encoding parameter */
+    static PayloadCompression compression(String encoding) {
+        if (encoding.equals("identity")) return PayloadCompression.NONE;
+        int level = Integer.parseInt(encoding.substring(encoding.indexOf('-') + 1));
+        return encoding.startsWith("gzip") ? PayloadCompression.gzip(level) : PayloadCompression.deflate(level);
+    }
+
+    /** Writes the payload of batch and returns its bytes on the wire */
+    static long write(SpectrumBatch batch, PayloadCompression compression) throws IOException {
+        SpectrumJsonWriter writer = new SpectrumJsonWriter();
+        CountingOutputStream wire = new CountingOutputStream();
+        OutputStream out = compression.wrap(wire);
+        writer.writeHeader(batch.getInfo(), out);
+        for (int integration = 0; integration < batch.getIntegrationCount(); integration++) {
+            writer.writeIntegration(batch, integration, integration > 0, out);
+        }
+        writer.writeFooter(out);
+        out.close();
+        return wire.getCount();
+    }
+}
@@ -0,0 +1,77 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.rtlsdr.spectrum.PayloadCompression;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * What JMH does not report about {@link PayloadBenchmark}: the bytes on the wire of every encoding
+ * and the CPU time it takes per MB of recording, the fixture size, for the sizes given as arguments.
+ * Prints a table and writes the same numbers as json to the file of -Dbench.payloadResults.
+ *
+ *   ./gradlew :benchmarks:payloadReport -PpayloadSizes='10KB 1MB 100MB'
+ */
+public final class PayloadReport {
+    private static final String[] ENCODINGS = {
+            "identity", "gzip-1", "gzip-6", "gzip-9", "deflate-1", "deflate-6", "deflate-9"};
+    private static final String[] DEFAULT_SIZES = {"10KB", "1MB", "100MB"};
+    // the fastest of the rounds counts, the first ones warm up
+    private static final int ROUNDS = 5;
+    private static final double MB = 1024.0 * 1024.0;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : DEFAULT_SIZES;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        StringBuilder json = new StringBuilder("[");
+        for (String size : sizes) {
+            SpectrumBatch batch = SweepFixtures.batch(size);
+            long fixtureBytes = SweepFixtures.csv(size).length();
+            double fixtureMB = fixtureBytes / MB;
+            long identity = 0;
+            System.out.println(String.format(Locale.US, "%s, %.2f MB of csv", size, fixtureMB));
+            for (String encoding : ENCODINGS) {
+                PayloadCompression compression = PayloadBenchmark.compression(encoding);
+                long wire = 0;
+                long cpu = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = threads.getCurrentThreadCpuTime();
+                    wire = PayloadBenchmark.write(batch, compression);
+                    cpu = Math.min(cpu, threads.getCurrentThreadCpuTime() - start);
+                }
+                if (encoding.equals("identity")) identity = wire;
+                double cpuPerMB = cpu / 1e6 / fixtureMB;
+                System.out.println(String.format(Locale.US, "  %-10s %12d bytes on wire %6.1f%% %9.2f ms cpu/MB",
+                        encoding, wire, 100.0 * wire / identity, cpuPerMB));
+                if (json.length() > 1) json.append(',');
+                json.append(String.format(Locale.US,
+                        "%n  {\"size\":\"%s\",\"fixtureBytes\":%d,\"encoding\":\"%s\",\"wireBytes\":%d,\"cpuMillisPerMB\":%.3f}",
+                        size, fixtureBytes, encoding, wire, cpuPerMB));
+            }
+        }
+        json.append(String.format("%n]%n"));
+        String results = System.getProperty("bench.payloadResults");
+        if (results != null) write(new File(results), json.toString());
+    }
+
+    private static void write(File file, String text) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    private PayloadReport() {
+    }
+}
@@ -0,0 +1,121 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.rtlsdr.spectrum.BatchInfo;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumBatch;
+import com.sdrtouch.rtlsdr.spectrum.SpectrumCsvReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * rtl_power csv recordings of a given size, written once to build/fixtures and kept for later runs.
+ *
+ * They are a survey of 1000M to 1700M in 280 hops of 2.5 MHz with 32 bins each, an integration every
+ * 10 seconds: a noise floor around -38 dBm with a carrier every few MHz, like the recordings in the
+ * test resources. The same size always gives the same file.
+ */
+final class SweepFixtures {
+    static final BatchInfo INFO = new BatchInfo("20161128-134500", 12.5f, -33.8836, 151.2004, "10s");
+    /** what CsvConverter reads through */
+    static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final long START_HZ = 1000000000L;
+    private static final int HOP_HZ = 2500000;
+    private static final int HOPS = 280;
+    private static final int BINS = 32;
+
+    /** The recording of size, e.g. "10KB", "1MB" or "1GB", written if it is not there yet */
+    static File csv(String size) throws IOException {
+        long bytes = parseSize(size);
+        File dir = new File(System.getProperty("bench.fixtures", "build/fixtures"));
+        File file = new File(dir, "sweep-" + size + ".csv");
+        if (file.length() >= bytes) return file;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        // a run that was killed while writing leaves no fixture behind
+        File partial = new File(dir, file.getName() + ".part");
+        write(partial, bytes);
+        if (!partial.renameTo(file)) throw new IOException("Unable to rename " + partial);
+        return file;
+    }
+
+    static InputStream open(File csv) throws IOException {
+        return new BufferedInputStream(new FileInputStream(csv), IO_BUFFER_SIZE);
+    }
+
+    /** The recording parsed, as it is held for an upload */
+    static SpectrumBatch batch(String size) throws IOException, ParseException {
+        File csv = csv(size);
+        InputStream in = open(csv);
+        try {
+            return new SpectrumCsvReader().read(in, INFO, csv.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    static long parseSize(String size) {
+        String upper = size.toUpperCase(Locale.US);
+        long unit = 1;
+        if (upper.endsWith("KB")) unit = 1024L;
+        else if (upper.endsWith("MB")) unit = 1024L * 1024;
+        else if (upper.endsWith("GB")) unit = 1024L * 1024 * 1024;
+        String digits = unit == 1 ? upper : upper.substring(0, upper.length() - 2);
+        return Long.parseLong(digits.trim()) * unit;
+    }
+
+    private static void write(File file, long bytes) throws IOException {
+        Random random = new Random(1);
+        Calendar time = new GregorianCalendar(2016, Calendar.NOVEMBER, 28, 13, 45, 8);
+        StringBuilder line = new StringBuilder(64 + BINS * 8);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE);
+        long written = 0;
+        try {
+            while (written < bytes) {
+                String stamp = String.format(Locale.US, "%1$tY-%1$tm-%1$td, %1$tH:%1$tM:%1$tS", time);
+                for (int hop = 0; hop < HOPS && written < bytes; hop++) {
+                    long low = START_HZ + (long) hop * HOP_HZ;
+                    line.setLength(0);
+                    line.append(stamp).append(", ").append(low).append(", ").append(low + HOP_HZ)
+                            .append(", 78125.00, 40");
+                    for (int bin = 0; bin < BINS; bin++) {
+                        double dbm = -38 + random.nextGaussian() * 1.5 + ((hop * BINS + bin) % 97 == 0 ? 22 : 0);
+                        appendHundredths(line.append(", "), (int) Math.round(dbm * 100));
+                    }
+                    line.append('\n');
+                    byte[] ascii = line.toString().getBytes("US-ASCII");
+                    out.write(ascii);
+                    written += ascii.length;
+                }
+                time.add(Calendar.SECOND, 10);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** e.g. -3897 as -38.97, without the cost of String.format for a GB of values */
+    private static void appendHundredths(StringBuilder sb, int hundredths) {
+        if (hundredths < 0) {
+            sb.append('-');
+            hundredths = -hundredths;
+        }
+        sb.append(hundredths / 100).append('.');
+        int fraction = hundredths % 100;
+        if (fraction < 10) sb.append('0');
+        sb.append(fraction);
+    }
+
+    private SweepFixtures() {
+    }
+}
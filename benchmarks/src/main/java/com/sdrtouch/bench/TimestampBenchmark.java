@@ -0,0 +1,75 @@
+package com.sdrtouch.bench;
+
+import com.sdrtouch.rtlsdr.spectrum.TimestampDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The date and time columns to unix time: every hop of a sweep repeats the timestamp of the one before,
+ * every sweep has a new one. SimpleDateFormat is how the columns were parsed before TimestampDecoder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TimestampBenchmark {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Australia/Sydney");
+    private static final String DATE_COLUMN = "2016-11-28";
+    private static final String TIME_COLUMN = "13:45:08";
+
+    private TimestampDecoder decoder;
+    private SimpleDateFormat format;
+    private int second;
+
+    @Setup
+    public void setUp() {
+        decoder = new TimestampDecoder(ZONE);
+        format = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss", Locale.US);
+        format.setTimeZone(ZONE);
+    }
+
+    /** Another hop of the same sweep */
+    @Benchmark
+    public long sameSweep() {
+        return decoder.toUnixTime(2016, 11, 28, 13, 45, 8);
+    }
+
+    /** A new sweep every time, through a day and its daylight saving */
+    @Benchmark
+    public long newSweep() {
+        second = (second + 10) % 86400;
+        return decoder.toUnixTime(2016, 10, 2, second / 3600, second / 60 % 60, second % 60);
+    }
+
+    @Benchmark
+    public long simpleDateFormat() throws ParseException {
+        second = (second + 10) % 86400;
+        String columns = String.format(Locale.US, "2016-10-02%02d:%02d:%02d", second / 3600, second / 60 % 60, second % 60);
+        return format.parse(columns).getTime() / 1000;
+    }
+
+    /** The baseline: what CsvConverter did for every row, a new SimpleDateFormat on the two columns */
+    @Benchmark
+    public long simpleDateFormatPerRow() throws ParseException {
+        SimpleDateFormat perRow = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss");
+        perRow.setTimeZone(ZONE);
+        return perRow.parse(DATE_COLUMN + TIME_COLUMN).getTime() / 1000;
+    }
+}
@@ -187,6 +187,16 @@ enum rtlsdr_tuner {
  */
 RTLSDR_API enum rtlsdr_tuner rtlsdr_get_tuner_type(rtlsdr_dev_t *dev);
 
+/*!
+ * Get whether the tuner's PLL locked at the frequency last set, as the
+ * tuner driver saw it. rtlsdr_set_center_freq() returns 0 on an R820T or
+ * R828D that did not lock, and an error on an E4000.
+ *
+ * \param dev the device handle given by rtlsdr_open()
+ * \return 1 if locked, 0 if not, -1 on error, -2 if the tuner can not tell
+ */
+RTLSDR_API int rtlsdr_get_tuner_lock(rtlsdr_dev_t *dev);
+
 /*!
  * Get a list of gains supported by the tuner.
  *
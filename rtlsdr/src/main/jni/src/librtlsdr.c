@@ -955,6 +955,28 @@ enum rtlsdr_tuner rtlsdr_get_tuner_type(rtlsdr_dev_t *dev)
 	return dev->tuner_type;
 }
 
+int rtlsdr_get_tuner_lock(rtlsdr_dev_t *dev)
+{
+	int r;
+
+	if (!dev || !dev->tuner)
+		return -1;
+
+	switch (dev->tuner_type) {
+	case RTLSDR_TUNER_E4000:
+		rtlsdr_set_i2c_repeater(dev, 1);
+		r = e4k_pll_locked(&dev->e4k_s);
+		rtlsdr_set_i2c_repeater(dev, 0);
+		return r;
+	case RTLSDR_TUNER_R820T:
+	case RTLSDR_TUNER_R828D:
+		/* r82xx_set_pll waits for the lock and remembers it */
+		return dev->r82xx_p.has_lock;
+	default:
+		return -2;
+	}
+}
+
 int rtlsdr_get_tuner_gains(rtlsdr_dev_t *dev, int *gains)
 {
 	/* all gain values are expressed in tenths of a dB */
@@ -594,6 +594,19 @@ int e4k_tune_freq(struct e4k_state *e4k, uint32_t freq)
 	return 0;
 }
 
+/*! \brief Whether the PLL is locked
+ *  \param[in] e4k reference to tuner
+ *  \returns 1 if locked, 0 if not, negative in case of error
+ */
+int e4k_pll_locked(struct e4k_state *e4k)
+{
+	int rc = e4k_reg_read(e4k, E4K_REG_SYNTH1);
+	if (rc < 0)
+		return rc;
+
+	return rc & 0x01;
+}
+
 /***********************************************************************
  * Gain Control */
 